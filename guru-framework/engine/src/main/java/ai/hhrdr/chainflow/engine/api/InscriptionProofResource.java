@@ -0,0 +1,37 @@
+package ai.hhrdr.chainflow.engine.api;
+
+import ai.hhrdr.chainflow.engine.ethereum.InscriptionAnchorService;
+import ai.hhrdr.chainflow.engine.ethereum.MerkleAnchorStore;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Inclusion proofs of history events anchored by Merkle root, see {@link InscriptionAnchorService}.
+ */
+@Component
+@Path("/inscription/proofs")
+public class InscriptionProofResource {
+
+    @Autowired
+    private InscriptionAnchorService anchorService;
+
+    @GET
+    @Path("/{eventId}")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response proofs(@PathParam("eventId") String eventId) throws IOException {
+        List<MerkleAnchorStore.Proof> proofs = anchorService.proofs(eventId);
+        if (proofs.isEmpty()) {
+            return Response.status(Response.Status.NOT_FOUND).build();
+        }
+        return Response.ok(proofs).build();
+    }
+}
@@ -1,6 +1,7 @@
 package ai.hhrdr.chainflow.engine.api.config;
 
 import ai.hhrdr.chainflow.engine.api.CustomRestService;
+import ai.hhrdr.chainflow.engine.api.InscriptionProofResource;
 import org.glassfish.jersey.server.ResourceConfig;
 import org.springframework.boot.autoconfigure.jersey.ResourceConfigCustomizer;
 import org.springframework.stereotype.Component;
@@ -11,5 +12,6 @@ public class ApiResourceConfigCustomizer implements ResourceConfigCustomizer {
     @Override
     public void customize(ResourceConfig config) {
         config.register(CustomRestService.class);
+        config.register(InscriptionProofResource.class);
     }
 }
\ No newline at end of file
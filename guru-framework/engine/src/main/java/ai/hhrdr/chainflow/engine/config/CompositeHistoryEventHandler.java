@@ -1,36 +1,201 @@
 package ai.hhrdr.chainflow.engine.config;
 
+import ai.hhrdr.chainflow.engine.service.CommandScopedBuffer;
+import ai.hhrdr.chainflow.engine.service.OrderedLanes;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.camunda.bpm.engine.impl.cfg.TransactionState;
 import org.camunda.bpm.engine.impl.history.event.HistoryEvent;
 import org.camunda.bpm.engine.impl.history.handler.HistoryEventHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Primary;
 import org.springframework.stereotype.Component;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
-//@Component
+/**
+ * Fans history events out to the registered handlers.
+ *
+ * Every handler gets its own single-threaded lanes with bounded queues, so a slow or failing sink neither
+ * delays the others nor the engine. Events are handed over once the engine transaction has committed, and a
+ * process instance always maps to the same lane of a handler, keeping its events in order. A handler's
+ * exceptions are logged and counted, never propagated.
+ *
+ * Handlers listed in engine.history.fanout.sync-handlers (simple class names) still run inline on the engine
+ * thread, for sinks that have to take part in the transaction. Being the primary handler, this is the one the
+ * Camunda starter registers with the engine; the other handler beans are only reached through it.
+ */
+@Component
 @Primary
-public class CompositeHistoryEventHandler implements HistoryEventHandler {
+public class CompositeHistoryEventHandler implements HistoryEventHandler, DisposableBean {
 
-    private final List<HistoryEventHandler> handlers;
+    public enum OverflowPolicy {
+        /** Wait for room in the lane queue. */
+        BLOCK,
+        /** Drop the event and count it. */
+        DROP,
+        /** Run the handler on the committing thread. */
+        CALLER_RUNS
+    }
+
+    private static final Logger LOG = LoggerFactory.getLogger(CompositeHistoryEventHandler.class);
+
+    private final List<HistoryEventHandler> syncHandlers = new ArrayList<>();
+    private final List<HandlerSink> asyncSinks = new ArrayList<>();
+    private final CommandScopedBuffer<HistoryEvent> committedBuffer;
 
     @Autowired
-    public CompositeHistoryEventHandler(List<HistoryEventHandler> handlers) {
-        this.handlers = handlers;
+    public CompositeHistoryEventHandler(List<HistoryEventHandler> handlers,
+                                        MeterRegistry meterRegistry,
+                                        @Value("${engine.history.fanout.sync-handlers:RabbitMQHistoricalEventsHandler,Web3HistoricEventsHandler}") String syncHandlerNames,
+                                        @Value("${engine.history.fanout.threads:2}") int threads,
+                                        @Value("${engine.history.fanout.queue.capacity:5000}") int queueCapacity,
+                                        @Value("${engine.history.fanout.overflow:BLOCK}") OverflowPolicy overflowPolicy) {
+        Set<String> syncNames = new HashSet<>(Arrays.asList(syncHandlerNames.split("\\s*,\\s*")));
+        for (HistoryEventHandler handler : handlers) {
+            String name = handler.getClass().getSimpleName();
+            if (syncNames.contains(name)) {
+                syncHandlers.add(handler);
+            } else {
+                asyncSinks.add(new HandlerSink(handler, name, threads, queueCapacity, overflowPolicy, meterRegistry));
+            }
+        }
+        Counter rolledBack = Counter.builder("history.fanout.rolled_back")
+                .description("History events discarded because their transaction rolled back")
+                .register(meterRegistry);
+        this.committedBuffer = new CommandScopedBuffer<>(TransactionState.COMMITTED,
+                this::fanOut, discarded -> rolledBack.increment(discarded.size()));
     }
 
     @Override
     public void handleEvent(HistoryEvent historyEvent) {
-        for (HistoryEventHandler handler : handlers) {
+        for (HistoryEventHandler handler : syncHandlers) {
             handler.handleEvent(historyEvent);
         }
+        if (!asyncSinks.isEmpty() && !committedBuffer.add(historyEvent)) {
+            fanOut(Collections.singletonList(historyEvent));
+        }
     }
 
     @Override
     public void handleEvents(List<HistoryEvent> historyEvents) {
-        for (HistoryEventHandler handler : handlers) {
-            handler.handleEvents(historyEvents);
+        for (HistoryEvent historyEvent : historyEvents) {
+            handleEvent(historyEvent);
+        }
+    }
+
+    private void fanOut(List<HistoryEvent> historyEvents) {
+        for (HandlerSink sink : asyncSinks) {
+            for (HistoryEvent historyEvent : historyEvents) {
+                sink.submit(historyEvent);
+            }
+        }
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        for (HandlerSink sink : asyncSinks) {
+            sink.shutdown();
+        }
+        for (HandlerSink sink : asyncSinks) {
+            sink.awaitTermination();
         }
     }
-}
 
+    private static final class HandlerSink {
+
+        private final HistoryEventHandler handler;
+        private final String name;
+        private final OverflowPolicy overflowPolicy;
+        private final OrderedLanes lanes;
+        private final Timer latency;
+        private final Counter failed;
+        private final Counter dropped;
+
+        HandlerSink(HistoryEventHandler handler, String name, int threads, int queueCapacity,
+                    OverflowPolicy overflowPolicy, MeterRegistry meterRegistry) {
+            this.handler = handler;
+            this.name = name;
+            this.overflowPolicy = overflowPolicy;
+            this.lanes = new OrderedLanes("history-" + name, threads, queueCapacity, overflowPolicy == OverflowPolicy.BLOCK);
+
+            this.latency = Timer.builder("history.fanout.handler.latency")
+                    .description("Time a history event handler takes per event")
+                    .tag("handler", name)
+                    .register(meterRegistry);
+            this.failed = outcomeCounter(meterRegistry, name, "failed");
+            this.dropped = outcomeCounter(meterRegistry, name, "dropped");
+            Gauge.builder("history.fanout.queue.depth", lanes, OrderedLanes::queueDepth)
+                    .description("History events waiting for a handler")
+                    .tag("handler", name)
+                    .register(meterRegistry);
+        }
+
+        void submit(HistoryEvent historyEvent) {
+            Runnable task = () -> handle(historyEvent);
+            if (lanes.execute(historyEvent.getProcessInstanceId(), task)) {
+                return;
+            }
+            if (lanes.isShutdown()) {
+                // Committed while shutting down, hand it over here rather than lose it
+                task.run();
+                return;
+            }
+            switch (overflowPolicy) {
+                case BLOCK:
+                    // Only an interrupt ends the wait for room
+                    dropped.increment();
+                    LOG.warn("Interrupted while waiting for the {} queue, event dropped", name);
+                    break;
+                case DROP:
+                    dropped.increment();
+                    LOG.warn("{} queue full, event {} dropped", name, historyEvent.getId());
+                    break;
+                case CALLER_RUNS:
+                    task.run();
+                    break;
+            }
+        }
+
+        private void handle(HistoryEvent historyEvent) {
+            long start = System.nanoTime();
+            try {
+                handler.handleEvent(historyEvent);
+            } catch (Exception e) {
+                failed.increment();
+                LOG.error("{} failed on history event {} of process instance {}", name, historyEvent.getEventType(),
+                        historyEvent.getProcessInstanceId(), e);
+            } finally {
+                latency.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            }
+        }
+
+        void shutdown() {
+            lanes.shutdown();
+        }
+
+        void awaitTermination() throws InterruptedException {
+            lanes.awaitTermination(10, TimeUnit.SECONDS);
+        }
+
+        private static Counter outcomeCounter(MeterRegistry meterRegistry, String handler, String outcome) {
+            return Counter.builder("history.fanout.events")
+                    .description("History events the fan-out could not deliver to a handler")
+                    .tag("handler", handler)
+                    .tag("outcome", outcome)
+                    .register(meterRegistry);
+        }
+    }
+}
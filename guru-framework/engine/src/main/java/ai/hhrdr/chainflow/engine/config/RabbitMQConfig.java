@@ -1,17 +1,39 @@
 package ai.hhrdr.chainflow.engine.config;
 
+import ai.hhrdr.chainflow.engine.service.HistoryEventPartitioner;
 import org.springframework.amqp.core.*;
 import org.springframework.amqp.rabbit.connection.ConnectionFactory;
 import org.springframework.amqp.rabbit.core.RabbitAdmin;
 import org.springframework.amqp.rabbit.core.RabbitTemplate;
 import org.springframework.amqp.support.converter.Jackson2JsonMessageConverter;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 @Configuration
 public class RabbitMQConfig {
 
+    // Simple class names of the HistoryEvent subclasses the engine publishes, one typed exchange each
+    public static final List<String> HISTORY_EVENT_TYPES = Arrays.asList(
+            "HistoricProcessInstanceEventEntity",
+            "HistoricActivityInstanceEventEntity",
+            "HistoricTaskInstanceEventEntity",
+            "HistoricVariableUpdateEventEntity",
+            "HistoricDetailEventEntity",
+            "HistoricFormPropertyEventEntity",
+            "HistoricIncidentEventEntity",
+            "HistoricJobLogEventEntity",
+            "HistoricExternalTaskLogEntity",
+            "HistoricIdentityLinkLogEventEntity",
+            "UserOperationLogEntryEventEntity"
+    );
+
     @Value("${engine.rabbitmq.exchange}")
     private String exchangeName;
 
@@ -21,6 +43,9 @@ public class RabbitMQConfig {
     @Value("${engine.rabbitmq.routingkey}")
     private String routingKey;
 
+    @Value("${engine.rabbitmq.partition.count:0}")
+    private int partitionCount;
+
     @Bean
     public AmqpAdmin amqpAdmin(ConnectionFactory connectionFactory) {
         return new RabbitAdmin(connectionFactory);
@@ -41,6 +66,39 @@ public class RabbitMQConfig {
         return BindingBuilder.bind(queue).to(exchange).with(routingKey);
     }
 
+    /**
+     * One durable queue per partition, {@code <queue>.<partition>}, bound with the partition's routing key.
+     * With partitioning on, events no longer reach the unpartitioned queue.
+     */
+    @Bean
+    @ConditionalOnExpression("${engine.rabbitmq.partition.count:0} > 0")
+    public Declarables partitionQueues(DirectExchange exchange) {
+        List<Declarable> declarables = new ArrayList<>();
+        for (int partition = 0; partition < partitionCount; partition++) {
+            Queue partitionQueue = new Queue(queueName + "." + partition, true);
+            declarables.add(partitionQueue);
+            declarables.add(BindingBuilder.bind(partitionQueue).to(exchange)
+                    .with(HistoryEventPartitioner.routingKey(routingKey, partition)));
+        }
+        return new Declarables(declarables);
+    }
+
+    /**
+     * Typed exchanges forwarding to the base exchange, so every event is published once to its typed
+     * exchange and still reaches the base queue.
+     */
+    @Bean
+    @ConditionalOnProperty(name = "engine.rabbitmq.publish.single", havingValue = "true")
+    public Declarables historyEventExchanges(DirectExchange exchange) {
+        List<Declarable> declarables = new ArrayList<>();
+        for (String eventType : HISTORY_EVENT_TYPES) {
+            TopicExchange typedExchange = new TopicExchange(exchangeName + "." + eventType);
+            declarables.add(typedExchange);
+            declarables.add(BindingBuilder.bind(exchange).to(typedExchange).with("#"));
+        }
+        return new Declarables(declarables);
+    }
+
     public Jackson2JsonMessageConverter jackson2JsonMessageConverter() {
         return new Jackson2JsonMessageConverter();
     }
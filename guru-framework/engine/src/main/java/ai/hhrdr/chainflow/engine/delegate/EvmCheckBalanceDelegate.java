@@ -1,18 +1,16 @@
 package ai.hhrdr.chainflow.engine.delegate;
 
+import ai.hhrdr.chainflow.engine.ethereum.BalanceService;
 import org.camunda.bpm.engine.delegate.DelegateExecution;
 import org.camunda.bpm.engine.delegate.JavaDelegate;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
-import org.web3j.protocol.Web3j;
-import org.web3j.protocol.http.HttpService;
-import org.web3j.protocol.core.DefaultBlockParameterName;
-import org.web3j.utils.Convert;
-
 import java.math.BigDecimal;
 import java.math.BigInteger;
 import java.math.RoundingMode;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 @Component("evmCheckBalanceDelegate")
@@ -20,8 +18,11 @@ public class EvmCheckBalanceDelegate implements JavaDelegate {
 
     private static final Logger LOGGER = Logger.getLogger(EvmCheckBalanceDelegate.class.getName());
 
-    @Value("${inscription.rpcUrl}")
-    private String rpcUrl;
+    @Value("${ethereum.balance.timeout:30000}")
+    private long balanceTimeout;
+
+    @Autowired
+    private BalanceService balanceService;
 
     @Override
     public void execute(DelegateExecution execution) throws Exception {
@@ -51,31 +52,41 @@ public class EvmCheckBalanceDelegate implements JavaDelegate {
 
         LOGGER.info("Checking balance for address: " + walletAddress + " on chain_id: " + chainId);
 
-        // 2) Connect to the EVM-compatible RPC node
-        Web3j web3j = Web3j.build(new HttpService(rpcUrl));
-        LOGGER.info("Connected to EVM node via: " + rpcUrl);
-
-        // 3) Fetch the wallet balance in Wei
-        BigInteger weiBalance = web3j
-                .ethGetBalance(walletAddress, DefaultBlockParameterName.LATEST)
-                .send()
-                .getBalance();
-        LOGGER.info("Wei balance from chain: " + weiBalance);
+        // 2) Fetch the balance through the batching balance service; an optional token_address asks for an
+        //    ERC-20 balance instead of the native one, token_decimals defaults to 18, and fresh_balance=true
+        //    skips balances cached for the current block
+        Object tokenAddress = execution.getVariable("token_address");
+        boolean fresh = Boolean.parseBoolean(String.valueOf(execution.getVariable("fresh_balance")));
+        BigInteger rawBalance;
+        int decimals = 18;
+        if (tokenAddress != null && !tokenAddress.toString().isEmpty()) {
+            Object tokenDecimals = execution.getVariable("token_decimals");
+            if (tokenDecimals != null) {
+                decimals = Integer.parseInt(tokenDecimals.toString());
+            }
+            rawBalance = balanceService.tokenBalance(chainId, tokenAddress.toString(), walletAddress, fresh)
+                    .get(balanceTimeout, TimeUnit.MILLISECONDS);
+            LOGGER.info("Token " + tokenAddress + " balance from chain: " + rawBalance);
+        } else {
+            rawBalance = balanceService.nativeBalance(chainId, walletAddress, fresh)
+                    .get(balanceTimeout, TimeUnit.MILLISECONDS);
+            LOGGER.info("Wei balance from chain: " + rawBalance);
+        }
 
-        // 4) Convert from Wei to Ether (18 decimals)
-        BigDecimal balanceInEther = Convert.fromWei(new BigDecimal(weiBalance), Convert.Unit.ETHER);
-        LOGGER.info("Balance in 18-decimal format: " + balanceInEther);
+        // 3) Convert from the smallest unit (wei for the native balance)
+        BigDecimal balanceInEther = new BigDecimal(rawBalance).movePointLeft(decimals);
+        LOGGER.info("Balance in " + decimals + "-decimal format: " + balanceInEther);
 
-        // 5) Round the wallet balance to 2 decimal places
+        // 4) Round the wallet balance to 2 decimal places
         BigDecimal walletBalanceRounded = balanceInEther.setScale(2, RoundingMode.HALF_UP);
         execution.setVariable("wallet_balance", walletBalanceRounded.toPlainString());
         execution.setVariable("checked_chain_id", chainId);
 
-        // 6) Retrieve the required balance from process variables
+        // 5) Retrieve the required balance from process variables
         BigDecimal threshold = new BigDecimal(execution.getVariable("required_balance").toString());
         LOGGER.info("Using threshold (required_balance): " + threshold);
 
-        // 7) Check if the balance is below the required threshold
+        // 6) Check if the balance is below the required threshold
         if (walletBalanceRounded.compareTo(threshold) < 0) {
             // insufficient_balance = true
             execution.setVariable("insufficient_balance", true);
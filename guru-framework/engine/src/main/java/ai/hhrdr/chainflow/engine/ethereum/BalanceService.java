@@ -0,0 +1,490 @@
+package ai.hhrdr.chainflow.engine.ethereum;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.web3j.protocol.Web3j;
+import org.web3j.protocol.core.BatchRequest;
+import org.web3j.protocol.core.DefaultBlockParameterName;
+import org.web3j.protocol.core.Response;
+import org.web3j.protocol.core.methods.request.Transaction;
+import org.web3j.protocol.core.methods.response.EthBlockNumber;
+import org.web3j.protocol.core.methods.response.EthCall;
+import org.web3j.protocol.core.methods.response.EthGetBalance;
+import org.web3j.utils.Numeric;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Native and ERC-20 balances, looked up in batches and cached per block.
+ *
+ * Requests for a chain are collected for ethereum.balance.batch.window ms, or until
+ * ethereum.balance.batch.max of them are waiting, and then resolved together: by one Multicall3 aggregate3
+ * eth_call where the chain has the contract, otherwise by one JSON-RPC batch. Requests for the same balance
+ * within a window share the result.
+ *
+ * Balances are cached with the block they were read at. An entry is served until the chain head, polled every
+ * ethereum.balance.head.poll.interval ms or seen in a later read, moves past that block, until a transaction
+ * the engine sends touches the address, see {@link #invalidate}, or for at most ethereum.balance.cache.max.age
+ * ms; 0 disables the cache. Callers that must see the latest state ask for a fresh read.
+ */
+@Service
+public class BalanceService implements DisposableBean {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BalanceService.class);
+
+    // Invalidations are kept this long, well past the time any read started before them can take
+    private static final long INVALIDATION_HORIZON = TimeUnit.MINUTES.toNanos(5);
+
+    private final long window;
+    private final int maxBatch;
+    private final boolean multicall;
+    private final String multicallAddress;
+    private final long maxAge;
+    private final int maxEntries;
+    private final String defaultRpcUrl;
+    private final Web3jRegistry web3jRegistry;
+    private final MeterRegistry meterRegistry;
+    private final Map<Long, ChainState> chains = new ConcurrentHashMap<>();
+    private final Set<Long> withoutMulticall = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService scheduler;
+
+    private final Counter requests;
+    private final Counter shared;
+    private final Counter multicalls;
+    private final Counter rpcBatches;
+    private final Counter cacheHits;
+    private final Counter cacheMisses;
+    private final Counter freshReads;
+    private final Timer cacheAge;
+    private final DistributionSummary batchSize;
+
+    public BalanceService(@Value("${ethereum.balance.batch.window:20}") long window,
+                          @Value("${ethereum.balance.batch.max:500}") int maxBatch,
+                          @Value("${ethereum.balance.batch.threads:4}") int threads,
+                          @Value("${ethereum.balance.multicall:true}") boolean multicall,
+                          @Value("${ethereum.balance.multicall.address:" + Multicall3.DEFAULT_ADDRESS + "}") String multicallAddress,
+                          @Value("${ethereum.balance.cache.max.age:15000}") long maxAge,
+                          @Value("${ethereum.balance.cache.max.entries:100000}") int maxEntries,
+                          @Value("${inscription.rpcUrl}") String defaultRpcUrl,
+                          Web3jRegistry web3jRegistry,
+                          MeterRegistry meterRegistry) {
+        this.window = window;
+        this.maxBatch = Math.max(1, maxBatch);
+        this.multicall = multicall;
+        this.multicallAddress = multicallAddress;
+        this.maxAge = maxAge;
+        this.maxEntries = maxEntries;
+        this.defaultRpcUrl = defaultRpcUrl;
+        this.web3jRegistry = web3jRegistry;
+        this.meterRegistry = meterRegistry;
+        this.scheduler = Executors.newScheduledThreadPool(Math.max(1, threads), runnable -> {
+            Thread thread = new Thread(runnable, "balance-batch");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        this.requests = Counter.builder("ethereum.balance.requests")
+                .description("Balance lookups requested")
+                .register(meterRegistry);
+        this.shared = Counter.builder("ethereum.balance.shared")
+                .description("Balance lookups answered by a request already waiting in the same window")
+                .register(meterRegistry);
+        this.multicalls = Counter.builder("ethereum.balance.rpc")
+                .description("RPC calls made to resolve balances")
+                .tag("method", "multicall")
+                .register(meterRegistry);
+        this.rpcBatches = Counter.builder("ethereum.balance.rpc")
+                .description("RPC calls made to resolve balances")
+                .tag("method", "batch")
+                .register(meterRegistry);
+        this.cacheHits = Counter.builder("ethereum.balance.cache")
+                .description("Balance lookups by cache outcome")
+                .tag("result", "hit")
+                .register(meterRegistry);
+        this.cacheMisses = Counter.builder("ethereum.balance.cache")
+                .description("Balance lookups by cache outcome")
+                .tag("result", "miss")
+                .register(meterRegistry);
+        this.freshReads = Counter.builder("ethereum.balance.cache")
+                .description("Balance lookups by cache outcome")
+                .tag("result", "fresh")
+                .register(meterRegistry);
+        this.cacheAge = Timer.builder("ethereum.balance.cache.age")
+                .description("Time since the served balance was read from the chain")
+                .register(meterRegistry);
+        this.batchSize = DistributionSummary.builder("ethereum.balance.batch.size")
+                .description("Distinct balances resolved per RPC call")
+                .register(meterRegistry);
+        Gauge.builder("ethereum.balance.cache.size", chains,
+                        states -> states.values().stream().mapToInt(state -> state.cache.size()).sum())
+                .description("Cached balances over all chains")
+                .register(meterRegistry);
+    }
+
+    /**
+     * @return the native balance in wei at the latest block, possibly from the cache
+     */
+    public CompletableFuture<BigInteger> nativeBalance(long chainId, String address) {
+        return nativeBalance(chainId, address, false);
+    }
+
+    /**
+     * @param fresh whether to read the chain even if the cache holds a current balance
+     */
+    public CompletableFuture<BigInteger> nativeBalance(long chainId, String address, boolean fresh) {
+        return request(chainId, new BalanceKey(null, address), fresh);
+    }
+
+    /**
+     * @return balanceOf(holder) of the token contract, in its smallest unit, at the latest block, possibly from
+     * the cache
+     */
+    public CompletableFuture<BigInteger> tokenBalance(long chainId, String token, String holder) {
+        return tokenBalance(chainId, token, holder, false);
+    }
+
+    /**
+     * @param fresh whether to read the chain even if the cache holds a current balance
+     */
+    public CompletableFuture<BigInteger> tokenBalance(long chainId, String token, String holder, boolean fresh) {
+        return request(chainId, new BalanceKey(token, holder), fresh);
+    }
+
+    /**
+     * Drops the cached balances of the address, and keeps reads already under way from caching what they
+     * return. Called for the sender and the recipient of every transaction the engine sends.
+     */
+    public void invalidate(long chainId, String address) {
+        ChainState chain = chains.get(chainId);
+        if (chain == null || address == null) {
+            return;
+        }
+        String holder = address.toLowerCase();
+        chain.invalidated.put(holder, System.nanoTime());
+        chain.cache.keySet().removeIf(key -> key.holder.equals(holder));
+    }
+
+    /**
+     * Looks up the head of every chain with cached balances and drops the balances read before it.
+     */
+    @Scheduled(fixedDelayString = "${ethereum.balance.head.poll.interval:2000}")
+    public void pollHeads() {
+        for (ChainState chain : chains.values()) {
+            if (chain.cache.isEmpty()) {
+                continue;
+            }
+            try {
+                EthBlockNumber blockNumber = web3jRegistry.client(chain.chainId, defaultRpcUrl).ethBlockNumber().send();
+                if (!blockNumber.hasError()) {
+                    advance(chain, blockNumber.getBlockNumber().longValue());
+                }
+            } catch (Exception e) {
+                LOG.debug("Cannot poll the head of chain {}: {}", chain.chainId, e.getMessage());
+            }
+        }
+    }
+
+    private CompletableFuture<BigInteger> request(long chainId, BalanceKey key, boolean fresh) {
+        requests.increment();
+        ChainState chain = chains.computeIfAbsent(chainId, this::chainState);
+        if (fresh) {
+            freshReads.increment();
+        } else if (maxAge > 0) {
+            CachedBalance cached = chain.cache.get(key);
+            long now = System.currentTimeMillis();
+            if (cached != null && cached.block >= chain.head.get() && now - cached.readAt <= maxAge) {
+                cacheHits.increment();
+                cacheAge.record(now - cached.readAt, TimeUnit.MILLISECONDS);
+                return CompletableFuture.completedFuture(cached.balance);
+            }
+            cacheMisses.increment();
+        }
+        CompletableFuture<BigInteger> future;
+        boolean full;
+        synchronized (chain) {
+            future = chain.pending.get(key);
+            if (future != null) {
+                shared.increment();
+                return future;
+            }
+            future = new CompletableFuture<>();
+            chain.pending.put(key, future);
+            full = chain.pending.size() >= maxBatch;
+            if (!full && !chain.scheduled) {
+                chain.scheduled = true;
+                scheduler.schedule(() -> flush(chain), window, TimeUnit.MILLISECONDS);
+            }
+        }
+        if (full) {
+            scheduler.execute(() -> flush(chain));
+        }
+        return future;
+    }
+
+    /**
+     * Resolves what is waiting for the chain without waiting for the window to end.
+     */
+    void flush(long chainId) {
+        ChainState chain = chains.get(chainId);
+        if (chain != null) {
+            flush(chain);
+        }
+    }
+
+    private void flush(ChainState chain) {
+        Map<BalanceKey, CompletableFuture<BigInteger>> pending;
+        synchronized (chain) {
+            chain.scheduled = false;
+            if (chain.pending.isEmpty()) {
+                return;
+            }
+            pending = chain.pending;
+            chain.pending = new LinkedHashMap<>();
+        }
+        List<BalanceKey> keys = new ArrayList<>(pending.keySet());
+        List<CompletableFuture<BigInteger>> futures = new ArrayList<>(pending.values());
+        BigInteger[] balances = new BigInteger[keys.size()];
+        String[] errors = new String[keys.size()];
+        batchSize.record(keys.size());
+        long readStart = System.nanoTime();
+        long block = -1;
+        try {
+            Web3j web3j = web3jRegistry.client(chain.chainId, defaultRpcUrl);
+            boolean resolved = false;
+            if (multicall && keys.size() > 1 && !withoutMulticall.contains(chain.chainId)) {
+                try {
+                    block = resolveByMulticall(web3j, chain.chainId, keys, balances, errors);
+                    resolved = true;
+                } catch (IOException | RuntimeException e) {
+                    LOG.warn("Multicall of {} balances on chain {} failed, falling back to a batch: {}",
+                            keys.size(), chain.chainId, e.getMessage());
+                }
+            }
+            if (!resolved) {
+                block = resolveByBatch(web3j, keys, balances, errors);
+            }
+        } catch (Exception e) {
+            for (CompletableFuture<BigInteger> future : futures) {
+                future.completeExceptionally(e);
+            }
+            return;
+        }
+        advance(chain, block);
+        for (int i = 0; i < keys.size(); i++) {
+            if (balances[i] == null) {
+                futures.get(i).completeExceptionally(new IllegalStateException(keys.get(i) + ": " + errors[i]));
+                continue;
+            }
+            cache(chain, keys.get(i), balances[i], block, readStart);
+            futures.get(i).complete(balances[i]);
+        }
+    }
+
+    /**
+     * @return the block the balances were read at, or -1 if unknown
+     */
+    private long resolveByMulticall(Web3j web3j, long chainId, List<BalanceKey> keys, BigInteger[] balances,
+                                    String[] errors) throws IOException {
+        List<Multicall3.Call> calls = new ArrayList<>(keys.size() + 1);
+        for (BalanceKey key : keys) {
+            calls.add(key.token == null
+                    ? new Multicall3.Call(multicallAddress, Multicall3.addressCall(Multicall3.GET_ETH_BALANCE, key.holder))
+                    : new Multicall3.Call(key.token, Multicall3.addressCall(Multicall3.BALANCE_OF, key.holder)));
+        }
+        // Same call, so the block is exactly the one the balances come from
+        calls.add(new Multicall3.Call(multicallAddress, Numeric.hexStringToByteArray(Multicall3.GET_BLOCK_NUMBER)));
+        multicalls.increment();
+        EthCall response = web3j.ethCall(
+                Transaction.createEthCallTransaction(null, multicallAddress, Multicall3.encodeAggregate3(calls)),
+                DefaultBlockParameterName.LATEST).send();
+        if (response.hasError()) {
+            throw new IOException(response.getError().getMessage());
+        }
+        String value = response.getValue();
+        if (value == null || Numeric.cleanHexPrefix(value).isEmpty()) {
+            withoutMulticall.add(chainId);
+            throw new IOException("no Multicall3 contract at " + multicallAddress + ", using batches from now on");
+        }
+        List<byte[]> results = Multicall3.decodeAggregate3(value);
+        if (results.size() != calls.size()) {
+            throw new IOException("aggregate3 returned " + results.size() + " results for " + calls.size() + " calls");
+        }
+        for (int i = 0; i < keys.size(); i++) {
+            byte[] result = results.get(i);
+            if (result == null) {
+                errors[i] = "reverted";
+                continue;
+            }
+            try {
+                balances[i] = Multicall3.uint256(result);
+            } catch (IllegalArgumentException e) {
+                errors[i] = e.getMessage();
+            }
+        }
+        byte[] block = results.get(keys.size());
+        return block == null ? -1 : Multicall3.uint256(block).longValueExact();
+    }
+
+    /**
+     * @return the block number the node reported along with the balances, or -1 if unknown
+     */
+    private long resolveByBatch(Web3j web3j, List<BalanceKey> keys, BigInteger[] balances, String[] errors)
+            throws IOException {
+        BatchRequest request = web3j.newBatch();
+        for (BalanceKey key : keys) {
+            if (key.token == null) {
+                request.add(web3j.ethGetBalance(key.holder, DefaultBlockParameterName.LATEST));
+            } else {
+                String data = Numeric.toHexString(Multicall3.addressCall(Multicall3.BALANCE_OF, key.holder));
+                request.add(web3j.ethCall(Transaction.createEthCallTransaction(null, key.token, data),
+                        DefaultBlockParameterName.LATEST));
+            }
+        }
+        request.add(web3j.ethBlockNumber());
+        rpcBatches.increment();
+        List<? extends Response<?>> responses = request.send().getResponses();
+        for (int i = 0; i < keys.size(); i++) {
+            Response<?> response = i < responses.size() ? responses.get(i) : null;
+            if (response == null || response.hasError()) {
+                errors[i] = response == null ? "no response" : response.getError().getMessage();
+            } else if (response instanceof EthGetBalance) {
+                balances[i] = ((EthGetBalance) response).getBalance();
+            } else {
+                String value = ((EthCall) response).getValue();
+                if (value == null || Numeric.cleanHexPrefix(value).isEmpty()) {
+                    errors[i] = "returned nothing";
+                } else {
+                    balances[i] = Numeric.toBigInt(value);
+                }
+            }
+        }
+        // The node may answer the batch entries at different blocks; the reported one is close enough to tag
+        // the balances, since later heads drop them anyway
+        Response<?> block = responses.size() > keys.size() ? responses.get(keys.size()) : null;
+        return block instanceof EthBlockNumber && !block.hasError()
+                ? ((EthBlockNumber) block).getBlockNumber().longValue()
+                : -1;
+    }
+
+    private void cache(ChainState chain, BalanceKey key, BigInteger balance, long block, long readStart) {
+        if (maxAge <= 0 || block < 0) {
+            return;
+        }
+        Long invalidated = chain.invalidated.get(key.holder);
+        if (invalidated != null && invalidated - readStart >= 0) {
+            // A transaction touched the address while the balance was being read
+            return;
+        }
+        if (chain.cache.size() >= maxEntries && !chain.cache.containsKey(key)) {
+            return;
+        }
+        chain.cache.put(key, new CachedBalance(balance, block, System.currentTimeMillis()));
+    }
+
+    private void advance(ChainState chain, long block) {
+        long previous = chain.head.getAndAccumulate(block, Math::max);
+        if (block <= previous) {
+            return;
+        }
+        chain.cache.values().removeIf(cached -> cached.block < block);
+        long horizon = System.nanoTime() - INVALIDATION_HORIZON;
+        chain.invalidated.values().removeIf(invalidated -> invalidated - horizon < 0);
+    }
+
+    private ChainState chainState(long chainId) {
+        ChainState chain = new ChainState(chainId);
+        Gauge.builder("ethereum.chain.head", chain, state -> state.head.get())
+                .description("Latest block seen on the chain")
+                .tag("chain", String.valueOf(chainId))
+                .register(meterRegistry);
+        return chain;
+    }
+
+    @Override
+    public void destroy() {
+        scheduler.shutdownNow();
+    }
+
+    private static final class ChainState {
+
+        final long chainId;
+        final AtomicLong head = new AtomicLong(-1);
+        final Map<BalanceKey, CachedBalance> cache = new ConcurrentHashMap<>();
+        // Holder to System.nanoTime() of its last invalidation
+        final Map<String, Long> invalidated = new ConcurrentHashMap<>();
+        Map<BalanceKey, CompletableFuture<BigInteger>> pending = new LinkedHashMap<>();
+        boolean scheduled;
+
+        ChainState(long chainId) {
+            this.chainId = chainId;
+        }
+    }
+
+    private static final class CachedBalance {
+
+        final BigInteger balance;
+        final long block;
+        final long readAt;
+
+        CachedBalance(BigInteger balance, long block, long readAt) {
+            this.balance = balance;
+            this.block = block;
+            this.readAt = readAt;
+        }
+    }
+
+    /**
+     * A holder's balance of a token, or of the native currency if the token is null.
+     */
+    private static final class BalanceKey {
+
+        final String token;
+        final String holder;
+
+        BalanceKey(String token, String holder) {
+            this.token = token == null ? null : token.toLowerCase();
+            this.holder = holder.toLowerCase();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof BalanceKey)) {
+                return false;
+            }
+            BalanceKey other = (BalanceKey) o;
+            return Objects.equals(token, other.token) && holder.equals(other.holder);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(token, holder);
+        }
+
+        @Override
+        public String toString() {
+            return token == null ? "balance of " + holder : "balanceOf(" + holder + ") of " + token;
+        }
+    }
+}
@@ -1,6 +1,11 @@
 package ai.hhrdr.chainflow.engine.ethereum;
 
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import org.web3j.abi.FunctionEncoder;
 import org.web3j.abi.FunctionReturnDecoder;
@@ -8,21 +13,50 @@ import org.web3j.abi.TypeReference;
 import org.web3j.abi.datatypes.*;
 import org.web3j.crypto.Credentials;
 import org.web3j.protocol.Web3j;
+import org.web3j.protocol.core.BatchRequest;
 import org.web3j.protocol.core.DefaultBlockParameterName;
+import org.web3j.protocol.core.Response;
 import org.web3j.protocol.core.methods.request.Transaction;
 import org.web3j.protocol.core.methods.response.EthCall;
-import org.web3j.protocol.core.methods.response.EthSendTransaction;
-import org.web3j.protocol.http.HttpService;
-import org.web3j.tx.RawTransactionManager;
+import org.web3j.protocol.core.methods.response.TransactionReceipt;
 import org.web3j.tx.gas.DefaultGasProvider;
 
+import javax.annotation.PostConstruct;
 import java.io.IOException;
 import java.math.BigInteger;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
+/**
+ * Factory and process instance contract calls.
+ *
+ * Definitions registered at the factory and their contract addresses are indexed locally: the index is
+ * warmed at startup, extended by createDefinition and by address lookups that miss it, and, with
+ * ethereum.definitions.reconcile enabled, reloaded from the chain every ethereum.definitions.reconcile.interval
+ * ms, which also drops definitions and addresses the factory no longer reports. Definitions created here are
+ * kept through reconciliation until the receipt of their transaction arrives.
+ *
+ * Transactions go through a {@link TransactionPipeline}, up to ethereum.tx.max.in.flight at a time. The
+ * blocking methods return the transaction hash once the node accepted the transaction; their *Async variants
+ * return the receipt, so callers can correlate the mined outcome back into the process. A receipt future fails
+ * when the transaction is rejected, reverts, or has no receipt within ethereum.tx.receipt.timeout ms. Only in
+ * the last case the transaction may still be mined afterwards, so a caller that resends after a timeout has to
+ * check the chain first. Receipts are polled every ethereum.tx.receipt.poll.interval ms on the pipeline's own
+ * thread.
+ */
 @Service
-public class EthereumService {
+public class EthereumService implements DisposableBean {
+
+    private static final Logger LOG = LoggerFactory.getLogger(EthereumService.class);
+
+    private static final String ZERO_ADDRESS = "0x0000000000000000000000000000000000000000";
+    private static final int CALL_BATCH = 100;
 
     private String RPC_URL;
 
@@ -38,68 +72,239 @@ public class EthereumService {
 
     private BigInteger defaultFundingCommitment;
 
+    private final BalanceService balanceService;
+
+    private final TransactionPipeline pipeline;
+
+    private final long sendTimeout;
+
+    private final long receiptPollInterval;
+
+    private final Set<String> definitions = ConcurrentHashMap.newKeySet();
+    // Definition hash to contract address, only for definitions whose contract exists
+    private final Map<String, String> contractAddresses = new ConcurrentHashMap<>();
+    // Definitions sent with createDefinition whose transaction is not mined yet
+    private final Set<String> pendingDefinitions = ConcurrentHashMap.newKeySet();
+
+    @Value("${ethereum.definitions.warmup:true}")
+    private boolean warmup;
+
+    @Value("${ethereum.definitions.reconcile:false}")
+    private boolean reconcile;
 
     public EthereumService(@Value("${ethereum.privateKey}") String privateKey,
                            @Value("${ethereum.defaultFundingCommitment}") Integer defaultFundingCommitment,
                            @Value("${ethereum.rpcUrl}") String rpcUrl,
-                           @Value("${ethereum.factoryAddress}") String factoryAddress) {
-        this.web3j = Web3j.build(new HttpService(rpcUrl));
+                           @Value("${ethereum.factoryAddress}") String factoryAddress,
+                           NonceManager nonceManager,
+                           GasPriceOracle gasPriceOracle,
+                           Web3jRegistry web3jRegistry,
+                           BalanceService balanceService,
+                           MeterRegistry meterRegistry,
+                           @Value("${ethereum.tx.max.in.flight:16}") int maxInFlight,
+                           @Value("${ethereum.tx.receipt.timeout:300000}") long receiptTimeout,
+                           @Value("${ethereum.tx.send.timeout:60000}") long sendTimeout,
+                           @Value("${ethereum.tx.receipt.poll.interval:2000}") long receiptPollInterval) {
+        this.web3j = web3jRegistry.client(chainId, rpcUrl);
         this.credentials = Credentials.create(privateKey);
         this.defaultFundingCommitment = BigInteger.valueOf(defaultFundingCommitment);
         this.FACTORY_ADDRESS = factoryAddress;
+        this.balanceService = balanceService;
+        this.sendTimeout = sendTimeout;
+        this.receiptPollInterval = receiptPollInterval;
+        NonceManager.SignerNonces nonces = nonceManager.forSigner(web3j, chainId, credentials.getAddress());
+        this.pipeline = new TransactionPipeline(web3j, chainId, credentials, nonces, gasPriceOracle,
+                DefaultGasProvider.GAS_LIMIT, maxInFlight, receiptTimeout, meterRegistry);
     }
 
-    private EthSendTransaction sendRawTransaction(Function function, String contractAddress) {
-        try {
-            // Encode the function
-            String encodedFunction = FunctionEncoder.encode(function);
+    @PostConstruct
+    public void init() {
+        pipeline.start(receiptPollInterval);
+        if (warmup) {
+            try {
+                loadDefinitionIndex(false);
+            } catch (RuntimeException e) {
+                LOG.warn("Cannot warm the definition index, definitions will be loaded on demand: {}", e.getMessage());
+            }
+        }
+    }
 
-            // Get gas parameters
-            BigInteger gasLimit = DefaultGasProvider.GAS_LIMIT;
-            BigInteger gasPrice = web3j.ethGasPrice().send().getGasPrice();
+    /**
+     * Reloads the definition index from the factory, picking up definitions other engines registered.
+     */
+    @Scheduled(initialDelayString = "${ethereum.definitions.reconcile.interval:600000}",
+            fixedDelayString = "${ethereum.definitions.reconcile.interval:600000}")
+    public void reconcileDefinitionIndex() {
+        if (!reconcile) {
+            return;
+        }
+        try {
+            loadDefinitionIndex(true);
+        } catch (RuntimeException e) {
+            LOG.warn("Cannot reconcile the definition index: {}", e.getMessage());
+        }
+    }
 
-            // Use a RawTransactionManager to send the transaction
-            RawTransactionManager rawTransactionManager = new RawTransactionManager(web3j, this.credentials, chainId);
+    @Override
+    public void destroy() {
+        pipeline.stop();
+    }
 
-            return rawTransactionManager
-                    .sendTransaction(gasPrice, gasLimit, contractAddress, encodedFunction, BigInteger.ZERO);
-        } catch (Exception e) {
-            throw new RuntimeException("Error sending raw transaction", e);
+    /**
+     * Settles sent transactions by their receipts right away and sends calls that waited for an in-flight slot,
+     * in addition to the pipeline's own polling.
+     */
+    public void trackTransactions() {
+        try {
+            pipeline.pollReceipts();
+        } catch (IOException | RuntimeException e) {
+            LOG.warn("Cannot poll transaction receipts, will retry: {}", e.getMessage());
         }
     }
 
-    public String createDefinition(String _hash) {
+    /**
+     * @param refresh whether to look up addresses already indexed again and drop what the factory lacks
+     */
+    private void loadDefinitionIndex(boolean refresh) {
+        // Taken first, so a definition mined while the factory is queried is still kept
+        Set<String> pending = new HashSet<>(pendingDefinitions);
+        List<String> all = getAllDefinitions(FACTORY_ADDRESS);
+        definitions.addAll(all);
+        if (refresh) {
+            Set<String> registered = new HashSet<>(all);
+            registered.addAll(pending);
+            definitions.retainAll(registered);
+            contractAddresses.keySet().retainAll(registered);
+        }
+        List<String> missing = all.stream()
+                .filter(hash -> refresh || !contractAddresses.containsKey(hash))
+                .collect(Collectors.toList());
+        try {
+            for (int from = 0; from < missing.size(); from += CALL_BATCH) {
+                List<String> chunk = missing.subList(from, Math.min(missing.size(), from + CALL_BATCH));
+                BatchRequest batch = web3j.newBatch();
+                for (String hash : chunk) {
+                    batch.add(web3j.ethCall(Transaction.createEthCallTransaction(
+                            credentials.getAddress(), FACTORY_ADDRESS, FunctionEncoder.encode(contractAddressFunction(hash))),
+                            DefaultBlockParameterName.LATEST));
+                }
+                List<? extends Response<?>> responses = batch.send().getResponses();
+                for (int i = 0; i < chunk.size(); i++) {
+                    EthCall response = (EthCall) responses.get(i);
+                    if (!response.hasError()) {
+                        cacheContractAddress(chunk.get(i), decodeContractAddress(chunk.get(i), response));
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Error making call", e);
+        }
+        LOG.info("Definition index holds {} definitions, {} with contract address", definitions.size(), contractAddresses.size());
+    }
 
-        List<String> allDefinitions = this.getAllDefinitions(FACTORY_ADDRESS);
-        // If deployment exists, return it's name
-        if (allDefinitions.contains(_hash)) {
-            System.out.println("Contract exists");
-            return allDefinitions.get(allDefinitions.indexOf(_hash));
+    private void cacheContractAddress(String hash, String address) {
+        if (address != null && !ZERO_ADDRESS.equals(address)) {
+            contractAddresses.put(hash, address);
         }
+    }
+
+    private TransactionPipeline.Call submit(Function function, String contractAddress) {
+        TransactionPipeline.Call call = pipeline.submit(contractAddress, FunctionEncoder.encode(function));
+        // Gas and value move balances of the signer and the contract; drop them once sent and again once mined
+        call.hash.thenRun(() -> invalidateBalances(contractAddress));
+        call.receipt.whenComplete((receipt, e) -> invalidateBalances(contractAddress));
+        return call;
+    }
+
+    private void invalidateBalances(String contractAddress) {
+        balanceService.invalidate(chainId, credentials.getAddress());
+        balanceService.invalidate(chainId, contractAddress);
+    }
+
+    /**
+     * Waits until the node accepted the call's transaction.
+     *
+     * @return hash of the transaction sent
+     */
+    private String awaitHash(TransactionPipeline.Call call) {
         try {
-            org.web3j.abi.datatypes.Function function = new org.web3j.abi.datatypes.Function(
-                    "createDefinition",
-                    Arrays.asList(new org.web3j.abi.datatypes.Utf8String(_hash),
-                                  new org.web3j.abi.datatypes.generated.Uint256(fee)),
-                    Arrays.asList(new org.web3j.abi.TypeReference<org.web3j.abi.datatypes.Address>() {})
-            );
-
-            EthSendTransaction ethSendTransaction = sendRawTransaction(function, FACTORY_ADDRESS);
-            System.out.println("Deployed process on-chain: " + _hash);
-            return ethSendTransaction.getTransactionHash();
-
-        } catch (Exception e) {
-            throw new RuntimeException("Error sending raw transaction", e);
+            return call.hash.get(sendTimeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted sending raw transaction", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Error sending raw transaction", e.getCause());
+        } catch (TimeoutException e) {
+            if (pipeline.withdraw(call)) {
+                throw new RuntimeException("Transaction still queued after " + sendTimeout + " ms", e);
+            }
+            // Already handed to the node, so it is not sent twice
+            return call.hash.join();
         }
     }
 
-    public String getContractAddressOfDefinition(String _hash) {
+    /**
+     * @return hash of the transaction sent, or the definition hash if the definition is registered already
+     */
+    public String createDefinition(String _hash) {
+        if (isDefinitionRegistered(_hash)) {
+            LOG.debug("Definition {} is registered already", _hash);
+            return _hash;
+        }
+        String transactionHash = awaitHash(submitCreateDefinition(_hash));
+        LOG.info("Deployed process definition {} on-chain with txn {}", _hash, transactionHash);
+        return transactionHash;
+    }
+
+    /**
+     * @return receipt of the transaction, or null if the definition is registered already; see the class
+     * comment for when the future fails
+     */
+    public CompletableFuture<TransactionReceipt> createDefinitionAsync(String _hash) {
+        if (isDefinitionRegistered(_hash)) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return submitCreateDefinition(_hash).receipt;
+    }
+
+    private boolean isDefinitionRegistered(String _hash) {
+        if (!definitions.contains(_hash)) {
+            // Another engine may have registered it since the index was loaded
+            definitions.addAll(this.getAllDefinitions(FACTORY_ADDRESS));
+        }
+        return definitions.contains(_hash);
+    }
 
+    private TransactionPipeline.Call submitCreateDefinition(String _hash) {
         org.web3j.abi.datatypes.Function function = new org.web3j.abi.datatypes.Function(
-                "getContractAddressOfDefinition",
-                Arrays.asList(new org.web3j.abi.datatypes.Utf8String(_hash)),
+                "createDefinition",
+                Arrays.asList(new org.web3j.abi.datatypes.Utf8String(_hash),
+                              new org.web3j.abi.datatypes.generated.Uint256(fee)),
                 Arrays.asList(new org.web3j.abi.TypeReference<org.web3j.abi.datatypes.Address>() {})
         );
+        TransactionPipeline.Call call = submit(function, FACTORY_ADDRESS);
+        // The contract address is looked up once the transaction is mined
+        call.hash.thenRun(() -> {
+            pendingDefinitions.add(_hash);
+            definitions.add(_hash);
+        });
+        call.receipt.whenComplete((receipt, e) -> {
+            pendingDefinitions.remove(_hash);
+            if (e != null) {
+                // Not registered by this transaction; the next lookup asks the factory again
+                definitions.remove(_hash);
+            }
+        });
+        return call;
+    }
+
+    public String getContractAddressOfDefinition(String _hash) {
+
+        String cached = contractAddresses.get(_hash);
+        if (cached != null) {
+            return cached;
+        }
+        org.web3j.abi.datatypes.Function function = contractAddressFunction(_hash);
         String encodedFunction = FunctionEncoder.encode(function);
         EthCall response;
         try {
@@ -114,33 +319,55 @@ public class EthereumService {
             throw new RuntimeException("Error making call", e);
         }
 
-        List<Type> someTypes = FunctionReturnDecoder.decode(response.getValue(), function.getOutputParameters());
+        String address = decodeContractAddress(_hash, response);
+        cacheContractAddress(_hash, address);
+        return address;
+    }
+
+    private static org.web3j.abi.datatypes.Function contractAddressFunction(String hash) {
+        return new org.web3j.abi.datatypes.Function(
+                "getContractAddressOfDefinition",
+                Arrays.asList(new org.web3j.abi.datatypes.Utf8String(hash)),
+                Arrays.asList(new org.web3j.abi.TypeReference<org.web3j.abi.datatypes.Address>() {})
+        );
+    }
+
+    private static String decodeContractAddress(String hash, EthCall response) {
+        List<Type> someTypes = FunctionReturnDecoder.decode(response.getValue(), contractAddressFunction(hash).getOutputParameters());
         Address resultAddress = (Address) someTypes.get(0);
         return resultAddress.getValue();
     }
 
-    public String createProcessInstance(String contractAddress, String processInstanceId, BigInteger neededAmount ) {
+    /**
+     * @return hash of the transaction sent
+     */
+    public String createProcessInstance(String contractAddress, String processInstanceId, BigInteger neededAmount) {
+        String transactionHash = awaitHash(submitCreateProcessInstance(contractAddress, processInstanceId, neededAmount));
+        LOG.info("Created process instance {} on-chain with txn {}", processInstanceId, transactionHash);
+        return transactionHash;
+    }
+
+    /**
+     * @return receipt of the transaction; see the class comment for when the future fails
+     */
+    public CompletableFuture<TransactionReceipt> createProcessInstanceAsync(String contractAddress,
+                                                                            String processInstanceId,
+                                                                            BigInteger neededAmount) {
+        return submitCreateProcessInstance(contractAddress, processInstanceId, neededAmount).receipt;
+    }
 
+    private TransactionPipeline.Call submitCreateProcessInstance(String contractAddress, String processInstanceId,
+                                                                 BigInteger neededAmount) {
         if (neededAmount == null) {
             neededAmount = this.defaultFundingCommitment;
         }
-
-        try {
-            org.web3j.abi.datatypes.Function function = new org.web3j.abi.datatypes.Function(
-                    "createProcessInstance",
-                    Arrays.asList(new org.web3j.abi.datatypes.Utf8String(processInstanceId),
-                                  new org.web3j.abi.datatypes.generated.Uint256(neededAmount)),
-                    Arrays.asList(new org.web3j.abi.TypeReference<org.web3j.abi.datatypes.Address>() {})
-            );
-
-            EthSendTransaction ethSendTransaction = sendRawTransaction(function, contractAddress);
-            System.out.println("Start new process instance on-chain: " + processInstanceId);
-            return ethSendTransaction.getTransactionHash();
-
-        } catch (Exception e) {
-            throw new RuntimeException("Error sending raw transaction", e);
-        }
-
+        org.web3j.abi.datatypes.Function function = new org.web3j.abi.datatypes.Function(
+                "createProcessInstance",
+                Arrays.asList(new org.web3j.abi.datatypes.Utf8String(processInstanceId),
+                              new org.web3j.abi.datatypes.generated.Uint256(neededAmount)),
+                Arrays.asList(new org.web3j.abi.TypeReference<org.web3j.abi.datatypes.Address>() {})
+        );
+        return submit(function, contractAddress);
     }
 
     public List<String> getAllDefinitions(String contractAddress) {
@@ -236,43 +463,70 @@ public class EthereumService {
         return resultAddress.getValue();
     }
 
-    public void startProcessInstance(String contractAddress, String processInstanceId) {
-        try {
-            // Create the function using the ABI
-            org.web3j.abi.datatypes.Function function = new org.web3j.abi.datatypes.Function(
-                    "startProcessInstance",
-                    Arrays.asList(new org.web3j.abi.datatypes.Utf8String(processInstanceId)),
-                    Collections.emptyList()  // No outputs for the function based on the ABI
-            );
-
-            EthSendTransaction ethSendTransaction = sendRawTransaction(function, contractAddress);
-
-            System.out.println("Start new process instance on-chain with txn "
-                    + ethSendTransaction.getTransactionHash());
-
-        } catch (Exception e) {
-            throw new RuntimeException("Error sending raw transaction", e);
-        }
+    /**
+     * @return hash of the transaction sent
+     */
+    public String startProcessInstance(String contractAddress, String processInstanceId) {
+        String transactionHash = awaitHash(submitInstanceCall("startProcessInstance", contractAddress, processInstanceId));
+        LOG.info("Started process instance {} on-chain with txn {}", processInstanceId, transactionHash);
+        return transactionHash;
     }
 
-    public void completeProcessInstance(String contractAddress, String processInstanceId) {
-        try {
-            // Create the function using the ABI
-            org.web3j.abi.datatypes.Function function = new org.web3j.abi.datatypes.Function(
-                    "completeProcessInstance",
-                    Arrays.asList(new org.web3j.abi.datatypes.Utf8String(processInstanceId)),
-                    Collections.emptyList()  // No outputs for the function based on the ABI
-            );
+    /**
+     * @return receipt of the transaction; see the class comment for when the future fails
+     */
+    public CompletableFuture<TransactionReceipt> startProcessInstanceAsync(String contractAddress,
+                                                                           String processInstanceId) {
+        return startProcessInstanceAsync(contractAddress, processInstanceId, hash -> {
+        });
+    }
 
-            EthSendTransaction ethSendTransaction = sendRawTransaction(function, contractAddress);
+    /**
+     * @param onSent gets the transaction hash once the node accepted the transaction
+     */
+    public CompletableFuture<TransactionReceipt> startProcessInstanceAsync(String contractAddress,
+                                                                           String processInstanceId,
+                                                                           Consumer<String> onSent) {
+        TransactionPipeline.Call call = submitInstanceCall("startProcessInstance", contractAddress, processInstanceId);
+        call.hash.thenAccept(onSent);
+        return call.receipt;
+    }
 
-            System.out.println("Complete process instance on-chain with txn "
-                    + ethSendTransaction.getTransactionHash());
+    /**
+     * @return hash of the transaction sent
+     */
+    public String completeProcessInstance(String contractAddress, String processInstanceId) {
+        String transactionHash = awaitHash(submitInstanceCall("completeProcessInstance", contractAddress, processInstanceId));
+        LOG.info("Completed process instance {} on-chain with txn {}", processInstanceId, transactionHash);
+        return transactionHash;
+    }
 
-        } catch (Exception e) {
-            throw new RuntimeException("Error sending raw transaction", e);
-        }
+    /**
+     * @return receipt of the transaction; see the class comment for when the future fails
+     */
+    public CompletableFuture<TransactionReceipt> completeProcessInstanceAsync(String contractAddress,
+                                                                              String processInstanceId) {
+        return completeProcessInstanceAsync(contractAddress, processInstanceId, hash -> {
+        });
     }
 
+    /**
+     * @param onSent gets the transaction hash once the node accepted the transaction
+     */
+    public CompletableFuture<TransactionReceipt> completeProcessInstanceAsync(String contractAddress,
+                                                                              String processInstanceId,
+                                                                              Consumer<String> onSent) {
+        TransactionPipeline.Call call = submitInstanceCall("completeProcessInstance", contractAddress, processInstanceId);
+        call.hash.thenAccept(onSent);
+        return call.receipt;
+    }
 
+    private TransactionPipeline.Call submitInstanceCall(String name, String contractAddress, String processInstanceId) {
+        org.web3j.abi.datatypes.Function function = new org.web3j.abi.datatypes.Function(
+                name,
+                Arrays.asList(new org.web3j.abi.datatypes.Utf8String(processInstanceId)),
+                Collections.emptyList()  // No outputs for the function based on the ABI
+        );
+        return submit(function, contractAddress);
+    }
 }
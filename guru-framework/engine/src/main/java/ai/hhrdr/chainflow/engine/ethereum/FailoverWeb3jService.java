@@ -0,0 +1,287 @@
+package ai.hhrdr.chainflow.engine.ethereum;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.reactivex.Flowable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.web3j.protocol.Web3jService;
+import org.web3j.protocol.core.BatchRequest;
+import org.web3j.protocol.core.BatchResponse;
+import org.web3j.protocol.core.Request;
+import org.web3j.protocol.core.Response;
+import org.web3j.protocol.exceptions.ClientConnectionException;
+import org.web3j.protocol.websocket.events.Notification;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Web3j transport over several RPC endpoints of one chain.
+ *
+ * Requests go to the first healthy endpoint in configured order and fail over to the next one on a
+ * connection error or a non-2xx response; JSON-RPC errors are answers and are returned as they are. An
+ * endpoint that failed failureThreshold times in a row is skipped for the cooldown, then tried again. With a
+ * hedge delay, a read still unanswered after it is sent to the next endpoint as well, and the first answer
+ * wins; transactions are never hedged.
+ *
+ * Requests sending transactions, alone or in a batch, fail over only when the endpoint could not be connected
+ * to. Any other failure may come after the node got the transaction, so it is thrown for the caller to follow
+ * the transaction by its hash rather than having it sent again.
+ */
+class FailoverWeb3jService implements Web3jService {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FailoverWeb3jService.class);
+
+    private static final Set<String> HEDGED_METHODS = Set.of(
+            "eth_call", "eth_getBalance", "eth_blockNumber", "eth_getBlockByNumber", "eth_getTransactionReceipt",
+            "eth_getTransactionByHash", "eth_gasPrice", "eth_chainId", "eth_getCode", "eth_getLogs");
+    private static final Set<String> TRANSACTION_METHODS = Set.of("eth_sendRawTransaction", "eth_sendTransaction");
+
+    private final long chainId;
+    private final List<Endpoint> endpoints;
+    private final int failureThreshold;
+    private final long cooldown;
+    private final long hedgeDelay;
+    private final ExecutorService executor;
+
+    FailoverWeb3jService(long chainId, List<Endpoint> endpoints, int failureThreshold, long cooldown, long hedgeDelay,
+                         ExecutorService executor, MeterRegistry meterRegistry) {
+        if (endpoints.isEmpty()) {
+            throw new IllegalArgumentException("No RPC endpoint for chain " + chainId);
+        }
+        this.chainId = chainId;
+        this.endpoints = endpoints;
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.cooldown = cooldown;
+        this.hedgeDelay = hedgeDelay;
+        this.executor = executor;
+        for (Endpoint endpoint : endpoints) {
+            endpoint.latency = Timer.builder("ethereum.rpc.latency")
+                    .description("RPC round trips by chain and endpoint")
+                    .tag("chain", String.valueOf(chainId))
+                    .tag("endpoint", endpoint.name)
+                    .register(meterRegistry);
+            endpoint.errors = Counter.builder("ethereum.rpc.errors")
+                    .description("RPC requests that failed at the transport level")
+                    .tag("chain", String.valueOf(chainId))
+                    .tag("endpoint", endpoint.name)
+                    .register(meterRegistry);
+            Gauge.builder("ethereum.rpc.healthy", endpoint, e -> e.isHealthy(System.currentTimeMillis()) ? 1 : 0)
+                    .description("Whether the endpoint is used first, 1, or only as a last resort, 0")
+                    .tag("chain", String.valueOf(chainId))
+                    .tag("endpoint", endpoint.name)
+                    .register(meterRegistry);
+        }
+    }
+
+    @Override
+    public <T extends Response> T send(Request request, Class<T> responseType) throws IOException {
+        List<Endpoint> order = order();
+        if (hedgeDelay > 0 && order.size() > 1 && HEDGED_METHODS.contains(request.getMethod())) {
+            return hedged(request, responseType, order);
+        }
+        boolean transaction = TRANSACTION_METHODS.contains(request.getMethod());
+        IOException last = null;
+        for (Endpoint endpoint : order) {
+            try {
+                return call(endpoint, request, responseType);
+            } catch (IOException e) {
+                if (transaction && !isConnectFailure(e)) {
+                    throw e;
+                }
+                last = e;
+            }
+        }
+        throw last;
+    }
+
+    @Override
+    public <T extends Response> CompletableFuture<T> sendAsync(Request request, Class<T> responseType) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return send(request, responseType);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, executor);
+    }
+
+    @Override
+    public BatchResponse sendBatch(BatchRequest batchRequest) throws IOException {
+        boolean transactions = false;
+        for (Request<?, ? extends Response<?>> request : batchRequest.getRequests()) {
+            transactions |= TRANSACTION_METHODS.contains(request.getMethod());
+        }
+        IOException last = null;
+        for (Endpoint endpoint : order()) {
+            long start = System.nanoTime();
+            try {
+                BatchResponse response = endpoint.service.sendBatch(batchRequest);
+                succeeded(endpoint, start);
+                return response;
+            } catch (IOException | ClientConnectionException e) {
+                last = failed(endpoint, e);
+                if (transactions && !isConnectFailure(e)) {
+                    throw last;
+                }
+            }
+        }
+        throw last;
+    }
+
+    @Override
+    public CompletableFuture<BatchResponse> sendBatchAsync(BatchRequest batchRequest) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return sendBatch(batchRequest);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, executor);
+    }
+
+    @Override
+    public <T extends Notification<?>> Flowable<T> subscribe(Request request, String unsubscribeMethod,
+                                                             Class<T> responseType) {
+        throw new UnsupportedOperationException("RPC endpoints are HTTP, subscriptions are not supported");
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (Endpoint endpoint : endpoints) {
+            endpoint.service.close();
+        }
+    }
+
+    /**
+     * @return healthy endpoints in configured order, followed by the ones cooling down
+     */
+    List<Endpoint> order() {
+        long now = System.currentTimeMillis();
+        List<Endpoint> healthy = new ArrayList<>(endpoints.size());
+        List<Endpoint> cooling = new ArrayList<>();
+        for (Endpoint endpoint : endpoints) {
+            (endpoint.isHealthy(now) ? healthy : cooling).add(endpoint);
+        }
+        healthy.addAll(cooling);
+        return healthy;
+    }
+
+    private <T extends Response> T hedged(Request request, Class<T> responseType, List<Endpoint> order)
+            throws IOException {
+        CompletionService<T> completion = new ExecutorCompletionService<>(executor);
+        List<Future<T>> futures = new ArrayList<>();
+        futures.add(completion.submit(() -> call(order.get(0), request, responseType)));
+        int next = 1;
+        int outstanding = 1;
+        IOException last = null;
+        try {
+            while (outstanding > 0) {
+                Future<T> done = next < order.size()
+                        ? completion.poll(hedgeDelay, TimeUnit.MILLISECONDS)
+                        : completion.take();
+                if (done == null) {
+                    Endpoint hedge = order.get(next++);
+                    futures.add(completion.submit(() -> call(hedge, request, responseType)));
+                    outstanding++;
+                    continue;
+                }
+                outstanding--;
+                try {
+                    return done.get();
+                } catch (ExecutionException e) {
+                    last = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+                    if (outstanding == 0 && next < order.size()) {
+                        // Every request sent so far failed, move on without waiting for the delay
+                        Endpoint fallback = order.get(next++);
+                        futures.add(completion.submit(() -> call(fallback, request, responseType)));
+                        outstanding++;
+                    }
+                }
+            }
+            throw last;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for chain " + chainId, e);
+        } finally {
+            for (Future<T> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    private <T extends Response> T call(Endpoint endpoint, Request request, Class<T> responseType) throws IOException {
+        long start = System.nanoTime();
+        try {
+            T response = endpoint.service.send(request, responseType);
+            succeeded(endpoint, start);
+            return response;
+        } catch (IOException | ClientConnectionException e) {
+            throw failed(endpoint, e);
+        }
+    }
+
+    /**
+     * Whether the request cannot have reached the node, because no connection to it was made.
+     */
+    static boolean isConnectFailure(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof ConnectException || cause instanceof UnknownHostException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void succeeded(Endpoint endpoint, long start) {
+        endpoint.latency.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        endpoint.consecutiveFailures = 0;
+    }
+
+    private IOException failed(Endpoint endpoint, Exception e) {
+        endpoint.errors.increment();
+        int failures = ++endpoint.consecutiveFailures;
+        if (failures >= failureThreshold) {
+            endpoint.unhealthyUntil = System.currentTimeMillis() + cooldown;
+            if (failures == failureThreshold) {
+                LOG.warn("RPC endpoint {} of chain {} failed {} times, skipping it for {} ms: {}",
+                        endpoint.name, chainId, failures, cooldown, e.getMessage());
+            }
+        }
+        return e instanceof IOException ? (IOException) e : new IOException(e.getMessage(), e);
+    }
+
+    static final class Endpoint {
+
+        final String name;
+        final Web3jService service;
+        volatile int consecutiveFailures;
+        volatile long unhealthyUntil;
+        Timer latency;
+        Counter errors;
+
+        Endpoint(String name, Web3jService service) {
+            this.name = name;
+            this.service = service;
+        }
+
+        boolean isHealthy(long now) {
+            return unhealthyUntil <= now;
+        }
+    }
+}
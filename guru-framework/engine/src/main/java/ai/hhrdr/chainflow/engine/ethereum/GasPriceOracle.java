@@ -0,0 +1,90 @@
+package ai.hhrdr.chainflow.engine.ethereum;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.web3j.protocol.Web3j;
+import org.web3j.protocol.core.methods.response.EthGasPrice;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Gas price per chain, cached for ethereum.gas.price.ttl ms.
+ *
+ * Once half the TTL has passed the next caller triggers a refresh in the background and still gets the cached
+ * price, so a busy sender never waits on eth_gasPrice. Only the first call for a chain, or one finding a price
+ * older than twice the TTL because refreshes failed or the chain was idle, queries the node inline.
+ */
+@Component
+public class GasPriceOracle implements DisposableBean {
+
+    private static final Logger LOG = LoggerFactory.getLogger(GasPriceOracle.class);
+
+    private final long ttl;
+    private final Map<Long, CachedPrice> prices = new ConcurrentHashMap<>();
+    private final ExecutorService refresher = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "gas-price-refresh");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public GasPriceOracle(@Value("${ethereum.gas.price.ttl:5000}") long ttl) {
+        this.ttl = ttl;
+    }
+
+    public BigInteger gasPrice(Web3j web3j, long chainId) throws IOException {
+        CachedPrice cached = prices.computeIfAbsent(chainId, id -> new CachedPrice());
+        return cached.get(web3j);
+    }
+
+    @Override
+    public void destroy() {
+        refresher.shutdownNow();
+    }
+
+    private final class CachedPrice {
+
+        private volatile BigInteger price;
+        private volatile long fetchedAt;
+        private volatile boolean refreshing;
+
+        BigInteger get(Web3j web3j) throws IOException {
+            long age = System.currentTimeMillis() - fetchedAt;
+            if (price == null || age > ttl * 2) {
+                synchronized (this) {
+                    if (price == null || System.currentTimeMillis() - fetchedAt > ttl * 2) {
+                        fetch(web3j);
+                    }
+                }
+            } else if (age > ttl / 2 && !refreshing) {
+                refreshing = true;
+                refresher.execute(() -> {
+                    try {
+                        fetch(web3j);
+                    } catch (Exception e) {
+                        LOG.warn("Cannot refresh gas price: {}", e.getMessage());
+                    } finally {
+                        refreshing = false;
+                    }
+                });
+            }
+            return price;
+        }
+
+        private void fetch(Web3j web3j) throws IOException {
+            EthGasPrice response = web3j.ethGasPrice().send();
+            if (response.hasError()) {
+                throw new IOException("Cannot load gas price: " + response.getError().getMessage());
+            }
+            price = response.getGasPrice();
+            fetchedAt = System.currentTimeMillis();
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package ai.hhrdr.chainflow.engine.ethereum;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Anchors inscription events by Merkle root instead of inscribing each of them.
+ *
+ * With inscription.anchor.mode=MERKLE, events go to a {@link MerkleAnchorStore} window. Every
+ * inscription.anchor.window ms, or as soon as a window holds inscription.anchor.max.leaves events, the window
+ * is sealed and only its root is inscribed through {@link InscriptionDataService}, which retries it like any
+ * other inscription. The window records the root's transaction as the inscription tracker reports it and counts
+ * as anchored once that transaction is confirmed; a root the tracker gives up on is inscribed again on the next
+ * run. The store keeps the events for inscription.anchor.retention ms so {@link #proofs} can show that any of
+ * them is covered by an inscribed root.
+ */
+@Service
+public class InscriptionAnchorService implements DisposableBean {
+
+    public enum Mode {
+        EVENTS, MERKLE
+    }
+
+    private static final Logger LOG = LoggerFactory.getLogger(InscriptionAnchorService.class);
+
+    private static final String TAG_PREFIX = "merkle-window-";
+
+    private final Mode mode;
+    private final int maxLeaves;
+    private final long retention;
+    private final InscriptionDataService inscriptionDataService;
+    private final MerkleAnchorStore store;
+    private final InscriptionEncoder encoder;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final Object anchorLock = new Object();
+
+    private final Counter anchoredEvents;
+    private final Counter anchoredWindows;
+
+    @Value("${inscription.enabled:false}")
+    private boolean enabled;
+
+    public InscriptionAnchorService(@Value("${inscription.anchor.mode:EVENTS}") Mode mode,
+                                    @Value("${inscription.anchor.dir:./inscription-anchors}") String directory,
+                                    @Value("${inscription.anchor.max.leaves:100000}") int maxLeaves,
+                                    @Value("${inscription.anchor.retention:604800000}") long retention,
+                                    InscriptionDataService inscriptionDataService,
+                                    MeterRegistry meterRegistry) {
+        this.mode = mode;
+        this.maxLeaves = maxLeaves;
+        this.retention = retention;
+        this.inscriptionDataService = inscriptionDataService;
+        this.store = new MerkleAnchorStore(directory);
+        this.encoder = new InscriptionEncoder(objectMapper);
+
+        this.anchoredEvents = Counter.builder("inscription.anchor.events")
+                .description("Events added to Merkle anchor windows")
+                .register(meterRegistry);
+        this.anchoredWindows = Counter.builder("inscription.anchor.windows")
+                .description("Merkle roots confirmed on chain")
+                .register(meterRegistry);
+        Gauge.builder("inscription.anchor.open", store, MerkleAnchorStore::openCount)
+                .description("Events in the open Merkle anchor window")
+                .register(meterRegistry);
+    }
+
+    @PostConstruct
+    public void init() throws IOException {
+        if (isEnabled()) {
+            store.open();
+            inscriptionDataService.setOutcomeListener(this::recordOutcome);
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled && mode == Mode.MERKLE;
+    }
+
+    /**
+     * Adds the events to the open window; seals and anchors it once it is full.
+     */
+    public void add(List<String> eventIds, List<byte[]> jsonDataList) throws IOException {
+        for (int i = 0; i < jsonDataList.size(); i++) {
+            store.add(eventIds.get(i), jsonDataList.get(i));
+        }
+        store.flush();
+        anchoredEvents.increment(jsonDataList.size());
+        if (store.openCount() >= maxLeaves) {
+            anchor();
+        }
+    }
+
+    /**
+     * Seals the open window and inscribes the roots of all windows not anchored yet.
+     */
+    @Scheduled(fixedDelayString = "${inscription.anchor.window:60000}")
+    public void anchor() {
+        if (!isEnabled()) {
+            return;
+        }
+        synchronized (anchorLock) {
+            try {
+                MerkleAnchorStore.Window window = store.seal();
+                if (window != null) {
+                    LOG.info("Sealed anchor window {} with {} events, root {}", window.sequence, window.leaves, window.root);
+                }
+                for (MerkleAnchorStore.Window unanchored : store.unanchored()) {
+                    if (unanchored.txStatus != null && !InscriptionTracker.FAILED.equals(unanchored.txStatus)) {
+                        // Pending or being retried by the inscription tracker
+                        continue;
+                    }
+                    inscriptionDataService.sendInscriptionData(Collections.singletonList(rootInscription(unanchored)),
+                            TAG_PREFIX + unanchored.sequence);
+                }
+                store.prune(System.currentTimeMillis() - retention);
+            } catch (IOException e) {
+                LOG.error("Cannot anchor inscription window", e);
+            }
+        }
+    }
+
+    /**
+     * @return inclusion proofs of the event in every retained window, newest first; empty if it is unknown
+     * or still in the open window
+     */
+    public List<MerkleAnchorStore.Proof> proofs(String eventId) throws IOException {
+        if (!isEnabled()) {
+            return Collections.emptyList();
+        }
+        return store.proofs(eventId);
+    }
+
+    private void recordOutcome(String tag, String hash, String outcome) {
+        if (!tag.startsWith(TAG_PREFIX)) {
+            return;
+        }
+        long sequence = Long.parseLong(tag.substring(TAG_PREFIX.length()));
+        boolean confirmed = InscriptionTracker.CONFIRMED.equals(outcome);
+        try {
+            if (store.recordTransaction(sequence, hash, outcome, confirmed) && confirmed) {
+                anchoredWindows.increment();
+                LOG.info("Anchor window {} confirmed in transaction {}", sequence, hash);
+            }
+        } catch (IOException e) {
+            LOG.error("Cannot record {} transaction {} of anchor window {}", outcome, hash, sequence, e);
+        }
+    }
+
+    private byte[] rootInscription(MerkleAnchorStore.Window window) throws IOException {
+        ObjectNode root = objectMapper.createObjectNode();
+        root.put("type", "merkleRoot");
+        root.put("version", 1);
+        root.put("window", window.sequence);
+        root.put("root", window.root);
+        root.put("leaves", window.leaves);
+        root.put("sealedAt", window.sealedAt);
+        return encoder.json(root);
+    }
+
+    @Override
+    public void destroy() throws IOException {
+        store.close();
+    }
+}
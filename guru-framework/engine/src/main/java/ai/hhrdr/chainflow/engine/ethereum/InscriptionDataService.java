@@ -1,25 +1,24 @@
 package ai.hhrdr.chainflow.engine.ethereum;
 
+import ai.hhrdr.chainflow.engine.ethereum.InscriptionTracker.TrackedInscription;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import org.web3j.crypto.Credentials;
-import org.web3j.crypto.RawTransaction;
-import org.web3j.crypto.TransactionEncoder;
 import org.web3j.protocol.Web3j;
-import org.web3j.protocol.core.BatchRequest;
-import org.web3j.protocol.core.BatchResponse;
 import org.web3j.protocol.core.DefaultBlockParameterName;
 import org.web3j.protocol.core.methods.request.Transaction;
-import org.web3j.protocol.core.methods.response.EthSendTransaction;
-import org.web3j.protocol.core.methods.response.EthSendTransaction;
-import org.web3j.protocol.http.HttpService;
+import org.web3j.protocol.core.methods.response.EthBlock;
 import org.web3j.tx.RawTransactionManager;
 import org.web3j.utils.Numeric;
 
+import javax.annotation.PostConstruct;
+import java.io.IOException;
 import java.math.BigInteger;
-import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.List;
 
 @Service
@@ -27,9 +26,25 @@ public class InscriptionDataService {
 
     private final Web3j web3j;
     private final Credentials credentials;
+    private final byte[] signerAddress;
     private final BigInteger gasLimit = BigInteger.valueOf(60000);
     private final Integer chainId;
     private final Integer maxRetry;
+    private final GasPriceOracle gasPriceOracle;
+    private final BalanceService balanceService;
+    private final NonceManager.SignerNonces nonces;
+    private final RawTransactionSender sender;
+    // Null unless inscription.pack.enabled
+    private final InscriptionPackCodec packCodec;
+    // Percent added to a pack's intrinsic gas
+    private final int packGasMargin;
+    private final InscriptionTracker tracker;
+
+    // Exponentially weighted block interval seen on chain, starts at the configured inscription.block.time
+    private volatile long observedBlockTime;
+    private final Object blockSampleLock = new Object();
+    private BigInteger sampledBlockNumber;
+    private long sampledBlockTimestamp;
 
     @Value("${inscription.enabled:false}")
     private boolean enabled;
@@ -40,68 +55,228 @@ public class InscriptionDataService {
     public InscriptionDataService(@Value("${inscription.privateKey}") String privateKey,
                                   @Value("${inscription.rpcUrl}") String rpcUrl,
                                   @Value("${inscription.chainId}") Integer chainId,
-                                  @Value("${inscription.maxRetry}") Integer maxRetry) {
-        this.web3j = Web3j.build(new HttpService(rpcUrl));
+                                  @Value("${inscription.maxRetry}") Integer maxRetry,
+                                  @Value("${inscription.block.time}") Long blockTime,
+                                  NonceManager nonceManager,
+                                  GasPriceOracle gasPriceOracle,
+                                  Web3jRegistry web3jRegistry,
+                                  BalanceService balanceService,
+                                  @Value("${inscription.pack.enabled:false}") boolean packEnabled,
+                                  @Value("${inscription.pack.max.events:50}") int packMaxEvents,
+                                  @Value("${inscription.pack.max.bytes:65536}") int packMaxBytes,
+                                  @Value("${inscription.pack.max.gas:2000000}") long packMaxGas,
+                                  @Value("${inscription.pack.compression:DEFLATE}") InscriptionPackCodec.Compression packCompression,
+                                  @Value("${inscription.pack.gas.margin:10}") int packGasMargin,
+                                  @Value("${inscription.state.dir:./inscription-state}") String stateDirectory,
+                                  @Value("${inscription.retry.backoff:2000}") long retryBackoff,
+                                  @Value("${inscription.receipt.timeout:120000}") long receiptTimeout,
+                                  MeterRegistry meterRegistry) {
+        this.web3j = web3jRegistry.client(chainId, rpcUrl);
         this.credentials = Credentials.create(privateKey);
+        this.signerAddress = Numeric.hexStringToByteArray(credentials.getAddress());
         this.chainId = chainId;
         this.maxRetry = maxRetry;
+        this.gasPriceOracle = gasPriceOracle;
+        this.balanceService = balanceService;
+        this.nonces = nonceManager.forSigner(web3j, chainId, credentials.getAddress());
+        this.sender = new RawTransactionSender(web3j, chainId, credentials, nonces);
+        this.observedBlockTime = blockTime;
+        this.packCodec = packEnabled
+                ? new InscriptionPackCodec(packMaxEvents, packMaxBytes, packMaxGas, packCompression)
+                : null;
+        this.packGasMargin = Math.max(0, packGasMargin);
+        this.tracker = new InscriptionTracker(web3j, stateDirectory, maxRetry, retryBackoff, receiptTimeout, meterRegistry);
+    }
+
+    @PostConstruct
+    public void init() {
+        if (enabled) {
+            tracker.load();
+        }
     }
 
-    public void sendInscriptionData(List<String> jsonDataList) {
+    /**
+     * @return average time between blocks in ms, as last sampled by {@link #sampleBlockTime()}
+     */
+    public long getObservedBlockTime() {
+        return observedBlockTime;
+    }
+
+    /**
+     * Samples the latest block and folds the interval since the previous sample into the observed block time.
+     */
+    public void sampleBlockTime() {
         if (!enabled) {
-            LOG.info("Inscriptions are disabled. Skipping sendInscriptionData.");
             return;
         }
         try {
-            BatchRequest batchRequest = web3j.newBatch();
-            BigInteger gasPrice = web3j.ethGasPrice().send().getGasPrice();
-            gasPrice = gasPrice.add(gasPrice.divide(BigInteger.valueOf(5)));
-
-            String transactionAddress = credentials.getAddress();
-            BigInteger nonce = web3j.ethGetTransactionCount(transactionAddress, DefaultBlockParameterName.PENDING).send().getTransactionCount();
-
-            for (String jsonData : jsonDataList) {
-                String prefixedData = "data:application/json," + jsonData;
-                String hexData = "0x" + bytesToHex(prefixedData.getBytes(StandardCharsets.UTF_8));
-
-                RawTransaction rawTransaction = RawTransaction.createTransaction(
-                        nonce,
-                        gasPrice,
-                        gasLimit,
-                        transactionAddress,
-                        BigInteger.ZERO,
-                        hexData);
-
-                byte[] signedMessage = TransactionEncoder.signMessage(rawTransaction, chainId, credentials);
-                String hexValue = Numeric.toHexString(signedMessage);
-
-                batchRequest.add(web3j.ethSendRawTransaction(hexValue));
-                nonce = nonce.add(BigInteger.ONE); // Increment nonce for the next transaction
+            EthBlock.Block block = web3j.ethGetBlockByNumber(DefaultBlockParameterName.LATEST, false).send().getBlock();
+            if (block == null) {
+                return;
             }
+            sampleBlock(block.getNumber(), block.getTimestamp().longValue());
+        } catch (Exception e) {
+            LOG.debug("Cannot sample block time: {}", e.getMessage());
+        }
+    }
 
-            BatchResponse batchResponse = batchRequest.send();
-            handleBatchResponse(batchResponse);
+    private void sampleBlock(BigInteger number, long timestamp) {
+        synchronized (blockSampleLock) {
+            if (sampledBlockNumber != null && number.compareTo(sampledBlockNumber) > 0) {
+                long blocks = number.subtract(sampledBlockNumber).longValue();
+                long interval = (timestamp - sampledBlockTimestamp) * 1000 / blocks;
+                if (interval > 0) {
+                    observedBlockTime = (observedBlockTime * 4 + interval) / 5;
+                }
+            }
+            if (sampledBlockNumber == null || number.compareTo(sampledBlockNumber) > 0) {
+                sampledBlockNumber = number;
+                sampledBlockTimestamp = timestamp;
+            }
+        }
+    }
+
+    /**
+     * Safe to call concurrently: every batch reserves its own range of nonces. Inscriptions that cannot be
+     * submitted, now or later, are retried by the tracker.
+     *
+     * @return false if not every inscription of the batch was accepted by the node
+     */
+    public boolean sendInscriptionData(List<byte[]> jsonDataList) {
+        return sendInscriptionData(jsonDataList, null);
+    }
+
+    /**
+     * Like {@link #sendInscriptionData(List)}, reporting every step of the inscriptions under the tag to the
+     * listener set with {@link #setOutcomeListener}.
+     */
+    boolean sendInscriptionData(List<byte[]> jsonDataList, String tag) {
+        if (!enabled) {
+            LOG.info("Inscriptions are disabled. Skipping sendInscriptionData.");
+            return false;
+        }
+        List<TrackedInscription> inscriptions = inscriptions(jsonDataList);
+        for (TrackedInscription inscription : inscriptions) {
+            inscription.tag = tag;
+        }
+        try {
+            return submit(inscriptions);
         } catch (Exception e) {
             LOG.error("Error while sending inscription data: " + e.getMessage(), e);
+            for (TrackedInscription inscription : inscriptions) {
+                tracker.rejected(inscription, e.getMessage());
+            }
+            tracker.persist();
+            return false;
         }
     }
 
-    private void handleBatchResponse(BatchResponse batchResponse) {
-        batchResponse.getResponses().forEach(response -> {
-            EthSendTransaction ethSendTransaction = (EthSendTransaction) response;
-            if (ethSendTransaction.hasError()) {
-                LOG.error("Transaction Error: " + ethSendTransaction.getError().getMessage());
+    /**
+     * Like {@link #sendInscriptionData} but leaves a batch that could not be sent at all to the caller. Once
+     * signed transactions went out the tracker follows them up, even if the node's answer was lost.
+     */
+    public void submitInscriptionData(List<byte[]> jsonDataList) throws IOException {
+        submit(inscriptions(jsonDataList));
+    }
+
+    void setOutcomeListener(InscriptionTracker.OutcomeListener listener) {
+        tracker.setListener(listener);
+    }
+
+    private List<TrackedInscription> inscriptions(List<byte[]> jsonDataList) {
+        List<TrackedInscription> inscriptions = new ArrayList<>();
+        for (byte[] payload : payloads(jsonDataList)) {
+            inscriptions.add(new TrackedInscription(payload));
+        }
+        return inscriptions;
+    }
+
+    private boolean submit(List<TrackedInscription> inscriptions) throws IOException {
+        if (inscriptions.isEmpty()) {
+            return true;
+        }
+        BigInteger gasPrice = gasPriceOracle.gasPrice(web3j, chainId);
+        gasPrice = gasPrice.add(gasPrice.divide(BigInteger.valueOf(5)));
+
+        List<RawTransactionSender.Unsigned> transactions = new ArrayList<>(inscriptions.size());
+        for (TrackedInscription inscription : inscriptions) {
+            byte[] payload = inscription.payload;
+            // Packs carry many events, so their limit follows their intrinsic gas instead of the per-event limit,
+            // with a margin for chains that charge calldata differently
+            BigInteger txGasLimit = InscriptionPackCodec.isPack(payload)
+                    ? BigInteger.valueOf(InscriptionPackCodec.intrinsicGas(payload) * (100 + packGasMargin) / 100)
+                    : gasLimit;
+            // Sent to the signer's own address
+            transactions.add(new RawTransactionSender.Unsigned(signerAddress, payload, txGasLimit));
+        }
+
+        List<RawTransactionSender.Sent> results = sender.send(transactions, gasPrice);
+        // Inscriptions go to the signer itself, which pays their gas
+        balanceService.invalidate(chainId, credentials.getAddress());
+        return handleBatchResponse(inscriptions, results);
+    }
+
+    private List<byte[]> payloads(List<byte[]> jsonDataList) {
+        if (packCodec == null) {
+            List<byte[]> payloads = new ArrayList<>(jsonDataList.size());
+            for (byte[] jsonData : jsonDataList) {
+                payloads.add(InscriptionEncoder.prefixed(InscriptionPackCodec.JSON_PREFIX_BYTES, jsonData));
+            }
+            return payloads;
+        }
+        List<byte[]> packs = packCodec.pack(jsonDataList);
+        LOG.debug("Packed {} events into {} inscriptions", jsonDataList.size(), packs.size());
+        return packs;
+    }
+
+    private boolean handleBatchResponse(List<TrackedInscription> inscriptions, List<RawTransactionSender.Sent> results) {
+        boolean failed = false;
+        for (int i = 0; i < inscriptions.size(); i++) {
+            RawTransactionSender.Sent sent = results.get(i);
+            if (sent.isAccepted()) {
+                LOG.info("Transaction Hash: " + sent.hash);
+                tracker.sent(inscriptions.get(i), sent.hash);
+            } else if (sent.isUnanswered()) {
+                // May have reached the node; its receipt decides, a resend now could inscribe it twice
+                failed = true;
+                LOG.warn("Transaction {} unanswered, tracking it: {}", sent.hash, sent.error);
+                tracker.sent(inscriptions.get(i), sent.hash);
             } else {
-                LOG.info("Transaction Hash: " + ethSendTransaction.getTransactionHash());
+                failed = true;
+                LOG.error("Transaction Error: " + sent.error);
+                tracker.rejected(inscriptions.get(i), sent.error);
             }
-        });
+        }
+        tracker.persist();
+        return !failed;
     }
 
-    private String bytesToHex(byte[] bytes) {
-        StringBuilder sb = new StringBuilder();
-        for (byte b : bytes) {
-            sb.append(String.format("%02x", b));
+    /**
+     * Settles pending transactions by their receipts and resubmits the inscriptions whose retry is due.
+     */
+    @Scheduled(fixedDelayString = "${inscription.receipt.poll.interval:3000}")
+    public void trackInscriptions() {
+        if (!enabled) {
+            return;
+        }
+        try {
+            if (tracker.pollReceipts()) {
+                nonces.resync();
+            }
+        } catch (Exception e) {
+            LOG.warn("Cannot poll inscription receipts: {}", e.getMessage());
+        }
+        List<TrackedInscription> due = tracker.dueRetries();
+        if (!due.isEmpty()) {
+            try {
+                submit(due);
+            } catch (Exception e) {
+                LOG.warn("Cannot resubmit {} inscriptions: {}", due.size(), e.getMessage());
+                for (TrackedInscription inscription : due) {
+                    tracker.rejected(inscription, e.getMessage());
+                }
+            }
         }
-        return sb.toString();
+        tracker.persist();
     }
 }
@@ -0,0 +1,102 @@
+package ai.hhrdr.chainflow.engine.ethereum;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import org.web3j.crypto.ECKeyPair;
+import org.web3j.crypto.Sign;
+import org.web3j.rlp.RlpEncoder;
+import org.web3j.rlp.RlpList;
+import org.web3j.rlp.RlpString;
+import org.web3j.utils.Bytes;
+
+import java.io.IOException;
+import java.math.BigInteger;
+
+/**
+ * Byte-level encoding of inscriptions from history event to signed raw transaction.
+ *
+ * Events are serialized straight to UTF-8 bytes by one shared writer, and the payload goes into the RLP of the
+ * transaction as is, where web3j's RawTransaction would take it as a hex string and decode it again before
+ * signing. The only string built is the 0x-prefixed hex of the signed transaction that eth_sendRawTransaction
+ * takes, written from a lookup table into a per-thread buffer.
+ */
+public class InscriptionEncoder {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final BigInteger EIP155_V_OFFSET = BigInteger.valueOf(35 - 27);
+    private static final ThreadLocal<char[]> HEX_BUFFER = ThreadLocal.withInitial(() -> new char[1024]);
+
+    private final ObjectWriter writer;
+
+    public InscriptionEncoder(ObjectMapper objectMapper) {
+        // Untyped, so every event is written with the properties of its runtime class
+        this.writer = objectMapper.writer();
+    }
+
+    public byte[] json(Object event) throws IOException {
+        return writer.writeValueAsBytes(event);
+    }
+
+    /**
+     * @return the prefix followed by the body, in one array
+     */
+    public static byte[] prefixed(byte[] prefix, byte[] body) {
+        byte[] result = new byte[prefix.length + body.length];
+        System.arraycopy(prefix, 0, result, 0, prefix.length);
+        System.arraycopy(body, 0, result, prefix.length, body.length);
+        return result;
+    }
+
+    /**
+     * Signs a legacy value-less transaction carrying {@code data} with EIP-155 replay protection, the same
+     * encoding TransactionEncoder.signMessage produces.
+     */
+    public static byte[] signTransaction(BigInteger nonce, BigInteger gasPrice, BigInteger gasLimit, byte[] to,
+                                         byte[] data, long chainId, ECKeyPair keyPair) {
+        BigInteger chain = BigInteger.valueOf(chainId);
+        byte[] unsigned = RlpEncoder.encode(new RlpList(
+                RlpString.create(nonce),
+                RlpString.create(gasPrice),
+                RlpString.create(gasLimit),
+                RlpString.create(to),
+                RlpString.create(BigInteger.ZERO),
+                RlpString.create(data),
+                RlpString.create(chain),
+                RlpString.create(new byte[0]),
+                RlpString.create(new byte[0])));
+        Sign.SignatureData signature = Sign.signMessage(unsigned, keyPair);
+        BigInteger v = new BigInteger(1, signature.getV())
+                .add(EIP155_V_OFFSET)
+                .add(chain.shiftLeft(1));
+        return RlpEncoder.encode(new RlpList(
+                RlpString.create(nonce),
+                RlpString.create(gasPrice),
+                RlpString.create(gasLimit),
+                RlpString.create(to),
+                RlpString.create(BigInteger.ZERO),
+                RlpString.create(data),
+                RlpString.create(v),
+                RlpString.create(Bytes.trimLeadingZeroes(signature.getR())),
+                RlpString.create(Bytes.trimLeadingZeroes(signature.getS()))));
+    }
+
+    /**
+     * @return lowercase hex of the bytes with a 0x prefix
+     */
+    public static String toHexString(byte[] bytes) {
+        int length = 2 + bytes.length * 2;
+        char[] buffer = HEX_BUFFER.get();
+        if (buffer.length < length) {
+            buffer = new char[Math.max(length, buffer.length * 2)];
+            HEX_BUFFER.set(buffer);
+        }
+        buffer[0] = '0';
+        buffer[1] = 'x';
+        int position = 2;
+        for (byte b : bytes) {
+            buffer[position++] = HEX[(b >> 4) & 0x0f];
+            buffer[position++] = HEX[b & 0x0f];
+        }
+        return new String(buffer, 0, length);
+    }
+}
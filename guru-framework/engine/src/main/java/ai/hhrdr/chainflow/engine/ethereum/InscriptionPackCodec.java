@@ -0,0 +1,234 @@
+package ai.hhrdr.chainflow.engine.ethereum;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Packs several serialized history events into one inscription payload and unpacks them again.
+ *
+ * A pack is the ASCII prefix {@value #PACK_PREFIX} followed by a version byte, a flags byte (bit 0: the rest
+ * is deflated) and the frames: an unsigned LEB128 event count, then per event its LEB128 byte length and its
+ * UTF-8 JSON. Packs are cut so that the calldata stays within the configured size and the transaction's
+ * intrinsic gas within the configured limit; a single event over either limit still goes out as a pack of one.
+ */
+public class InscriptionPackCodec {
+
+    public enum Compression {
+        NONE, DEFLATE
+    }
+
+    public static final String PACK_PREFIX = "data:application/vnd.chainflow.events+pack,";
+    /** Payload prefix of single, unpacked inscriptions. */
+    public static final String JSON_PREFIX = "data:application/json,";
+
+    static final int VERSION = 1;
+    static final int FLAG_DEFLATE = 1;
+
+    private static final byte[] PACK_PREFIX_BYTES = PACK_PREFIX.getBytes(StandardCharsets.US_ASCII);
+    static final byte[] JSON_PREFIX_BYTES = JSON_PREFIX.getBytes(StandardCharsets.US_ASCII);
+    private static final long TRANSACTION_GAS = 21000;
+    private static final long ZERO_BYTE_GAS = 4;
+    private static final long NON_ZERO_BYTE_GAS = 16;
+    // Far above any pack that fits a block, bounds what a crafted deflate stream can make us allocate
+    private static final int MAX_INFLATED_BYTES = 32 * 1024 * 1024;
+
+    private final int maxEvents;
+    private final int maxBytes;
+    private final long maxGas;
+    private final Compression compression;
+    private final ThreadLocal<Deflater> deflaters = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_COMPRESSION));
+
+    public InscriptionPackCodec(int maxEvents, int maxBytes, long maxGas, Compression compression) {
+        this.maxEvents = Math.max(1, maxEvents);
+        this.maxBytes = maxBytes;
+        this.maxGas = maxGas;
+        this.compression = compression;
+    }
+
+    /**
+     * @return calldata of the packs holding all events, in order
+     */
+    public List<byte[]> pack(List<byte[]> events) {
+        List<byte[]> packs = new ArrayList<>();
+        // Deflate shrinks history event JSON several times, so start from a generous chunk and split on overflow
+        long rawBudget = compression == Compression.DEFLATE ? 4L * maxBytes : maxBytes;
+        int start = 0;
+        while (start < events.size()) {
+            int end = start;
+            long raw = PACK_PREFIX_BYTES.length + 2 + 5;
+            while (end < events.size() && end - start < maxEvents) {
+                long frame = 5 + events.get(end).length;
+                if (end > start && raw + frame > rawBudget) {
+                    break;
+                }
+                raw += frame;
+                end++;
+            }
+            packFitting(events.subList(start, end), packs);
+            start = end;
+        }
+        return packs;
+    }
+
+    private void packFitting(List<byte[]> events, List<byte[]> packs) {
+        byte[] pack = encode(events);
+        if (events.size() > 1 && (pack.length > maxBytes || intrinsicGas(pack) > maxGas)) {
+            int half = events.size() / 2;
+            packFitting(events.subList(0, half), packs);
+            packFitting(events.subList(half, events.size()), packs);
+            return;
+        }
+        packs.add(pack);
+    }
+
+    byte[] encode(List<byte[]> events) {
+        ByteArrayOutputStream frames = new ByteArrayOutputStream();
+        writeVarint(frames, events.size());
+        for (byte[] event : events) {
+            writeVarint(frames, event.length);
+            frames.write(event, 0, event.length);
+        }
+        byte[] body = frames.toByteArray();
+        int flags = 0;
+        if (compression == Compression.DEFLATE) {
+            byte[] deflated = deflate(body);
+            if (deflated.length < body.length) {
+                body = deflated;
+                flags |= FLAG_DEFLATE;
+            }
+        }
+        byte[] pack = Arrays.copyOf(PACK_PREFIX_BYTES, PACK_PREFIX_BYTES.length + 2 + body.length);
+        pack[PACK_PREFIX_BYTES.length] = VERSION;
+        pack[PACK_PREFIX_BYTES.length + 1] = (byte) flags;
+        System.arraycopy(body, 0, pack, PACK_PREFIX_BYTES.length + 2, body.length);
+        return pack;
+    }
+
+    /**
+     * Gas a plain value-less transaction carrying this calldata needs.
+     */
+    public static long intrinsicGas(byte[] calldata) {
+        long gas = TRANSACTION_GAS;
+        for (byte b : calldata) {
+            gas += b == 0 ? ZERO_BYTE_GAS : NON_ZERO_BYTE_GAS;
+        }
+        return gas;
+    }
+
+    public static boolean isPack(byte[] calldata) {
+        if (calldata.length < PACK_PREFIX_BYTES.length + 2) {
+            return false;
+        }
+        for (int i = 0; i < PACK_PREFIX_BYTES.length; i++) {
+            if (calldata[i] != PACK_PREFIX_BYTES[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Decodes the events of an inscription, packed or a single {@value #JSON_PREFIX} one.
+     *
+     * @return the events' JSON, in order
+     */
+    public static List<String> unpack(byte[] calldata) throws IOException {
+        if (!isPack(calldata)) {
+            String text = new String(calldata, StandardCharsets.UTF_8);
+            if (!text.startsWith(JSON_PREFIX)) {
+                throw new IOException("Not an inscription payload");
+            }
+            return List.of(text.substring(JSON_PREFIX.length()));
+        }
+        int version = calldata[PACK_PREFIX_BYTES.length];
+        if (version != VERSION) {
+            throw new IOException("Unsupported inscription pack version " + version);
+        }
+        int flags = calldata[PACK_PREFIX_BYTES.length + 1];
+        byte[] body = Arrays.copyOfRange(calldata, PACK_PREFIX_BYTES.length + 2, calldata.length);
+        if ((flags & FLAG_DEFLATE) != 0) {
+            body = inflate(body);
+        }
+        ByteArrayInputStream frames = new ByteArrayInputStream(body);
+        int count = readVarint(frames);
+        // Counts and lengths come from the calldata, so check them against what is left before allocating
+        if (count < 0 || count > frames.available()) {
+            throw new IOException("Inscription pack claims " + count + " events in " + frames.available() + " bytes");
+        }
+        List<String> events = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int length = readVarint(frames);
+            if (length < 0 || length > frames.available()) {
+                throw new IOException("Inscription pack truncated in event " + i);
+            }
+            events.add(new String(frames.readNBytes(length), StandardCharsets.UTF_8));
+        }
+        return events;
+    }
+
+    private static byte[] inflate(byte[] deflated) throws IOException {
+        try (InputStream in = new InflaterInputStream(new ByteArrayInputStream(deflated))) {
+            byte[] body = in.readNBytes(MAX_INFLATED_BYTES + 1);
+            if (body.length > MAX_INFLATED_BYTES) {
+                throw new IOException("Inscription pack inflates beyond " + MAX_INFLATED_BYTES + " bytes");
+            }
+            return body;
+        }
+    }
+
+    /**
+     * Same as {@link #unpack(byte[])} for the 0x-prefixed hex input of a transaction.
+     */
+    public static List<String> unpackHex(String input) throws IOException {
+        String hex = input.startsWith("0x") ? input.substring(2) : input;
+        byte[] calldata = new byte[hex.length() / 2];
+        for (int i = 0; i < calldata.length; i++) {
+            calldata[i] = (byte) Integer.parseInt(hex, i * 2, i * 2 + 2, 16);
+        }
+        return unpack(calldata);
+    }
+
+    private byte[] deflate(byte[] body) {
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        deflater.setInput(body);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, body.length / 4));
+        byte[] chunk = new byte[Math.max(64, Math.min(body.length, 8192))];
+        while (!deflater.finished()) {
+            out.write(chunk, 0, deflater.deflate(chunk));
+        }
+        return out.toByteArray();
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVarint(InputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                throw new IOException("Inscription pack truncated");
+            }
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed length in inscription pack");
+    }
+}
@@ -0,0 +1,281 @@
+package ai.hhrdr.chainflow.engine.ethereum;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.web3j.protocol.Web3j;
+import org.web3j.protocol.core.methods.response.TransactionReceipt;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Follows submitted inscriptions until they are mined and schedules the ones that were rejected, reverted or
+ * dropped from the mempool for another attempt.
+ *
+ * Receipts of all pending transactions are fetched with {@link ReceiptPoller}. A transaction without a receipt after
+ * the receipt timeout counts as dropped. Retries back off exponentially from the base backoff and go out with
+ * a fresh nonce; after maxRetry attempts the inscription is given up and counted as failed. Tracked state is
+ * written to a snapshot file after every change and reloaded on startup, so a restart neither forgets pending
+ * transactions nor scheduled retries. Every step of a tagged inscription is reported to the {@link OutcomeListener}.
+ */
+class InscriptionTracker {
+
+    private static final Logger LOG = LoggerFactory.getLogger(InscriptionTracker.class);
+
+    private static final String SNAPSHOT_FILE = "inscriptions.json";
+    private static final long MAX_BACKOFF = 300_000;
+
+    static final String SENT = "sent";
+    static final String CONFIRMED = "confirmed";
+    static final String FAILED = "failed";
+
+    private final Web3j web3j;
+    private final Path snapshot;
+    private final int maxRetry;
+    private final long backoff;
+    private final long receiptTimeout;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    // Keyed by transaction hash while waiting for a receipt
+    private final Map<String, TrackedInscription> pending = new LinkedHashMap<>();
+    private final List<TrackedInscription> retries = new ArrayList<>();
+    private boolean dirty;
+    private volatile OutcomeListener listener;
+
+    private final Counter confirmed;
+    private final Counter failed;
+    private final Counter dropped;
+    private final Counter reverted;
+    private final Counter rejected;
+
+    InscriptionTracker(Web3j web3j, String stateDirectory, int maxRetry, long backoff, long receiptTimeout,
+                       MeterRegistry meterRegistry) {
+        this.web3j = web3j;
+        this.snapshot = Paths.get(stateDirectory).resolve(SNAPSHOT_FILE);
+        this.maxRetry = maxRetry;
+        this.backoff = backoff;
+        this.receiptTimeout = receiptTimeout;
+
+        this.confirmed = outcomeCounter(meterRegistry, CONFIRMED);
+        this.failed = outcomeCounter(meterRegistry, FAILED);
+        this.dropped = outcomeCounter(meterRegistry, "dropped");
+        this.reverted = outcomeCounter(meterRegistry, "reverted");
+        this.rejected = outcomeCounter(meterRegistry, "rejected");
+        Gauge.builder("inscription.transactions.pending", this, InscriptionTracker::pendingCount)
+                .description("Inscription transactions waiting for a receipt")
+                .register(meterRegistry);
+        Gauge.builder("inscription.transactions.retrying", this, InscriptionTracker::retryCount)
+                .description("Inscriptions waiting for their next attempt")
+                .register(meterRegistry);
+    }
+
+    synchronized void load() {
+        if (!Files.exists(snapshot)) {
+            return;
+        }
+        try {
+            List<TrackedInscription> tracked = objectMapper.readValue(snapshot.toFile(), new TypeReference<List<TrackedInscription>>() {
+            });
+            long now = System.currentTimeMillis();
+            for (TrackedInscription inscription : tracked) {
+                if (inscription.hash != null) {
+                    // Give transactions sent before the restart a full timeout to show up
+                    inscription.sentAt = now;
+                    pending.put(inscription.hash, inscription);
+                } else {
+                    retries.add(inscription);
+                }
+            }
+            LOG.info("Loaded {} pending and {} retrying inscriptions from {}", pending.size(), retries.size(), snapshot);
+        } catch (IOException e) {
+            LOG.error("Cannot read inscription state {}", snapshot, e);
+        }
+    }
+
+    void setListener(OutcomeListener listener) {
+        this.listener = listener;
+    }
+
+    synchronized void sent(TrackedInscription inscription, String hash) {
+        inscription.hash = hash;
+        inscription.sentAt = System.currentTimeMillis();
+        pending.put(hash, inscription);
+        dirty = true;
+        report(inscription, hash, SENT);
+    }
+
+    synchronized void rejected(TrackedInscription inscription, String reason) {
+        rejected.increment();
+        scheduleRetry(inscription, "rejected", reason);
+    }
+
+    /**
+     * Fetches receipts of the pending transactions and settles them.
+     *
+     * @return whether a transaction was dropped, leaving a nonce gap
+     */
+    boolean pollReceipts() throws IOException {
+        List<String> hashes;
+        synchronized (this) {
+            hashes = new ArrayList<>(pending.keySet());
+        }
+        Map<String, Optional<TransactionReceipt>> receipts = ReceiptPoller.fetch(web3j, hashes);
+        boolean gap = false;
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            for (String hash : hashes) {
+                Optional<TransactionReceipt> receipt = receipts.get(hash);
+                TrackedInscription inscription = pending.get(hash);
+                if (receipt == null || inscription == null) {
+                    continue;
+                }
+                if (receipt.isPresent()) {
+                    pending.remove(hash);
+                    dirty = true;
+                    if (receipt.get().isStatusOK()) {
+                        confirmed.increment();
+                        report(inscription, hash, CONFIRMED);
+                    } else {
+                        reverted.increment();
+                        scheduleRetry(inscription, "reverted", "reverted in block " + receipt.get().getBlockNumber());
+                    }
+                } else if (now - inscription.sentAt > receiptTimeout) {
+                    pending.remove(hash);
+                    dropped.increment();
+                    gap = true;
+                    scheduleRetry(inscription, "dropped", "no receipt after " + receiptTimeout + " ms");
+                }
+            }
+        }
+        return gap;
+    }
+
+    /**
+     * Takes the inscriptions whose backoff has passed.
+     */
+    synchronized List<TrackedInscription> dueRetries() {
+        long now = System.currentTimeMillis();
+        List<TrackedInscription> due = new ArrayList<>();
+        for (Iterator<TrackedInscription> it = retries.iterator(); it.hasNext(); ) {
+            TrackedInscription inscription = it.next();
+            if (inscription.nextAttemptAt <= now) {
+                it.remove();
+                due.add(inscription);
+            }
+        }
+        if (!due.isEmpty()) {
+            dirty = true;
+        }
+        return due;
+    }
+
+    synchronized void persist() {
+        if (!dirty) {
+            return;
+        }
+        List<TrackedInscription> tracked = new ArrayList<>(pending.values());
+        tracked.addAll(retries);
+        try {
+            Files.createDirectories(snapshot.getParent());
+            Path tmp = snapshot.resolveSibling(SNAPSHOT_FILE + ".tmp");
+            objectMapper.writeValue(tmp.toFile(), tracked);
+            Files.move(tmp, snapshot, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            dirty = false;
+        } catch (IOException e) {
+            LOG.error("Cannot write inscription state {}", snapshot, e);
+        }
+    }
+
+    private void scheduleRetry(TrackedInscription inscription, String outcome, String reason) {
+        dirty = true;
+        String hash = inscription.hash;
+        inscription.hash = null;
+        inscription.attempts++;
+        if (inscription.attempts > maxRetry) {
+            failed.increment();
+            LOG.error("Giving up inscription after {} attempts ({}), {} bytes of payload", inscription.attempts, reason,
+                    inscription.payload.length);
+            report(inscription, hash, FAILED);
+            return;
+        }
+        long delay = Math.min(MAX_BACKOFF, backoff << Math.min(20, inscription.attempts - 1));
+        inscription.nextAttemptAt = System.currentTimeMillis() + delay;
+        retries.add(inscription);
+        LOG.warn("Inscription attempt {} failed ({}), retrying in {} ms", inscription.attempts, reason, delay);
+        report(inscription, hash, outcome);
+    }
+
+    private void report(TrackedInscription inscription, String hash, String outcome) {
+        OutcomeListener current = listener;
+        if (inscription.tag == null || current == null) {
+            return;
+        }
+        try {
+            current.outcome(inscription.tag, hash, outcome);
+        } catch (RuntimeException e) {
+            LOG.error("Inscription outcome listener failed for {}", inscription.tag, e);
+        }
+    }
+
+    synchronized int pendingCount() {
+        return pending.size();
+    }
+
+    synchronized int retryCount() {
+        return retries.size();
+    }
+
+    private static Counter outcomeCounter(MeterRegistry meterRegistry, String outcome) {
+        return Counter.builder("inscription.transactions")
+                .description("Inscription transactions by final or retried outcome")
+                .tag("outcome", outcome)
+                .register(meterRegistry);
+    }
+
+    /**
+     * Hears about every step of tagged inscriptions: sent, the outcome of each attempt and the final confirmed or
+     * failed. Called under the tracker's lock, so it must not call back into the tracker.
+     */
+    interface OutcomeListener {
+
+        /**
+         * @param hash the transaction the outcome is about, null if it was rejected without one
+         */
+        void outcome(String tag, String hash, String outcome);
+    }
+
+    /**
+     * One inscription payload and its delivery state. Public fields so the snapshot maps without annotations.
+     */
+    static final class TrackedInscription {
+
+        public byte[] payload;
+        // Set by callers that follow the inscription through the OutcomeListener
+        public String tag;
+        public int attempts;
+        public String hash;
+        public long sentAt;
+        public long nextAttemptAt;
+
+        public TrackedInscription() {
+        }
+
+        TrackedInscription(byte[] payload) {
+            this.payload = payload;
+        }
+    }
+}
@@ -0,0 +1,471 @@
+package ai.hhrdr.chainflow.engine.ethereum;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.web3j.utils.Numeric;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+/**
+ * Local store of the events anchored by Merkle root, in windows.
+ *
+ * The open window is a JSON-lines file of event ids and their JSON, appended as events arrive. Sealing a
+ * window writes its root record next to it and renames the events file, so every sealed window can give the
+ * inclusion proof of its events later. The event id index is kept in memory and rebuilt from the files on
+ * startup; windows older than the retention are removed once anchored, which bounds it. Proofs are computed
+ * outside the store's lock, from the tree levels of the last few windows asked for.
+ */
+public class MerkleAnchorStore {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MerkleAnchorStore.class);
+
+    private static final String PREFIX = "anchor-";
+    private static final String OPEN_SUFFIX = ".open";
+    private static final String EVENTS_SUFFIX = ".events";
+    private static final String ROOT_SUFFIX = ".root";
+    private static final byte[] NEWLINE = {'\n'};
+    private static final int CACHED_TREES = 2;
+
+    private final Path directory;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    private final TreeMap<Long, Window> sealed = new TreeMap<>();
+    private final Map<String, Position> index = new HashMap<>();
+    private long openSequence;
+    private int openCount;
+    private OutputStream openFile;
+
+    // Tree levels by window sequence, so proofs of a window do not re-hash all of its events every time
+    private final Map<Long, List<List<byte[]>>> trees = new LinkedHashMap<Long, List<List<byte[]>>>(4, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, List<List<byte[]>>> eldest) {
+            return size() > CACHED_TREES;
+        }
+    };
+
+    public MerkleAnchorStore(String directory) {
+        this.directory = Paths.get(directory);
+    }
+
+    /**
+     * Loads sealed windows and the open one left by the previous run.
+     */
+    public synchronized void open() throws IOException {
+        Files.createDirectories(directory);
+        long last = 0;
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files.sorted()::iterator) {
+                String name = file.getFileName().toString();
+                if (name.startsWith(PREFIX) && name.endsWith(ROOT_SUFFIX)) {
+                    Window window = objectMapper.readValue(file.toFile(), Window.class);
+                    Path open = path(window.sequence, OPEN_SUFFIX);
+                    if (Files.exists(open)) {
+                        // Sealing was interrupted between writing the root and renaming the events
+                        Files.move(open, path(window.sequence, EVENTS_SUFFIX), StandardCopyOption.ATOMIC_MOVE);
+                    }
+                    sealed.put(window.sequence, window);
+                    indexWindow(window.sequence);
+                    last = Math.max(last, window.sequence);
+                }
+            }
+        }
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                String name = file.getFileName().toString();
+                if (name.startsWith(PREFIX) && name.endsWith(OPEN_SUFFIX)) {
+                    long sequence = Long.parseLong(name.substring(PREFIX.length(), name.length() - OPEN_SUFFIX.length()));
+                    int count = indexWindow(sequence);
+                    if (count == 0) {
+                        Files.delete(file);
+                        continue;
+                    }
+                    terminateLastLine(file);
+                    openSequence = sequence;
+                    openCount = count;
+                    last = Math.max(last, sequence);
+                }
+            }
+        }
+        if (openCount == 0) {
+            openSequence = last + 1;
+        }
+        LOG.info("Loaded {} anchored windows and {} open events from {}", sealed.size(), openCount, directory);
+    }
+
+    public synchronized void add(String eventId, byte[] json) throws IOException {
+        if (openFile == null) {
+            openFile = Files.newOutputStream(path(openSequence, OPEN_SUFFIX),
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        }
+        openFile.write(objectMapper.writeValueAsBytes(new Entry(eventId, json)));
+        openFile.write(NEWLINE);
+        index.put(eventId, new Position(openSequence, openCount++, index.get(eventId)));
+    }
+
+    public synchronized void flush() throws IOException {
+        if (openFile != null) {
+            openFile.flush();
+        }
+    }
+
+    public synchronized int openCount() {
+        return openCount;
+    }
+
+    /**
+     * Closes the open window and computes its root.
+     *
+     * @return the sealed window, or null if it held no events
+     */
+    public synchronized Window seal() throws IOException {
+        if (openCount == 0) {
+            return null;
+        }
+        closeOpenFile();
+        List<byte[]> leaves = leaves(readEntries(path(openSequence, OPEN_SUFFIX)));
+        Window window = new Window();
+        window.sequence = openSequence;
+        window.root = Numeric.toHexString(MerkleTree.root(leaves));
+        window.leaves = leaves.size();
+        window.sealedAt = System.currentTimeMillis();
+        writeRecord(window);
+        Files.move(path(openSequence, OPEN_SUFFIX), path(openSequence, EVENTS_SUFFIX), StandardCopyOption.ATOMIC_MOVE);
+        sealed.put(window.sequence, window);
+        openSequence++;
+        openCount = 0;
+        return window;
+    }
+
+    /**
+     * Records the latest state of the transaction inscribing the window's root.
+     *
+     * @return false if the window is no longer retained
+     */
+    public synchronized boolean recordTransaction(long sequence, String hash, String status, boolean anchored)
+            throws IOException {
+        Window window = sealed.get(sequence);
+        if (window == null) {
+            return false;
+        }
+        if (hash != null) {
+            window.txHash = hash;
+        }
+        window.txStatus = status;
+        window.anchored = anchored;
+        writeRecord(window);
+        return true;
+    }
+
+    /**
+     * @return copies of the sealed windows whose root is not confirmed on chain yet, oldest first
+     */
+    public synchronized List<Window> unanchored() {
+        List<Window> windows = new ArrayList<>();
+        for (Window window : sealed.values()) {
+            if (!window.anchored) {
+                windows.add(window.copy());
+            }
+        }
+        return windows;
+    }
+
+    /**
+     * Removes anchored windows sealed before the given time.
+     */
+    public synchronized void prune(long sealedBefore) throws IOException {
+        while (!sealed.isEmpty()) {
+            Window oldest = sealed.firstEntry().getValue();
+            if (!oldest.anchored || oldest.sealedAt >= sealedBefore) {
+                return;
+            }
+            for (Entry entry : readEntries(path(oldest.sequence, EVENTS_SUFFIX))) {
+                unindex(entry.id, oldest.sequence);
+            }
+            Files.deleteIfExists(path(oldest.sequence, EVENTS_SUFFIX));
+            Files.deleteIfExists(path(oldest.sequence, ROOT_SUFFIX));
+            sealed.remove(oldest.sequence);
+            synchronized (trees) {
+                trees.remove(oldest.sequence);
+            }
+        }
+    }
+
+    /**
+     * @return inclusion proofs of every sealed occurrence of the event, newest first
+     */
+    public List<Proof> proofs(String eventId) throws IOException {
+        List<Position> positions = new ArrayList<>();
+        List<Window> windows = new ArrayList<>();
+        synchronized (this) {
+            for (Position position = index.get(eventId); position != null; position = position.previous) {
+                Window window = sealed.get(position.window);
+                if (window != null) {
+                    positions.add(position);
+                    windows.add(window.copy());
+                }
+            }
+        }
+        List<Proof> proofs = new ArrayList<>();
+        for (int i = 0; i < positions.size(); i++) {
+            Position position = positions.get(i);
+            Window window = windows.get(i);
+            List<Entry> entries = readEntries(path(window.sequence, EVENTS_SUFFIX));
+            if (position.index >= entries.size()) {
+                // Pruned since the lookup
+                continue;
+            }
+            List<List<byte[]>> levels = tree(window.sequence, entries);
+            Proof proof = new Proof();
+            proof.eventId = eventId;
+            proof.event = new String(entries.get(position.index).data, StandardCharsets.UTF_8);
+            proof.window = window.sequence;
+            proof.leafIndex = position.index;
+            proof.leaves = entries.size();
+            proof.leaf = Numeric.toHexString(levels.get(0).get(position.index));
+            for (MerkleTree.Step step : MerkleTree.proofFromLevels(levels, position.index)) {
+                proof.siblings.add(new Sibling(Numeric.toHexString(step.hash), step.left ? "left" : "right"));
+            }
+            proof.root = window.root;
+            proof.sealedAt = window.sealedAt;
+            proof.anchored = window.anchored;
+            proof.txHash = window.txHash;
+            proof.txStatus = window.txStatus;
+            proofs.add(proof);
+        }
+        return proofs;
+    }
+
+    public synchronized void close() throws IOException {
+        closeOpenFile();
+    }
+
+    private List<List<byte[]>> tree(long sequence, List<Entry> entries) {
+        synchronized (trees) {
+            List<List<byte[]>> levels = trees.get(sequence);
+            if (levels != null) {
+                return levels;
+            }
+        }
+        // Sealed windows never change, so a tree computed concurrently for the same window is the same
+        List<List<byte[]>> levels = MerkleTree.levels(leaves(entries));
+        synchronized (trees) {
+            trees.put(sequence, levels);
+        }
+        return levels;
+    }
+
+    private int indexWindow(long sequence) throws IOException {
+        Path events = Files.exists(path(sequence, EVENTS_SUFFIX)) ? path(sequence, EVENTS_SUFFIX) : path(sequence, OPEN_SUFFIX);
+        List<Entry> entries = readEntries(events);
+        for (int i = 0; i < entries.size(); i++) {
+            String id = entries.get(i).id;
+            index.put(id, new Position(sequence, i, index.get(id)));
+        }
+        return entries.size();
+    }
+
+    private void unindex(String eventId, long window) {
+        Position head = index.get(eventId);
+        Position kept = null;
+        // Positions are linked newest first, so rebuild the chain without the window's entries
+        List<Position> remaining = new ArrayList<>();
+        for (Position position = head; position != null; position = position.previous) {
+            if (position.window != window) {
+                remaining.add(position);
+            }
+        }
+        Collections.reverse(remaining);
+        for (Position position : remaining) {
+            kept = new Position(position.window, position.index, kept);
+        }
+        if (kept == null) {
+            index.remove(eventId);
+        } else {
+            index.put(eventId, kept);
+        }
+    }
+
+    private List<Entry> readEntries(Path file) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        if (!Files.exists(file)) {
+            return entries;
+        }
+        try (BufferedReader reader = newReader(file)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                try {
+                    entries.add(objectMapper.readValue(line, Entry.class));
+                } catch (IOException e) {
+                    // A line torn by a crash; every reader skips it, so entry positions stay the same
+                    LOG.warn("Skipping unreadable anchor entry in {}: {}", file, e.getMessage());
+                }
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * @return a reader of the file, or of nothing if it was pruned after the existence check
+     */
+    private static BufferedReader newReader(Path file) throws IOException {
+        try {
+            return Files.newBufferedReader(file, StandardCharsets.UTF_8);
+        } catch (NoSuchFileException e) {
+            return new BufferedReader(new StringReader(""));
+        }
+    }
+
+    /**
+     * Ends a line torn by a crash so that new entries start on a line of their own.
+     */
+    private static void terminateLastLine(Path file) throws IOException {
+        long size = Files.size(file);
+        if (size == 0) {
+            return;
+        }
+        try (SeekableByteChannel channel = Files.newByteChannel(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer last = ByteBuffer.allocate(1);
+            channel.position(size - 1).read(last);
+            if (last.get(0) != '\n') {
+                channel.position(size).write(ByteBuffer.wrap(NEWLINE));
+            }
+        }
+    }
+
+    private static List<byte[]> leaves(List<Entry> entries) {
+        List<byte[]> leaves = new ArrayList<>(entries.size());
+        for (Entry entry : entries) {
+            leaves.add(MerkleTree.leaf(entry.data));
+        }
+        return leaves;
+    }
+
+    private void writeRecord(Window window) throws IOException {
+        Path record = path(window.sequence, ROOT_SUFFIX);
+        Path tmp = record.resolveSibling(record.getFileName() + ".tmp");
+        objectMapper.writeValue(tmp.toFile(), window);
+        Files.move(tmp, record, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void closeOpenFile() throws IOException {
+        if (openFile != null) {
+            openFile.close();
+            openFile = null;
+        }
+    }
+
+    private Path path(long sequence, String suffix) {
+        return directory.resolve(String.format("%s%020d%s", PREFIX, sequence, suffix));
+    }
+
+    private static final class Position {
+
+        final long window;
+        final int index;
+        // Earlier occurrence of the same event id
+        final Position previous;
+
+        Position(long window, int index, Position previous) {
+            this.window = window;
+            this.index = index;
+            this.previous = previous;
+        }
+    }
+
+    /**
+     * One line of a window's events file; data is the exact leaf input, written base64 by Jackson.
+     */
+    static final class Entry {
+
+        public String id;
+        public byte[] data;
+
+        public Entry() {
+        }
+
+        Entry(String id, byte[] data) {
+            this.id = id;
+            this.data = data;
+        }
+    }
+
+    /**
+     * Root record of a sealed window.
+     */
+    public static final class Window {
+
+        public long sequence;
+        public String root;
+        public int leaves;
+        public long sealedAt;
+        public boolean anchored;
+        // Last transaction inscribing the root and its state as reported by the inscription tracker
+        public String txHash;
+        public String txStatus;
+
+        Window copy() {
+            Window copy = new Window();
+            copy.sequence = sequence;
+            copy.root = root;
+            copy.leaves = leaves;
+            copy.sealedAt = sealedAt;
+            copy.anchored = anchored;
+            copy.txHash = txHash;
+            copy.txStatus = txStatus;
+            return copy;
+        }
+    }
+
+    public static final class Sibling {
+
+        public final String hash;
+        public final String position;
+
+        Sibling(String hash, String position) {
+            this.hash = hash;
+            this.position = position;
+        }
+    }
+
+    /**
+     * Everything needed to check that an event is part of an anchored root: hash the event as a leaf, fold in
+     * the siblings bottom-up and compare with the root inscribed for the window.
+     */
+    public static final class Proof {
+
+        public String eventId;
+        public String event;
+        public long window;
+        public int leafIndex;
+        public int leaves;
+        public String leaf;
+        public final List<Sibling> siblings = new ArrayList<>();
+        public String root;
+        public long sealedAt;
+        // Whether the transaction inscribing the root is confirmed
+        public boolean anchored;
+        public String txHash;
+        public String txStatus;
+    }
+}
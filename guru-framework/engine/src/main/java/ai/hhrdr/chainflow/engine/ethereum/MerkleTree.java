@@ -0,0 +1,118 @@
+package ai.hhrdr.chainflow.engine.ethereum;
+
+import org.web3j.crypto.Hash;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Keccak-256 Merkle tree over anchored inscription events.
+ *
+ * A leaf is keccak256(0x00 || event JSON) and an inner node keccak256(0x01 || left || right), so a leaf can
+ * never pass for an inner node. The last node of a level with an odd count moves up unchanged rather than
+ * being paired with itself.
+ */
+public final class MerkleTree {
+
+    private static final byte LEAF = 0;
+    private static final byte NODE = 1;
+
+    private MerkleTree() {
+    }
+
+    public static byte[] leaf(byte[] data) {
+        byte[] input = new byte[data.length + 1];
+        input[0] = LEAF;
+        System.arraycopy(data, 0, input, 1, data.length);
+        return Hash.sha3(input);
+    }
+
+    public static byte[] node(byte[] left, byte[] right) {
+        byte[] input = new byte[1 + left.length + right.length];
+        input[0] = NODE;
+        System.arraycopy(left, 0, input, 1, left.length);
+        System.arraycopy(right, 0, input, 1 + left.length, right.length);
+        return Hash.sha3(input);
+    }
+
+    public static byte[] root(List<byte[]> leaves) {
+        if (leaves.isEmpty()) {
+            throw new IllegalArgumentException("Merkle tree without leaves");
+        }
+        List<byte[]> level = leaves;
+        while (level.size() > 1) {
+            level = parents(level);
+        }
+        return level.get(0);
+    }
+
+    /**
+     * @return every level of the tree, the leaves first and the root last
+     */
+    public static List<List<byte[]>> levels(List<byte[]> leaves) {
+        if (leaves.isEmpty()) {
+            throw new IllegalArgumentException("Merkle tree without leaves");
+        }
+        List<List<byte[]>> levels = new ArrayList<>();
+        List<byte[]> level = leaves;
+        levels.add(level);
+        while (level.size() > 1) {
+            level = parents(level);
+            levels.add(level);
+        }
+        return levels;
+    }
+
+    /**
+     * @return the siblings from the leaf up to the root
+     */
+    public static List<Step> proof(List<byte[]> leaves, int index) {
+        return proofFromLevels(levels(leaves), index);
+    }
+
+    /**
+     * Like {@link #proof(List, int)} on levels already computed by {@link #levels}.
+     */
+    public static List<Step> proofFromLevels(List<List<byte[]>> levels, int index) {
+        List<Step> steps = new ArrayList<>();
+        for (List<byte[]> level : levels) {
+            int sibling = index ^ 1;
+            if (sibling < level.size()) {
+                steps.add(new Step(level.get(sibling), sibling < index));
+            }
+            index /= 2;
+        }
+        return steps;
+    }
+
+    public static boolean verify(byte[] leaf, List<Step> proof, byte[] root) {
+        byte[] hash = leaf;
+        for (Step step : proof) {
+            hash = step.left ? node(step.hash, hash) : node(hash, step.hash);
+        }
+        return Arrays.equals(hash, root);
+    }
+
+    private static List<byte[]> parents(List<byte[]> level) {
+        List<byte[]> parents = new ArrayList<>((level.size() + 1) / 2);
+        for (int i = 0; i < level.size(); i += 2) {
+            parents.add(i + 1 < level.size() ? node(level.get(i), level.get(i + 1)) : level.get(i));
+        }
+        return parents;
+    }
+
+    /**
+     * A sibling hash and whether it sits left of the path.
+     */
+    public static final class Step {
+
+        public final byte[] hash;
+        public final boolean left;
+
+        public Step(byte[] hash, boolean left) {
+            this.hash = hash;
+            this.left = left;
+        }
+    }
+}
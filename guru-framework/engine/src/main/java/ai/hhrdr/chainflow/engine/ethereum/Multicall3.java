@@ -0,0 +1,137 @@
+package ai.hhrdr.chainflow.engine.ethereum;
+
+import org.web3j.abi.FunctionEncoder;
+import org.web3j.utils.Numeric;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * ABI encoding of Multicall3 aggregate3 calls and their results.
+ *
+ * Written out by hand because the only types involved are a dynamic array of (address, bool, bytes) tuples
+ * and one of (bool, bytes) tuples, whose layout is fixed by the ABI spec.
+ */
+final class Multicall3 {
+
+    /** Deployed at this address on most EVM chains. */
+    static final String DEFAULT_ADDRESS = "0xcA11bde05977b3631167028862bE2a173976CA11";
+
+    static final String AGGREGATE3 = FunctionEncoder.buildMethodId("aggregate3((address,bool,bytes)[])");
+    static final String BALANCE_OF = FunctionEncoder.buildMethodId("balanceOf(address)");
+    static final String GET_ETH_BALANCE = FunctionEncoder.buildMethodId("getEthBalance(address)");
+    static final String GET_BLOCK_NUMBER = FunctionEncoder.buildMethodId("getBlockNumber()");
+
+    private static final int WORD = 32;
+
+    private Multicall3() {
+    }
+
+    /**
+     * Calldata of a single-address call such as balanceOf(holder).
+     */
+    static byte[] addressCall(String methodId, String address) {
+        byte[] selector = Numeric.hexStringToByteArray(methodId);
+        byte[] data = new byte[selector.length + WORD];
+        System.arraycopy(selector, 0, data, 0, selector.length);
+        System.arraycopy(address(address), 0, data, selector.length, WORD);
+        return data;
+    }
+
+    /**
+     * Calldata of aggregate3 over the calls, each allowed to fail on its own.
+     */
+    static String encodeAggregate3(List<Call> calls) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.writeBytes(Numeric.hexStringToByteArray(AGGREGATE3));
+        out.writeBytes(uint(WORD));
+        out.writeBytes(uint(calls.size()));
+        // Tuple offsets count from the first offset slot
+        long offset = (long) calls.size() * WORD;
+        List<byte[]> tuples = new ArrayList<>(calls.size());
+        for (Call call : calls) {
+            byte[] tuple = tuple(call);
+            tuples.add(tuple);
+            out.writeBytes(uint(offset));
+            offset += tuple.length;
+        }
+        for (byte[] tuple : tuples) {
+            out.writeBytes(tuple);
+        }
+        return Numeric.toHexString(out.toByteArray());
+    }
+
+    /**
+     * @return per call its return data, or null if the call failed
+     */
+    static List<byte[]> decodeAggregate3(String hex) {
+        byte[] data = Numeric.hexStringToByteArray(hex);
+        if (data.length < 2 * WORD) {
+            throw new IllegalArgumentException("aggregate3 returned " + data.length + " bytes");
+        }
+        int array = intAt(data, 0);
+        int count = intAt(data, array);
+        int elements = array + WORD;
+        List<byte[]> results = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int tuple = elements + intAt(data, elements + i * WORD);
+            boolean success = intAt(data, tuple) != 0;
+            int bytes = tuple + intAt(data, tuple + WORD);
+            int length = intAt(data, bytes);
+            if (!success) {
+                results.add(null);
+                continue;
+            }
+            byte[] returnData = new byte[length];
+            System.arraycopy(data, bytes + WORD, returnData, 0, length);
+            results.add(returnData);
+        }
+        return results;
+    }
+
+    static BigInteger uint256(byte[] returnData) {
+        if (returnData.length < WORD) {
+            throw new IllegalArgumentException("Expected a uint256, got " + returnData.length + " bytes");
+        }
+        return new BigInteger(1, java.util.Arrays.copyOf(returnData, WORD));
+    }
+
+    private static byte[] tuple(Call call) {
+        int padded = (call.data.length + WORD - 1) / WORD * WORD;
+        byte[] tuple = new byte[4 * WORD + padded];
+        System.arraycopy(address(call.target), 0, tuple, 0, WORD);
+        tuple[2 * WORD - 1] = 1; // allowFailure
+        System.arraycopy(uint(3 * WORD), 0, tuple, 2 * WORD, WORD);
+        System.arraycopy(uint(call.data.length), 0, tuple, 3 * WORD, WORD);
+        System.arraycopy(call.data, 0, tuple, 4 * WORD, call.data.length);
+        return tuple;
+    }
+
+    private static byte[] address(String address) {
+        return Numeric.toBytesPadded(Numeric.toBigInt(address), WORD);
+    }
+
+    private static byte[] uint(long value) {
+        return Numeric.toBytesPadded(BigInteger.valueOf(value), WORD);
+    }
+
+    private static int intAt(byte[] data, int offset) {
+        if (offset < 0 || offset + WORD > data.length) {
+            throw new IllegalArgumentException("aggregate3 result truncated at " + offset);
+        }
+        return new BigInteger(1, java.util.Arrays.copyOfRange(data, offset, offset + WORD)).intValueExact();
+    }
+
+    static final class Call {
+
+        final String target;
+        final byte[] data;
+
+        Call(String target, byte[] data) {
+            this.target = target;
+            this.data = data;
+        }
+    }
+}
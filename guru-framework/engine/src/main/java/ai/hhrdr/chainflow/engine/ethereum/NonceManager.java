@@ -0,0 +1,109 @@
+package ai.hhrdr.chainflow.engine.ethereum;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+import org.web3j.protocol.Web3j;
+import org.web3j.protocol.core.DefaultBlockParameterName;
+import org.web3j.protocol.core.methods.response.EthGetTransactionCount;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Hands out transaction nonces locally, one sequence per chain and signer, so senders neither ask the node
+ * for the pending transaction count on every transaction nor race each other for the same nonce.
+ *
+ * A sequence starts at the node's pending count and is resynced from it when a send reports a nonce error or
+ * fails in a way that leaves it unclear which nonces were used.
+ */
+@Component
+public class NonceManager {
+
+    private static final Logger LOG = LoggerFactory.getLogger(NonceManager.class);
+
+    private final Map<String, SignerNonces> signers = new ConcurrentHashMap<>();
+    private final Counter resyncs;
+
+    public NonceManager(MeterRegistry meterRegistry) {
+        this.resyncs = Counter.builder("ethereum.nonce.resyncs")
+                .description("Nonce sequences reloaded from the node after a nonce error")
+                .register(meterRegistry);
+    }
+
+    public SignerNonces forSigner(Web3j web3j, long chainId, String address) {
+        String key = chainId + ":" + address.toLowerCase(Locale.ROOT);
+        return signers.computeIfAbsent(key, k -> new SignerNonces(web3j, chainId, address));
+    }
+
+    /**
+     * Whether a node error message means the nonce was wrong rather than the transaction.
+     */
+    public static boolean isNonceError(String message) {
+        if (message == null) {
+            return false;
+        }
+        String lower = message.toLowerCase(Locale.ROOT);
+        return lower.contains("nonce too low")
+                || lower.contains("nonce too high")
+                || lower.contains("invalid nonce")
+                || lower.contains("replacement transaction underpriced");
+    }
+
+    public final class SignerNonces {
+
+        private final Web3j web3j;
+        private final long chainId;
+        private final String address;
+        // Next nonce to hand out, -1 until loaded from the node
+        private long next = -1;
+
+        SignerNonces(Web3j web3j, long chainId, String address) {
+            this.web3j = web3j;
+            this.chainId = chainId;
+            this.address = address;
+        }
+
+        public BigInteger next() throws IOException {
+            return reserve(1);
+        }
+
+        /**
+         * Reserves {@code count} consecutive nonces.
+         *
+         * @return the first of them
+         */
+        public synchronized BigInteger reserve(int count) throws IOException {
+            if (next < 0) {
+                next = pendingCount();
+            }
+            long first = next;
+            next += count;
+            return BigInteger.valueOf(first);
+        }
+
+        /**
+         * Drops the local sequence; the next reservation loads it from the node again.
+         */
+        public synchronized void resync() {
+            if (next >= 0) {
+                LOG.warn("Resyncing nonce of {} on chain {}, local next was {}", address, chainId, next);
+                resyncs.increment();
+            }
+            next = -1;
+        }
+
+        private long pendingCount() throws IOException {
+            EthGetTransactionCount count = web3j.ethGetTransactionCount(address, DefaultBlockParameterName.PENDING).send();
+            if (count.hasError()) {
+                throw new IOException("Cannot load nonce of " + address + ": " + count.getError().getMessage());
+            }
+            return count.getTransactionCount().longValueExact();
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package ai.hhrdr.chainflow.engine.ethereum;
+
+import org.web3j.crypto.Credentials;
+import org.web3j.crypto.Hash;
+import org.web3j.protocol.Web3j;
+import org.web3j.protocol.core.BatchRequest;
+import org.web3j.protocol.core.Response;
+import org.web3j.protocol.core.methods.response.EthSendTransaction;
+import org.web3j.utils.Numeric;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Signs transactions of one signer locally and sends them in one JSON-RPC batch, with consecutive nonces
+ * reserved in one go.
+ *
+ * A transaction the node reports as already known, typically resent after a response got lost, counts as
+ * accepted. When the batch gets no answer at all, its transactions are reported unanswered under their
+ * locally computed hashes, so callers follow them by receipt instead of resending them blindly.
+ *
+ * The signer's nonce sequence is resynced whenever a batch leaves it unreliable: the node rejected one of its
+ * transactions, leaving a gap the later nonces would queue behind, or the batch went unanswered.
+ */
+final class RawTransactionSender {
+
+    private final Web3j web3j;
+    private final long chainId;
+    private final Credentials credentials;
+    private final NonceManager.SignerNonces nonces;
+
+    RawTransactionSender(Web3j web3j, long chainId, Credentials credentials, NonceManager.SignerNonces nonces) {
+        this.web3j = web3j;
+        this.chainId = chainId;
+        this.credentials = credentials;
+        this.nonces = nonces;
+    }
+
+    /**
+     * @return one result per transaction, in order
+     * @throws IOException if no nonces could be reserved, so nothing was sent
+     */
+    List<Sent> send(List<Unsigned> transactions, BigInteger gasPrice) throws IOException {
+        BigInteger nonce = nonces.reserve(transactions.size());
+        List<String> hashes = new ArrayList<>(transactions.size());
+        List<? extends Response<?>> responses;
+        try {
+            BatchRequest request = web3j.newBatch();
+            for (Unsigned transaction : transactions) {
+                byte[] signed = InscriptionEncoder.signTransaction(nonce, gasPrice, transaction.gasLimit, transaction.to,
+                        transaction.data, chainId, credentials.getEcKeyPair());
+                hashes.add(Numeric.toHexString(Hash.sha3(signed)));
+                request.add(web3j.ethSendRawTransaction(InscriptionEncoder.toHexString(signed)));
+                nonce = nonce.add(BigInteger.ONE);
+            }
+            responses = request.send().getResponses();
+        } catch (IOException e) {
+            nonces.resync();
+            List<Sent> unanswered = new ArrayList<>(hashes.size());
+            for (String hash : hashes) {
+                unanswered.add(new Sent(hash, "No answer from node: " + e.getMessage()));
+            }
+            return unanswered;
+        } catch (RuntimeException e) {
+            nonces.resync();
+            throw e;
+        }
+
+        List<Sent> results = new ArrayList<>(transactions.size());
+        boolean rejected = false;
+        for (int i = 0; i < transactions.size(); i++) {
+            EthSendTransaction response = (EthSendTransaction) responses.get(i);
+            if (!response.hasError()) {
+                results.add(new Sent(response.getTransactionHash(), null));
+            } else if (isAlreadyKnown(response.getError().getMessage())) {
+                // The node has this very transaction, so it counts as sent under the hash signed here
+                results.add(new Sent(hashes.get(i), null));
+            } else {
+                rejected = true;
+                results.add(new Sent(null, response.getError().getMessage()));
+            }
+        }
+        if (rejected) {
+            nonces.resync();
+        }
+        return results;
+    }
+
+    /**
+     * Whether a node error message means it already has the identical transaction in its pool.
+     */
+    static boolean isAlreadyKnown(String message) {
+        if (message == null) {
+            return false;
+        }
+        String lower = message.toLowerCase(Locale.ROOT);
+        return lower.contains("already known")
+                || lower.contains("known transaction")
+                || lower.contains("already imported");
+    }
+
+    static final class Unsigned {
+
+        final byte[] to;
+        final byte[] data;
+        final BigInteger gasLimit;
+
+        Unsigned(byte[] to, byte[] data, BigInteger gasLimit) {
+            this.to = to;
+            this.data = data;
+            this.gasLimit = gasLimit;
+        }
+    }
+
+    /**
+     * The hash of an accepted transaction, the node's reason for rejecting it, or both if the node's answer was
+     * lost and it is unknown whether the transaction reached the node.
+     */
+    static final class Sent {
+
+        // Null if rejected
+        final String hash;
+        // Null if accepted
+        final String error;
+
+        Sent(String hash, String error) {
+            this.hash = hash;
+            this.error = error;
+        }
+
+        boolean isAccepted() {
+            return error == null;
+        }
+
+        /**
+         * Whether only its receipt can tell if the transaction reached the node.
+         */
+        boolean isUnanswered() {
+            return hash != null && error != null;
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package ai.hhrdr.chainflow.engine.ethereum;
+
+import org.web3j.protocol.Web3j;
+import org.web3j.protocol.core.BatchRequest;
+import org.web3j.protocol.core.Response;
+import org.web3j.protocol.core.methods.response.EthGetTransactionReceipt;
+import org.web3j.protocol.core.methods.response.TransactionReceipt;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Fetches transaction receipts in JSON-RPC batches.
+ */
+final class ReceiptPoller {
+
+    private static final int RECEIPT_BATCH = 100;
+
+    private ReceiptPoller() {
+    }
+
+    /**
+     * @return the receipt per transaction hash, empty while not mined; hashes the node answered with an error
+     * for are left out, so they are simply asked for again next time
+     */
+    static Map<String, Optional<TransactionReceipt>> fetch(Web3j web3j, List<String> hashes) throws IOException {
+        Map<String, Optional<TransactionReceipt>> receipts = new HashMap<>();
+        for (int from = 0; from < hashes.size(); from += RECEIPT_BATCH) {
+            List<String> chunk = hashes.subList(from, Math.min(hashes.size(), from + RECEIPT_BATCH));
+            BatchRequest batch = web3j.newBatch();
+            for (String hash : chunk) {
+                batch.add(web3j.ethGetTransactionReceipt(hash));
+            }
+            List<? extends Response<?>> responses = batch.send().getResponses();
+            for (int i = 0; i < chunk.size(); i++) {
+                EthGetTransactionReceipt response = (EthGetTransactionReceipt) responses.get(i);
+                if (!response.hasError()) {
+                    receipts.put(chunk.get(i), response.getTransactionReceipt());
+                }
+            }
+        }
+        return receipts;
+    }
+}
@@ -0,0 +1,282 @@
+package ai.hhrdr.chainflow.engine.ethereum;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.web3j.crypto.Credentials;
+import org.web3j.protocol.Web3j;
+import org.web3j.protocol.core.methods.response.TransactionReceipt;
+import org.web3j.protocol.exceptions.TransactionException;
+import org.web3j.utils.Numeric;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Pipelined contract calls of one signer.
+ *
+ * Calls are queued and sent by whichever caller finds no send under way: it takes as many queued calls as
+ * the in-flight limit leaves room for and sends them as one {@link RawTransactionSender} batch. Calls queued
+ * meanwhile go out with the next batch. {@link #pollReceipts()} settles the transactions in flight by their
+ * receipts, which also frees their slots; once {@link #start started}, it runs on a thread of the pipeline's
+ * own, so slots are freed however long other scheduled work takes.
+ *
+ * Each call has two futures: the transaction hash, once the node accepted the transaction or the batch went
+ * unanswered, and the receipt, once it is mined. Both fail with a {@link TransactionException} if the node rejects the transaction; the
+ * receipt also fails if the transaction reverts or has no receipt within the receipt timeout. A call rejected
+ * for its nonce is sent once more with a nonce reloaded from the node.
+ */
+class TransactionPipeline {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TransactionPipeline.class);
+
+    private final Web3j web3j;
+    private final long chainId;
+    private final NonceManager.SignerNonces nonces;
+    private final RawTransactionSender sender;
+    private final GasPriceOracle gasPriceOracle;
+    private final BigInteger gasLimit;
+    private final int maxInFlight;
+    private final long receiptTimeout;
+
+    private final Queue<Call> queue = new ConcurrentLinkedQueue<>();
+    // Keyed by transaction hash while waiting for a receipt
+    private final Map<String, Call> inFlight = new ConcurrentHashMap<>();
+    private final ReentrantLock sending = new ReentrantLock();
+    private ScheduledExecutorService poller;
+
+    private final Counter confirmed;
+    private final Counter reverted;
+    private final Counter rejected;
+    private final Counter dropped;
+
+    TransactionPipeline(Web3j web3j, long chainId, Credentials credentials, NonceManager.SignerNonces nonces,
+                        GasPriceOracle gasPriceOracle, BigInteger gasLimit, int maxInFlight, long receiptTimeout,
+                        MeterRegistry meterRegistry) {
+        this.web3j = web3j;
+        this.chainId = chainId;
+        this.nonces = nonces;
+        this.sender = new RawTransactionSender(web3j, chainId, credentials, nonces);
+        this.gasPriceOracle = gasPriceOracle;
+        this.gasLimit = gasLimit;
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.receiptTimeout = receiptTimeout;
+
+        this.confirmed = outcomeCounter(meterRegistry, "confirmed");
+        this.reverted = outcomeCounter(meterRegistry, "reverted");
+        this.rejected = outcomeCounter(meterRegistry, "rejected");
+        this.dropped = outcomeCounter(meterRegistry, "dropped");
+        Gauge.builder("ethereum.transactions.in.flight", inFlight, Map::size)
+                .description("Transactions sent and waiting for a receipt")
+                .register(meterRegistry);
+        Gauge.builder("ethereum.transactions.queued", queue, Queue::size)
+                .description("Contract calls waiting for an in-flight slot")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Polls receipts every interval ms on a daemon thread of its own.
+     */
+    synchronized void start(long interval) {
+        if (poller != null || interval <= 0) {
+            return;
+        }
+        poller = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "ethereum-receipts-" + chainId);
+            thread.setDaemon(true);
+            return thread;
+        });
+        poller.scheduleWithFixedDelay(() -> {
+            try {
+                pollReceipts();
+            } catch (IOException | RuntimeException e) {
+                LOG.warn("Cannot poll transaction receipts, will retry: {}", e.getMessage());
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    synchronized void stop() {
+        if (poller != null) {
+            poller.shutdownNow();
+            poller = null;
+        }
+    }
+
+    /**
+     * Queues a call of the contract with the ABI encoded data and sends it unless another caller is sending.
+     */
+    Call submit(String to, String data) {
+        Call call = new Call(to, data);
+        queue.add(call);
+        drain();
+        return call;
+    }
+
+    /**
+     * Takes back a call that is still queued; its futures fail.
+     *
+     * @return false if the call was sent already
+     */
+    boolean withdraw(Call call) {
+        if (!queue.remove(call)) {
+            return false;
+        }
+        TransactionException exception = new TransactionException("Withdrawn before it was sent");
+        call.hash.completeExceptionally(exception);
+        call.receipt.completeExceptionally(exception);
+        return true;
+    }
+
+    /**
+     * Settles the transactions in flight by their receipts, then sends what waited for their slots.
+     */
+    void pollReceipts() throws IOException {
+        List<Call> waiting = new ArrayList<>(inFlight.values());
+        List<String> hashes = new ArrayList<>(waiting.size());
+        for (Call call : waiting) {
+            hashes.add(call.transactionHash);
+        }
+        Map<String, Optional<TransactionReceipt>> receipts = ReceiptPoller.fetch(web3j, hashes);
+        long now = System.currentTimeMillis();
+        boolean gap = false;
+        for (Call call : waiting) {
+            Optional<TransactionReceipt> receipt = receipts.get(call.transactionHash);
+            if (receipt == null) {
+                continue;
+            }
+            if (receipt.isPresent()) {
+                inFlight.remove(call.transactionHash);
+                if (receipt.get().isStatusOK()) {
+                    confirmed.increment();
+                    call.receipt.complete(receipt.get());
+                } else {
+                    reverted.increment();
+                    call.receipt.completeExceptionally(new TransactionException(
+                            "Transaction " + call.transactionHash + " reverted in block " + receipt.get().getBlockNumber(),
+                            receipt.get()));
+                }
+            } else if (now - call.sentAt > receiptTimeout) {
+                inFlight.remove(call.transactionHash);
+                dropped.increment();
+                gap = true;
+                call.receipt.completeExceptionally(new TransactionException(
+                        "No receipt for " + call.transactionHash + " after " + receiptTimeout + " ms"));
+            }
+        }
+        if (gap) {
+            // Nonces from the dropped transaction on were never used, the node's count tells where to go on
+            nonces.resync();
+        }
+        drain();
+    }
+
+    int inFlight() {
+        return inFlight.size();
+    }
+
+    private void drain() {
+        while (!queue.isEmpty() && inFlight.size() < maxInFlight) {
+            if (!sending.tryLock()) {
+                // The sender rechecks the queue after releasing the lock
+                return;
+            }
+            try {
+                List<Call> batch = new ArrayList<>();
+                while (inFlight.size() + batch.size() < maxInFlight) {
+                    Call call = queue.poll();
+                    if (call == null) {
+                        break;
+                    }
+                    batch.add(call);
+                }
+                if (!batch.isEmpty()) {
+                    send(batch);
+                }
+            } finally {
+                sending.unlock();
+            }
+        }
+    }
+
+    private void send(List<Call> batch) {
+        List<RawTransactionSender.Sent> results;
+        try {
+            BigInteger gasPrice = gasPriceOracle.gasPrice(web3j, chainId);
+            List<RawTransactionSender.Unsigned> transactions = new ArrayList<>(batch.size());
+            for (Call call : batch) {
+                transactions.add(new RawTransactionSender.Unsigned(Numeric.hexStringToByteArray(call.to),
+                        Numeric.hexStringToByteArray(call.data), gasLimit));
+            }
+            results = sender.send(transactions, gasPrice);
+        } catch (IOException | RuntimeException e) {
+            for (Call call : batch) {
+                fail(call, "Cannot send transaction: " + e.getMessage());
+            }
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < batch.size(); i++) {
+            Call call = batch.get(i);
+            RawTransactionSender.Sent sent = results.get(i);
+            if (sent.isAccepted() || sent.isUnanswered()) {
+                if (sent.isUnanswered()) {
+                    LOG.warn("Transaction {} to {} unanswered, following it by receipt: {}", sent.hash, call.to, sent.error);
+                }
+                call.transactionHash = sent.hash;
+                call.sentAt = now;
+                inFlight.put(call.transactionHash, call);
+                call.hash.complete(call.transactionHash);
+            } else if (NonceManager.isNonceError(sent.error) && !call.retried) {
+                call.retried = true;
+                queue.add(call);
+            } else {
+                fail(call, sent.error);
+            }
+        }
+    }
+
+    private void fail(Call call, String message) {
+        LOG.warn("Transaction to {} rejected: {}", call.to, message);
+        rejected.increment();
+        TransactionException exception = new TransactionException(message);
+        call.hash.completeExceptionally(exception);
+        call.receipt.completeExceptionally(exception);
+    }
+
+    private static Counter outcomeCounter(MeterRegistry meterRegistry, String outcome) {
+        return Counter.builder("ethereum.transactions")
+                .description("Contract call transactions by outcome")
+                .tag("outcome", outcome)
+                .register(meterRegistry);
+    }
+
+    static final class Call {
+
+        final String to;
+        final String data;
+        final CompletableFuture<String> hash = new CompletableFuture<>();
+        final CompletableFuture<TransactionReceipt> receipt = new CompletableFuture<>();
+        volatile String transactionHash;
+        volatile long sentAt;
+        volatile boolean retried;
+
+        Call(String to, String data) {
+            this.to = to;
+            this.data = data;
+        }
+    }
+}
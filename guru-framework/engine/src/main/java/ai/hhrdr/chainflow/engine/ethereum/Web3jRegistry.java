@@ -0,0 +1,164 @@
+package ai.hhrdr.chainflow.engine.ethereum;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.web3j.protocol.Web3j;
+import org.web3j.protocol.http.HttpService;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One Web3j client per chain, shared by every service and delegate talking to that chain.
+ *
+ * All clients use one OkHttp client, so connections to the RPC nodes are pooled and kept alive across
+ * callers. The RPC URLs of a chain come from ethereum.chains, given as chainId=url[,url...] entries separated
+ * by ';'; a chain missing there uses the URL its caller passes, with one client per chain and URL, so callers
+ * passing different URLs for one chain each talk to their own node. Requests fail over between a chain's URLs
+ * as {@link FailoverWeb3jService} describes.
+ */
+@Component
+public class Web3jRegistry implements DisposableBean {
+
+    private static final Logger LOG = LoggerFactory.getLogger(Web3jRegistry.class);
+
+    private final Map<Long, List<String>> configuredUrls;
+    private final OkHttpClient httpClient;
+    private final int failureThreshold;
+    private final long cooldown;
+    private final long hedgeDelay;
+    private final MeterRegistry meterRegistry;
+    // Keyed by chain id, followed by the caller's URL for chains missing in ethereum.chains
+    private final Map<String, Web3j> clients = new ConcurrentHashMap<>();
+    // First caller's URL of every chain missing in ethereum.chains
+    private final Map<Long, String> defaultUrls = new ConcurrentHashMap<>();
+    private final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "web3j-rpc");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public Web3jRegistry(@Value("${ethereum.chains:}") String chains,
+                         @Value("${ethereum.rpc.pool.max.idle:20}") int maxIdleConnections,
+                         @Value("${ethereum.rpc.pool.keep.alive:300000}") long keepAlive,
+                         @Value("${ethereum.rpc.connect.timeout:5000}") long connectTimeout,
+                         @Value("${ethereum.rpc.read.timeout:30000}") long readTimeout,
+                         @Value("${ethereum.rpc.failure.threshold:3}") int failureThreshold,
+                         @Value("${ethereum.rpc.cooldown:30000}") long cooldown,
+                         @Value("${ethereum.rpc.hedge.delay:0}") long hedgeDelay,
+                         MeterRegistry meterRegistry) {
+        this.configuredUrls = parseChains(chains);
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequestsPerHost(64);
+        this.httpClient = new OkHttpClient.Builder()
+                .connectionPool(new ConnectionPool(maxIdleConnections, keepAlive, TimeUnit.MILLISECONDS))
+                .dispatcher(dispatcher)
+                .connectTimeout(connectTimeout, TimeUnit.MILLISECONDS)
+                .readTimeout(readTimeout, TimeUnit.MILLISECONDS)
+                .writeTimeout(readTimeout, TimeUnit.MILLISECONDS)
+                .retryOnConnectionFailure(true)
+                .build();
+        this.failureThreshold = failureThreshold;
+        this.cooldown = cooldown;
+        this.hedgeDelay = hedgeDelay;
+        this.meterRegistry = meterRegistry;
+    }
+
+    /**
+     * @return the chain's client; fails if ethereum.chains has no URL for it
+     */
+    public Web3j client(long chainId) {
+        return client(chainId, null);
+    }
+
+    /**
+     * @param defaultRpcUrl used when ethereum.chains has no URL for the chain
+     */
+    public Web3j client(long chainId, String defaultRpcUrl) {
+        List<String> configured = configuredUrls.get(chainId);
+        if (configured != null) {
+            return clients.computeIfAbsent(String.valueOf(chainId), key -> build(chainId, configured));
+        }
+        if (defaultRpcUrl == null || defaultRpcUrl.isEmpty()) {
+            throw new IllegalArgumentException("No RPC URL configured for chain " + chainId);
+        }
+        return clients.computeIfAbsent(chainId + " " + defaultRpcUrl, key -> {
+            String first = defaultUrls.putIfAbsent(chainId, defaultRpcUrl);
+            if (first != null) {
+                LOG.warn("Chain {} is used with RPC URLs {} and {}; list them in ethereum.chains to share one client",
+                        chainId, endpointName(first), endpointName(defaultRpcUrl));
+            }
+            return build(chainId, Collections.singletonList(defaultRpcUrl));
+        });
+    }
+
+    private Web3j build(long chainId, List<String> urls) {
+        List<FailoverWeb3jService.Endpoint> endpoints = new ArrayList<>(urls.size());
+        List<String> names = new ArrayList<>(urls.size());
+        for (String url : urls) {
+            names.add(endpointName(url));
+            endpoints.add(new FailoverWeb3jService.Endpoint(endpointName(url), new HttpService(url, httpClient)));
+        }
+        LOG.info("RPC client for chain {} uses {}", chainId, names);
+        return Web3j.build(new FailoverWeb3jService(chainId, endpoints, failureThreshold, cooldown, hedgeDelay, executor,
+                meterRegistry));
+    }
+
+    @Override
+    public void destroy() {
+        for (Web3j client : clients.values()) {
+            client.shutdown();
+        }
+        executor.shutdownNow();
+        httpClient.dispatcher().executorService().shutdown();
+        httpClient.connectionPool().evictAll();
+    }
+
+    static Map<Long, List<String>> parseChains(String chains) {
+        Map<Long, List<String>> urls = new LinkedHashMap<>();
+        if (chains == null) {
+            return urls;
+        }
+        for (String entry : chains.split(";")) {
+            if (entry.isBlank()) {
+                continue;
+            }
+            int separator = entry.indexOf('=');
+            if (separator < 0) {
+                throw new IllegalArgumentException("Expected chainId=url[,url...] in ethereum.chains, got " + entry);
+            }
+            long chainId = Long.parseLong(entry.substring(0, separator).trim());
+            List<String> chainUrls = new ArrayList<>();
+            for (String url : entry.substring(separator + 1).split(",")) {
+                if (!url.isBlank()) {
+                    chainUrls.add(url.trim());
+                }
+            }
+            urls.put(chainId, chainUrls);
+        }
+        return urls;
+    }
+
+    /**
+     * Host and port of the URL, so API keys in paths or queries stay out of metric tags and logs.
+     */
+    static String endpointName(String url) {
+        HttpUrl parsed = HttpUrl.parse(url);
+        return parsed == null ? "invalid" : parsed.host() + ":" + parsed.port();
+    }
+}
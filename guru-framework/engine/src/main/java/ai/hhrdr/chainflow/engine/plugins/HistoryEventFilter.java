@@ -0,0 +1,105 @@
+package ai.hhrdr.chainflow.engine.plugins;
+
+import ai.hhrdr.chainflow.engine.plugins.HistoryEventRules.Action;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.camunda.bpm.engine.impl.history.event.HistoryEventTypes;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Filter stage shared by the history event handlers: every sink gets its {@link HistoryEventRules}, compiled
+ * once at startup from engine.history.filter.&lt;sink&gt;.rules and .default, and checks events against them
+ * before doing any enrichment or serialization.
+ *
+ * Without explicit inscription rules, inscription.event.types is turned into accept rules with a drop default,
+ * which is what the inscription handler used to do with its own event type set.
+ */
+@Component
+public class HistoryEventFilter {
+
+    public static final String RABBITMQ = "rabbitmq";
+    public static final String INSCRIPTION = "inscription";
+    public static final String WEB3 = "web3";
+
+    private static final Logger LOG = LoggerFactory.getLogger(HistoryEventFilter.class);
+
+    private static final List<HistoryEventTypes> DEFAULT_INSCRIPTION_EVENT_TYPES = List.of(
+            HistoryEventTypes.PROCESS_INSTANCE_START,
+            HistoryEventTypes.PROCESS_INSTANCE_UPDATE,
+            HistoryEventTypes.PROCESS_INSTANCE_MIGRATE,
+            HistoryEventTypes.PROCESS_INSTANCE_END,
+            HistoryEventTypes.ACTIVITY_INSTANCE_START,
+            HistoryEventTypes.ACTIVITY_INSTANCE_UPDATE,
+            HistoryEventTypes.ACTIVITY_INSTANCE_MIGRATE,
+            HistoryEventTypes.ACTIVITY_INSTANCE_END,
+            HistoryEventTypes.TASK_INSTANCE_CREATE,
+            HistoryEventTypes.TASK_INSTANCE_UPDATE,
+            HistoryEventTypes.TASK_INSTANCE_MIGRATE,
+            HistoryEventTypes.TASK_INSTANCE_COMPLETE,
+            HistoryEventTypes.TASK_INSTANCE_DELETE,
+            HistoryEventTypes.VARIABLE_INSTANCE_CREATE,
+            HistoryEventTypes.VARIABLE_INSTANCE_UPDATE,
+            HistoryEventTypes.VARIABLE_INSTANCE_MIGRATE,
+            HistoryEventTypes.VARIABLE_INSTANCE_UPDATE_DETAIL,
+            HistoryEventTypes.VARIABLE_INSTANCE_DELETE,
+            HistoryEventTypes.INCIDENT_CREATE,
+            HistoryEventTypes.INCIDENT_MIGRATE,
+            HistoryEventTypes.INCIDENT_DELETE,
+            HistoryEventTypes.INCIDENT_RESOLVE,
+            HistoryEventTypes.INCIDENT_UPDATE,
+            HistoryEventTypes.EXTERNAL_TASK_CREATE,
+            HistoryEventTypes.EXTERNAL_TASK_FAIL,
+            HistoryEventTypes.EXTERNAL_TASK_SUCCESS,
+            HistoryEventTypes.EXTERNAL_TASK_DELETE);
+
+    private final HistoryEventRules rabbitMQRules;
+    private final HistoryEventRules inscriptionRules;
+    private final HistoryEventRules web3Rules;
+
+    public HistoryEventFilter(MeterRegistry meterRegistry,
+                              @Value("${engine.history.filter.rabbitmq.rules:}") String rabbitMQSpec,
+                              @Value("${engine.history.filter.rabbitmq.default:ACCEPT}") Action rabbitMQDefault,
+                              @Value("${engine.history.filter.inscription.rules:}") String inscriptionSpec,
+                              @Value("${engine.history.filter.inscription.default:DROP}") Action inscriptionDefault,
+                              @Value("${inscription.event.types:ALL}") String inscriptionEventTypes,
+                              @Value("${engine.history.filter.web3.rules:}") String web3Spec,
+                              @Value("${engine.history.filter.web3.default:ACCEPT}") Action web3Default) {
+        if (inscriptionSpec.isBlank()) {
+            inscriptionSpec = inscriptionEventTypeRules(inscriptionEventTypes);
+        }
+        this.rabbitMQRules = HistoryEventRules.compile(RABBITMQ, rabbitMQSpec, rabbitMQDefault, meterRegistry);
+        this.inscriptionRules = HistoryEventRules.compile(INSCRIPTION, inscriptionSpec, inscriptionDefault, meterRegistry);
+        this.web3Rules = HistoryEventRules.compile(WEB3, web3Spec, web3Default, meterRegistry);
+        LOG.info("History event filter rules: rabbitmq [{}] default {}, inscription [{}] default {}, web3 [{}] default {}",
+                rabbitMQSpec, rabbitMQDefault, inscriptionSpec, inscriptionDefault, web3Spec, web3Default);
+    }
+
+    public HistoryEventRules rabbitMQ() {
+        return rabbitMQRules;
+    }
+
+    public HistoryEventRules inscription() {
+        return inscriptionRules;
+    }
+
+    public HistoryEventRules web3() {
+        return web3Rules;
+    }
+
+    static String inscriptionEventTypeRules(String eventTypesConfig) {
+        List<String> eventTypes = "ALL".equalsIgnoreCase(eventTypesConfig)
+                ? DEFAULT_INSCRIPTION_EVENT_TYPES.stream().map(HistoryEventTypes::getEventName).collect(Collectors.toList())
+                : List.of(eventTypesConfig.split(","));
+        return eventTypes.stream()
+                .map(String::trim)
+                .filter(eventType -> !eventType.isEmpty())
+                .distinct()
+                .map(eventType -> "accept:" + eventType)
+                .collect(Collectors.joining(","));
+    }
+}
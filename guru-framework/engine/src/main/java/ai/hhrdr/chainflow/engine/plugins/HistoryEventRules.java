@@ -0,0 +1,154 @@
+package ai.hhrdr.chainflow.engine.plugins;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.camunda.bpm.engine.impl.history.event.HistoricActivityInstanceEventEntity;
+import org.camunda.bpm.engine.impl.history.event.HistoricVariableUpdateEventEntity;
+import org.camunda.bpm.engine.impl.history.event.HistoryEvent;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Compiled accept/drop rules of one history event sink.
+ *
+ * A rule is written {@code action:eventType/processDefinitionKey/activityType/variableName}, for example
+ * {@code drop:update} or {@code accept:end/invoice/serviceTask}. Trailing segments may be left out, and an
+ * empty segment or {@code *} matches anything, including events without that attribute. Rules are compiled into a
+ * four level lookup tree; an exact segment is tried before the wildcard at every level, so the most specific
+ * rule decides. Events no rule matches get the default action.
+ *
+ * Matching does a bounded number of map lookups and allocates nothing.
+ */
+public class HistoryEventRules {
+
+    public static final String WILDCARD = "*";
+
+    public enum Action {
+        ACCEPT, DROP
+    }
+
+    private static final int LEVELS = 4;
+
+    private final Node root = new Node();
+    private final Rule defaultRule;
+
+    private HistoryEventRules(String sink, Action defaultAction, MeterRegistry meterRegistry) {
+        this.defaultRule = new Rule("default", defaultAction, counter(meterRegistry, sink, "default", defaultAction));
+    }
+
+    /**
+     * @param spec comma separated rules, may be blank
+     */
+    public static HistoryEventRules compile(String sink, String spec, Action defaultAction, MeterRegistry meterRegistry) {
+        HistoryEventRules rules = new HistoryEventRules(sink, defaultAction, meterRegistry);
+        if (spec == null || spec.isBlank()) {
+            return rules;
+        }
+        for (String ruleText : spec.split(",")) {
+            if (!ruleText.isBlank()) {
+                rules.add(sink, ruleText.trim(), meterRegistry);
+            }
+        }
+        return rules;
+    }
+
+    private void add(String sink, String ruleText, MeterRegistry meterRegistry) {
+        int colon = ruleText.indexOf(':');
+        if (colon < 0) {
+            throw new IllegalArgumentException("History event rule '" + ruleText + "' of " + sink + " has no action");
+        }
+        Action action = Action.valueOf(ruleText.substring(0, colon).trim().toUpperCase(Locale.ROOT));
+        String[] segments = ruleText.substring(colon + 1).split("/", -1);
+        if (segments.length > LEVELS) {
+            throw new IllegalArgumentException("History event rule '" + ruleText + "' of " + sink + " has more than " + LEVELS + " segments");
+        }
+
+        Node node = root;
+        StringBuilder name = new StringBuilder(action.name().toLowerCase(Locale.ROOT)).append(':');
+        for (int level = 0; level < LEVELS; level++) {
+            String segment = level < segments.length && !segments[level].isBlank() ? segments[level].trim() : WILDCARD;
+            node = node.child(segment);
+            name.append(level == 0 ? "" : "/").append(segment);
+        }
+        if (node.rule != null) {
+            throw new IllegalArgumentException("History event rule '" + ruleText + "' of " + sink + " duplicates " + node.rule.name);
+        }
+        node.rule = new Rule(name.toString(), action, counter(meterRegistry, sink, name.toString(), action));
+    }
+
+    public boolean accepts(HistoryEvent event) {
+        String activityType = event instanceof HistoricActivityInstanceEventEntity
+                ? ((HistoricActivityInstanceEventEntity) event).getActivityType()
+                : null;
+        String variableName = event instanceof HistoricVariableUpdateEventEntity
+                ? ((HistoricVariableUpdateEventEntity) event).getVariableName()
+                : null;
+        Rule rule = match(root, 0, event.getEventType(), event.getProcessDefinitionKey(), activityType, variableName);
+        if (rule == null) {
+            rule = defaultRule;
+        }
+        rule.matches.increment();
+        return rule.action == Action.ACCEPT;
+    }
+
+    private static Rule match(Node node, int level, String eventType, String definitionKey, String activityType,
+                              String variableName) {
+        if (level == LEVELS) {
+            return node.rule;
+        }
+        String value = level == 0 ? eventType : level == 1 ? definitionKey : level == 2 ? activityType : variableName;
+        if (value != null) {
+            Node exact = node.exact.get(value);
+            if (exact != null) {
+                Rule rule = match(exact, level + 1, eventType, definitionKey, activityType, variableName);
+                if (rule != null) {
+                    return rule;
+                }
+            }
+        }
+        return node.wildcard == null
+                ? null
+                : match(node.wildcard, level + 1, eventType, definitionKey, activityType, variableName);
+    }
+
+    private static Counter counter(MeterRegistry meterRegistry, String sink, String rule, Action action) {
+        return Counter.builder("history.filter.matches")
+                .description("History events decided by a filter rule")
+                .tag("sink", sink)
+                .tag("rule", rule)
+                .tag("action", action.name().toLowerCase(Locale.ROOT))
+                .register(meterRegistry);
+    }
+
+    private static final class Node {
+
+        private final Map<String, Node> exact = new HashMap<>();
+        private Node wildcard;
+        private Rule rule;
+
+        Node child(String segment) {
+            if (WILDCARD.equals(segment)) {
+                if (wildcard == null) {
+                    wildcard = new Node();
+                }
+                return wildcard;
+            }
+            return exact.computeIfAbsent(segment, key -> new Node());
+        }
+    }
+
+    private static final class Rule {
+
+        private final String name;
+        private final Action action;
+        private final Counter matches;
+
+        Rule(String name, Action action, Counter matches) {
+            this.name = name;
+            this.action = action;
+            this.matches = matches;
+        }
+    }
+}
@@ -2,7 +2,6 @@ package ai.hhrdr.chainflow.engine.plugins;
 
 import ai.hhrdr.chainflow.engine.service.InscriptionSender;
 import org.camunda.bpm.engine.impl.history.event.HistoryEvent;
-import org.camunda.bpm.engine.impl.history.event.HistoryEventTypes;
 import org.camunda.bpm.engine.impl.history.handler.HistoryEventHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -11,11 +10,7 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.event.EventListener;
 import org.springframework.stereotype.Component;
 
-import javax.annotation.PostConstruct;
-import java.util.Arrays;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Set;
 
 //@Component
 public class InscriptionHistoricalEventsHandler implements HistoryEventHandler {
@@ -28,19 +23,8 @@ public class InscriptionHistoricalEventsHandler implements HistoryEventHandler {
     @Value("${inscription.enabled:false}")
     private boolean inscriptionsHistoryEnabled;
 
-    @Value("${inscription.event.types:ALL}")
-    private String eventTypesConfig;
-
-    private Set<String> eventTypeSet;
-
-    @PostConstruct
-    public void init() {
-        if ("ALL".equalsIgnoreCase(eventTypesConfig)) {
-            eventTypeSet = getDefaultEventTypes();
-        } else {
-            eventTypeSet = new HashSet<>(Arrays.asList(eventTypesConfig.split(",")));
-        }
-    }
+    @Autowired
+    private HistoryEventFilter historyEventFilter;
 
     @Override
     @EventListener
@@ -57,7 +41,7 @@ public class InscriptionHistoricalEventsHandler implements HistoryEventHandler {
         if (inscriptionsHistoryEnabled) {
             for (HistoryEvent historyEvent : historyEvents) {
                 if (shouldHandleEvent(historyEvent)) {
-                    handleEvent(historyEvent);
+                    inscriptionSender.send(historyEvent, historyEvent.getEventType());
                 }
             }
         } else {
@@ -66,38 +50,6 @@ public class InscriptionHistoricalEventsHandler implements HistoryEventHandler {
     }
 
     private boolean shouldHandleEvent(HistoryEvent historyEvent) {
-        return eventTypeSet.contains(historyEvent.getEventType());
-    }
-
-    private Set<String> getDefaultEventTypes() {
-        return new HashSet<>(Arrays.asList(
-                HistoryEventTypes.PROCESS_INSTANCE_START.getEventName(),
-                HistoryEventTypes.PROCESS_INSTANCE_UPDATE.getEventName(),
-                HistoryEventTypes.PROCESS_INSTANCE_MIGRATE.getEventName(),
-                HistoryEventTypes.PROCESS_INSTANCE_END.getEventName(),
-                HistoryEventTypes.ACTIVITY_INSTANCE_START.getEventName(),
-                HistoryEventTypes.ACTIVITY_INSTANCE_UPDATE.getEventName(),
-                HistoryEventTypes.ACTIVITY_INSTANCE_MIGRATE.getEventName(),
-                HistoryEventTypes.ACTIVITY_INSTANCE_END.getEventName(),
-                HistoryEventTypes.TASK_INSTANCE_CREATE.getEventName(),
-                HistoryEventTypes.TASK_INSTANCE_UPDATE.getEventName(),
-                HistoryEventTypes.TASK_INSTANCE_MIGRATE.getEventName(),
-                HistoryEventTypes.TASK_INSTANCE_COMPLETE.getEventName(),
-                HistoryEventTypes.TASK_INSTANCE_DELETE.getEventName(),
-                HistoryEventTypes.VARIABLE_INSTANCE_CREATE.getEventName(),
-                HistoryEventTypes.VARIABLE_INSTANCE_UPDATE.getEventName(),
-                HistoryEventTypes.VARIABLE_INSTANCE_MIGRATE.getEventName(),
-                HistoryEventTypes.VARIABLE_INSTANCE_UPDATE_DETAIL.getEventName(),
-                HistoryEventTypes.VARIABLE_INSTANCE_DELETE.getEventName(),
-                HistoryEventTypes.INCIDENT_CREATE.getEventName(),
-                HistoryEventTypes.INCIDENT_MIGRATE.getEventName(),
-                HistoryEventTypes.INCIDENT_DELETE.getEventName(),
-                HistoryEventTypes.INCIDENT_RESOLVE.getEventName(),
-                HistoryEventTypes.INCIDENT_UPDATE.getEventName(),
-                HistoryEventTypes.EXTERNAL_TASK_CREATE.getEventName(),
-                HistoryEventTypes.EXTERNAL_TASK_FAIL.getEventName(),
-                HistoryEventTypes.EXTERNAL_TASK_SUCCESS.getEventName(),
-                HistoryEventTypes.EXTERNAL_TASK_DELETE.getEventName()
-        ));
+        return historyEventFilter.inscription().accepts(historyEvent);
     }
-}
\ No newline at end of file
+}
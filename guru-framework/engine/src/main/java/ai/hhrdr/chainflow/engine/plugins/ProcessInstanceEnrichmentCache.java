@@ -0,0 +1,165 @@
+package ai.hhrdr.chainflow.engine.plugins;
+
+import ai.hhrdr.chainflow.engine.service.CommandScopedBuffer;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.camunda.bpm.engine.impl.cfg.TransactionState;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded LRU cache of the per process instance data {@link RabbitMQHistoricalEventsHandler} attaches to
+ * every outgoing history event (startUserId and callingProcessInstanceId).
+ *
+ * Entries are filled from the PROCESS_INSTANCE_START event and from variable create/update events, and
+ * evicted once the command that produced PROCESS_INSTANCE_END is done, so the handler only has to query
+ * history tables for instances it has not seen start (e.g. started before a restart). Evicting at the end
+ * event itself would let later events of the same command load the instance again, leaving an entry only the
+ * LRU order ever removes.
+ */
+@Component
+public class ProcessInstanceEnrichmentCache {
+
+    private final int maxSize;
+    private final Map<String, Enrichment> entries;
+
+    private final Counter hits;
+    private final Counter misses;
+    private final Counter endEvictions;
+    private final Counter sizeEvictions;
+    private final CommandScopedBuffer<String> endedBuffer =
+            new CommandScopedBuffer<>(TransactionState.COMMITTED, ended -> ended.forEach(this::evict), discarded -> {
+            });
+
+    public ProcessInstanceEnrichmentCache(@Value("${engine.rabbitmq.enrichment.cache.size:10000}") int maxSize,
+                                          MeterRegistry meterRegistry) {
+        this.maxSize = maxSize;
+        this.hits = Counter.builder("rabbitmq.enrichment.cache.requests")
+                .description("Enrichment lookups answered from the cache")
+                .tag("result", "hit")
+                .register(meterRegistry);
+        this.misses = Counter.builder("rabbitmq.enrichment.cache.requests")
+                .description("Enrichment lookups that had to query history tables")
+                .tag("result", "miss")
+                .register(meterRegistry);
+        this.endEvictions = Counter.builder("rabbitmq.enrichment.cache.evictions")
+                .description("Entries removed because the process instance ended")
+                .tag("cause", "end")
+                .register(meterRegistry);
+        this.sizeEvictions = Counter.builder("rabbitmq.enrichment.cache.evictions")
+                .description("Entries removed because the cache was full")
+                .tag("cause", "size")
+                .register(meterRegistry);
+        this.entries = new LinkedHashMap<>(256, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Enrichment> eldest) {
+                if (size() > ProcessInstanceEnrichmentCache.this.maxSize) {
+                    sizeEvictions.increment();
+                    return true;
+                }
+                return false;
+            }
+        };
+        Gauge.builder("rabbitmq.enrichment.cache.size", this, ProcessInstanceEnrichmentCache::size)
+                .description("Process instances currently held in the enrichment cache")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Returns the cached enrichment if the startUserId of the instance is known, counting a hit or a miss.
+     */
+    public synchronized Enrichment lookup(String processInstanceId) {
+        Enrichment enrichment = entries.get(processInstanceId);
+        if (enrichment != null && enrichment.isStartUserResolved()) {
+            hits.increment();
+            return enrichment;
+        }
+        misses.increment();
+        return null;
+    }
+
+    /**
+     * Records the start of a process instance. The start event is authoritative for startUserId.
+     */
+    public synchronized Enrichment recordStart(String processInstanceId, String startUserId) {
+        Enrichment current = entries.get(processInstanceId);
+        String callingProcessInstanceId = current != null ? current.getCallingProcessInstanceId() : null;
+        Enrichment enrichment = new Enrichment(startUserId, callingProcessInstanceId, true);
+        entries.put(processInstanceId, enrichment);
+        return enrichment;
+    }
+
+    /**
+     * Records the value of the callingProcessInstanceId variable as seen in a variable create/update event.
+     */
+    public synchronized void recordCallingProcessInstanceId(String processInstanceId, String callingProcessInstanceId) {
+        Enrichment current = entries.get(processInstanceId);
+        Enrichment enrichment = current != null
+                ? new Enrichment(current.getStartUserId(), callingProcessInstanceId, current.isStartUserResolved())
+                : new Enrichment(null, callingProcessInstanceId, false);
+        entries.put(processInstanceId, enrichment);
+    }
+
+    /**
+     * Stores values loaded from history tables after a miss. A callingProcessInstanceId already captured
+     * from a variable event wins over the loaded one, since the variable may not be flushed yet.
+     */
+    public synchronized Enrichment recordLoaded(String processInstanceId, String startUserId, String callingProcessInstanceId) {
+        Enrichment current = entries.get(processInstanceId);
+        if (current != null && current.getCallingProcessInstanceId() != null) {
+            callingProcessInstanceId = current.getCallingProcessInstanceId();
+        }
+        Enrichment enrichment = new Enrichment(startUserId, callingProcessInstanceId, true);
+        entries.put(processInstanceId, enrichment);
+        return enrichment;
+    }
+
+    /**
+     * Evicts the instance once the current command committed, or right away outside of a command. A rolled
+     * back end keeps the entry, since the instance is still running.
+     */
+    public void evictAfterCommand(String processInstanceId) {
+        if (!endedBuffer.add(processInstanceId)) {
+            evict(processInstanceId);
+        }
+    }
+
+    public synchronized void evict(String processInstanceId) {
+        if (entries.remove(processInstanceId) != null) {
+            endEvictions.increment();
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public static final class Enrichment {
+
+        private final String startUserId;
+        private final String callingProcessInstanceId;
+        private final boolean startUserResolved;
+
+        Enrichment(String startUserId, String callingProcessInstanceId, boolean startUserResolved) {
+            this.startUserId = startUserId;
+            this.callingProcessInstanceId = callingProcessInstanceId;
+            this.startUserResolved = startUserResolved;
+        }
+
+        public String getStartUserId() {
+            return startUserId;
+        }
+
+        public String getCallingProcessInstanceId() {
+            return callingProcessInstanceId;
+        }
+
+        public boolean isStartUserResolved() {
+            return startUserResolved;
+        }
+    }
+}
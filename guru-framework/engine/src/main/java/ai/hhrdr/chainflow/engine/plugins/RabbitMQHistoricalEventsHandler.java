@@ -1,10 +1,15 @@
 package ai.hhrdr.chainflow.engine.plugins;
 
-import ai.hhrdr.chainflow.engine.service.RabbitMQSender;
+import ai.hhrdr.chainflow.engine.plugins.ProcessInstanceEnrichmentCache.Enrichment;
+import ai.hhrdr.chainflow.engine.service.HistoryEventDispatcher;
+import ai.hhrdr.chainflow.engine.service.HistoryEventMessage;
 import org.camunda.bpm.engine.HistoryService;
 import org.camunda.bpm.engine.history.HistoricProcessInstance;
 import org.camunda.bpm.engine.history.HistoricVariableInstance;
+import org.camunda.bpm.engine.impl.history.event.HistoricProcessInstanceEventEntity;
+import org.camunda.bpm.engine.impl.history.event.HistoricVariableUpdateEventEntity;
 import org.camunda.bpm.engine.impl.history.event.HistoryEvent;
+import org.camunda.bpm.engine.impl.history.event.HistoryEventTypes;
 import org.camunda.bpm.engine.impl.history.handler.HistoryEventHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -19,8 +24,16 @@ public class RabbitMQHistoricalEventsHandler implements HistoryEventHandler {
 
     private static final Logger LOG = LoggerFactory.getLogger(RabbitMQHistoricalEventsHandler.class);
 
+    private static final String CALLING_PROCESS_INSTANCE_ID = "callingProcessInstanceId";
+
+    @Autowired
+    private HistoryEventDispatcher historyEventDispatcher;
+
+    @Autowired
+    private ProcessInstanceEnrichmentCache enrichmentCache;
+
     @Autowired
-    private RabbitMQSender rabbitMQSender;
+    private HistoryEventFilter historyEventFilter;
 
     @Autowired
     @Lazy
@@ -35,30 +48,23 @@ public class RabbitMQHistoricalEventsHandler implements HistoryEventHandler {
         }
 
         String processInstanceId = historyEvent.getProcessInstanceId();
-        String startUserId = null;
-        if (processInstanceId != null) {
-            HistoricProcessInstance processInstance = historyService.createHistoricProcessInstanceQuery()
-                    .processInstanceId(processInstanceId)
-                    .singleResult();
-            if (processInstance != null) {
-                startUserId = processInstance.getStartUserId();
-            } else {
-                LOG.warn("No historic process instance found for id: {}", processInstanceId);
+        // Recorded before filtering, later events of the instance still need what dropped ones carry
+        Enrichment recorded = processInstanceId != null ? recordEnrichment(historyEvent, processInstanceId) : null;
+        if (!historyEventFilter.rabbitMQ().accepts(historyEvent)) {
+            if (isProcessInstanceEvent(historyEvent, HistoryEventTypes.PROCESS_INSTANCE_END)) {
+                enrichmentCache.evictAfterCommand(processInstanceId);
             }
-        } else {
-            LOG.warn("History event has a null processInstanceId.");
+            return;
         }
 
-        // Attempt to retrieve the 'callingProcessInstanceId' if processInstanceId is available
+        String startUserId = null;
         String callingProcessInstanceId = null;
         if (processInstanceId != null) {
-            HistoricVariableInstance callingVar = historyService.createHistoricVariableInstanceQuery()
-                    .processInstanceId(processInstanceId)
-                    .variableName("callingProcessInstanceId")
-                    .singleResult();
-            if (callingVar != null && callingVar.getValue() != null) {
-                callingProcessInstanceId = callingVar.getValue().toString();
-            }
+            Enrichment enrichment = recorded != null ? recorded : resolveEnrichment(processInstanceId);
+            startUserId = enrichment.getStartUserId();
+            callingProcessInstanceId = enrichment.getCallingProcessInstanceId();
+        } else {
+            LOG.warn("History event has a null processInstanceId.");
         }
 
         // If we still haven't resolved it, fall back to using the event's rootProcessInstanceId
@@ -69,8 +75,14 @@ public class RabbitMQHistoricalEventsHandler implements HistoryEventHandler {
         // Log what we were able to resolve
         LOG.debug("Resolved startUserId: {} and callingProcessInstanceId: {}", startUserId, callingProcessInstanceId);
 
-        // Send the history event along with the user id and the resolved calling process instance id (which may be null)
-        rabbitMQSender.send(historyEvent, historyEvent.getClass().getSimpleName(), startUserId, callingProcessInstanceId);
+        // Send the history event along with the user id and the resolved calling process instance id (which may be null).
+        // The dispatcher publishes it after the engine transaction commits.
+        historyEventDispatcher.dispatch(new HistoryEventMessage(
+                historyEvent, historyEvent.getClass().getSimpleName(), startUserId, callingProcessInstanceId));
+
+        if (isProcessInstanceEvent(historyEvent, HistoryEventTypes.PROCESS_INSTANCE_END)) {
+            enrichmentCache.evictAfterCommand(processInstanceId);
+        }
     }
 
     @Override
@@ -79,4 +91,74 @@ public class RabbitMQHistoricalEventsHandler implements HistoryEventHandler {
             handleEvent(historyEvent);
         }
     }
+
+    /**
+     * Updates the cache from events that carry enrichment themselves.
+     *
+     * @return the enrichment for a start event, which needs no lookup, otherwise null
+     */
+    private Enrichment recordEnrichment(HistoryEvent historyEvent, String processInstanceId) {
+        // The start event carries the start user itself, no need to look it up
+        if (isProcessInstanceEvent(historyEvent, HistoryEventTypes.PROCESS_INSTANCE_START)) {
+            String startUserId = ((HistoricProcessInstanceEventEntity) historyEvent).getStartUserId();
+            return enrichmentCache.recordStart(processInstanceId, startUserId);
+        }
+
+        if (historyEvent instanceof HistoricVariableUpdateEventEntity) {
+            HistoricVariableUpdateEventEntity variableEvent = (HistoricVariableUpdateEventEntity) historyEvent;
+            if (CALLING_PROCESS_INSTANCE_ID.equals(variableEvent.getVariableName())
+                    && (HistoryEventTypes.VARIABLE_INSTANCE_CREATE.getEventName().equals(variableEvent.getEventType())
+                    || HistoryEventTypes.VARIABLE_INSTANCE_UPDATE.getEventName().equals(variableEvent.getEventType()))) {
+                enrichmentCache.recordCallingProcessInstanceId(processInstanceId, variableValueAsString(variableEvent));
+            }
+        }
+        return null;
+    }
+
+    private Enrichment resolveEnrichment(String processInstanceId) {
+        Enrichment cached = enrichmentCache.lookup(processInstanceId);
+        if (cached != null) {
+            return cached;
+        }
+        return loadEnrichment(processInstanceId);
+    }
+
+    private Enrichment loadEnrichment(String processInstanceId) {
+        String startUserId = null;
+        HistoricProcessInstance processInstance = historyService.createHistoricProcessInstanceQuery()
+                .processInstanceId(processInstanceId)
+                .singleResult();
+        if (processInstance != null) {
+            startUserId = processInstance.getStartUserId();
+        } else {
+            LOG.warn("No historic process instance found for id: {}", processInstanceId);
+        }
+
+        // Attempt to retrieve the 'callingProcessInstanceId' variable of the instance
+        String callingProcessInstanceId = null;
+        HistoricVariableInstance callingVar = historyService.createHistoricVariableInstanceQuery()
+                .processInstanceId(processInstanceId)
+                .variableName(CALLING_PROCESS_INSTANCE_ID)
+                .singleResult();
+        if (callingVar != null && callingVar.getValue() != null) {
+            callingProcessInstanceId = callingVar.getValue().toString();
+        }
+
+        return enrichmentCache.recordLoaded(processInstanceId, startUserId, callingProcessInstanceId);
+    }
+
+    private static boolean isProcessInstanceEvent(HistoryEvent historyEvent, HistoryEventTypes type) {
+        return historyEvent instanceof HistoricProcessInstanceEventEntity
+                && type.getEventName().equals(historyEvent.getEventType());
+    }
+
+    private static String variableValueAsString(HistoricVariableUpdateEventEntity variableEvent) {
+        if (variableEvent.getTextValue() != null) {
+            return variableEvent.getTextValue();
+        }
+        if (variableEvent.getLongValue() != null) {
+            return variableEvent.getLongValue().toString();
+        }
+        return null;
+    }
 }
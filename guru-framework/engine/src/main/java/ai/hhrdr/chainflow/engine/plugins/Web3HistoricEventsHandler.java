@@ -1,6 +1,6 @@
 package ai.hhrdr.chainflow.engine.plugins;
 
-import ai.hhrdr.chainflow.engine.ethereum.EthereumService;
+import ai.hhrdr.chainflow.engine.service.ChainJobOutbox;
 import org.camunda.bpm.engine.impl.history.event.HistoricProcessInstanceEventEntity;
 import org.camunda.bpm.engine.impl.history.event.HistoryEvent;
 import org.camunda.bpm.engine.impl.history.event.HistoryEventTypes;
@@ -8,52 +8,50 @@ import org.camunda.bpm.engine.impl.history.handler.HistoryEventHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.stereotype.Component;
 
 import java.util.List;
 import java.util.Objects;
 
-//@Component
+/**
+ * Schedules the on-chain start and completion of process instances as {@link ChainJobOutbox} jobs, so the
+ * engine transaction neither waits for the chain nor fails with it. Registered with ethereum.jobs.enabled, as
+ * a handler the history fan-out runs inline, so jobs are stored with the command's transaction.
+ */
+@Component
+@ConditionalOnProperty(name = "ethereum.jobs.enabled", havingValue = "true")
 public class Web3HistoricEventsHandler implements HistoryEventHandler {
 
     @Autowired
-    private EthereumService ethereumService;
+    private ChainJobOutbox chainJobOutbox;
+
+    @Autowired
+    private HistoryEventFilter historyEventFilter;
 
     private static final Logger LOG = LoggerFactory.getLogger(Web3HistoricEventsHandler.class);
 
     @Override
     public void handleEvent(HistoryEvent historyEvent) {
 
+        if (!historyEventFilter.web3().accepts(historyEvent)) {
+            return;
+        }
+
         if (historyEvent instanceof HistoricProcessInstanceEventEntity) {
             HistoricProcessInstanceEventEntity eventEntity = (HistoricProcessInstanceEventEntity) historyEvent;
 
-            // On instance activated, try to start in blockchain
+            // On instance activated, start in blockchain once funding is verified
             if (HistoryEventTypes.PROCESS_INSTANCE_UPDATE.getEventName().equals(eventEntity.getEventType())
                     && Objects.equals(eventEntity.getState(), "ACTIVE")) {
-
-
-                String definitionKey = historyEvent.getProcessDefinitionKey();
-                String processInstanceId = historyEvent.getProcessInstanceId();
-
-                String contractAddress = ethereumService.getContractAddressOfDefinition(definitionKey);
-
-                boolean isFinanced = ethereumService.isFinanced(contractAddress, processInstanceId);
-                if (!isFinanced){
-                    throw new RuntimeException("Not enough funds.");
-                }
-                ethereumService.startProcessInstance(contractAddress, processInstanceId);
-
+                chainJobOutbox.schedule(historyEvent.getProcessInstanceId(), historyEvent.getProcessDefinitionKey(),
+                        ChainJobOutbox.Phase.START);
             }
             // In instance end, complete in blockchain
             if (HistoryEventTypes.PROCESS_INSTANCE_END.getEventName().equals(eventEntity.getEventType())
                     && historyEvent.getExecutionId().equals(historyEvent.getProcessInstanceId())) {
-
-                String definitionKey = historyEvent.getProcessDefinitionKey();
-                String processInstanceId = historyEvent.getProcessInstanceId();
-
-                String contractAddress = ethereumService.getContractAddressOfDefinition(definitionKey);
-
-                ethereumService.completeProcessInstance(contractAddress, processInstanceId);
+                chainJobOutbox.schedule(historyEvent.getProcessInstanceId(), historyEvent.getProcessDefinitionKey(),
+                        ChainJobOutbox.Phase.COMPLETE);
             }
         }
     }
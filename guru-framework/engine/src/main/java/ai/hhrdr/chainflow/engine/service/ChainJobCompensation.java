@@ -0,0 +1,10 @@
+package ai.hhrdr.chainflow.engine.service;
+
+/**
+ * What to do with a process instance whose on-chain start found it unfunded. The instance already runs by
+ * then, since chain jobs run after the engine transaction that activated it committed.
+ */
+public interface ChainJobCompensation {
+
+    void fundingFailed(String processInstanceId, String reason);
+}
@@ -0,0 +1,153 @@
+package ai.hhrdr.chainflow.engine.service;
+
+import org.camunda.bpm.engine.impl.cfg.TransactionState;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.sql.DataSource;
+import java.sql.Timestamp;
+import java.util.List;
+
+/**
+ * Durable queue of on-chain side effects of process instances.
+ *
+ * A job is keyed by process instance and phase and stored right before the transaction of the command that
+ * asked for it commits, so it exists if and only if the engine change does, and asking twice for the same
+ * phase of an instance stores it once. {@link ChainJobWorker} runs the jobs outside of engine transactions.
+ * Scheduling the START of an instance again also re-arms its COMPLETE if that failed because START did.
+ */
+@Component
+public class ChainJobOutbox {
+
+    public enum Phase {
+        START, COMPLETE
+    }
+
+    public static final String TABLE = "ENGINE_CHAIN_JOB";
+
+    static final String PENDING = "PENDING";
+    static final String RUNNING = "RUNNING";
+    static final String DONE = "DONE";
+    static final String FAILED = "FAILED";
+    // LAST_ERROR_ of a COMPLETE job failed because the START of its instance failed
+    static final String START_FAILED = "START of the process instance failed";
+
+    private static final Logger LOG = LoggerFactory.getLogger(ChainJobOutbox.class);
+
+    private static final String REARM = "UPDATE " + TABLE
+            + " SET STATE_ = '" + PENDING + "', ATTEMPTS_ = 0, NEXT_RUN_ = ?, UPDATED_ = ?"
+            + " WHERE PROC_INST_ID_ = ? AND PHASE_ = ? AND STATE_ = '" + FAILED + "'";
+    private static final String REARM_COMPLETE = "UPDATE " + TABLE
+            + " SET STATE_ = '" + PENDING + "', ATTEMPTS_ = 0, NEXT_RUN_ = ?, LAST_ERROR_ = NULL, UPDATED_ = ?"
+            + " WHERE PROC_INST_ID_ = ? AND PHASE_ = '" + Phase.COMPLETE + "' AND STATE_ = '" + FAILED + "'"
+            + " AND LAST_ERROR_ = ?";
+    private static final String EXISTS = "SELECT COUNT(*) FROM " + TABLE + " WHERE PROC_INST_ID_ = ? AND PHASE_ = ?";
+    private static final String INSERT = "INSERT INTO " + TABLE
+            + " (PROC_INST_ID_, PROC_DEF_KEY_, PHASE_, STATE_, ATTEMPTS_, NEXT_RUN_, CREATED_, UPDATED_)"
+            + " VALUES (?, ?, ?, '" + PENDING + "', 0, ?, ?, ?)";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final boolean enabled;
+    private final CommandScopedBuffer<ChainJob> committingBuffer;
+    private boolean postgres;
+
+    public ChainJobOutbox(@Qualifier("camundaBpmDataSource") DataSource dataSource,
+                          @Value("${ethereum.jobs.enabled:false}") boolean enabled) {
+        this.jdbcTemplate = new JdbcTemplate(dataSource);
+        this.enabled = enabled;
+        this.committingBuffer = new CommandScopedBuffer<>(TransactionState.COMMITTING, this::insert, discarded -> {
+        });
+    }
+
+    @PostConstruct
+    public void init() {
+        if (!enabled) {
+            return;
+        }
+        String product = jdbcTemplate.execute((ConnectionCallback<String>) con -> con.getMetaData().getDatabaseProductName());
+        postgres = product != null && product.toLowerCase().contains("postgres");
+        jdbcTemplate.execute("CREATE TABLE IF NOT EXISTS " + TABLE + " ("
+                + "ID_ BIGINT GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY, "
+                + "PROC_INST_ID_ VARCHAR(64) NOT NULL, "
+                + "PROC_DEF_KEY_ VARCHAR(255), "
+                + "PHASE_ VARCHAR(16) NOT NULL, "
+                + "STATE_ VARCHAR(16) NOT NULL, "
+                + "ATTEMPTS_ INTEGER NOT NULL, "
+                + "NEXT_RUN_ TIMESTAMP NOT NULL, "
+                + "TX_HASH_ VARCHAR(66), "
+                + "LAST_ERROR_ VARCHAR(1000), "
+                + "CREATED_ TIMESTAMP NOT NULL, "
+                + "UPDATED_ TIMESTAMP NOT NULL, "
+                + "CONSTRAINT " + TABLE + "_KEY UNIQUE (PROC_INST_ID_, PHASE_))");
+        jdbcTemplate.execute("CREATE INDEX IF NOT EXISTS " + TABLE + "_DUE ON " + TABLE + " (STATE_, NEXT_RUN_)");
+        LOG.info("Chain job outbox enabled on {}", product);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Stores the job with the current command's transaction, or on its own outside of a command. A job of the
+     * same instance and phase that failed for good is run again instead.
+     */
+    public void schedule(String processInstanceId, String processDefinitionKey, Phase phase) {
+        if (!enabled) {
+            LOG.warn("ethereum.jobs.enabled is false, dropping {} of process instance {}", phase, processInstanceId);
+            return;
+        }
+        ChainJob job = new ChainJob(0, processInstanceId, processDefinitionKey, phase, 0);
+        if (!committingBuffer.add(job)) {
+            insert(List.of(job));
+        }
+    }
+
+    /**
+     * True if the database supports SELECT ... FOR UPDATE SKIP LOCKED, letting several workers run side by side.
+     */
+    boolean supportsSkipLocked() {
+        return postgres;
+    }
+
+    JdbcTemplate getJdbcTemplate() {
+        return jdbcTemplate;
+    }
+
+    void insert(List<ChainJob> jobs) {
+        Timestamp now = new Timestamp(System.currentTimeMillis());
+        for (ChainJob job : jobs) {
+            jdbcTemplate.update(REARM, now, now, job.processInstanceId, job.phase.name());
+            if (job.phase == Phase.START) {
+                jdbcTemplate.update(REARM_COMPLETE, now, now, job.processInstanceId, START_FAILED);
+            }
+            // The engine serializes commands of an instance, so nothing inserts the same key in between
+            Integer existing = jdbcTemplate.queryForObject(EXISTS, Integer.class, job.processInstanceId, job.phase.name());
+            if (existing == null || existing == 0) {
+                jdbcTemplate.update(INSERT, job.processInstanceId, job.processDefinitionKey, job.phase.name(), now, now, now);
+            }
+        }
+    }
+
+    static final class ChainJob {
+
+        final long id;
+        final String processInstanceId;
+        final String processDefinitionKey;
+        final Phase phase;
+        final int attempts;
+
+        ChainJob(long id, String processInstanceId, String processDefinitionKey, Phase phase, int attempts) {
+            this.id = id;
+            this.processInstanceId = processInstanceId;
+            this.processDefinitionKey = processDefinitionKey;
+            this.phase = phase;
+            this.attempts = attempts;
+        }
+    }
+}
@@ -0,0 +1,335 @@
+package ai.hhrdr.chainflow.engine.service;
+
+import ai.hhrdr.chainflow.engine.ethereum.EthereumService;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.web3j.protocol.core.methods.response.TransactionReceipt;
+import org.web3j.protocol.exceptions.TransactionException;
+
+import javax.annotation.PostConstruct;
+import java.sql.Timestamp;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs due {@link ChainJobOutbox} jobs in id order, every ethereum.jobs.interval ms on its own thread.
+ *
+ * A job is claimed as RUNNING in a short transaction holding its row lock, and the chain is called after that
+ * transaction committed, so no connection or lock is held while waiting for the node and a failing commit
+ * cannot make a transaction be sent twice. The worker does not wait for the transaction: its hash is stored
+ * once sent, and the job is settled from its receipt, DONE if the transaction succeeded and retried if it
+ * reverted or was not mined in time. A job still RUNNING after ethereum.jobs.lease ms, which has to exceed
+ * the send and receipt timeouts, lost its worker; it fails for good rather than risk repeating a transaction
+ * that went through, until its phase is scheduled again.
+ *
+ * START checks that the instance is funded and starts it on chain; an unfunded instance is handed to
+ * {@link ChainJobCompensation} and its job fails for good. COMPLETE waits until the instance's START is done,
+ * and fails once the START failed; scheduling the START again re-arms both.
+ * A failed call is retried after ethereum.jobs.backoff ms, doubled per attempt, until
+ * ethereum.jobs.max.attempts is reached. Finished jobs are kept for ethereum.jobs.retention ms, so repeated
+ * events of an instance do not repeat its transactions.
+ */
+@Component
+public class ChainJobWorker implements DisposableBean {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ChainJobWorker.class);
+
+    private static final long MAX_BACKOFF = 3600000;
+    private static final String NOT_FUNDED = "Not enough funds";
+    private static final String INTERRUPTED = "Interrupted while calling the chain,"
+            + " check the instance on chain before scheduling it again";
+
+    private final ChainJobOutbox outbox;
+    private final EthereumService ethereumService;
+    private final ChainJobCompensation compensation;
+    private final TransactionTemplate transactionTemplate;
+    private final int batchSize;
+    private final int maxAttempts;
+    private final long backoff;
+    private final long retention;
+    private final long lease;
+    private final long interval;
+    private ScheduledExecutorService executor;
+
+    private final Counter done;
+    private final Counter retried;
+    private final Counter failed;
+    private final Counter unfunded;
+    private final AtomicLong pending = new AtomicLong();
+
+    public ChainJobWorker(ChainJobOutbox outbox,
+                          EthereumService ethereumService,
+                          ChainJobCompensation compensation,
+                          PlatformTransactionManager transactionManager,
+                          MeterRegistry meterRegistry,
+                          @Value("${ethereum.jobs.batch.size:100}") int batchSize,
+                          @Value("${ethereum.jobs.max.attempts:10}") int maxAttempts,
+                          @Value("${ethereum.jobs.backoff:5000}") long backoff,
+                          @Value("${ethereum.jobs.retention:2592000000}") long retention,
+                          @Value("${ethereum.jobs.lease:900000}") long lease,
+                          @Value("${ethereum.jobs.interval:1000}") long interval) {
+        this.outbox = outbox;
+        this.ethereumService = ethereumService;
+        this.compensation = compensation;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.batchSize = batchSize;
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.backoff = backoff;
+        this.retention = retention;
+        this.lease = lease;
+        this.interval = interval;
+
+        this.done = counter(meterRegistry, "done");
+        this.retried = counter(meterRegistry, "retried");
+        this.failed = counter(meterRegistry, "failed");
+        this.unfunded = counter(meterRegistry, "unfunded");
+        Gauge.builder("ethereum.jobs.pending", pending, AtomicLong::get)
+                .description("Chain jobs waiting to run")
+                .register(meterRegistry);
+    }
+
+    @PostConstruct
+    public void init() {
+        if (!outbox.isEnabled() || interval <= 0) {
+            return;
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "chain-job-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::run, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void destroy() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    public void run() {
+        if (!outbox.isEnabled()) {
+            return;
+        }
+        try {
+            for (Long id : dueJobs()) {
+                ChainJobOutbox.ChainJob job = transactionTemplate.execute(status -> claim(id));
+                if (job != null && !execute(job)) {
+                    compensate(job.processInstanceId);
+                }
+            }
+            failAbandoned();
+            failCompletesOfFailedStarts();
+            outbox.getJdbcTemplate().update("DELETE FROM " + ChainJobOutbox.TABLE + " WHERE STATE_ = '"
+                    + ChainJobOutbox.DONE + "' AND UPDATED_ < ?", new Timestamp(System.currentTimeMillis() - retention));
+        } catch (Exception e) {
+            LOG.warn("Chain job worker stopped, will retry: {}", e.getMessage());
+        } finally {
+            refreshPending();
+        }
+    }
+
+    private List<Long> dueJobs() {
+        return outbox.getJdbcTemplate().queryForList("SELECT ID_ FROM " + ChainJobOutbox.TABLE + " J"
+                + " WHERE STATE_ = '" + ChainJobOutbox.PENDING + "' AND NEXT_RUN_ <= ?"
+                + " AND (PHASE_ <> '" + ChainJobOutbox.Phase.COMPLETE + "' OR NOT EXISTS (SELECT 1 FROM "
+                + ChainJobOutbox.TABLE + " S WHERE S.PROC_INST_ID_ = J.PROC_INST_ID_ AND S.PHASE_ = '"
+                + ChainJobOutbox.Phase.START + "' AND S.STATE_ <> '" + ChainJobOutbox.DONE + "'))"
+                + " ORDER BY ID_ LIMIT ?", Long.class, new Timestamp(System.currentTimeMillis()), batchSize);
+    }
+
+    /**
+     * Marks the job RUNNING; to be called in a transaction.
+     *
+     * @return the job if it is still pending and no other worker holds it
+     */
+    private ChainJobOutbox.ChainJob claim(long id) {
+        String lock = outbox.supportsSkipLocked() ? " FOR UPDATE SKIP LOCKED" : " FOR UPDATE";
+        List<ChainJobOutbox.ChainJob> jobs = outbox.getJdbcTemplate().query(
+                "SELECT ID_, PROC_INST_ID_, PROC_DEF_KEY_, PHASE_, ATTEMPTS_ FROM " + ChainJobOutbox.TABLE
+                        + " WHERE ID_ = ? AND STATE_ = '" + ChainJobOutbox.PENDING + "'" + lock,
+                (rs, rowNum) -> new ChainJobOutbox.ChainJob(
+                        rs.getLong("ID_"),
+                        rs.getString("PROC_INST_ID_"),
+                        rs.getString("PROC_DEF_KEY_"),
+                        ChainJobOutbox.Phase.valueOf(rs.getString("PHASE_")),
+                        rs.getInt("ATTEMPTS_")), id);
+        if (jobs.isEmpty()) {
+            return null;
+        }
+        outbox.getJdbcTemplate().update("UPDATE " + ChainJobOutbox.TABLE + " SET STATE_ = '" + ChainJobOutbox.RUNNING
+                + "', UPDATED_ = ? WHERE ID_ = ?", new Timestamp(System.currentTimeMillis()), id);
+        return jobs.get(0);
+    }
+
+    /**
+     * Fails jobs whose worker stopped between claiming and finishing them.
+     */
+    private void failAbandoned() {
+        Timestamp now = new Timestamp(System.currentTimeMillis());
+        int abandoned = outbox.getJdbcTemplate().update("UPDATE " + ChainJobOutbox.TABLE + " SET STATE_ = '"
+                        + ChainJobOutbox.FAILED + "', LAST_ERROR_ = ?, UPDATED_ = ? WHERE STATE_ = '"
+                        + ChainJobOutbox.RUNNING + "' AND UPDATED_ < ?",
+                INTERRUPTED, now, new Timestamp(now.getTime() - lease));
+        if (abandoned > 0) {
+            LOG.error("{} chain jobs were interrupted while calling the chain, failing them", abandoned);
+            failed.increment(abandoned);
+        }
+    }
+
+    /**
+     * Fails pending COMPLETE jobs whose instance will not be started, so they do not wait forever.
+     */
+    private void failCompletesOfFailedStarts() {
+        int orphaned = outbox.getJdbcTemplate().update("UPDATE " + ChainJobOutbox.TABLE + " SET STATE_ = '"
+                        + ChainJobOutbox.FAILED + "', LAST_ERROR_ = ?, UPDATED_ = ? WHERE PHASE_ = '"
+                        + ChainJobOutbox.Phase.COMPLETE + "' AND STATE_ = '" + ChainJobOutbox.PENDING + "'"
+                        + " AND EXISTS (SELECT 1 FROM " + ChainJobOutbox.TABLE + " S WHERE S.PROC_INST_ID_ = "
+                        + ChainJobOutbox.TABLE + ".PROC_INST_ID_ AND S.PHASE_ = '" + ChainJobOutbox.Phase.START
+                        + "' AND S.STATE_ = '" + ChainJobOutbox.FAILED + "')",
+                ChainJobOutbox.START_FAILED, new Timestamp(System.currentTimeMillis()));
+        if (orphaned > 0) {
+            LOG.warn("{} COMPLETE jobs failed because the START of their instance failed", orphaned);
+            failed.increment(orphaned);
+        }
+    }
+
+    /**
+     * Sends the job's transaction; the job stays RUNNING until {@link #settle} sees its receipt.
+     *
+     * @return false if the instance turned out to be unfunded and has to be compensated
+     */
+    private boolean execute(ChainJobOutbox.ChainJob job) {
+        CompletableFuture<TransactionReceipt> receipt;
+        try {
+            String contractAddress = ethereumService.getContractAddressOfDefinition(job.processDefinitionKey);
+            if (job.phase == ChainJobOutbox.Phase.START) {
+                if (!ethereumService.isFinanced(contractAddress, job.processInstanceId)) {
+                    update(job.id, ChainJobOutbox.FAILED, job.attempts + 1, System.currentTimeMillis(), null,
+                            NOT_FUNDED);
+                    unfunded.increment();
+                    return false;
+                }
+                receipt = ethereumService.startProcessInstanceAsync(contractAddress, job.processInstanceId,
+                        hash -> recordHash(job.id, hash));
+            } else {
+                receipt = ethereumService.completeProcessInstanceAsync(contractAddress, job.processInstanceId,
+                        hash -> recordHash(job.id, hash));
+            }
+        } catch (RuntimeException e) {
+            retryOrFail(job, e);
+            return true;
+        }
+        receipt.whenComplete((result, error) -> settle(job, result, error));
+        return true;
+    }
+
+    private void recordHash(long id, String transactionHash) {
+        try {
+            outbox.getJdbcTemplate().update("UPDATE " + ChainJobOutbox.TABLE + " SET TX_HASH_ = ?, UPDATED_ = ?"
+                            + " WHERE ID_ = ? AND STATE_ = '" + ChainJobOutbox.RUNNING + "'",
+                    transactionHash, new Timestamp(System.currentTimeMillis()), id);
+        } catch (RuntimeException e) {
+            LOG.warn("Cannot record transaction {} of chain job {}: {}", transactionHash, id, e.getMessage());
+        }
+    }
+
+    /**
+     * Runs on the thread completing the receipt.
+     */
+    private void settle(ChainJobOutbox.ChainJob job, TransactionReceipt receipt, Throwable error) {
+        try {
+            if (error == null && !receipt.isStatusOK()) {
+                error = new TransactionException("Transaction " + receipt.getTransactionHash() + " reverted");
+            }
+            if (error != null) {
+                retryOrFail(job, error instanceof CompletionException && error.getCause() != null
+                        ? error.getCause() : error);
+                return;
+            }
+            if (update(job.id, ChainJobOutbox.DONE, job.attempts + 1, System.currentTimeMillis(),
+                    receipt.getTransactionHash(), null) > 0) {
+                done.increment();
+            }
+        } catch (RuntimeException e) {
+            LOG.error("Cannot settle {} of process instance {}", job.phase, job.processInstanceId, e);
+        }
+    }
+
+    /**
+     * Runs after the job's state is written, so a failing compensation cannot undo it.
+     */
+    private void compensate(String processInstanceId) {
+        try {
+            compensation.fundingFailed(processInstanceId, NOT_FUNDED);
+        } catch (RuntimeException e) {
+            LOG.error("Cannot compensate unfunded process instance {}", processInstanceId, e);
+        }
+    }
+
+    private void retryOrFail(ChainJobOutbox.ChainJob job, Throwable e) {
+        int attempts = job.attempts + 1;
+        String error = String.valueOf(e.getMessage());
+        if (error.length() > 1000) {
+            error = error.substring(0, 1000);
+        }
+        if (attempts >= maxAttempts) {
+            LOG.error("{} of process instance {} failed {} times, giving up", job.phase, job.processInstanceId, attempts, e);
+            if (update(job.id, ChainJobOutbox.FAILED, attempts, System.currentTimeMillis(), null, error) > 0) {
+                failed.increment();
+            }
+            return;
+        }
+        long delay = Math.min(MAX_BACKOFF, backoff << Math.min(attempts - 1, 20));
+        LOG.warn("{} of process instance {} failed, retrying in {} ms: {}", job.phase, job.processInstanceId, delay, error);
+        if (update(job.id, ChainJobOutbox.PENDING, attempts, System.currentTimeMillis() + delay, null, error) > 0) {
+            retried.increment();
+        }
+    }
+
+    /**
+     * Updates a RUNNING job, so an outcome arriving after the job was failed as abandoned is dropped.
+     *
+     * @return the number of updated jobs
+     */
+    private int update(long id, String state, int attempts, long nextRun, String transactionHash, String error) {
+        JdbcTemplate jdbcTemplate = outbox.getJdbcTemplate();
+        return jdbcTemplate.update("UPDATE " + ChainJobOutbox.TABLE
+                        + " SET STATE_ = ?, ATTEMPTS_ = ?, NEXT_RUN_ = ?, TX_HASH_ = ?, LAST_ERROR_ = ?, UPDATED_ = ?"
+                        + " WHERE ID_ = ? AND STATE_ = '" + ChainJobOutbox.RUNNING + "'",
+                state, attempts, new Timestamp(nextRun), transactionHash, error,
+                new Timestamp(System.currentTimeMillis()), id);
+    }
+
+    private void refreshPending() {
+        try {
+            Long count = outbox.getJdbcTemplate().queryForObject("SELECT COUNT(*) FROM " + ChainJobOutbox.TABLE
+                    + " WHERE STATE_ = '" + ChainJobOutbox.PENDING + "'", Long.class);
+            pending.set(count == null ? 0 : count);
+        } catch (Exception e) {
+            LOG.debug("Cannot count pending chain jobs: {}", e.getMessage());
+        }
+    }
+
+    private static Counter counter(MeterRegistry meterRegistry, String outcome) {
+        return Counter.builder("ethereum.jobs")
+                .description("Chain jobs run, by outcome")
+                .tag("outcome", outcome)
+                .register(meterRegistry);
+    }
+}
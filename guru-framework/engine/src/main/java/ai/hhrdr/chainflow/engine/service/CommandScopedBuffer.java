@@ -0,0 +1,72 @@
+package ai.hhrdr.chainflow.engine.service;
+
+import org.camunda.bpm.engine.impl.cfg.TransactionState;
+import org.camunda.bpm.engine.impl.context.Context;
+import org.camunda.bpm.engine.impl.interceptor.CommandContext;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Collects items produced while a Camunda command runs and hands them over in one list when the command's
+ * transaction reaches the given state. Items of a rolled back transaction go to the discard callback.
+ */
+public class CommandScopedBuffer<T> {
+
+    private final TransactionState flushOn;
+    private final Consumer<List<T>> onFlush;
+    private final Consumer<List<T>> onDiscard;
+    private final Map<CommandContext, List<T>> pendingByCommand = new ConcurrentHashMap<>();
+
+    public CommandScopedBuffer(TransactionState flushOn, Consumer<List<T>> onFlush, Consumer<List<T>> onDiscard) {
+        this.flushOn = flushOn;
+        this.onFlush = onFlush;
+        this.onDiscard = onDiscard;
+    }
+
+    /**
+     * Buffers the item for the current command.
+     *
+     * @return false if there is no command (or its transaction no longer accepts listeners) and the caller has
+     * to handle the item itself
+     */
+    public boolean add(T item) {
+        CommandContext commandContext = Context.getCommandContext();
+        if (commandContext == null) {
+            return false;
+        }
+
+        List<T> buffer = pendingByCommand.get(commandContext);
+        if (buffer == null) {
+            buffer = new ArrayList<>();
+            pendingByCommand.put(commandContext, buffer);
+            try {
+                commandContext.getTransactionContext().addTransactionListener(flushOn, ctx -> {
+                    List<T> items = pendingByCommand.remove(commandContext);
+                    if (items != null && !items.isEmpty()) {
+                        onFlush.accept(items);
+                    }
+                });
+                commandContext.getTransactionContext().addTransactionListener(TransactionState.ROLLED_BACK, ctx -> {
+                    List<T> items = pendingByCommand.remove(commandContext);
+                    if (items != null && !items.isEmpty()) {
+                        onDiscard.accept(items);
+                    }
+                });
+            } catch (RuntimeException e) {
+                // Transaction already completing, nothing left to wait for
+                pendingByCommand.remove(commandContext);
+                return false;
+            }
+        }
+        buffer.add(item);
+        return true;
+    }
+
+    public int pendingCommands() {
+        return pendingByCommand.size();
+    }
+}
@@ -0,0 +1,300 @@
+package ai.hhrdr.chainflow.engine.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.rabbit.connection.CorrelationData;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Publishes messages in batches with publisher confirms.
+ *
+ * Messages are queued and a single worker collects up to a batch size of them, or whatever arrived within the
+ * linger time. A batch is sent on one channel without waiting between messages, then its confirms are
+ * collected by correlation id. When a message is nacked or times out, it and every later message of the batch
+ * are resent in their original order, with backoff up to the retry limit, so messages of one process instance
+ * never overtake each other; the later messages may reach the broker twice. A message given up on goes to
+ * the failure callback it was submitted with.
+ * Needs spring.rabbitmq.publisher-confirm-type=correlated.
+ */
+@Component
+public class ConfirmingBatchPublisher implements DisposableBean {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ConfirmingBatchPublisher.class);
+
+    private final RabbitTemplate rabbitTemplate;
+    private final boolean enabled;
+    private final int batchSize;
+    private final long lingerNanos;
+    private final long confirmTimeout;
+    private final int maxRetries;
+    private final long retryBackoff;
+    private final BlockingQueue<PendingPublish> queue;
+    private final Map<String, PendingPublish> inFlight = new ConcurrentHashMap<>();
+
+    private final Counter confirmed;
+    private final Counter retried;
+    private final Counter failed;
+    private final DistributionSummary batchSizes;
+    private final Timer confirmLatency;
+
+    private volatile boolean running;
+    private Thread worker;
+
+    public ConfirmingBatchPublisher(RabbitTemplate rabbitTemplate,
+                                    MeterRegistry meterRegistry,
+                                    @Value("${engine.rabbitmq.publish.batch.enabled:false}") boolean enabled,
+                                    @Value("${engine.rabbitmq.publish.batch.size:200}") int batchSize,
+                                    @Value("${engine.rabbitmq.publish.batch.linger:5}") long lingerMillis,
+                                    @Value("${engine.rabbitmq.publish.batch.queue.capacity:20000}") int queueCapacity,
+                                    @Value("${engine.rabbitmq.publish.confirm.timeout:5000}") long confirmTimeout,
+                                    @Value("${engine.rabbitmq.publish.confirm.retries:3}") int maxRetries,
+                                    @Value("${engine.rabbitmq.publish.confirm.retry.backoff:200}") long retryBackoff) {
+        this.rabbitTemplate = rabbitTemplate;
+        this.enabled = enabled;
+        this.batchSize = batchSize;
+        this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+        this.confirmTimeout = confirmTimeout;
+        this.maxRetries = maxRetries;
+        this.retryBackoff = retryBackoff;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+
+        this.confirmed = publishCounter(meterRegistry, "confirmed");
+        this.retried = publishCounter(meterRegistry, "retried");
+        this.failed = publishCounter(meterRegistry, "failed");
+        this.batchSizes = DistributionSummary.builder("rabbitmq.publish.batch.size")
+                .description("Messages per confirmed publish batch")
+                .publishPercentiles(0.5, 0.95, 0.99)
+                .register(meterRegistry);
+        this.confirmLatency = Timer.builder("rabbitmq.publish.confirm.latency")
+                .description("Time from sending a batch until all of its confirms arrived")
+                .publishPercentiles(0.5, 0.95, 0.99)
+                .register(meterRegistry);
+        Gauge.builder("rabbitmq.publish.queue.depth", queue, BlockingQueue::size)
+                .description("Messages waiting to be batched")
+                .register(meterRegistry);
+        Gauge.builder("rabbitmq.publish.inflight", inFlight, Map::size)
+                .description("Messages sent and waiting for a confirm")
+                .register(meterRegistry);
+    }
+
+    @PostConstruct
+    public void init() {
+        if (enabled) {
+            running = true;
+            worker = new Thread(this::run, "rabbitmq-batch-publisher");
+            worker.setDaemon(true);
+            worker.start();
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void submit(String exchange, String routingKey, Message message) {
+        submit(exchange, routingKey, message, null);
+    }
+
+    /**
+     * Queues a message, waiting for room if the queue is full.
+     *
+     * @param onFailure run if the message is not confirmed within the retries, or cannot be queued; may be null
+     */
+    public void submit(String exchange, String routingKey, Message message, Runnable onFailure) {
+        PendingPublish publish = new PendingPublish(exchange, routingKey, message, onFailure);
+        try {
+            queue.put(publish);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOG.warn("Interrupted while queueing message for {}", exchange);
+            fail(List.of(publish));
+        }
+    }
+
+    private void run() {
+        List<PendingPublish> batch = new ArrayList<>(batchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                PendingPublish first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                long lingerDeadline = System.nanoTime() + lingerNanos;
+                while (batch.size() < batchSize) {
+                    if (queue.drainTo(batch, batchSize - batch.size()) > 0) {
+                        continue;
+                    }
+                    long remaining = lingerDeadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        break;
+                    }
+                    PendingPublish next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                publishBatch(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                running = false;
+            } catch (Exception e) {
+                LOG.error("Unexpected error in batch publisher, giving up on {} messages", batch.size(), e);
+                fail(batch);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    void publishBatch(List<PendingPublish> batch) throws InterruptedException {
+        batchSizes.record(batch.size());
+        List<PendingPublish> toSend = batch;
+        for (int attempt = 0; ; attempt++) {
+            List<PendingPublish> unconfirmed = sendAndConfirm(toSend);
+            if (unconfirmed.isEmpty()) {
+                confirmed.increment(toSend.size());
+                return;
+            }
+            if (attempt >= maxRetries) {
+                LOG.error("{} messages not confirmed after {} retries, giving up", unconfirmed.size(), maxRetries);
+                confirmed.increment(toSend.size() - unconfirmed.size());
+                fail(unconfirmed);
+                return;
+            }
+            // Resend from the first unconfirmed message on, so nothing overtakes it
+            int first = toSend.indexOf(unconfirmed.get(0));
+            List<PendingPublish> resend = new ArrayList<>(toSend.subList(first, toSend.size()));
+            confirmed.increment(first);
+            retried.increment(resend.size());
+            try {
+                Thread.sleep(retryBackoff << attempt);
+            } catch (InterruptedException e) {
+                fail(unconfirmed);
+                throw e;
+            }
+            toSend = resend;
+        }
+    }
+
+    /**
+     * Sends all messages back to back on one channel, then waits for their confirms.
+     *
+     * @return the messages that were nacked or not confirmed in time, in sending order
+     */
+    private List<PendingPublish> sendAndConfirm(List<PendingPublish> batch) {
+        long start = System.nanoTime();
+        List<CorrelationData> correlations = new ArrayList<>(batch.size());
+        try {
+            rabbitTemplate.invoke(operations -> {
+                for (PendingPublish publish : batch) {
+                    CorrelationData correlationData = new CorrelationData();
+                    inFlight.put(correlationData.getId(), publish);
+                    correlations.add(correlationData);
+                    operations.send(publish.exchange, publish.routingKey, publish.message, correlationData);
+                }
+                return null;
+            });
+        } catch (Exception e) {
+            LOG.warn("Sending batch of {} failed: {}", batch.size(), e.getMessage());
+            for (CorrelationData correlationData : correlations) {
+                inFlight.remove(correlationData.getId());
+            }
+            return new ArrayList<>(batch);
+        }
+
+        List<PendingPublish> unconfirmed = new ArrayList<>();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(confirmTimeout);
+        for (int i = 0; i < correlations.size(); i++) {
+            CorrelationData correlationData = correlations.get(i);
+            PendingPublish publish = batch.get(i);
+            try {
+                long remaining = Math.max(0, deadline - System.nanoTime());
+                CorrelationData.Confirm confirm = correlationData.getFuture().get(remaining, TimeUnit.NANOSECONDS);
+                if (!confirm.isAck()) {
+                    LOG.warn("Message to {} nacked: {}", publish.exchange, confirm.getReason());
+                    unconfirmed.add(publish);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                unconfirmed.add(publish);
+            } catch (Exception e) {
+                unconfirmed.add(publish);
+            } finally {
+                inFlight.remove(correlationData.getId());
+            }
+        }
+        confirmLatency.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        return unconfirmed;
+    }
+
+    private void fail(List<PendingPublish> publishes) {
+        failed.increment(publishes.size());
+        for (PendingPublish publish : publishes) {
+            if (publish.onFailure == null) {
+                continue;
+            }
+            try {
+                publish.onFailure.run();
+            } catch (RuntimeException e) {
+                LOG.error("Failure callback for message to {} failed", publish.exchange, e);
+            }
+        }
+    }
+
+    private static Counter publishCounter(MeterRegistry meterRegistry, String outcome) {
+        return Counter.builder("rabbitmq.publish.messages")
+                .description("Messages handled by the confirming batch publisher")
+                .tag("outcome", outcome)
+                .register(meterRegistry);
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        running = false;
+        if (worker != null) {
+            worker.join(confirmTimeout + 1000);
+            if (worker.isAlive()) {
+                LOG.warn("Batch publisher did not drain in time, {} messages left", queue.size());
+                worker.interrupt();
+                List<PendingPublish> left = new ArrayList<>();
+                queue.drainTo(left);
+                fail(left);
+            }
+        }
+    }
+
+    static final class PendingPublish {
+
+        private final String exchange;
+        private final String routingKey;
+        private final Message message;
+        private final Runnable onFailure;
+
+        PendingPublish(String exchange, String routingKey, Message message, Runnable onFailure) {
+            this.exchange = exchange;
+            this.routingKey = routingKey;
+            this.message = message;
+            this.onFailure = onFailure;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package ai.hhrdr.chainflow.engine.service;
+
+import com.rabbitmq.client.ShutdownSignalException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.core.AmqpAdmin;
+import org.springframework.amqp.core.Binding;
+import org.springframework.amqp.core.TopicExchange;
+import org.springframework.amqp.rabbit.connection.Connection;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
+import org.springframework.amqp.rabbit.connection.ConnectionListener;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers which per event type exchanges were already declared on the current broker connection, so
+ * {@link RabbitMQSender} declares each of them once instead of once per event. The registry is cleared
+ * whenever the connection is closed, making the next publish after a recovery declare again.
+ *
+ * With engine.rabbitmq.publish.single every typed exchange is also bound to the base exchange, and messages
+ * are published to the typed exchange only.
+ */
+@Component
+public class DeclaredExchangeRegistry implements ConnectionListener {
+
+    /** Routing pattern forwarding everything from a typed exchange to the base exchange. */
+    public static final String FORWARD_ALL = "#";
+
+    private static final Logger LOG = LoggerFactory.getLogger(DeclaredExchangeRegistry.class);
+
+    private final AmqpAdmin amqpAdmin;
+    private final String baseExchange;
+    private final boolean singlePublish;
+    private final Set<String> declared = ConcurrentHashMap.newKeySet();
+
+    public DeclaredExchangeRegistry(AmqpAdmin amqpAdmin,
+                                    ConnectionFactory connectionFactory,
+                                    @Value("${engine.rabbitmq.exchange}") String baseExchange,
+                                    @Value("${engine.rabbitmq.publish.single:false}") boolean singlePublish) {
+        this.amqpAdmin = amqpAdmin;
+        this.baseExchange = baseExchange;
+        this.singlePublish = singlePublish;
+        connectionFactory.addConnectionListener(this);
+    }
+
+    public String getBaseExchange() {
+        return baseExchange;
+    }
+
+    public boolean isSinglePublish() {
+        return singlePublish;
+    }
+
+    public String typedExchangeName(String camundaEventType) {
+        return baseExchange + "." + camundaEventType;
+    }
+
+    /**
+     * Declares the typed exchange (and its binding to the base exchange in single publish mode) unless this
+     * was already done on the current connection.
+     */
+    public void ensureDeclared(String exchangeName) {
+        if (declared.contains(exchangeName)) {
+            return;
+        }
+        amqpAdmin.declareExchange(new TopicExchange(exchangeName));
+        if (singlePublish) {
+            amqpAdmin.declareBinding(new Binding(baseExchange, Binding.DestinationType.EXCHANGE, exchangeName, FORWARD_ALL, null));
+        }
+        declared.add(exchangeName);
+        LOG.debug("Declared exchange {}", exchangeName);
+    }
+
+    public void reset() {
+        declared.clear();
+    }
+
+    @Override
+    public void onCreate(Connection connection) {
+        // Nothing to do; a new connection follows a close, which already reset the registry
+    }
+
+    @Override
+    public void onClose(Connection connection) {
+        reset();
+    }
+
+    @Override
+    public void onShutDown(ShutdownSignalException signal) {
+        reset();
+    }
+}
@@ -0,0 +1,121 @@
+package ai.hhrdr.chainflow.engine.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.camunda.bpm.engine.impl.history.event.HistoricActivityInstanceEventEntity;
+import org.camunda.bpm.engine.impl.history.event.HistoricVariableUpdateEventEntity;
+import org.camunda.bpm.engine.impl.history.event.HistoryEvent;
+import org.camunda.bpm.engine.impl.history.event.HistoryEventTypes;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Collapses successive ACTIVITY_INSTANCE_UPDATE, VARIABLE_INSTANCE_UPDATE and VARIABLE_INSTANCE_UPDATE_DETAIL
+ * events of the same activity or variable instance into the last one, which carries the final state. The kept
+ * event stays at the position of the last update; every other event passes through in order.
+ *
+ * In COMMAND mode the sinks coalesce what one command produced, in WINDOW mode they additionally hold
+ * committed events for engine.history.coalesce.window ms and coalesce across commands.
+ */
+@Component
+public class HistoryEventCoalescer {
+
+    public enum Mode {
+        OFF, COMMAND, WINDOW
+    }
+
+    public static final String RABBITMQ = "rabbitmq";
+    public static final String INSCRIPTION = "inscription";
+
+    private static final char KEY_SEPARATOR = '\u0000';
+
+    private final Mode mode;
+    private final MeterRegistry meterRegistry;
+    private final Map<String, Counter> mergedBySink = new ConcurrentHashMap<>();
+
+    public HistoryEventCoalescer(MeterRegistry meterRegistry,
+                                 @Value("${engine.history.coalesce.mode:OFF}") Mode mode) {
+        this.meterRegistry = meterRegistry;
+        this.mode = mode;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public boolean isEnabled() {
+        return mode != Mode.OFF;
+    }
+
+    /**
+     * @return the items without superseded updates; the same list if nothing was collapsed
+     */
+    public <T> List<T> coalesce(String sink, List<T> items, Function<T, HistoryEvent> eventOf) {
+        return coalesceByKey(sink, items, item -> coalescingKey(eventOf.apply(item)));
+    }
+
+    /**
+     * Same as {@link #coalesce} for items that carry the {@link #coalescingKey} of their event instead of the
+     * event itself.
+     */
+    public <T> List<T> coalesceByKey(String sink, List<T> items, Function<T, String> keyOf) {
+        if (mode == Mode.OFF || items.size() < 2) {
+            return items;
+        }
+
+        String[] keys = new String[items.size()];
+        Map<String, Integer> lastIndex = null;
+        for (int i = 0; i < items.size(); i++) {
+            String key = keyOf.apply(items.get(i));
+            if (key != null) {
+                if (lastIndex == null) {
+                    lastIndex = new HashMap<>();
+                }
+                lastIndex.put(key, i);
+                keys[i] = key;
+            }
+        }
+        if (lastIndex == null) {
+            return items;
+        }
+
+        List<T> result = new ArrayList<>(items.size());
+        for (int i = 0; i < items.size(); i++) {
+            if (keys[i] == null || lastIndex.get(keys[i]) == i) {
+                result.add(items.get(i));
+            }
+        }
+        int merged = items.size() - result.size();
+        if (merged == 0) {
+            return items;
+        }
+        mergedBySink.computeIfAbsent(sink, key -> Counter.builder("history.coalesce.merged")
+                .description("Update events dropped because a later update of the same entity superseded them")
+                .tag("sink", key)
+                .register(meterRegistry)).increment(merged);
+        return result;
+    }
+
+    static String coalescingKey(HistoryEvent event) {
+        String eventType = event.getEventType();
+        if (event instanceof HistoricActivityInstanceEventEntity
+                && HistoryEventTypes.ACTIVITY_INSTANCE_UPDATE.getEventName().equals(eventType)) {
+            String activityInstanceId = ((HistoricActivityInstanceEventEntity) event).getActivityInstanceId();
+            return activityInstanceId == null ? null : eventType + KEY_SEPARATOR + activityInstanceId;
+        }
+        if (event instanceof HistoricVariableUpdateEventEntity
+                && (HistoryEventTypes.VARIABLE_INSTANCE_UPDATE.getEventName().equals(eventType)
+                || HistoryEventTypes.VARIABLE_INSTANCE_UPDATE_DETAIL.getEventName().equals(eventType))) {
+            String variableInstanceId = ((HistoricVariableUpdateEventEntity) event).getVariableInstanceId();
+            return variableInstanceId == null ? null : eventType + KEY_SEPARATOR + variableInstanceId;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,269 @@
+package ai.hhrdr.chainflow.engine.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.camunda.bpm.engine.impl.cfg.TransactionState;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.rabbit.connection.CorrelationData;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hands history event messages to RabbitMQ outside of the engine transaction.
+ *
+ * Messages are buffered per Camunda command and only submitted once the transaction commits; they are
+ * discarded on rollback. Publishing happens on dedicated single-threaded lanes, one process tree always
+ * mapping to the same lane so its events stay in order. When a lane queue is full the configured
+ * {@link OverflowPolicy} applies. Messages that fail to publish, including those the batch publisher gives up
+ * on, go to the spill store under every policy.
+ *
+ * In outbox mode messages are written to {@link HistoryEventOutbox} instead and published by
+ * {@link HistoryEventOutboxRelay}.
+ */
+@Service
+public class HistoryEventDispatcher implements DisposableBean {
+
+    public enum OverflowPolicy {
+        /** Wait for room in the lane queue (backpressure onto the committing thread). */
+        BLOCK,
+        /** Drop the batch and count it. */
+        DROP,
+        /** Write the batch to the local spill store, replayed once publishing works again. */
+        SPILL
+    }
+
+    private static final Logger LOG = LoggerFactory.getLogger(HistoryEventDispatcher.class);
+
+    private final RabbitMQSender rabbitMQSender;
+    private final HistoryEventSpillStore spillStore;
+    private final HistoryEventOutbox outbox;
+    private final HistoryEventCoalescer coalescer;
+    private final boolean async;
+    private final OverflowPolicy overflowPolicy;
+    private final long confirmTimeout;
+    // Null unless publishing asynchronously
+    private final OrderedLanes lanes;
+    private final CommandScopedBuffer<HistoryEventMessage> committedBuffer;
+    private final List<HistoryEventMessage> coalescingWindow = new ArrayList<>();
+
+    private final Counter published;
+    private final Counter dropped;
+    private final Counter spilled;
+    private final Counter rolledBack;
+
+    public HistoryEventDispatcher(RabbitMQSender rabbitMQSender,
+                                  HistoryEventSpillStore spillStore,
+                                  HistoryEventOutbox outbox,
+                                  HistoryEventCoalescer coalescer,
+                                  MeterRegistry meterRegistry,
+                                  @Value("${engine.rabbitmq.dispatch.async:true}") boolean async,
+                                  @Value("${engine.rabbitmq.dispatch.threads:4}") int threads,
+                                  @Value("${engine.rabbitmq.dispatch.queue.capacity:10000}") int queueCapacity,
+                                  @Value("${engine.rabbitmq.dispatch.overflow:BLOCK}") OverflowPolicy overflowPolicy,
+                                  @Value("${engine.rabbitmq.publish.confirm.timeout:5000}") long confirmTimeout) {
+        this.rabbitMQSender = rabbitMQSender;
+        this.spillStore = spillStore;
+        this.outbox = outbox;
+        this.coalescer = coalescer;
+        this.async = async;
+        this.overflowPolicy = overflowPolicy;
+        this.confirmTimeout = confirmTimeout;
+
+        this.published = dispatchCounter(meterRegistry, "published");
+        this.dropped = dispatchCounter(meterRegistry, "dropped");
+        this.spilled = dispatchCounter(meterRegistry, "spilled");
+        this.rolledBack = dispatchCounter(meterRegistry, "rolled_back");
+        this.committedBuffer = new CommandScopedBuffer<>(TransactionState.COMMITTED,
+                this::committed, discarded -> rolledBack.increment(discarded.size()));
+
+        this.lanes = async && !outbox.isEnabled() && rabbitMQSender.isEnabled()
+                ? new OrderedLanes("rabbitmq-dispatch", threads, queueCapacity, overflowPolicy == OverflowPolicy.BLOCK)
+                : null;
+
+        Gauge.builder("rabbitmq.dispatch.queue.depth", this, HistoryEventDispatcher::queueDepth)
+                .description("Committed batches waiting to be published")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Queues a message for publishing once the current command's transaction has committed.
+     * Outside of a command the message is submitted right away.
+     */
+    public void dispatch(HistoryEventMessage message) {
+        if (!rabbitMQSender.isEnabled()) {
+            return;
+        }
+        if (outbox.isEnabled()) {
+            outbox.add(message);
+            return;
+        }
+        if (!async) {
+            publish(Collections.singletonList(message));
+            return;
+        }
+        if (!committedBuffer.add(message)) {
+            submit(Collections.singletonList(message));
+        }
+    }
+
+    private void committed(List<HistoryEventMessage> batch) {
+        if (coalescer.getMode() == HistoryEventCoalescer.Mode.WINDOW) {
+            synchronized (coalescingWindow) {
+                coalescingWindow.addAll(batch);
+            }
+            return;
+        }
+        submit(coalescer.coalesce(HistoryEventCoalescer.RABBITMQ, batch, HistoryEventMessage::getEvent));
+    }
+
+    /**
+     * Coalesces and submits what committed during the last window, one batch per process tree.
+     */
+    @Scheduled(fixedDelayString = "${engine.history.coalesce.window:200}")
+    public void flushCoalescingWindow() {
+        List<HistoryEventMessage> window;
+        synchronized (coalescingWindow) {
+            if (coalescingWindow.isEmpty()) {
+                return;
+            }
+            window = new ArrayList<>(coalescingWindow);
+            coalescingWindow.clear();
+        }
+        Map<String, List<HistoryEventMessage>> byOrderingKey = new LinkedHashMap<>();
+        for (HistoryEventMessage message : coalescer.coalesce(HistoryEventCoalescer.RABBITMQ, window, HistoryEventMessage::getEvent)) {
+            byOrderingKey.computeIfAbsent(message.getOrderingKey(), key -> new ArrayList<>()).add(message);
+        }
+        for (List<HistoryEventMessage> batch : byOrderingKey.values()) {
+            submit(batch);
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${engine.rabbitmq.dispatch.spill.replay.interval:5000}")
+    public void replaySpilled() {
+        if (!rabbitMQSender.isEnabled() || !spillStore.hasPending()) {
+            return;
+        }
+        int replayed = spillStore.replay(new ConfirmedReplay());
+        if (replayed > 0) {
+            published.increment(replayed);
+            LOG.info("Replayed {} spilled history events", replayed);
+        }
+    }
+
+    private void submit(List<HistoryEventMessage> batch) {
+        if (spillStore.hasPending()) {
+            // Queue behind the journal until replay has drained it, so events stay in order
+            spill(batch);
+            return;
+        }
+        if (lanes.execute(batch.get(0).getOrderingKey(), () -> publish(batch))) {
+            return;
+        }
+        if (lanes.isShutdown()) {
+            // Committed while shutting down, publish here rather than lose the batch
+            publish(batch);
+            return;
+        }
+        switch (overflowPolicy) {
+            case BLOCK:
+                // Only an interrupt ends the wait for room
+                dropped.increment(batch.size());
+                LOG.warn("Interrupted while waiting for dispatch queue, {} events dropped", batch.size());
+                break;
+            case DROP:
+                dropped.increment(batch.size());
+                LOG.warn("Dispatch queue full, {} events dropped", batch.size());
+                break;
+            case SPILL:
+                spill(batch);
+                break;
+        }
+    }
+
+    /**
+     * Whatever fails to publish is spilled, whatever the overflow policy; that only decides about full lanes.
+     */
+    private void publish(List<HistoryEventMessage> batch) {
+        if (spillStore.hasPending()) {
+            spill(batch);
+            return;
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            HistoryEventMessage message = batch.get(i);
+            try {
+                // The batch publisher confirms later; what it gives up on is spilled from its worker
+                rabbitMQSender.send(message, () -> spill(Collections.singletonList(message)));
+                published.increment();
+            } catch (Exception e) {
+                List<HistoryEventMessage> remaining = batch.subList(i, batch.size());
+                LOG.warn("Publishing failed, spilling {} events: {}", remaining.size(), e.getMessage());
+                spill(remaining);
+                return;
+            }
+        }
+    }
+
+    private void spill(List<HistoryEventMessage> batch) {
+        for (HistoryEventMessage message : batch) {
+            try {
+                spillStore.append(message.getCamundaEventType(), message.getStartUserId(), message.getCallingProcessInstanceId(),
+                        rabbitMQSender.serialize(message.getEvent(), message.getStartUserId(), message.getCallingProcessInstanceId()));
+                spilled.increment();
+            } catch (Exception e) {
+                dropped.increment();
+                LOG.error("Cannot spill history event {}", message.getEvent(), e);
+            }
+        }
+    }
+
+    private double queueDepth() {
+        return lanes == null ? 0 : lanes.queueDepth();
+    }
+
+    private static Counter dispatchCounter(MeterRegistry meterRegistry, String outcome) {
+        return Counter.builder("rabbitmq.dispatch.events")
+                .description("History events handled by the RabbitMQ dispatch stage")
+                .tag("outcome", outcome)
+                .register(meterRegistry);
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        flushCoalescingWindow();
+        if (lanes != null) {
+            lanes.shutdown();
+            lanes.awaitTermination(10, TimeUnit.SECONDS);
+        }
+        spillStore.close();
+    }
+
+    /**
+     * Publishes journaled events with publisher confirms, so the spill store only drops what the broker acked.
+     */
+    private final class ConfirmedReplay implements HistoryEventSpillStore.SpilledMessagePublisher {
+
+        private final List<CorrelationData> correlations = new ArrayList<>();
+
+        @Override
+        public void publish(String camundaEventType, String startUserId, String callingProcessInstanceId, byte[] messageBody) {
+            correlations.addAll(rabbitMQSender.publishConfirmed(camundaEventType, startUserId, callingProcessInstanceId, messageBody));
+        }
+
+        @Override
+        public void awaitConfirms() {
+            PublisherConfirms.await(correlations, confirmTimeout);
+            correlations.clear();
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package ai.hhrdr.chainflow.engine.service;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.util.ByteArrayBuilder;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileGenerator;
+import org.camunda.bpm.engine.impl.history.event.HistoryEvent;
+import org.springframework.amqp.core.MessageProperties;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.zip.Deflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Encodes history event message bodies in the configured wire format.
+ *
+ * JSON is what every existing consumer reads. SMILE is Jackson's binary JSON: the same flat object per event
+ * subtype that {@link HistoryEventSerializer} writes, with null fields left out and repeated names and ids
+ * back-referenced. Bodies at or above the compression threshold are deflated when that makes them smaller.
+ * Content type, content encoding and the {@value #WIRE_FORMAT_HEADER} and {@value #SCHEMA_HEADER} headers
+ * describe every message, so a consumer picks its decoder per message, see {@link #decodeToJson}.
+ */
+public class HistoryEventEncoder {
+
+    public static final String WIRE_FORMAT_HEADER = "x-wire-format";
+    public static final String SCHEMA_HEADER = "x-wire-schema";
+    public static final int SCHEMA_VERSION = 1;
+    public static final String CONTENT_TYPE_SMILE = "application/x-jackson-smile";
+    public static final String ENCODING_DEFLATE = "deflate";
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+    private static final SmileFactory SMILE_FACTORY = new SmileFactory()
+            .configure(SmileGenerator.Feature.CHECK_SHARED_STRING_VALUES, true);
+
+    public enum WireFormat {
+        JSON(MessageProperties.CONTENT_TYPE_JSON),
+        SMILE(CONTENT_TYPE_SMILE);
+
+        private final String contentType;
+
+        WireFormat(String contentType) {
+            this.contentType = contentType;
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+    }
+
+    private final HistoryEventSerializer jsonSerializer;
+    private final HistoryEventSerializer smileSerializer = new HistoryEventSerializer(new ObjectMapper(SMILE_FACTORY), true);
+    private final WireFormat format;
+    private final int compressThreshold;
+    private final ThreadLocal<Deflater> deflaters = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+
+    /**
+     * @param compressThreshold body size in bytes from which bodies are deflated, 0 to never compress
+     */
+    public HistoryEventEncoder(HistoryEventSerializer jsonSerializer, WireFormat format, int compressThreshold) {
+        this.jsonSerializer = jsonSerializer;
+        this.format = format;
+        this.compressThreshold = compressThreshold;
+    }
+
+    public WireFormat getFormat() {
+        return format;
+    }
+
+    public EncodedBody encode(String eventType, HistoryEvent event, String startUserId, String callingProcessInstanceId)
+            throws IOException {
+        if (format == WireFormat.JSON) {
+            return finish(WireFormat.JSON, eventType, jsonSerializer.serialize(event, startUserId, callingProcessInstanceId));
+        }
+        return finish(WireFormat.SMILE, eventType, smileSerializer.serialize(event, startUserId, callingProcessInstanceId));
+    }
+
+    /**
+     * Re-encodes a stored JSON body (spill journal, outbox) in the configured format.
+     */
+    public EncodedBody encodeStored(String eventType, byte[] json) throws IOException {
+        if (format == WireFormat.JSON) {
+            return finish(WireFormat.JSON, eventType, json);
+        }
+        return finish(WireFormat.SMILE, eventType, jsonToSmile(json));
+    }
+
+    /**
+     * Plain, uncompressed JSON, as sent before wire formats existed.
+     */
+    public static EncodedBody json(String eventType, byte[] json) {
+        return new EncodedBody(json, WireFormat.JSON, false, eventType);
+    }
+
+    private EncodedBody finish(WireFormat wireFormat, String eventType, byte[] body) {
+        if (compressThreshold > 0 && body.length >= compressThreshold) {
+            byte[] deflated = deflate(body);
+            if (deflated.length < body.length) {
+                return new EncodedBody(deflated, wireFormat, true, eventType);
+            }
+        }
+        return new EncodedBody(body, wireFormat, false, eventType);
+    }
+
+    private byte[] deflate(byte[] body) {
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        deflater.setInput(body);
+        deflater.finish();
+        ByteArrayBuilder out = new ByteArrayBuilder(Math.max(64, body.length / 2));
+        byte[] chunk = new byte[Math.max(64, Math.min(body.length, 8192))];
+        while (!deflater.finished()) {
+            int length = deflater.deflate(chunk);
+            out.write(chunk, 0, length);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] jsonToSmile(byte[] json) throws IOException {
+        ByteArrayBuilder out = new ByteArrayBuilder(Math.max(64, json.length / 2));
+        try (JsonParser parser = JSON_FACTORY.createParser(json);
+             JsonGenerator generator = SMILE_FACTORY.createGenerator(out)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("History event body is not a JSON object");
+            }
+            generator.writeStartObject();
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                if (parser.nextToken() == JsonToken.VALUE_NULL) {
+                    continue;
+                }
+                generator.writeFieldName(name);
+                generator.copyCurrentStructure(parser);
+            }
+            generator.writeEndObject();
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Turns a received body back into JSON, for Java consumers and tests.
+     */
+    public static byte[] decodeToJson(byte[] body, String contentType, String contentEncoding) throws IOException {
+        byte[] raw = body;
+        if (ENCODING_DEFLATE.equals(contentEncoding)) {
+            try (InflaterInputStream in = new InflaterInputStream(new ByteArrayInputStream(body))) {
+                raw = in.readAllBytes();
+            }
+        }
+        if (!CONTENT_TYPE_SMILE.equals(contentType)) {
+            return raw;
+        }
+        ByteArrayBuilder out = new ByteArrayBuilder(raw.length * 2);
+        try (JsonParser parser = SMILE_FACTORY.createParser(raw);
+             JsonGenerator generator = JSON_FACTORY.createGenerator(out)) {
+            parser.nextToken();
+            generator.copyCurrentStructure(parser);
+        }
+        return out.toByteArray();
+    }
+
+    public static final class EncodedBody {
+
+        private final byte[] body;
+        private final WireFormat format;
+        private final boolean compressed;
+        private final String eventType;
+
+        EncodedBody(byte[] body, WireFormat format, boolean compressed, String eventType) {
+            this.body = body;
+            this.format = format;
+            this.compressed = compressed;
+            this.eventType = eventType;
+        }
+
+        public byte[] getBody() {
+            return body;
+        }
+
+        public WireFormat getFormat() {
+            return format;
+        }
+
+        public boolean isCompressed() {
+            return compressed;
+        }
+
+        /**
+         * True for bodies every existing JSON consumer can read as is.
+         */
+        public boolean isPlainJson() {
+            return format == WireFormat.JSON && !compressed;
+        }
+
+        public void applyTo(MessageProperties props) {
+            props.setContentType(format.getContentType());
+            if (compressed) {
+                props.setContentEncoding(ENCODING_DEFLATE);
+            } else if (format == WireFormat.JSON) {
+                props.setContentEncoding("UTF-8");
+            }
+            props.setContentLength(body.length);
+            props.setHeader(WIRE_FORMAT_HEADER, format.name().toLowerCase(Locale.ROOT) + "/" + SCHEMA_VERSION);
+            props.setHeader(SCHEMA_HEADER, eventType + "/" + SCHEMA_VERSION);
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package ai.hhrdr.chainflow.engine.service;
+
+import org.camunda.bpm.engine.impl.history.event.HistoryEvent;
+
+/**
+ * A history event together with the enrichment resolved for it inside the engine transaction.
+ */
+public class HistoryEventMessage {
+
+    private final HistoryEvent event;
+    private final String camundaEventType;
+    private final String startUserId;
+    private final String callingProcessInstanceId;
+
+    public HistoryEventMessage(HistoryEvent event, String camundaEventType, String startUserId, String callingProcessInstanceId) {
+        this.event = event;
+        this.camundaEventType = camundaEventType;
+        this.startUserId = startUserId;
+        this.callingProcessInstanceId = callingProcessInstanceId;
+    }
+
+    public HistoryEvent getEvent() {
+        return event;
+    }
+
+    public String getCamundaEventType() {
+        return camundaEventType;
+    }
+
+    public String getStartUserId() {
+        return startUserId;
+    }
+
+    public String getCallingProcessInstanceId() {
+        return callingProcessInstanceId;
+    }
+
+    /**
+     * Key used to keep events of one process tree in order: the root instance, or the instance itself.
+     */
+    public String getOrderingKey() {
+        if (event.getRootProcessInstanceId() != null) {
+            return event.getRootProcessInstanceId();
+        }
+        return event.getProcessInstanceId();
+    }
+}
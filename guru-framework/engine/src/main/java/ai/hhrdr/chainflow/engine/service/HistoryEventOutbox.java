@@ -0,0 +1,104 @@
+package ai.hhrdr.chainflow.engine.service;
+
+import org.camunda.bpm.engine.impl.cfg.TransactionState;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.sql.DataSource;
+import java.sql.Timestamp;
+import java.util.List;
+
+/**
+ * Transactional outbox for history events.
+ *
+ * Messages of a command are serialized and inserted into ENGINE_HISTORY_OUTBOX right before the command's
+ * transaction commits, on the same engine datasource connection, so an event is stored if and only if the
+ * engine change that produced it is. {@link HistoryEventOutboxRelay} publishes and deletes the rows.
+ */
+@Component
+public class HistoryEventOutbox {
+
+    public static final String TABLE = "ENGINE_HISTORY_OUTBOX";
+
+    private static final Logger LOG = LoggerFactory.getLogger(HistoryEventOutbox.class);
+
+    private static final String INSERT = "INSERT INTO " + TABLE
+            + " (EVENT_TYPE_, START_USER_ID_, CALLING_PROC_INST_ID_, PAYLOAD_, CREATED_) VALUES (?, ?, ?, ?, ?)";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final RabbitMQSender rabbitMQSender;
+    private final boolean enabled;
+    private final CommandScopedBuffer<HistoryEventMessage> committingBuffer;
+    private boolean postgres;
+
+    public HistoryEventOutbox(@Qualifier("camundaBpmDataSource") DataSource dataSource,
+                              RabbitMQSender rabbitMQSender,
+                              HistoryEventCoalescer coalescer,
+                              @Value("${engine.rabbitmq.outbox.enabled:false}") boolean enabled) {
+        this.jdbcTemplate = new JdbcTemplate(dataSource);
+        this.rabbitMQSender = rabbitMQSender;
+        this.enabled = enabled;
+        // Rows are written in the transaction itself, so coalescing can only happen per command here
+        this.committingBuffer = new CommandScopedBuffer<>(TransactionState.COMMITTING,
+                messages -> insert(coalescer.coalesce(HistoryEventCoalescer.RABBITMQ, messages, HistoryEventMessage::getEvent)),
+                discarded -> {
+                });
+    }
+
+    @PostConstruct
+    public void init() {
+        if (!enabled) {
+            return;
+        }
+        String product = jdbcTemplate.execute((ConnectionCallback<String>) con -> con.getMetaData().getDatabaseProductName());
+        postgres = product != null && product.toLowerCase().contains("postgres");
+        String payloadType = postgres ? "BYTEA" : "BLOB";
+        jdbcTemplate.execute("CREATE TABLE IF NOT EXISTS " + TABLE + " ("
+                + "ID_ BIGINT GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY, "
+                + "EVENT_TYPE_ VARCHAR(255) NOT NULL, "
+                + "START_USER_ID_ VARCHAR(255), "
+                + "CALLING_PROC_INST_ID_ VARCHAR(64), "
+                + "PAYLOAD_ " + payloadType + " NOT NULL, "
+                + "CREATED_ TIMESTAMP NOT NULL)");
+        LOG.info("History event outbox enabled on {}", product);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * True if the database supports SELECT ... FOR UPDATE SKIP LOCKED, letting several relays work side by side.
+     */
+    boolean supportsSkipLocked() {
+        return postgres;
+    }
+
+    JdbcTemplate getJdbcTemplate() {
+        return jdbcTemplate;
+    }
+
+    public void add(HistoryEventMessage message) {
+        if (!committingBuffer.add(message)) {
+            // Not inside a command: there is no engine transaction to join, store it on its own
+            insert(List.of(message));
+        }
+    }
+
+    void insert(List<HistoryEventMessage> messages) {
+        Timestamp now = new Timestamp(System.currentTimeMillis());
+        jdbcTemplate.batchUpdate(INSERT, messages, messages.size(), (ps, message) -> {
+            ps.setString(1, message.getCamundaEventType());
+            ps.setString(2, message.getStartUserId());
+            ps.setString(3, message.getCallingProcessInstanceId());
+            ps.setBytes(4, rabbitMQSender.serialize(message.getEvent(), message.getStartUserId(), message.getCallingProcessInstanceId()));
+            ps.setTimestamp(5, now);
+        });
+    }
+}
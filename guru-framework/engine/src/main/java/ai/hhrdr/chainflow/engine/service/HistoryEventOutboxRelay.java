@@ -0,0 +1,158 @@
+package ai.hhrdr.chainflow.engine.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.rabbit.connection.CorrelationData;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drains {@link HistoryEventOutbox} in id order: locks a batch of rows, publishes them with publisher
+ * confirms, and deletes them in the same transaction once every message was acked. A nack or confirm timeout
+ * rolls the transaction back, so the rows are retried on the next run.
+ */
+@Component
+public class HistoryEventOutboxRelay {
+
+    private static final Logger LOG = LoggerFactory.getLogger(HistoryEventOutboxRelay.class);
+
+    private final HistoryEventOutbox outbox;
+    private final RabbitMQSender rabbitMQSender;
+    private final TransactionTemplate transactionTemplate;
+    private final int batchSize;
+    private final long confirmTimeout;
+
+    private final Counter relayed;
+    private final Timer batchTimer;
+    private final AtomicLong backlog = new AtomicLong();
+    private final AtomicLong lagMillis = new AtomicLong();
+
+    public HistoryEventOutboxRelay(HistoryEventOutbox outbox,
+                                   RabbitMQSender rabbitMQSender,
+                                   PlatformTransactionManager transactionManager,
+                                   MeterRegistry meterRegistry,
+                                   @Value("${engine.rabbitmq.outbox.relay.batch.size:500}") int batchSize,
+                                   @Value("${engine.rabbitmq.outbox.relay.confirm.timeout:5000}") long confirmTimeout) {
+        this.outbox = outbox;
+        this.rabbitMQSender = rabbitMQSender;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.batchSize = batchSize;
+        this.confirmTimeout = confirmTimeout;
+
+        this.relayed = Counter.builder("rabbitmq.outbox.relayed")
+                .description("History events published from the outbox")
+                .register(meterRegistry);
+        this.batchTimer = Timer.builder("rabbitmq.outbox.relay.batch")
+                .description("Time to publish, confirm and delete one outbox batch")
+                .register(meterRegistry);
+        Gauge.builder("rabbitmq.outbox.backlog", backlog, AtomicLong::get)
+                .description("Rows waiting in the outbox")
+                .register(meterRegistry);
+        Gauge.builder("rabbitmq.outbox.lag", lagMillis, value -> value.get() / 1000.0)
+                .description("Age of the oldest row waiting in the outbox")
+                .baseUnit("seconds")
+                .register(meterRegistry);
+    }
+
+    @Scheduled(fixedDelayString = "${engine.rabbitmq.outbox.relay.interval:1000}")
+    public void relay() {
+        if (!outbox.isEnabled() || !rabbitMQSender.isEnabled()) {
+            return;
+        }
+        try {
+            int count;
+            do {
+                count = batchTimer.recordCallable(this::relayBatch);
+            } while (count == batchSize);
+        } catch (Exception e) {
+            LOG.warn("Outbox relay stopped, will retry: {}", e.getMessage());
+        } finally {
+            refreshLag();
+        }
+    }
+
+    /**
+     * Publishes and deletes one batch.
+     *
+     * @return number of rows relayed
+     */
+    int relayBatch() {
+        Integer count = transactionTemplate.execute(status -> {
+            JdbcTemplate jdbcTemplate = outbox.getJdbcTemplate();
+            List<OutboxRow> rows = jdbcTemplate.query(selectBatchSql(), (rs, rowNum) -> new OutboxRow(
+                    rs.getLong("ID_"),
+                    rs.getString("EVENT_TYPE_"),
+                    rs.getString("START_USER_ID_"),
+                    rs.getString("CALLING_PROC_INST_ID_"),
+                    rs.getBytes("PAYLOAD_")), batchSize);
+            if (rows.isEmpty()) {
+                return 0;
+            }
+
+            List<CorrelationData> correlations = new ArrayList<>(rows.size() * 2);
+            for (OutboxRow row : rows) {
+                correlations.addAll(rabbitMQSender.publishConfirmed(
+                        row.eventType, row.startUserId, row.callingProcessInstanceId, row.payload));
+            }
+            PublisherConfirms.await(correlations, confirmTimeout);
+
+            List<Object[]> ids = new ArrayList<>(rows.size());
+            for (OutboxRow row : rows) {
+                ids.add(new Object[]{row.id});
+            }
+            jdbcTemplate.batchUpdate("DELETE FROM " + HistoryEventOutbox.TABLE + " WHERE ID_ = ?", ids);
+            return rows.size();
+        });
+        int relayedCount = count == null ? 0 : count;
+        relayed.increment(relayedCount);
+        return relayedCount;
+    }
+
+    private String selectBatchSql() {
+        String lock = outbox.supportsSkipLocked() ? " FOR UPDATE SKIP LOCKED" : " FOR UPDATE";
+        return "SELECT ID_, EVENT_TYPE_, START_USER_ID_, CALLING_PROC_INST_ID_, PAYLOAD_ FROM " + HistoryEventOutbox.TABLE
+                + " ORDER BY ID_ LIMIT ?" + lock;
+    }
+
+    private void refreshLag() {
+        try {
+            outbox.getJdbcTemplate().query("SELECT COUNT(*) AS PENDING_, MIN(CREATED_) AS OLDEST_ FROM " + HistoryEventOutbox.TABLE, rs -> {
+                backlog.set(rs.getLong("PENDING_"));
+                Timestamp oldest = rs.getTimestamp("OLDEST_");
+                lagMillis.set(oldest == null ? 0 : Math.max(0, System.currentTimeMillis() - oldest.getTime()));
+            });
+        } catch (Exception e) {
+            LOG.debug("Cannot read outbox lag: {}", e.getMessage());
+        }
+    }
+
+    private static final class OutboxRow {
+
+        private final long id;
+        private final String eventType;
+        private final String startUserId;
+        private final String callingProcessInstanceId;
+        private final byte[] payload;
+
+        OutboxRow(long id, String eventType, String startUserId, String callingProcessInstanceId, byte[] payload) {
+            this.id = id;
+            this.eventType = eventType;
+            this.startUserId = startUserId;
+            this.callingProcessInstanceId = callingProcessInstanceId;
+            this.payload = payload;
+        }
+    }
+}
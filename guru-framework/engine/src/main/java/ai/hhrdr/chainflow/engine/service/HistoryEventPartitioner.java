@@ -0,0 +1,230 @@
+package ai.hhrdr.chainflow.engine.service;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.camunda.bpm.engine.impl.history.event.HistoricProcessInstanceEventEntity;
+import org.camunda.bpm.engine.impl.history.event.HistoryEvent;
+import org.camunda.bpm.engine.impl.history.event.HistoryEventTypes;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Spreads history events over engine.rabbitmq.partition.count routing keys, {@code <routingkey>.<partition>},
+ * each bound to its own queue by RabbitMQConfig. All events of one process instance, or of one process tree
+ * when partitioning by root instance, share a partition, so consumers can run one per queue and still see
+ * every instance's events in order.
+ *
+ * The partition is the jump consistent hash of the 64-bit FNV-1a hash of the key's UTF-8 bytes; changing the
+ * partition count only moves about 1/N of the instances. Every message carries its partition and a sequence
+ * number counted per key, starting at 1, so consumers can detect gaps. Counters live in memory: they are
+ * dropped when the keyed instance ends or falls out of the bounded table, and restart with a new
+ * x-sequence-epoch when the engine restarts, so a sequence going back to 1 marks a reset, not a gap.
+ */
+@Component
+public class HistoryEventPartitioner {
+
+    public enum PartitionKey {
+        PROCESS_INSTANCE, ROOT_PROCESS_INSTANCE
+    }
+
+    public static final String PARTITION_HEADER = "x-partition";
+    public static final String PARTITION_KEY_HEADER = "x-partition-key";
+    public static final String SEQUENCE_HEADER = "x-sequence";
+    public static final String SEQUENCE_EPOCH_HEADER = "x-sequence-epoch";
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    private static final String PROCESS_INSTANCE_EVENT_TYPE = HistoricProcessInstanceEventEntity.class.getSimpleName();
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private final String routingKey;
+    private final int partitions;
+    private final PartitionKey partitionKey;
+    private final long epoch = System.currentTimeMillis();
+    private final Map<String, Long> sequences;
+
+    public HistoryEventPartitioner(@Value("${engine.rabbitmq.routingkey}") String routingKey,
+                                   @Value("${engine.rabbitmq.partition.count:0}") int partitions,
+                                   @Value("${engine.rabbitmq.partition.key:ROOT_PROCESS_INSTANCE}") PartitionKey partitionKey,
+                                   @Value("${engine.rabbitmq.partition.sequence.cache.size:100000}") int sequenceCacheSize) {
+        this.routingKey = routingKey;
+        this.partitions = partitions;
+        this.partitionKey = partitionKey;
+        this.sequences = new LinkedHashMap<>(256, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > sequenceCacheSize;
+            }
+        };
+    }
+
+    public boolean isEnabled() {
+        return partitions > 0;
+    }
+
+    /**
+     * Assigns a partition and the next sequence number. Has to be called in publishing order.
+     */
+    public Assignment assign(HistoryEvent event) {
+        String key = partitionKey == PartitionKey.ROOT_PROCESS_INSTANCE && event.getRootProcessInstanceId() != null
+                ? event.getRootProcessInstanceId()
+                : event.getProcessInstanceId();
+        boolean ends = event instanceof HistoricProcessInstanceEventEntity
+                && HistoryEventTypes.PROCESS_INSTANCE_END.getEventName().equals(event.getEventType())
+                && key != null && key.equals(event.getProcessInstanceId());
+        return assign(key, ends);
+    }
+
+    /**
+     * Same as {@link #assign(HistoryEvent)} for an event already serialized to JSON, e.g. a spilled one.
+     */
+    public Assignment assign(String camundaEventType, byte[] json) {
+        StoredFields fields = StoredFields.read(json);
+        String key = partitionKey == PartitionKey.ROOT_PROCESS_INSTANCE && fields.rootProcessInstanceId != null
+                ? fields.rootProcessInstanceId
+                : fields.processInstanceId;
+        boolean ends = PROCESS_INSTANCE_EVENT_TYPE.equals(camundaEventType)
+                && HistoryEventTypes.PROCESS_INSTANCE_END.getEventName().equals(fields.eventType)
+                && key != null && key.equals(fields.processInstanceId);
+        return assign(key, ends);
+    }
+
+    private Assignment assign(String key, boolean ends) {
+        if (key == null) {
+            return new Assignment(0, routingKey(routingKey, 0), null, 0, epoch);
+        }
+        long sequence;
+        synchronized (sequences) {
+            if (ends) {
+                Long last = sequences.remove(key);
+                sequence = last == null ? 1 : last + 1;
+            } else {
+                sequence = sequences.merge(key, 1L, Long::sum);
+            }
+        }
+        int partition = partitionOf(key, partitions);
+        return new Assignment(partition, routingKey(routingKey, partition), key, sequence, epoch);
+    }
+
+    public static String routingKey(String baseRoutingKey, int partition) {
+        return baseRoutingKey + "." + partition;
+    }
+
+    static int partitionOf(String key, int partitions) {
+        long hash = FNV_OFFSET_BASIS;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= FNV_PRIME;
+        }
+        return jumpConsistentHash(hash, partitions);
+    }
+
+    /**
+     * Lamping and Veach, "A Fast, Minimal Memory, Consistent Hash Algorithm".
+     */
+    static int jumpConsistentHash(long key, int buckets) {
+        long b = -1;
+        long j = 0;
+        while (j < buckets) {
+            b = j;
+            key = key * 2862933555777941757L + 1;
+            j = (long) ((b + 1) * ((double) (1L << 31) / (double) ((key >>> 33) + 1)));
+        }
+        return (int) b;
+    }
+
+    public static final class Assignment {
+
+        private final int partition;
+        private final String routingKey;
+        private final String key;
+        private final long sequence;
+        private final long epoch;
+
+        Assignment(int partition, String routingKey, String key, long sequence, long epoch) {
+            this.partition = partition;
+            this.routingKey = routingKey;
+            this.key = key;
+            this.sequence = sequence;
+            this.epoch = epoch;
+        }
+
+        public int getPartition() {
+            return partition;
+        }
+
+        public String getRoutingKey() {
+            return routingKey;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        /**
+         * @return sequence number within the key, 0 for events without a process instance
+         */
+        public long getSequence() {
+            return sequence;
+        }
+
+        public void applyTo(MessageProperties props) {
+            props.setHeader(PARTITION_HEADER, partition);
+            if (key != null) {
+                props.setHeader(PARTITION_KEY_HEADER, key);
+                props.setHeader(SEQUENCE_HEADER, sequence);
+                props.setHeader(SEQUENCE_EPOCH_HEADER, epoch);
+            }
+        }
+    }
+
+    /**
+     * The top-level fields partitioning needs. The first occurrence wins, since the serializer appends the
+     * enrichment's rootProcessInstanceId after the event's own field of that name.
+     */
+    private static final class StoredFields {
+
+        private String processInstanceId;
+        private String rootProcessInstanceId;
+        private String eventType;
+
+        static StoredFields read(byte[] json) {
+            StoredFields fields = new StoredFields();
+            try (JsonParser parser = JSON_FACTORY.createParser(json)) {
+                if (parser.nextToken() != JsonToken.START_OBJECT) {
+                    return fields;
+                }
+                boolean rootSeen = false;
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String name = parser.getCurrentName();
+                    JsonToken value = parser.nextToken();
+                    if (HistoryEventSerializer.ROOT_PROCESS_INSTANCE_ID.equals(name)) {
+                        if (!rootSeen && value == JsonToken.VALUE_STRING) {
+                            fields.rootProcessInstanceId = parser.getText();
+                        }
+                        rootSeen = true;
+                    } else if (value == JsonToken.VALUE_STRING) {
+                        if ("processInstanceId".equals(name) && fields.processInstanceId == null) {
+                            fields.processInstanceId = parser.getText();
+                        } else if ("eventType".equals(name) && fields.eventType == null) {
+                            fields.eventType = parser.getText();
+                        }
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot read partition key of stored history event", e);
+            }
+            return fields;
+        }
+    }
+}
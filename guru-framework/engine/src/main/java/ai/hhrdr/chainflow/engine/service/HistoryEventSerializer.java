@@ -0,0 +1,152 @@
+package ai.hhrdr.chainflow.engine.service;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.util.ByteArrayBuilder;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.camunda.bpm.engine.impl.history.event.HistoryEvent;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Writes a {@link HistoryEvent} as the flat JSON object consumers of the engine exchange expect: every
+ * instance field of the event class hierarchy, plus camundaUserId and rootProcessInstanceId taken from the
+ * resolved enrichment.
+ *
+ * Field accessors are resolved once per event class into {@link MethodHandle}s and the JSON is streamed into
+ * a reused per-thread buffer, so no reflection and no intermediate map is involved per event.
+ */
+public class HistoryEventSerializer {
+
+    static final String CAMUNDA_USER_ID = "camundaUserId";
+    static final String ROOT_PROCESS_INSTANCE_ID = "rootProcessInstanceId";
+
+    private static final MethodType ACCESSOR_TYPE = MethodType.methodType(Object.class, Object.class);
+
+    private static final ClassValue<FieldAccessor[]> ACCESSORS = new ClassValue<>() {
+        @Override
+        protected FieldAccessor[] computeValue(Class<?> type) {
+            return resolveAccessors(type);
+        }
+    };
+
+    private final ObjectMapper objectMapper;
+    private final boolean skipNulls;
+    private final ThreadLocal<ByteArrayBuilder> buffers = ThreadLocal.withInitial(() -> new ByteArrayBuilder(2048));
+
+    public HistoryEventSerializer(ObjectMapper objectMapper) {
+        this(objectMapper, false);
+    }
+
+    /**
+     * @param skipNulls leave out fields whose value is null, for compact encodings whose consumers treat a
+     *                  missing field as null
+     */
+    public HistoryEventSerializer(ObjectMapper objectMapper, boolean skipNulls) {
+        this.objectMapper = objectMapper;
+        this.skipNulls = skipNulls;
+    }
+
+    public byte[] serialize(HistoryEvent event, String startUserId, String callingProcessInstanceId) throws IOException {
+        ByteArrayBuilder buffer = buffers.get();
+        buffer.reset();
+        try (JsonGenerator generator = objectMapper.getFactory().createGenerator(buffer)) {
+            writeEvent(generator, event, startUserId, callingProcessInstanceId);
+        }
+        return buffer.toByteArray();
+    }
+
+    public void writeEvent(JsonGenerator generator, HistoryEvent event, String startUserId,
+                           String callingProcessInstanceId) throws IOException {
+        generator.writeStartObject();
+        for (FieldAccessor accessor : ACCESSORS.get(event.getClass())) {
+            Object value = accessor.get(event);
+            if (value == null && skipNulls) {
+                continue;
+            }
+            generator.writeFieldName(accessor.name);
+            writeValue(generator, value);
+        }
+        writeEnrichment(generator, CAMUNDA_USER_ID, startUserId);
+        writeEnrichment(generator, ROOT_PROCESS_INSTANCE_ID, callingProcessInstanceId);
+        generator.writeEndObject();
+    }
+
+    private void writeEnrichment(JsonGenerator generator, String name, String value) throws IOException {
+        if (value != null || !skipNulls) {
+            generator.writeStringField(name, value);
+        }
+    }
+
+    private static void writeValue(JsonGenerator generator, Object value) throws IOException {
+        if (value == null) {
+            generator.writeNull();
+        } else if (value instanceof String) {
+            generator.writeString((String) value);
+        } else if (value instanceof Long) {
+            generator.writeNumber((Long) value);
+        } else if (value instanceof Integer) {
+            generator.writeNumber((Integer) value);
+        } else if (value instanceof Boolean) {
+            generator.writeBoolean((Boolean) value);
+        } else {
+            generator.writeObject(value);
+        }
+    }
+
+    private static FieldAccessor[] resolveAccessors(Class<?> type) {
+        // Same precedence as walking the hierarchy into a map: a superclass field replaces a subclass field
+        // of the same name, but keeps the position where the name was first seen.
+        Map<String, Field> fields = new LinkedHashMap<>();
+        Class<?> currentClass = type;
+        while (currentClass != null && currentClass != Object.class) {
+            for (Field field : currentClass.getDeclaredFields()) {
+                if (Modifier.isStatic(field.getModifiers())
+                        || CAMUNDA_USER_ID.equals(field.getName())
+                        || ROOT_PROCESS_INSTANCE_ID.equals(field.getName())) {
+                    continue;
+                }
+                fields.put(field.getName(), field);
+            }
+            currentClass = currentClass.getSuperclass();
+        }
+
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        FieldAccessor[] accessors = new FieldAccessor[fields.size()];
+        int i = 0;
+        for (Field field : fields.values()) {
+            try {
+                field.setAccessible(true);
+                accessors[i++] = new FieldAccessor(field.getName(), lookup.unreflectGetter(field).asType(ACCESSOR_TYPE));
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException("Cannot access field " + field + " of " + type.getName(), e);
+            }
+        }
+        return accessors;
+    }
+
+    private static final class FieldAccessor {
+
+        private final String name;
+        private final MethodHandle getter;
+
+        FieldAccessor(String name, MethodHandle getter) {
+            this.name = name;
+            this.getter = getter;
+        }
+
+        Object get(Object target) throws IOException {
+            try {
+                return (Object) getter.invokeExact(target);
+            } catch (Throwable e) {
+                throw new IOException("Cannot read field " + name, e);
+            }
+        }
+    }
+}
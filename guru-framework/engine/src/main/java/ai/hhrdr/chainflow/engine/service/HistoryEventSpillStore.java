@@ -0,0 +1,391 @@
+package ai.hhrdr.chainflow.engine.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * Append-only journal on local disk for history event messages that could not be handed to RabbitMQ.
+ *
+ * Records go into memory-mapped segment files that roll over at the configured size. Each record is
+ * {@code [int payload length][int CRC32C of payload][payload]}, the length being written last, so a record
+ * torn by a crash reads as end of data or fails its checksum and ends the segment there.
+ *
+ * Replay seals the segment being written and reads all segments oldest first. Progress is checkpointed
+ * whenever the publisher has confirmed what was sent so far, and a segment is deleted once all of its
+ * records are confirmed. A failed replay resumes from the last checkpoint, so records may be delivered twice
+ * but never skipped.
+ */
+@Component
+public class HistoryEventSpillStore {
+
+    private static final Logger LOG = LoggerFactory.getLogger(HistoryEventSpillStore.class);
+
+    static final String SEGMENT_PREFIX = "spill-";
+    static final String SEGMENT_SUFFIX = ".journal";
+    private static final String LEGACY_SEGMENT_SUFFIX = ".jsonl";
+    private static final String CHECKPOINT_FILE = "replay.checkpoint";
+    private static final int RECORD_HEADER = 8;
+    private static final int CONFIRM_BATCH = 500;
+
+    private final Path directory;
+    private final int segmentSize;
+    private final boolean forceEachAppend;
+    private final AtomicLong pendingRecords = new AtomicLong();
+    private final Object replayLock = new Object();
+
+    private FileChannel activeChannel;
+    private MappedByteBuffer active;
+    private long nextSequence;
+
+    public HistoryEventSpillStore(@Value("${engine.rabbitmq.dispatch.spill.dir:./rabbitmq-spill}") String directory,
+                                  @Value("${engine.rabbitmq.dispatch.spill.segment.size:16777216}") int segmentSize,
+                                  @Value("${engine.rabbitmq.dispatch.spill.force:false}") boolean forceEachAppend) {
+        this.directory = Paths.get(directory);
+        this.segmentSize = segmentSize;
+        this.forceEachAppend = forceEachAppend;
+    }
+
+    /**
+     * Recovers the journal left by a previous run: counts the valid records of every segment, stopping at a
+     * torn or corrupt record, and moves records of the older JSON lines spill files into the journal.
+     */
+    @PostConstruct
+    public synchronized void open() throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+        Checkpoint checkpoint = readCheckpoint();
+        long records = 0;
+        for (Path segment : listSegments(SEGMENT_SUFFIX)) {
+            nextSequence = Math.max(nextSequence, sequenceOf(segment) + 1);
+            long[] count = {0};
+            try {
+                readSegment(segment, checkpoint.offsetFor(segment), (next, type, user, calling, body) -> count[0]++);
+            } catch (Exception e) {
+                throw new IOException("Cannot recover spill segment " + segment, e);
+            }
+            records += count[0];
+        }
+        pendingRecords.set(records);
+        importLegacySegments();
+        if (pendingRecords.get() > 0) {
+            LOG.info("Spill journal {} holds {} history events to replay", directory, pendingRecords.get());
+        }
+    }
+
+    public synchronized void append(String camundaEventType, String startUserId, String callingProcessInstanceId,
+                                    byte[] messageBody) throws IOException {
+        byte[] type = utf8(camundaEventType);
+        byte[] user = utf8(startUserId);
+        byte[] calling = utf8(callingProcessInstanceId);
+        int payloadLength = stringLength(type) + stringLength(user) + stringLength(calling) + messageBody.length;
+        int recordLength = RECORD_HEADER + payloadLength;
+        if (active == null || active.remaining() < recordLength) {
+            roll(recordLength);
+        }
+
+        int start = active.position();
+        active.position(start + RECORD_HEADER);
+        putString(active, type);
+        putString(active, user);
+        putString(active, calling);
+        active.put(messageBody);
+
+        ByteBuffer payload = active.duplicate();
+        payload.position(start + RECORD_HEADER).limit(start + recordLength);
+        CRC32C crc = new CRC32C();
+        crc.update(payload);
+        active.putInt(start + 4, (int) crc.getValue());
+        // Length goes last: until it is written the record reads as end of data
+        active.putInt(start, payloadLength);
+        if (forceEachAppend) {
+            active.force();
+        }
+        pendingRecords.incrementAndGet();
+    }
+
+    public boolean hasPending() {
+        return pendingRecords.get() > 0;
+    }
+
+    public long pendingRecords() {
+        return pendingRecords.get();
+    }
+
+    /**
+     * Replays journaled records in order until the journal is empty or the publisher fails.
+     *
+     * @return number of records replayed and confirmed
+     */
+    public int replay(SpilledMessagePublisher publisher) {
+        synchronized (replayLock) {
+            List<Path> segments;
+            synchronized (this) {
+                sealActive();
+                segments = listSegments(SEGMENT_SUFFIX);
+            }
+            Checkpoint checkpoint = readCheckpoint();
+            ReplayProgress progress = new ReplayProgress(publisher);
+            for (Path segment : segments) {
+                progress.segment = segment;
+                try {
+                    readSegment(segment, checkpoint.offsetFor(segment), progress::publish);
+                    progress.confirm(-1);
+                    Files.delete(segment);
+                    Files.deleteIfExists(directory.resolve(CHECKPOINT_FILE));
+                } catch (Exception e) {
+                    LOG.warn("Replay of spill segment {} stopped, {} records left: {}", segment, pendingRecords.get(), e.getMessage());
+                    break;
+                }
+            }
+            return progress.confirmed;
+        }
+    }
+
+    public synchronized void close() {
+        sealActive();
+    }
+
+    private void roll(int recordLength) throws IOException {
+        sealActive();
+        Files.createDirectories(directory);
+        Path segment = directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, nextSequence++, SEGMENT_SUFFIX));
+        activeChannel = FileChannel.open(segment, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        active = activeChannel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(segmentSize, recordLength));
+    }
+
+    private void sealActive() {
+        if (active == null) {
+            return;
+        }
+        int written = active.position();
+        active.force();
+        active = null;
+        try {
+            // Give back the unused preallocated tail
+            activeChannel.truncate(written);
+        } catch (IOException e) {
+            LOG.debug("Cannot truncate spill segment: {}", e.getMessage());
+        }
+        try {
+            activeChannel.close();
+        } catch (IOException e) {
+            LOG.error("Cannot close spill segment", e);
+        }
+        activeChannel = null;
+    }
+
+    /**
+     * Visits the valid records of a segment from the given offset on.
+     *
+     * @return offset after the last valid record
+     */
+    static long readSegment(Path segment, long offset, RecordVisitor visitor) throws Exception {
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buffer.position((int) Math.min(offset, buffer.limit()));
+            while (buffer.remaining() >= RECORD_HEADER) {
+                int start = buffer.position();
+                int length = buffer.getInt(start);
+                if (length <= 0 || length > buffer.remaining() - RECORD_HEADER) {
+                    if (length != 0) {
+                        LOG.error("Spill segment {} ends with a torn record at offset {}", segment, start);
+                    }
+                    break;
+                }
+                ByteBuffer payload = buffer.duplicate();
+                payload.position(start + RECORD_HEADER).limit(start + RECORD_HEADER + length);
+                CRC32C crc = new CRC32C();
+                crc.update(payload);
+                if ((int) crc.getValue() != buffer.getInt(start + 4)) {
+                    LOG.error("Spill segment {} has a corrupt record at offset {}, the rest of the segment is skipped", segment, start);
+                    break;
+                }
+                payload.position(start + RECORD_HEADER);
+                String type = getString(payload);
+                String user = getString(payload);
+                String calling = getString(payload);
+                byte[] body = new byte[payload.remaining()];
+                payload.get(body);
+                long next = start + RECORD_HEADER + length;
+                buffer.position((int) next);
+                visitor.visit(next, type, user, calling, body);
+            }
+            return buffer.position();
+        }
+    }
+
+    private void importLegacySegments() throws IOException {
+        ObjectMapper objectMapper = new ObjectMapper();
+        for (Path legacy : listSegments(LEGACY_SEGMENT_SUFFIX)) {
+            for (String line : Files.readAllLines(legacy, StandardCharsets.UTF_8)) {
+                if (line.isBlank()) {
+                    continue;
+                }
+                JsonNode record = objectMapper.readTree(line);
+                append(record.path("camundaEventType").textValue(), record.path("startUserId").textValue(),
+                        record.path("callingProcessInstanceId").textValue(), objectMapper.writeValueAsBytes(record.get("body")));
+            }
+            sealActive();
+            Files.delete(legacy);
+            LOG.info("Moved spill file {} into the journal", legacy);
+        }
+    }
+
+    private Checkpoint readCheckpoint() {
+        Path file = directory.resolve(CHECKPOINT_FILE);
+        try {
+            if (Files.exists(file)) {
+                String[] parts = Files.readString(file, StandardCharsets.UTF_8).trim().split(" ");
+                return new Checkpoint(parts[0], Long.parseLong(parts[1]));
+            }
+        } catch (Exception e) {
+            LOG.error("Cannot read spill checkpoint {}, replaying from segment start", file, e);
+        }
+        return new Checkpoint(null, 0);
+    }
+
+    private void writeCheckpoint(Path segment, long offset) throws IOException {
+        Path tmp = directory.resolve(CHECKPOINT_FILE + ".tmp");
+        Files.writeString(tmp, segment.getFileName() + " " + offset, StandardCharsets.UTF_8);
+        Files.move(tmp, directory.resolve(CHECKPOINT_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private List<Path> listSegments(String suffix) {
+        if (!Files.isDirectory(directory)) {
+            return new ArrayList<>();
+        }
+        try (Stream<Path> files = Files.list(directory)) {
+            return files
+                    .filter(path -> {
+                        String name = path.getFileName().toString();
+                        return name.startsWith(SEGMENT_PREFIX) && name.endsWith(suffix);
+                    })
+                    .sorted()
+                    .collect(Collectors.toList());
+        } catch (IOException e) {
+            LOG.error("Cannot list spill directory {}", directory, e);
+            return new ArrayList<>();
+        }
+    }
+
+    private static long sequenceOf(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    private static byte[] utf8(String value) {
+        return value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static int stringLength(byte[] value) {
+        return 2 + (value == null ? 0 : value.length);
+    }
+
+    private static void putString(ByteBuffer buffer, byte[] value) {
+        if (value == null) {
+            buffer.putShort((short) -1);
+        } else {
+            buffer.putShort((short) value.length);
+            buffer.put(value);
+        }
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        int length = buffer.getShort();
+        if (length < 0) {
+            return null;
+        }
+        byte[] value = new byte[length];
+        buffer.get(value);
+        return new String(value, StandardCharsets.UTF_8);
+    }
+
+    @FunctionalInterface
+    public interface SpilledMessagePublisher {
+        void publish(String camundaEventType, String startUserId, String callingProcessInstanceId,
+                     byte[] messageBody) throws Exception;
+
+        /**
+         * Blocks until everything published so far is confirmed, throwing if any of it was not.
+         */
+        default void awaitConfirms() throws Exception {
+        }
+    }
+
+    @FunctionalInterface
+    interface RecordVisitor {
+        void visit(long nextOffset, String camundaEventType, String startUserId, String callingProcessInstanceId,
+                   byte[] messageBody) throws Exception;
+    }
+
+    private static final class Checkpoint {
+
+        private final String segmentName;
+        private final long offset;
+
+        Checkpoint(String segmentName, long offset) {
+            this.segmentName = segmentName;
+            this.offset = offset;
+        }
+
+        long offsetFor(Path segment) {
+            return segment.getFileName().toString().equals(segmentName) ? offset : 0;
+        }
+    }
+
+    private final class ReplayProgress {
+
+        private final SpilledMessagePublisher publisher;
+        private Path segment;
+        private int unconfirmed;
+        private int confirmed;
+
+        ReplayProgress(SpilledMessagePublisher publisher) {
+            this.publisher = publisher;
+        }
+
+        void publish(long nextOffset, String type, String user, String calling, byte[] body) throws Exception {
+            publisher.publish(type, user, calling, body);
+            unconfirmed++;
+            if (unconfirmed >= CONFIRM_BATCH) {
+                confirm(nextOffset);
+            }
+        }
+
+        /**
+         * @param checkpointOffset offset to checkpoint in the current segment, negative when the segment is done
+         */
+        void confirm(long checkpointOffset) throws Exception {
+            publisher.awaitConfirms();
+            if (checkpointOffset >= 0) {
+                writeCheckpoint(segment, checkpointOffset);
+            }
+            pendingRecords.addAndGet(-unconfirmed);
+            confirmed += unconfirmed;
+            unconfirmed = 0;
+        }
+    }
+}
@@ -0,0 +1,253 @@
+package ai.hhrdr.chainflow.engine.service;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Blocking FIFO of serialized inscription events in one preallocated byte array.
+ *
+ * A record is its length followed by the coalescing key, the event id and the event JSON. Records never wrap
+ * around the end of the array: one that does not fit behind the last record starts over at the beginning,
+ * and the skipped tail counts as used until the reader passes it. Memory use is the byte budget, whatever
+ * the events look like, and queued events hold no references into the engine.
+ */
+final class InscriptionRecordBuffer {
+
+    private static final int WRAP = -1;
+    private static final int NULL_STRING = -1;
+
+    private final byte[] buffer;
+    private final int maxRecords;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+
+    private int head;
+    private int tail;
+    private int used;
+    private int count;
+
+    InscriptionRecordBuffer(int capacityBytes, int maxRecords) {
+        this.buffer = new byte[capacityBytes];
+        this.maxRecords = maxRecords;
+    }
+
+    /**
+     * @return false if the record does not fit into the free space or the buffer holds maxRecords already
+     */
+    boolean offer(String coalescingKey, String eventId, byte[] json) {
+        byte[] key = bytes(coalescingKey);
+        byte[] id = bytes(eventId);
+        int length = 4 + length(key) + 4 + length(id) + json.length;
+        int needed = 4 + length;
+        lock.lock();
+        try {
+            if (count >= maxRecords) {
+                return false;
+            }
+            int position = reserve(needed);
+            if (position < 0) {
+                return false;
+            }
+            position = writeInt(position, length);
+            position = writeBytes(position, key);
+            position = writeBytes(position, id);
+            System.arraycopy(json, 0, buffer, position, json.length);
+            tail = position + json.length;
+            if (tail == buffer.length) {
+                tail = 0;
+            }
+            used += needed;
+            count++;
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits up to the timeout for a record.
+     *
+     * @return the oldest record, or null if none arrived in time
+     */
+    Record poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (count == 0) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return take();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Moves up to max records into the target without waiting.
+     *
+     * @return the number of records moved
+     */
+    int drainTo(Collection<Record> target, int max) {
+        lock.lock();
+        try {
+            int drained = 0;
+            while (count > 0 && drained < max) {
+                target.add(take());
+                drained++;
+            }
+            return drained;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int size() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * @return bytes taken by queued records, including tails skipped at the end of the array
+     */
+    int usedBytes() {
+        lock.lock();
+        try {
+            return used;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int capacityBytes() {
+        return buffer.length;
+    }
+
+    /**
+     * @return where a record of the given size can be written, or -1 if there is no room
+     */
+    private int reserve(int needed) {
+        if (used == 0) {
+            head = 0;
+            tail = 0;
+        }
+        if (used == buffer.length) {
+            return -1;
+        }
+        boolean wrapped = tail < head || (tail == head && used > 0);
+        if (wrapped) {
+            return needed <= head - tail ? tail : -1;
+        }
+        if (needed <= buffer.length - tail) {
+            return tail;
+        }
+        if (needed > head) {
+            return -1;
+        }
+        // Skip the rest of the array; the reader recognizes the marker, or a tail too short to hold one
+        int skipped = buffer.length - tail;
+        if (skipped >= 4) {
+            writeInt(tail, WRAP);
+        }
+        used += skipped;
+        tail = 0;
+        return 0;
+    }
+
+    private Record take() {
+        if (buffer.length - head < 4 || readInt(head) == WRAP) {
+            used -= buffer.length - head;
+            head = 0;
+        }
+        int length = readInt(head);
+        int position = head + 4;
+        int keyLength = readInt(position);
+        String key = string(position + 4, keyLength);
+        position += 4 + Math.max(0, keyLength);
+        int idLength = readInt(position);
+        String id = string(position + 4, idLength);
+        position += 4 + Math.max(0, idLength);
+        int jsonLength = head + 4 + length - position;
+        byte[] json = new byte[jsonLength];
+        System.arraycopy(buffer, position, json, 0, jsonLength);
+
+        head += 4 + length;
+        used -= 4 + length;
+        if (head == buffer.length) {
+            head = 0;
+        }
+        count--;
+        if (count == 0) {
+            head = 0;
+            tail = 0;
+            used = 0;
+        }
+        return new Record(key, id, json);
+    }
+
+    private static byte[] bytes(String value) {
+        return value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static int length(byte[] bytes) {
+        return bytes == null ? 0 : bytes.length;
+    }
+
+    private int writeBytes(int position, byte[] bytes) {
+        if (bytes == null) {
+            return writeInt(position, NULL_STRING);
+        }
+        position = writeInt(position, bytes.length);
+        System.arraycopy(bytes, 0, buffer, position, bytes.length);
+        return position + bytes.length;
+    }
+
+    private String string(int position, int length) {
+        return length == NULL_STRING ? null : new String(buffer, position, length, StandardCharsets.UTF_8);
+    }
+
+    private int writeInt(int position, int value) {
+        buffer[position] = (byte) (value >>> 24);
+        buffer[position + 1] = (byte) (value >>> 16);
+        buffer[position + 2] = (byte) (value >>> 8);
+        buffer[position + 3] = (byte) value;
+        return position + 4;
+    }
+
+    private int readInt(int position) {
+        return (buffer[position] & 0xff) << 24
+                | (buffer[position + 1] & 0xff) << 16
+                | (buffer[position + 2] & 0xff) << 8
+                | buffer[position + 3] & 0xff;
+    }
+
+    /**
+     * One dequeued event; the only copy of its bytes outside the buffer.
+     */
+    static final class Record {
+
+        final String coalescingKey;
+        final String eventId;
+        final byte[] json;
+
+        Record(String coalescingKey, String eventId, byte[] json) {
+            this.coalescingKey = coalescingKey;
+            this.eventId = eventId;
+            this.json = json;
+        }
+    }
+}
@@ -1,7 +1,15 @@
 package ai.hhrdr.chainflow.engine.service;
 
+import ai.hhrdr.chainflow.engine.ethereum.InscriptionAnchorService;
 import ai.hhrdr.chainflow.engine.ethereum.InscriptionDataService;
+import ai.hhrdr.chainflow.engine.ethereum.InscriptionEncoder;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.camunda.bpm.engine.impl.cfg.TransactionState;
 import org.camunda.bpm.engine.impl.history.event.HistoryEvent;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -11,44 +19,121 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
-import java.util.stream.Collectors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
 
+/**
+ * Batches history events into inscription transactions on inscription.max_threads workers.
+ *
+ * A worker flushes its batch once it holds inscription.batch.size events or inscription.batch.linger ms have
+ * passed since its first event. A worker that flushed a full batch, i.e. one that is working off a backlog,
+ * waits for its share of the observed block time before the next batch, so the workers together submit about
+ * one batch each per block. The block time starts at inscription.block.time and follows the chain as sampled
+ * after each batch.
+ *
+ * Events are serialized when they are queued and wait as compact records in an
+ * {@link InscriptionRecordBuffer} of inscription.queue.bytes, so queued events pin no engine entities.
+ * When the queue is full, new events are journaled to inscription.spill.dir instead of dropping the oldest
+ * one, and keep going there until an idle worker has drained the journal, so events stay in order.
+ *
+ * With inscription.anchor.mode=MERKLE the batches go to {@link InscriptionAnchorService} instead, which only
+ * inscribes a Merkle root per window, so there is no block time to pace by.
+ */
 @Service
 public class InscriptionSender implements DisposableBean {
 
-    private final BlockingQueue<HistoryEvent> eventQueue;
+    private final InscriptionRecordBuffer eventQueue;
     private final int batchSize;
-    private final long blockTime;
+    private final long linger;
+    private final int workers;
 
     @Autowired
     private InscriptionDataService inscriptionDataService;
 
+    @Autowired
+    private InscriptionAnchorService anchorService;
+
+    @Autowired
+    private HistoryEventCoalescer coalescer;
+
+    private final CommandScopedBuffer<HistoryEvent> committedBuffer =
+            new CommandScopedBuffer<>(TransactionState.COMMITTED, this::enqueueCommitted, discarded -> {
+            });
+
+    private final Timer batchLatency;
+    private final DistributionSummary batchSizes;
+    private final Counter sent;
+    private final Counter failed;
+    private final Counter dropped;
+    private final Counter spilled;
+    private final HistoryEventSpillStore overflow;
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final InscriptionEncoder encoder = new InscriptionEncoder(objectMapper);
+
     private final Logger LOG = LoggerFactory.getLogger(InscriptionSender.class);
-    private Thread workerThread;
+    private final List<Thread> workerThreads = new ArrayList<>();
+    private volatile boolean running;
 
     @Value("${inscription.enabled:false}")
     private boolean enabled;
 
     public InscriptionSender(
             @Value("${inscription.queue.capacity}") Integer queueCapacity,
+            @Value("${inscription.queue.bytes:16777216}") Integer queueBytes,
             @Value("${inscription.batch.size}") Integer batchSize,
-            @Value("${inscription.block.time}") Long blockTime
+            @Value("${inscription.batch.linger:1000}") Long linger,
+            @Value("${inscription.max_threads:1}") Integer workers,
+            @Value("${inscription.spill.dir:./inscription-spill}") String spillDirectory,
+            MeterRegistry meterRegistry
     ) {
-        // Initialize the queue with the specified capacity
-        this.eventQueue = new LinkedBlockingQueue<>(queueCapacity);
+        this.eventQueue = new InscriptionRecordBuffer(queueBytes, queueCapacity);
         this.batchSize = batchSize;
-        this.blockTime = blockTime;
+        this.linger = linger;
+        this.workers = Math.max(1, workers);
+
+        this.batchLatency = Timer.builder("inscription.batch.latency")
+                .description("Time to sign and submit one inscription batch")
+                .register(meterRegistry);
+        this.batchSizes = DistributionSummary.builder("inscription.batch.size")
+                .description("Events per inscription batch")
+                .register(meterRegistry);
+        this.sent = outcomeCounter(meterRegistry, "sent");
+        this.failed = outcomeCounter(meterRegistry, "failed");
+        this.dropped = outcomeCounter(meterRegistry, "dropped");
+        this.spilled = outcomeCounter(meterRegistry, "spilled");
+        this.overflow = new HistoryEventSpillStore(spillDirectory, 4 * 1024 * 1024, false);
+        Gauge.builder("inscription.queue.depth", eventQueue, InscriptionRecordBuffer::size)
+                .description("History events waiting to be inscribed")
+                .register(meterRegistry);
+        Gauge.builder("inscription.queue.bytes", eventQueue, InscriptionRecordBuffer::usedBytes)
+                .description("Bytes of the inscription queue taken by waiting events")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        Gauge.builder("inscription.block.time", this, sender -> sender.inscriptionDataService.getObservedBlockTime())
+                .description("Observed block time in ms the workers pace themselves by")
+                .register(meterRegistry);
     }
 
     @PostConstruct
     public void init() {
         if (enabled) {
-            workerThread = new Thread(this::processEvents);
-            workerThread.start();
+            try {
+                overflow.open();
+            } catch (IOException e) {
+                LOG.error("Cannot recover inscription overflow journal", e);
+            }
+            running = true;
+            for (int i = 0; i < workers; i++) {
+                Thread workerThread = new Thread(this::processEvents, "inscription-worker-" + i);
+                workerThread.setDaemon(true);
+                workerThread.start();
+                workerThreads.add(workerThread);
+            }
         } else {
             LOG.info("Inscriptions are disabled. Worker thread not started.");
         }
@@ -59,58 +144,199 @@ public class InscriptionSender implements DisposableBean {
             LOG.info("Inscriptions are disabled. Event not sent to queue.");
             return;
         }
-        if (!eventQueue.offer(event)) {
-            // If the queue is full, remove the oldest event to make space for the new one
-            eventQueue.poll();
-            eventQueue.offer(event);
-            LOG.warn("Event queue overflow. Oldest event removed to make space for new event: " + event);
+        if (!coalescer.isEnabled() || !committedBuffer.add(event)) {
+            enqueue(event);
+        }
+    }
+
+    private void enqueueCommitted(List<HistoryEvent> events) {
+        for (HistoryEvent event : coalescer.coalesce(HistoryEventCoalescer.INSCRIPTION, events, Function.identity())) {
+            enqueue(event);
+        }
+    }
+
+    private void enqueue(HistoryEvent event) {
+        byte[] json;
+        try {
+            json = encoder.json(event);
+        } catch (IOException e) {
+            failed.increment();
+            LOG.error("Error serializing event: " + e.getMessage(), e);
+            return;
+        }
+        String coalescingKey = coalescer.getMode() == HistoryEventCoalescer.Mode.WINDOW
+                ? HistoryEventCoalescer.coalescingKey(event)
+                : null;
+        if (overflow.hasPending() || !eventQueue.offer(coalescingKey, event.getId(), json)) {
+            spill(event, json);
+        }
+    }
+
+    private void spill(HistoryEvent event, byte[] json) {
+        try {
+            overflow.append(event.getClass().getSimpleName(), null, null, json);
+            spilled.increment();
+        } catch (Exception e) {
+            dropped.increment();
+            LOG.error("Event queue overflow and journal unavailable, event dropped: " + event, e);
+        }
+    }
+
+    /**
+     * Sends journaled events in batches; a record is only checkpointed once its batch reached the node.
+     */
+    private void drainOverflow() {
+        List<byte[]> batch = new ArrayList<>(batchSize);
+        List<String> eventIds = new ArrayList<>(batchSize);
+        int drained = overflow.replay(new HistoryEventSpillStore.SpilledMessagePublisher() {
+            @Override
+            public void publish(String camundaEventType, String startUserId, String callingProcessInstanceId,
+                                byte[] messageBody) throws Exception {
+                batch.add(messageBody);
+                if (anchorService.isEnabled()) {
+                    eventIds.add(objectMapper.readTree(messageBody).path("id").asText(""));
+                }
+                if (batch.size() >= batchSize) {
+                    awaitConfirms();
+                }
+            }
+
+            @Override
+            public void awaitConfirms() throws Exception {
+                if (batch.isEmpty()) {
+                    return;
+                }
+                long start = System.nanoTime();
+                if (anchorService.isEnabled()) {
+                    anchorService.add(eventIds, batch);
+                } else {
+                    inscriptionDataService.submitInscriptionData(batch);
+                }
+                long elapsed = System.nanoTime() - start;
+                batchLatency.record(elapsed, TimeUnit.NANOSECONDS);
+                batchSizes.record(batch.size());
+                sent.increment(batch.size());
+                batch.clear();
+                eventIds.clear();
+                if (!anchorService.isEnabled()) {
+                    pace(elapsed);
+                }
+            }
+        });
+        if (drained > 0) {
+            LOG.info("Sent {} journaled inscription events", drained);
         }
     }
 
     private void processEvents() {
-        while (true) {
+        while (running) {
             try {
-                List<HistoryEvent> events = pollBatchEvents();
-                if (!events.isEmpty()) {
-                    List<String> jsonDataList = events.stream()
-                            .map(event -> {
-                                try {
-                                    return new ObjectMapper().writeValueAsString(event);
-                                } catch (Exception e) {
-                                    LOG.error("Error serializing event: " + e.getMessage(), e);
-                                    return null;
-                                }
-                            })
-                            .filter(data -> data != null)
-                            .collect(Collectors.toList());
-
-                    inscriptionDataService.sendInscriptionData(jsonDataList);
-                    LOG.debug("Sent asynchronously, batch size = " + jsonDataList.size());
+                if (eventQueue.isEmpty() && overflow.hasPending() && draining.compareAndSet(false, true)) {
+                    try {
+                        drainOverflow();
+                    } finally {
+                        draining.set(false);
+                    }
+                }
+                List<InscriptionRecordBuffer.Record> records = pollBatchEvents();
+                if (records.isEmpty()) {
+                    continue;
+                }
+                boolean full = records.size() >= batchSize;
+                if (coalescer.getMode() == HistoryEventCoalescer.Mode.WINDOW) {
+                    records = coalescer.coalesceByKey(HistoryEventCoalescer.INSCRIPTION, records, record -> record.coalescingKey);
+                }
+                List<byte[]> jsonDataList = new ArrayList<>(records.size());
+                List<String> eventIds = new ArrayList<>(records.size());
+                for (InscriptionRecordBuffer.Record record : records) {
+                    jsonDataList.add(record.json);
+                    eventIds.add(record.eventId);
+                }
+
+                long start = System.nanoTime();
+                if (anchorService.isEnabled()) {
+                    anchorService.add(eventIds, jsonDataList);
+                    long elapsed = System.nanoTime() - start;
+                    batchLatency.record(elapsed, TimeUnit.NANOSECONDS);
+                    batchSizes.record(jsonDataList.size());
+                    sent.increment(jsonDataList.size());
+                    continue;
                 }
-                Thread.sleep(blockTime); // sleep for the block time between batches
+                boolean submitted = inscriptionDataService.sendInscriptionData(jsonDataList);
+                long elapsed = System.nanoTime() - start;
+                batchLatency.record(elapsed, TimeUnit.NANOSECONDS);
+                batchSizes.record(jsonDataList.size());
+                (submitted ? sent : failed).increment(jsonDataList.size());
+                LOG.debug("Sent asynchronously, batch size = " + jsonDataList.size());
+
+                inscriptionDataService.sampleBlockTime();
+                if (full) {
+                    pace(elapsed);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
             } catch (Exception e) {
                 LOG.error("Error sending inscriptions data asynchronously", e);
             }
         }
     }
 
-    private List<HistoryEvent> pollBatchEvents() throws InterruptedException {
-        List<HistoryEvent> events = new java.util.ArrayList<>();
-        for (int i = 0; i < batchSize; i++) {
-            HistoryEvent event = eventQueue.poll(1, TimeUnit.SECONDS);
-            if (event != null) {
-                events.add(event);
-            } else {
+    /**
+     * Waits for this worker's share of the observed block time, less what sending the batch took.
+     */
+    private void pace(long sendNanos) throws InterruptedException {
+        long pause = inscriptionDataService.getObservedBlockTime() / workers - TimeUnit.NANOSECONDS.toMillis(sendNanos);
+        if (pause > 0) {
+            Thread.sleep(pause);
+        }
+    }
+
+    /**
+     * Waits up to the linger time for a first event, then collects until the batch is full or the linger time
+     * since the first event has passed.
+     */
+    private List<InscriptionRecordBuffer.Record> pollBatchEvents() throws InterruptedException {
+        List<InscriptionRecordBuffer.Record> events = new ArrayList<>(batchSize);
+        InscriptionRecordBuffer.Record first = eventQueue.poll(linger, TimeUnit.MILLISECONDS);
+        if (first == null) {
+            return events;
+        }
+        events.add(first);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(linger);
+        while (events.size() < batchSize) {
+            if (eventQueue.drainTo(events, batchSize - events.size()) > 0) {
+                continue;
+            }
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                break;
+            }
+            InscriptionRecordBuffer.Record event = eventQueue.poll(remaining, TimeUnit.NANOSECONDS);
+            if (event == null) {
                 break;
             }
+            events.add(event);
         }
         return events;
     }
 
+    private static Counter outcomeCounter(MeterRegistry meterRegistry, String outcome) {
+        return Counter.builder("inscription.events")
+                .description("History events handled by the inscription workers")
+                .tag("outcome", outcome)
+                .register(meterRegistry);
+    }
+
     @Override
     public void destroy() throws Exception {
-        if (workerThread != null && workerThread.isAlive()) {
+        running = false;
+        for (Thread workerThread : workerThreads) {
             workerThread.interrupt();
         }
+        for (Thread workerThread : workerThreads) {
+            workerThread.join(TimeUnit.SECONDS.toMillis(10));
+        }
+        overflow.close();
     }
 }
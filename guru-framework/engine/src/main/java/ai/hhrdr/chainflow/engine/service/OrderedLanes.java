@@ -0,0 +1,116 @@
+package ai.hhrdr.chainflow.engine.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single-threaded executors with bounded queues, a task always running on the lane its key maps to, so tasks
+ * of one key run in submission order.
+ *
+ * Tasks go through {@link ThreadPoolExecutor#execute}, so lanes that are shut down reject them. A full lane
+ * either blocks the submitter until there is room or rejects the task, and the caller decides what a
+ * rejected task turns into.
+ */
+public class OrderedLanes {
+
+    private static final Logger LOG = LoggerFactory.getLogger(OrderedLanes.class);
+
+    private final String name;
+    private final ThreadPoolExecutor[] lanes;
+
+    /**
+     * @param block whether a full lane makes {@link #execute} wait for room instead of rejecting the task
+     */
+    public OrderedLanes(String name, int threads, int queueCapacity, boolean block) {
+        if (threads < 1) {
+            throw new IllegalArgumentException(name + " needs at least one thread, got " + threads);
+        }
+        this.name = name;
+        int laneCapacity = Math.max(1, queueCapacity / threads);
+        RejectedExecutionHandler whenFull = block ? OrderedLanes::putWhenFull : new ThreadPoolExecutor.AbortPolicy();
+        this.lanes = new ThreadPoolExecutor[threads];
+        for (int i = 0; i < threads; i++) {
+            String threadName = name + "-" + i;
+            ThreadPoolExecutor lane = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(laneCapacity), runnable -> {
+                        Thread thread = new Thread(runnable, threadName);
+                        thread.setDaemon(true);
+                        return thread;
+                    }, whenFull);
+            lane.prestartAllCoreThreads();
+            lanes[i] = lane;
+        }
+    }
+
+    /**
+     * Runs the task on the lane of the key; a null key maps to the first lane.
+     *
+     * @return false if the task was rejected, because the lane is full and not blocking, the submitter was
+     * interrupted while waiting, or the lanes are shut down
+     */
+    public boolean execute(String key, Runnable task) {
+        try {
+            lanes[key == null ? 0 : Math.floorMod(key.hashCode(), lanes.length)].execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    public boolean isShutdown() {
+        return lanes[0].isShutdown();
+    }
+
+    public int queueDepth() {
+        int depth = 0;
+        for (ThreadPoolExecutor lane : lanes) {
+            depth += lane.getQueue().size();
+        }
+        return depth;
+    }
+
+    /**
+     * Stops accepting tasks; queued ones still run.
+     */
+    public void shutdown() {
+        for (ThreadPoolExecutor lane : lanes) {
+            lane.shutdown();
+        }
+    }
+
+    /**
+     * Waits for the queued tasks of lanes already shut down, abandoning what is left after the timeout.
+     */
+    public void awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        for (ThreadPoolExecutor lane : lanes) {
+            if (!lane.awaitTermination(timeout, unit)) {
+                LOG.warn("{} lane did not drain in time, {} tasks left", name, lane.getQueue().size());
+                lane.shutdownNow();
+            }
+        }
+    }
+
+    private static void putWhenFull(Runnable task, ThreadPoolExecutor lane) {
+        if (lane.isShutdown()) {
+            throw new RejectedExecutionException("Lane shut down");
+        }
+        BlockingQueue<Runnable> queue = lane.getQueue();
+        try {
+            queue.put(task);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException("Interrupted while waiting for room", e);
+        }
+        // Shut down while waiting; take the task back unless the lane already picked it up
+        if (lane.isShutdown() && queue.remove(task)) {
+            throw new RejectedExecutionException("Lane shut down");
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package ai.hhrdr.chainflow.engine.service;
+
+import org.springframework.amqp.AmqpException;
+import org.springframework.amqp.rabbit.connection.CorrelationData;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Waits for the publisher confirms of messages sent with {@link RabbitMQSender#publishConfirmed}.
+ */
+final class PublisherConfirms {
+
+    private PublisherConfirms() {
+    }
+
+    /**
+     * Returns once every message was acked, all within one shared timeout.
+     *
+     * @throws AmqpException on a nack, a missing confirm or an interrupt
+     */
+    static void await(List<CorrelationData> correlations, long timeoutMillis) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        for (CorrelationData correlation : correlations) {
+            CorrelationData.Confirm confirm;
+            try {
+                long remaining = Math.max(0, deadline - System.nanoTime());
+                confirm = correlation.getFuture().get(remaining, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new AmqpException("Interrupted while waiting for publisher confirms", e);
+            } catch (Exception e) {
+                throw new AmqpException("No publisher confirm within " + timeoutMillis + " ms", e);
+            }
+            if (!confirm.isAck()) {
+                throw new AmqpException("Message nacked by broker: " + confirm.getReason());
+            }
+        }
+    }
+}
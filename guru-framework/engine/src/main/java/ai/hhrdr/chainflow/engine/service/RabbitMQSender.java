@@ -1,98 +1,210 @@
 package ai.hhrdr.chainflow.engine.service;
 
+import ai.hhrdr.chainflow.engine.service.HistoryEventEncoder.EncodedBody;
+import ai.hhrdr.chainflow.engine.service.HistoryEventEncoder.WireFormat;
+import ai.hhrdr.chainflow.engine.service.HistoryEventPartitioner.Assignment;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import org.camunda.bpm.engine.impl.history.event.HistoryEvent;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.amqp.core.Message;
-import org.springframework.amqp.core.MessagePostProcessor;
 import org.springframework.amqp.core.MessageProperties;
-import org.springframework.amqp.core.TopicExchange;
-import org.springframework.amqp.rabbit.core.RabbitAdmin;
+import org.springframework.amqp.rabbit.connection.CorrelationData;
 import org.springframework.amqp.rabbit.core.RabbitTemplate;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
-import java.lang.reflect.Field;
-import java.lang.reflect.Modifier;
-import java.util.HashMap;
-import java.util.Map;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 @Service
 public class RabbitMQSender {
 
+    // Kept so Java consumers using Jackson2JsonMessageConverter still map the body to a Map
+    private static final String TYPE_ID_HEADER = "__TypeId__";
+    private static final String TYPE_ID = "java.util.HashMap";
+
     private final RabbitTemplate rabbitTemplate;
-    private final RabbitAdmin rabbitAdmin;
-    private final String baseExchange;
+    private final DeclaredExchangeRegistry exchangeRegistry;
+    private final ConfirmingBatchPublisher batchPublisher;
+    private final HistoryEventPartitioner partitioner;
     private final String routingkey;
     private final Boolean enabled;
+    private final HistoryEventSerializer serializer = new HistoryEventSerializer(new ObjectMapper());
+    private final HistoryEventEncoder encoder;
     private static final Logger LOG = LoggerFactory.getLogger(RabbitMQSender.class);
 
     public RabbitMQSender(RabbitTemplate rabbitTemplate,
-                          @Value("${engine.rabbitmq.exchange}") String baseExchange,
+                          DeclaredExchangeRegistry exchangeRegistry,
+                          ConfirmingBatchPublisher batchPublisher,
+                          HistoryEventPartitioner partitioner,
                           @Value("${engine.rabbitmq.routingkey}") String routingkey,
-                          @Value("${spring.rabbitmq.enabled}") Boolean enabled) {
+                          @Value("${spring.rabbitmq.enabled}") Boolean enabled,
+                          @Value("${engine.rabbitmq.wire.format:JSON}") WireFormat wireFormat,
+                          @Value("${engine.rabbitmq.wire.compress.threshold:0}") int compressThreshold) {
         this.rabbitTemplate = rabbitTemplate;
-        this.baseExchange = baseExchange;
+        this.exchangeRegistry = exchangeRegistry;
+        this.batchPublisher = batchPublisher;
+        this.partitioner = partitioner;
         this.routingkey = routingkey;
         this.enabled = enabled;
-        this.rabbitAdmin = new RabbitAdmin(rabbitTemplate.getConnectionFactory());
+        this.encoder = new HistoryEventEncoder(serializer, wireFormat, compressThreshold);
+        if (exchangeRegistry.isSinglePublish() && (wireFormat != WireFormat.JSON || compressThreshold > 0)) {
+            // The base exchange would get the typed binary copy through its binding
+            throw new IllegalStateException("engine.rabbitmq.publish.single needs engine.rabbitmq.wire.format=JSON and "
+                    + "engine.rabbitmq.wire.compress.threshold=0, consumers of the base exchange read plain JSON");
+        }
     }
 
-    public void send(HistoryEvent event, String camundaEventType, String startUserId, String callingProcessInstanceId) {
-        if (enabled) {
-            String exchangeName = baseExchange + "." + camundaEventType;
+    public boolean isEnabled() {
+        return Boolean.TRUE.equals(enabled);
+    }
 
-            TopicExchange exchangeTopic = new TopicExchange(exchangeName);
-            rabbitAdmin.declareExchange(exchangeTopic);  // This is idempotent; no issues if it already exists.
+    public void send(HistoryEventMessage message) {
+        send(message, null);
+    }
 
-            Map<String, Object> messageBody = convertEventToMap(event, startUserId, callingProcessInstanceId);
+    /**
+     * @param onUnconfirmed run once if the batch publisher gives up on the message (either copy of it); may be null
+     */
+    public void send(HistoryEventMessage message, Runnable onUnconfirmed) {
+        send(message.getEvent(), message.getCamundaEventType(), message.getStartUserId(), message.getCallingProcessInstanceId(),
+                onUnconfirmed);
+    }
 
-            MessagePostProcessor messagePostProcessor = message -> {
-                MessageProperties props = message.getMessageProperties();
-                props.setHeader("startUserId", startUserId);
-                props.setHeader("callingProcessInstanceId", callingProcessInstanceId);
-                return message;
-            };
+    public void send(HistoryEvent event, String camundaEventType, String startUserId, String callingProcessInstanceId) {
+        send(event, camundaEventType, startUserId, callingProcessInstanceId, null);
+    }
 
-            rabbitTemplate.convertAndSend(exchangeName, routingkey, messageBody, messagePostProcessor);
-            rabbitTemplate.convertAndSend(baseExchange, routingkey, messageBody, messagePostProcessor);
+    private void send(HistoryEvent event, String camundaEventType, String startUserId, String callingProcessInstanceId,
+                      Runnable onUnconfirmed) {
+        if (enabled) {
+            EncodedBody typedBody;
+            EncodedBody baseBody;
+            try {
+                // Serialized once; the typed body is derived from the same JSON
+                byte[] json = serializer.serialize(event, startUserId, callingProcessInstanceId);
+                typedBody = encoder.encodeStored(camundaEventType, json);
+                baseBody = typedBody.isPlainJson() ? typedBody : HistoryEventEncoder.json(camundaEventType, json);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot serialize history event " + event.getId(), e);
+            }
+            Assignment assignment = partitioner.isEnabled() ? partitioner.assign(event) : null;
+            doPublish(camundaEventType, startUserId, callingProcessInstanceId, assignment, typedBody, baseBody, false, onUnconfirmed);
             LOG.debug("Send, eventType = {} camundaUserId = {} msg = {}", camundaEventType, startUserId, event);
         } else {
             LOG.debug("Event skipped, rabbit disabled, eventType = {} msg = {}", camundaEventType, event);
         }
     }
 
-    private Map<String, Object> convertEventToMap(HistoryEvent event, String startUserId, String callingProcessInstanceId) {
-        Map<String, Object> result = new HashMap<>();
-
-        // Walk up the class hierarchy so we capture fields from HistoryEvent and its parents
-        Class<?> currentClass = event.getClass();
-        while (currentClass != null && currentClass != Object.class) {
-
-            Field[] fields = currentClass.getDeclaredFields();
-            for (Field field : fields) {
-                // Skip static fields
-                if (Modifier.isStatic(field.getModifiers())) {
-                    continue;
-                }
-                field.setAccessible(true);
-                try {
-                    // Field name -> Field value
-                    Object value = field.get(event);
-                    result.put(field.getName(), value);
-                } catch (IllegalAccessException e) {
-                    // Decide how you'd like to handle this
-                }
+    /**
+     * Publishes an already serialized JSON message body, used when replaying spilled events.
+     */
+    public void publish(String camundaEventType, String startUserId, String callingProcessInstanceId, byte[] messageBody) {
+        doPublish(camundaEventType, startUserId, callingProcessInstanceId, assignStored(camundaEventType, messageBody),
+                encodeStored(camundaEventType, messageBody), HistoryEventEncoder.json(camundaEventType, messageBody), false, null);
+    }
+
+    /**
+     * Publishes an already serialized JSON message body with publisher confirms requested. Callers wait on the
+     * returned correlations; this needs spring.rabbitmq.publisher-confirm-type=correlated.
+     */
+    public List<CorrelationData> publishConfirmed(String camundaEventType, String startUserId, String callingProcessInstanceId,
+                                                  byte[] messageBody) {
+        return doPublish(camundaEventType, startUserId, callingProcessInstanceId, assignStored(camundaEventType, messageBody),
+                encodeStored(camundaEventType, messageBody), HistoryEventEncoder.json(camundaEventType, messageBody), true, null);
+    }
+
+    private Assignment assignStored(String camundaEventType, byte[] messageBody) {
+        return partitioner.isEnabled() ? partitioner.assign(camundaEventType, messageBody) : null;
+    }
+
+    private EncodedBody encodeStored(String camundaEventType, byte[] messageBody) {
+        try {
+            return encoder.encodeStored(camundaEventType, messageBody);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot re-encode stored " + camundaEventType + " body", e);
+        }
+    }
+
+    /**
+     * The typed exchange gets the body in the configured wire format. The base exchange keeps plain JSON for
+     * its existing consumers, except in single-publish mode where it receives the typed copy via its binding,
+     * which is why single-publish only runs with plain JSON.
+     */
+    private List<CorrelationData> doPublish(String camundaEventType, String startUserId, String callingProcessInstanceId,
+                                            Assignment assignment, EncodedBody typedBody, EncodedBody baseBody, boolean confirmed,
+                                            Runnable onUnconfirmed) {
+        String exchangeName = exchangeRegistry.typedExchangeName(camundaEventType);
+        exchangeRegistry.ensureDeclared(exchangeName);
+        String routingkey = assignment != null ? assignment.getRoutingKey() : this.routingkey;
+
+        Message typedMessage = message(typedBody, startUserId, callingProcessInstanceId, assignment);
+        Message baseMessage = null;
+        if (!exchangeRegistry.isSinglePublish()) {
+            baseMessage = baseBody == typedBody ? typedMessage : message(baseBody, startUserId, callingProcessInstanceId, assignment);
+        }
+
+        if (!confirmed && batchPublisher.isEnabled()) {
+            Runnable onFailure = once(onUnconfirmed);
+            batchPublisher.submit(exchangeName, routingkey, typedMessage, onFailure);
+            if (baseMessage != null) {
+                batchPublisher.submit(exchangeRegistry.getBaseExchange(), routingkey, baseMessage, onFailure);
             }
-            // Move up to the parent class
-            currentClass = currentClass.getSuperclass();
+            return List.of();
         }
 
-        // Add your custom property
-        result.put("camundaUserId", startUserId);
-        result.put("rootProcessInstanceId", callingProcessInstanceId);
+        List<CorrelationData> correlations = new ArrayList<>(2);
+        rabbitTemplate.send(exchangeName, routingkey, typedMessage, correlation(correlations, confirmed));
+        if (baseMessage != null) {
+            // Without the exchange-to-exchange binding the base exchange needs its own copy
+            rabbitTemplate.send(exchangeRegistry.getBaseExchange(), routingkey, baseMessage, correlation(correlations, confirmed));
+        }
+        return correlations;
+    }
 
-        return result;
+    private static Runnable once(Runnable callback) {
+        if (callback == null) {
+            return null;
+        }
+        AtomicBoolean ran = new AtomicBoolean();
+        return () -> {
+            if (ran.compareAndSet(false, true)) {
+                callback.run();
+            }
+        };
+    }
+
+    private static Message message(EncodedBody body, String startUserId, String callingProcessInstanceId, Assignment assignment) {
+        MessageProperties props = new MessageProperties();
+        body.applyTo(props);
+        if (assignment != null) {
+            assignment.applyTo(props);
+        }
+        props.setHeader(TYPE_ID_HEADER, TYPE_ID);
+        props.setHeader("startUserId", startUserId);
+        props.setHeader("callingProcessInstanceId", callingProcessInstanceId);
+        return new Message(body.getBody(), props);
+    }
+
+    private static CorrelationData correlation(List<CorrelationData> correlations, boolean confirmed) {
+        if (!confirmed) {
+            return null;
+        }
+        CorrelationData correlationData = new CorrelationData();
+        correlations.add(correlationData);
+        return correlationData;
+    }
+
+    byte[] serialize(HistoryEvent event, String startUserId, String callingProcessInstanceId) {
+        try {
+            return serializer.serialize(event, startUserId, callingProcessInstanceId);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot serialize history event " + event.getId(), e);
+        }
     }
 
 }
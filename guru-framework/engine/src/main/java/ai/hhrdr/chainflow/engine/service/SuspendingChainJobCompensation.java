@@ -0,0 +1,27 @@
+package ai.hhrdr.chainflow.engine.service;
+
+import org.camunda.bpm.engine.RuntimeService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+/**
+ * Suspends unfunded instances; activating one again schedules its on-chain start anew.
+ */
+@Component
+public class SuspendingChainJobCompensation implements ChainJobCompensation {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SuspendingChainJobCompensation.class);
+
+    private final RuntimeService runtimeService;
+
+    public SuspendingChainJobCompensation(RuntimeService runtimeService) {
+        this.runtimeService = runtimeService;
+    }
+
+    @Override
+    public void fundingFailed(String processInstanceId, String reason) {
+        LOG.warn("Suspending process instance {}: {}", processInstanceId, reason);
+        runtimeService.suspendProcessInstanceById(processInstanceId);
+    }
+}
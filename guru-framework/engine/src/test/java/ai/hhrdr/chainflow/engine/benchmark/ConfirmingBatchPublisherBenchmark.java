@@ -0,0 +1,166 @@
+package ai.hhrdr.chainflow.engine.benchmark;
+
+import ai.hhrdr.chainflow.engine.service.ConfirmingBatchPublisher;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.rabbit.connection.CorrelationData;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Compares per-message publishing with {@link ConfirmingBatchPublisher} against an in-JVM broker stand-in that
+ * charges a small cost per frame written and confirms every message one round trip after it was sent.
+ *
+ * Run with: mvn test-compile exec:java -Dexec.classpathScope=test
+ *   -Dexec.mainClass=ai.hhrdr.chainflow.engine.benchmark.ConfirmingBatchPublisherBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConfirmingBatchPublisherBenchmark {
+
+    private static final int MESSAGES = 1000;
+
+    @Param({"50", "200"})
+    public int batchSize;
+
+    @Param({"200"})
+    public long roundTripMicros;
+
+    private StandInBroker broker;
+    private ConfirmingBatchPublisher batchPublisher;
+    private Message message;
+
+    @Setup
+    public void setUp() {
+        broker = new StandInBroker(TimeUnit.MICROSECONDS.toNanos(roundTripMicros), 1_000);
+        batchPublisher = new ConfirmingBatchPublisher(broker, new SimpleMeterRegistry(),
+                true, batchSize, 5, MESSAGES * 4, 5000, 3, 200);
+        batchPublisher.init();
+        MessageProperties props = new MessageProperties();
+        props.setContentType(MessageProperties.CONTENT_TYPE_JSON);
+        message = new Message("{\"id\":\"bench\",\"eventType\":\"end\"}".getBytes(StandardCharsets.UTF_8), props);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        batchPublisher.destroy();
+        broker.shutdown();
+    }
+
+    /**
+     * The previous behaviour: one send per message, no confirms.
+     */
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public void perMessageSend() {
+        for (int i = 0; i < MESSAGES; i++) {
+            broker.send("bench", "bench", message, null);
+        }
+    }
+
+    /**
+     * Per-message confirms without batching: every send waits for its own round trip.
+     */
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public void perMessageConfirm() throws Exception {
+        for (int i = 0; i < MESSAGES; i++) {
+            CorrelationData correlationData = new CorrelationData();
+            broker.send("bench", "bench", message, correlationData);
+            correlationData.getFuture().get();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public void batchedConfirms() {
+        long target = broker.acked() + MESSAGES;
+        for (int i = 0; i < MESSAGES; i++) {
+            batchPublisher.submit("bench", "bench", message);
+        }
+        while (broker.acked() < target) {
+            LockSupport.parkNanos(10_000);
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(ConfirmingBatchPublisherBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+
+    /**
+     * RabbitTemplate that never opens a connection: a send busy-waits for the frame write cost and, when a
+     * correlation is given, acks it one round trip later from a broker thread.
+     */
+    static final class StandInBroker extends RabbitTemplate {
+
+        private final long roundTripNanos;
+        private final long writeNanos;
+        private final ScheduledExecutorService confirmer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "stand-in-broker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        private final AtomicLong acked = new AtomicLong();
+
+        StandInBroker(long roundTripNanos, long writeNanos) {
+            this.roundTripNanos = roundTripNanos;
+            this.writeNanos = writeNanos;
+        }
+
+        @Override
+        public <T> T invoke(OperationsCallback<T> action) {
+            return action.doInRabbit(this);
+        }
+
+        @Override
+        public void send(String exchange, String routingKey, Message message, CorrelationData correlationData) {
+            long writtenAt = System.nanoTime() + writeNanos;
+            while (System.nanoTime() < writtenAt) {
+                Thread.onSpinWait();
+            }
+            if (correlationData != null) {
+                confirmer.schedule(() -> {
+                    correlationData.getFuture().set(new CorrelationData.Confirm(true, null));
+                    acked.incrementAndGet();
+                }, roundTripNanos, TimeUnit.NANOSECONDS);
+            }
+        }
+
+        long acked() {
+            return acked.get();
+        }
+
+        void shutdown() {
+            confirmer.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package ai.hhrdr.chainflow.engine.benchmark;
+
+import ai.hhrdr.chainflow.engine.fixtures.HistoryEventSamples;
+import ai.hhrdr.chainflow.engine.service.HistoryEventSerializer;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.camunda.bpm.engine.impl.history.event.HistoryEvent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the reflective map conversion RabbitMQSender used to do (followed by Jackson serialization of
+ * the map, as Jackson2JsonMessageConverter did) with {@link HistoryEventSerializer}.
+ *
+ * Run with: mvn test-compile exec:java -Dexec.classpathScope=test
+ *   -Dexec.mainClass=ai.hhrdr.chainflow.engine.benchmark.HistoryEventSerializationBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HistoryEventSerializationBenchmark {
+
+    @Param({"activity", "variable"})
+    public String eventKind;
+
+    private HistoryEvent event;
+    private ObjectMapper objectMapper;
+    private HistoryEventSerializer serializer;
+
+    @Setup
+    public void setUp() {
+        event = "activity".equals(eventKind)
+                ? HistoryEventSamples.activityInstanceEnd()
+                : HistoryEventSamples.variableUpdate();
+        objectMapper = new ObjectMapper();
+        serializer = new HistoryEventSerializer(objectMapper);
+    }
+
+    @Benchmark
+    public byte[] reflectiveMap() throws Exception {
+        return objectMapper.writeValueAsBytes(reflectiveConvert(event, "user-1", "7a2d4c1b-6e1f-11ef-9a43-0242ac120005"));
+    }
+
+    @Benchmark
+    public byte[] precompiledAccessors() throws Exception {
+        return serializer.serialize(event, "user-1", "7a2d4c1b-6e1f-11ef-9a43-0242ac120005");
+    }
+
+    static Map<String, Object> reflectiveConvert(HistoryEvent event, String startUserId, String callingProcessInstanceId)
+            throws IllegalAccessException {
+        Map<String, Object> result = new HashMap<>();
+        Class<?> currentClass = event.getClass();
+        while (currentClass != null && currentClass != Object.class) {
+            for (Field field : currentClass.getDeclaredFields()) {
+                if (Modifier.isStatic(field.getModifiers())) {
+                    continue;
+                }
+                field.setAccessible(true);
+                result.put(field.getName(), field.get(event));
+            }
+            currentClass = currentClass.getSuperclass();
+        }
+        result.put("camundaUserId", startUserId);
+        result.put("rootProcessInstanceId", callingProcessInstanceId);
+        return result;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(HistoryEventSerializationBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
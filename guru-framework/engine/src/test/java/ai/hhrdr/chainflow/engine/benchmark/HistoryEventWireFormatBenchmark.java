@@ -0,0 +1,91 @@
+package ai.hhrdr.chainflow.engine.benchmark;
+
+import ai.hhrdr.chainflow.engine.fixtures.HistoryEventSamples;
+import ai.hhrdr.chainflow.engine.service.HistoryEventEncoder;
+import ai.hhrdr.chainflow.engine.service.HistoryEventEncoder.WireFormat;
+import ai.hhrdr.chainflow.engine.service.HistoryEventSerializer;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.camunda.bpm.engine.impl.history.event.HistoryEvent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encode time per wire format. {@link #main} first prints the body size of each format for the samples.
+ *
+ * Run with: mvn test-compile exec:java -Dexec.classpathScope=test
+ *   -Dexec.mainClass=ai.hhrdr.chainflow.engine.benchmark.HistoryEventWireFormatBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HistoryEventWireFormatBenchmark {
+
+    private static final String[] FORMATS = {"json", "json-deflate", "smile", "smile-deflate"};
+    private static final String[] EVENT_KINDS = {"activity", "variable"};
+
+    @Param({"json", "json-deflate", "smile", "smile-deflate"})
+    public String format;
+
+    @Param({"activity", "variable"})
+    public String eventKind;
+
+    private HistoryEventEncoder encoder;
+    private HistoryEvent event;
+
+    @Setup
+    public void setUp() {
+        encoder = encoder(format);
+        event = event(eventKind);
+    }
+
+    @Benchmark
+    public byte[] encode() throws IOException {
+        return encoder.encode(event.getClass().getSimpleName(), event, "user-1", "7a2d4c1b-6e1f-11ef-9a43-0242ac120005").getBody();
+    }
+
+    private static HistoryEventEncoder encoder(String format) {
+        WireFormat wireFormat = format.startsWith("smile") ? WireFormat.SMILE : WireFormat.JSON;
+        // Threshold of one byte: always compress, to show what deflate costs and saves on these sizes
+        int threshold = format.endsWith("-deflate") ? 1 : 0;
+        return new HistoryEventEncoder(new HistoryEventSerializer(new ObjectMapper()), wireFormat, threshold);
+    }
+
+    private static HistoryEvent event(String eventKind) {
+        return "activity".equals(eventKind)
+                ? HistoryEventSamples.activityInstanceEnd()
+                : HistoryEventSamples.variableUpdate();
+    }
+
+    public static void main(String[] args) throws RunnerException, IOException {
+        for (String eventKind : EVENT_KINDS) {
+            HistoryEvent event = event(eventKind);
+            for (String format : FORMATS) {
+                int size = encoder(format)
+                        .encode(event.getClass().getSimpleName(), event, "user-1", "7a2d4c1b-6e1f-11ef-9a43-0242ac120005")
+                        .getBody().length;
+                System.out.printf("%-10s %-14s %5d bytes%n", eventKind, format, size);
+            }
+        }
+        new Runner(new OptionsBuilder()
+                .include(HistoryEventWireFormatBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
@@ -0,0 +1,119 @@
+package ai.hhrdr.chainflow.engine.benchmark;
+
+import ai.hhrdr.chainflow.engine.ethereum.InscriptionEncoder;
+import ai.hhrdr.chainflow.engine.ethereum.InscriptionPackCodec;
+import ai.hhrdr.chainflow.engine.fixtures.HistoryEventSamples;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.camunda.bpm.engine.impl.history.event.HistoryEvent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.web3j.crypto.Credentials;
+import org.web3j.crypto.RawTransaction;
+import org.web3j.crypto.TransactionEncoder;
+import org.web3j.utils.Numeric;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding of one history event into the hex of a signed inscription transaction, the way InscriptionSender and
+ * InscriptionDataService used to do it (an ObjectMapper per event, a JSON String, String.format per hex digit,
+ * RawTransaction decoding that hex again) against {@link InscriptionEncoder}. The *Payload benchmarks stop
+ * before signing, which otherwise dominates the time.
+ *
+ * Runs with the GC profiler; gc.alloc.rate.norm is the bytes allocated per event.
+ *
+ * Run with: mvn test-compile exec:java -Dexec.classpathScope=test
+ *   -Dexec.mainClass=ai.hhrdr.chainflow.engine.benchmark.InscriptionEncodingBenchmark
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class InscriptionEncodingBenchmark {
+
+    private static final Credentials CREDENTIALS =
+            Credentials.create("4c0883a69102937d6231471b5dbb6204fe5129617082792ae468d01a3f362318");
+    private static final BigInteger NONCE = BigInteger.valueOf(1234);
+    private static final BigInteger GAS_PRICE = BigInteger.valueOf(1_200_000_000L);
+    private static final BigInteger GAS_LIMIT = BigInteger.valueOf(60000);
+    private static final long CHAIN_ID = 261;
+    private static final byte[] JSON_PREFIX = InscriptionPackCodec.JSON_PREFIX.getBytes(StandardCharsets.US_ASCII);
+
+    @Param({"activity", "variable"})
+    public String eventKind;
+
+    private HistoryEvent event;
+    private InscriptionEncoder encoder;
+    private byte[] signerAddress;
+
+    @Setup
+    public void setUp() {
+        event = "activity".equals(eventKind)
+                ? HistoryEventSamples.activityInstanceEnd()
+                : HistoryEventSamples.variableUpdate();
+        encoder = new InscriptionEncoder(new ObjectMapper());
+        signerAddress = Numeric.hexStringToByteArray(CREDENTIALS.getAddress());
+    }
+
+    @Benchmark
+    public String legacyPayload() throws IOException {
+        return "0x" + legacyHex(legacyJson());
+    }
+
+    @Benchmark
+    public String streamlinedPayload() throws IOException {
+        return InscriptionEncoder.toHexString(InscriptionEncoder.prefixed(JSON_PREFIX, encoder.json(event)));
+    }
+
+    @Benchmark
+    public String legacyTransaction() throws IOException {
+        RawTransaction rawTransaction = RawTransaction.createTransaction(NONCE, GAS_PRICE, GAS_LIMIT,
+                CREDENTIALS.getAddress(), BigInteger.ZERO, "0x" + legacyHex(legacyJson()));
+        return Numeric.toHexString(TransactionEncoder.signMessage(rawTransaction, CHAIN_ID, CREDENTIALS));
+    }
+
+    @Benchmark
+    public String streamlinedTransaction() throws IOException {
+        byte[] payload = InscriptionEncoder.prefixed(JSON_PREFIX, encoder.json(event));
+        return InscriptionEncoder.toHexString(InscriptionEncoder.signTransaction(NONCE, GAS_PRICE, GAS_LIMIT,
+                signerAddress, payload, CHAIN_ID, CREDENTIALS.getEcKeyPair()));
+    }
+
+    private byte[] legacyJson() throws IOException {
+        String json = new ObjectMapper().writeValueAsString(event);
+        return (InscriptionPackCodec.JSON_PREFIX + json).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String legacyHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(InscriptionEncodingBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
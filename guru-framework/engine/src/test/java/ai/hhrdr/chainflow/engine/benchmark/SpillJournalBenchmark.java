@@ -0,0 +1,92 @@
+package ai.hhrdr.chainflow.engine.benchmark;
+
+import ai.hhrdr.chainflow.engine.fixtures.HistoryEventSamples;
+import ai.hhrdr.chainflow.engine.service.HistoryEventSerializer;
+import ai.hhrdr.chainflow.engine.service.HistoryEventSpillStore;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Append and replay throughput of the spill journal, with and without forcing every record to disk.
+ *
+ * Run with: mvn test-compile exec:java -Dexec.classpathScope=test
+ *   -Dexec.mainClass=ai.hhrdr.chainflow.engine.benchmark.SpillJournalBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SpillJournalBenchmark {
+
+    private static final int REPLAY_RECORDS = 10_000;
+
+    @Param({"false", "true"})
+    public boolean force;
+
+    private Path directory;
+    private HistoryEventSpillStore store;
+    private byte[] body;
+
+    @Setup(Level.Iteration)
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("spill-journal-benchmark");
+        store = new HistoryEventSpillStore(directory.toString(), 16 * 1024 * 1024, force);
+        store.open();
+        body = new HistoryEventSerializer(new ObjectMapper())
+                .serialize(HistoryEventSamples.variableUpdate(), "user-1", "7a2d4c1b-6e1f-11ef-9a43-0242ac120005");
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws IOException {
+        store.close();
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public void append() throws IOException {
+        store.append("HistoricVariableUpdateEventEntity", "user-1", null, body);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(REPLAY_RECORDS)
+    public int appendAndReplay(Blackhole blackhole) throws IOException {
+        for (int i = 0; i < REPLAY_RECORDS; i++) {
+            store.append("HistoricVariableUpdateEventEntity", "user-1", null, body);
+        }
+        return store.replay((type, user, calling, messageBody) -> blackhole.consume(messageBody));
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(SpillJournalBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
@@ -0,0 +1,195 @@
+package ai.hhrdr.chainflow.engine.config;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.camunda.bpm.engine.impl.history.event.HistoryEvent;
+import org.camunda.bpm.engine.impl.history.handler.HistoryEventHandler;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CompositeHistoryEventHandlerTest {
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private CompositeHistoryEventHandler composite;
+
+    @AfterEach
+    void tearDown() throws Exception {
+        if (composite != null) {
+            composite.destroy();
+        }
+    }
+
+    @Test
+    void testKeepsEventsOfAProcessInstanceInOrder() throws Exception {
+        RecordingHandler recording = new RecordingHandler();
+        composite = composite(List.of(recording), 4, 1000, CompositeHistoryEventHandler.OverflowPolicy.BLOCK);
+
+        for (int i = 0; i < 300; i++) {
+            composite.handleEvent(event("pi-" + (i % 3), i));
+        }
+        composite.destroy();
+
+        assertEquals(300, recording.events.size());
+        for (int pi = 0; pi < 3; pi++) {
+            int previous = -1;
+            for (HistoryEvent event : recording.events) {
+                if (event.getProcessInstanceId().equals("pi-" + pi)) {
+                    int sequence = Integer.parseInt(event.getId());
+                    assertTrue(sequence > previous, "pi-" + pi + " saw " + sequence + " after " + previous);
+                    previous = sequence;
+                }
+            }
+        }
+    }
+
+    @Test
+    void testFailingHandlerDoesNotAffectTheOthers() throws Exception {
+        RecordingHandler recording = new RecordingHandler();
+        composite = composite(List.of(new FailingHandler(), recording), 2, 100, CompositeHistoryEventHandler.OverflowPolicy.BLOCK);
+
+        for (int i = 0; i < 10; i++) {
+            composite.handleEvent(event("pi-1", i));
+        }
+        composite.destroy();
+
+        assertEquals(10, recording.events.size());
+        assertEquals(10, meterRegistry.counter("history.fanout.events", "handler", "FailingHandler", "outcome", "failed").count());
+        assertEquals(0, meterRegistry.counter("history.fanout.events", "handler", "RecordingHandler", "outcome", "failed").count());
+    }
+
+    @Test
+    void testSyncHandlersRunInline() {
+        RecordingHandler recording = new RecordingHandler();
+        composite = new CompositeHistoryEventHandler(List.of(recording), meterRegistry, "RecordingHandler", 1, 10,
+                CompositeHistoryEventHandler.OverflowPolicy.BLOCK);
+
+        composite.handleEvent(event("pi-1", 0));
+
+        assertEquals(Thread.currentThread().getName(), recording.threads.get(0));
+    }
+
+    @Test
+    void testDropPolicyCountsEventsThatFindNoRoom() throws Exception {
+        StuckHandler stuck = new StuckHandler();
+        composite = composite(List.of(stuck), 1, 1, CompositeHistoryEventHandler.OverflowPolicy.DROP);
+
+        fillLane(stuck);
+        composite.handleEvent(event("pi-1", 2));
+
+        assertEquals(1, meterRegistry.counter("history.fanout.events", "handler", "StuckHandler", "outcome", "dropped").count());
+        stuck.release.countDown();
+    }
+
+    @Test
+    void testCallerRunsPolicyHandlesOnTheSubmittingThread() throws Exception {
+        StuckHandler stuck = new StuckHandler();
+        composite = composite(List.of(stuck), 1, 1, CompositeHistoryEventHandler.OverflowPolicy.CALLER_RUNS);
+
+        fillLane(stuck);
+        composite.handleEvent(event("pi-1", 2));
+
+        assertEquals(Thread.currentThread().getName(), stuck.threads.get(1));
+        stuck.release.countDown();
+    }
+
+    @Test
+    void testBlockPolicyWaitsForRoom() throws Exception {
+        StuckHandler stuck = new StuckHandler();
+        composite = composite(List.of(stuck), 1, 1, CompositeHistoryEventHandler.OverflowPolicy.BLOCK);
+
+        fillLane(stuck);
+        AtomicBoolean submitted = new AtomicBoolean();
+        Thread submitter = new Thread(() -> {
+            composite.handleEvent(event("pi-1", 2));
+            submitted.set(true);
+        });
+        submitter.start();
+        submitter.join(200);
+        assertTrue(submitter.isAlive());
+
+        stuck.release.countDown();
+        submitter.join(5000);
+        assertTrue(submitted.get());
+        composite.destroy();
+        assertEquals(3, stuck.threads.size());
+    }
+
+    private CompositeHistoryEventHandler composite(List<HistoryEventHandler> handlers, int threads, int queueCapacity,
+                                                   CompositeHistoryEventHandler.OverflowPolicy overflowPolicy) {
+        return new CompositeHistoryEventHandler(handlers, meterRegistry, "", threads, queueCapacity, overflowPolicy);
+    }
+
+    /**
+     * Occupies the single lane thread with one event and its queue with another.
+     */
+    private void fillLane(StuckHandler stuck) throws InterruptedException {
+        composite.handleEvent(event("pi-1", 0));
+        assertTrue(stuck.started.await(5, TimeUnit.SECONDS));
+        composite.handleEvent(event("pi-1", 1));
+    }
+
+    private static HistoryEvent event(String processInstanceId, int sequence) {
+        HistoryEvent event = new HistoryEvent();
+        event.setId(String.valueOf(sequence));
+        event.setProcessInstanceId(processInstanceId);
+        event.setEventType("update");
+        return event;
+    }
+
+    private static class RecordingHandler implements HistoryEventHandler {
+
+        final List<HistoryEvent> events = Collections.synchronizedList(new ArrayList<>());
+        final List<String> threads = Collections.synchronizedList(new ArrayList<>());
+
+        @Override
+        public void handleEvent(HistoryEvent historyEvent) {
+            threads.add(Thread.currentThread().getName());
+            events.add(historyEvent);
+        }
+
+        @Override
+        public void handleEvents(List<HistoryEvent> historyEvents) {
+            historyEvents.forEach(this::handleEvent);
+        }
+    }
+
+    private static final class FailingHandler extends RecordingHandler {
+
+        @Override
+        public void handleEvent(HistoryEvent historyEvent) {
+            throw new IllegalStateException("sink down");
+        }
+    }
+
+    /**
+     * Blocks on the first event until released, handles the others right away.
+     */
+    private static final class StuckHandler extends RecordingHandler {
+
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        @Override
+        public void handleEvent(HistoryEvent historyEvent) {
+            super.handleEvent(historyEvent);
+            if (started.getCount() == 0) {
+                return;
+            }
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package ai.hhrdr.chainflow.engine.ethereum;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.web3j.protocol.Web3j;
+import org.web3j.protocol.Web3jService;
+import org.web3j.protocol.core.BatchRequest;
+import org.web3j.protocol.core.BatchResponse;
+import org.web3j.protocol.core.Request;
+import org.web3j.protocol.core.Response;
+import org.web3j.protocol.core.methods.request.Transaction;
+import org.web3j.protocol.core.methods.response.EthBlockNumber;
+import org.web3j.protocol.core.methods.response.EthCall;
+import org.web3j.protocol.core.methods.response.EthGetBalance;
+import org.web3j.utils.Numeric;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class BalanceServiceTest {
+
+    private static final String WALLET = "0x1111111111111111111111111111111111111111";
+    private static final String OTHER_WALLET = "0x2222222222222222222222222222222222222222";
+    private static final String TOKEN = "0x3333333333333333333333333333333333333333";
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final Web3jService transport = mock(Web3jService.class);
+    private final Web3jRegistry web3jRegistry = mock(Web3jRegistry.class);
+    private BalanceService balanceService;
+
+    @BeforeEach
+    void setUp() {
+        when(web3jRegistry.client(anyLong(), any())).thenReturn(Web3j.build(transport));
+        // A long window, the tests flush themselves
+        balanceService = new BalanceService(60000, 500, 1, true, Multicall3.DEFAULT_ADDRESS, 60000, 1000,
+                "http://localhost:8545", web3jRegistry, meterRegistry);
+    }
+
+    @AfterEach
+    void tearDown() {
+        balanceService.destroy();
+    }
+
+    @Test
+    void testResolvesWindowByOneMulticall() throws Exception {
+        when(transport.send(any(), eq(EthCall.class))).thenAnswer(invocation -> {
+            Request<?, ?> request = invocation.getArgument(0);
+            Transaction call = (Transaction) request.getParams().get(0);
+            assertEquals(Multicall3.AGGREGATE3, call.getData().substring(0, 10));
+            return ethCall(aggregate3Result(uint(5), uint(7), null, uint(100)));
+        });
+
+        CompletableFuture<BigInteger> first = balanceService.nativeBalance(261, WALLET);
+        CompletableFuture<BigInteger> same = balanceService.nativeBalance(261, WALLET);
+        CompletableFuture<BigInteger> token = balanceService.tokenBalance(261, TOKEN, WALLET);
+        CompletableFuture<BigInteger> reverted = balanceService.tokenBalance(261, TOKEN, OTHER_WALLET);
+        balanceService.flush(261);
+
+        assertSame(first, same);
+        assertEquals(BigInteger.valueOf(5), first.get(1, TimeUnit.SECONDS));
+        assertEquals(BigInteger.valueOf(7), token.get(1, TimeUnit.SECONDS));
+        assertThrows(ExecutionException.class, () -> reverted.get(1, TimeUnit.SECONDS));
+        verify(transport, times(1)).send(any(), eq(EthCall.class));
+        verify(transport, never()).sendBatch(any());
+        assertEquals(1, meterRegistry.counter("ethereum.balance.shared").count());
+    }
+
+    @Test
+    void testFallsBackToBatchWithoutMulticallContract() throws Exception {
+        when(transport.send(any(), eq(EthCall.class))).thenReturn(ethCall("0x"));
+        answerBatches(100);
+
+        CompletableFuture<BigInteger> wallet = balanceService.nativeBalance(261, WALLET);
+        CompletableFuture<BigInteger> token = balanceService.tokenBalance(261, TOKEN, WALLET);
+        balanceService.flush(261);
+
+        assertEquals(BigInteger.valueOf(42), wallet.get(1, TimeUnit.SECONDS));
+        assertEquals(BigInteger.valueOf(9), token.get(1, TimeUnit.SECONDS));
+
+        // The chain is remembered as lacking the contract
+        balanceService.nativeBalance(261, WALLET, true);
+        balanceService.nativeBalance(261, OTHER_WALLET, true);
+        balanceService.flush(261);
+        verify(transport, times(1)).send(any(), eq(EthCall.class));
+        verify(transport, times(2)).sendBatch(any());
+    }
+
+    @Test
+    void testServesCachedBalanceUntilHeadMovesOrAddressIsInvalidated() throws Exception {
+        long[] head = {100};
+        answerBatches(head[0]);
+        when(transport.send(any(), eq(EthBlockNumber.class))).thenAnswer(invocation -> blockNumber(head[0]));
+
+        assertEquals(BigInteger.valueOf(42), read(balanceService.nativeBalance(261, WALLET)));
+        CompletableFuture<BigInteger> cached = balanceService.nativeBalance(261, WALLET);
+        assertTrue(cached.isDone());
+        assertEquals(BigInteger.valueOf(42), cached.get());
+        verify(transport, times(1)).sendBatch(any());
+
+        // A fresh read goes to the chain
+        assertEquals(BigInteger.valueOf(42), read(balanceService.nativeBalance(261, WALLET, true)));
+        verify(transport, times(2)).sendBatch(any());
+
+        // A transaction from or to the address drops it
+        balanceService.invalidate(261, WALLET);
+        assertFalse(balanceService.nativeBalance(261, WALLET).isDone());
+        balanceService.flush(261);
+        verify(transport, times(3)).sendBatch(any());
+        assertTrue(balanceService.nativeBalance(261, WALLET).isDone());
+
+        // So does a new head
+        head[0] = 101;
+        balanceService.pollHeads();
+        assertFalse(balanceService.nativeBalance(261, WALLET).isDone());
+        assertEquals(1, meterRegistry.counter("ethereum.balance.cache", "result", "fresh").count());
+        assertEquals(2, meterRegistry.counter("ethereum.balance.cache", "result", "hit").count());
+    }
+
+    @Test
+    void testAggregate3EncodingLayout() {
+        byte[] callData = Multicall3.addressCall(Multicall3.BALANCE_OF, WALLET);
+        byte[] encoded = Numeric.hexStringToByteArray(
+                Multicall3.encodeAggregate3(List.of(new Multicall3.Call(TOKEN, callData))));
+
+        // selector, array offset, length, tuple offset, then target, allowFailure, bytes offset, length, data
+        assertEquals(4 + 32 * 8, encoded.length);
+        assertEquals(BigInteger.valueOf(32), word(encoded, 0));
+        assertEquals(BigInteger.ONE, word(encoded, 1));
+        assertEquals(BigInteger.valueOf(32), word(encoded, 2));
+        assertEquals(Numeric.toBigInt(TOKEN), word(encoded, 3));
+        assertEquals(BigInteger.ONE, word(encoded, 4));
+        assertEquals(BigInteger.valueOf(96), word(encoded, 5));
+        assertEquals(BigInteger.valueOf(36), word(encoded, 6));
+        assertEquals(Multicall3.BALANCE_OF, Numeric.toHexString(Arrays.copyOfRange(encoded, 4 + 32 * 7, 4 + 32 * 7 + 4)));
+    }
+
+    private BigInteger read(CompletableFuture<BigInteger> future) throws Exception {
+        balanceService.flush(261);
+        return future.get(1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Answers every batch with 42 wei for eth_getBalance, 9 for balanceOf and the block for eth_blockNumber.
+     */
+    private void answerBatches(long block) throws Exception {
+        when(transport.sendBatch(any())).thenAnswer(invocation -> {
+            BatchRequest batch = invocation.getArgument(0);
+            List<Response<?>> responses = new ArrayList<>();
+            for (Request<?, ? extends Response<?>> request : batch.getRequests()) {
+                if (request.getMethod().equals("eth_getBalance")) {
+                    EthGetBalance balance = new EthGetBalance();
+                    balance.setResult("0x2a");
+                    responses.add(balance);
+                } else if (request.getMethod().equals("eth_call")) {
+                    responses.add(ethCall(Numeric.toHexString(uint(9))));
+                } else {
+                    responses.add(blockNumber(block));
+                }
+            }
+            return new BatchResponse(batch.getRequests(), responses);
+        });
+    }
+
+    private static EthBlockNumber blockNumber(long block) {
+        EthBlockNumber blockNumber = new EthBlockNumber();
+        blockNumber.setResult(Numeric.encodeQuantity(BigInteger.valueOf(block)));
+        return blockNumber;
+    }
+
+    private static EthCall ethCall(String value) {
+        EthCall call = new EthCall();
+        call.setResult(value);
+        return call;
+    }
+
+    private static byte[] uint(long value) {
+        return Numeric.toBytesPadded(BigInteger.valueOf(value), 32);
+    }
+
+    private static BigInteger word(byte[] encoded, int index) {
+        return new BigInteger(1, Arrays.copyOfRange(encoded, 4 + 32 * index, 4 + 32 * (index + 1)));
+    }
+
+    /**
+     * ABI encoding of (bool success, bytes returnData)[]; a null entry is a failed call.
+     */
+    private static String aggregate3Result(byte[]... results) {
+        int tupleSize = 4 * 32;
+        byte[] out = new byte[2 * 32 + results.length * 32 + results.length * tupleSize];
+        System.arraycopy(uint(32), 0, out, 0, 32);
+        System.arraycopy(uint(results.length), 0, out, 32, 32);
+        for (int i = 0; i < results.length; i++) {
+            System.arraycopy(uint((long) results.length * 32 + (long) i * tupleSize), 0, out, 64 + i * 32, 32);
+            int tuple = 64 + results.length * 32 + i * tupleSize;
+            System.arraycopy(uint(results[i] == null ? 0 : 1), 0, out, tuple, 32);
+            System.arraycopy(uint(64), 0, out, tuple + 32, 32);
+            System.arraycopy(uint(32), 0, out, tuple + 64, 32);
+            if (results[i] != null) {
+                System.arraycopy(results[i], 0, out, tuple + 96, 32);
+            }
+        }
+        return Numeric.toHexString(out);
+    }
+}
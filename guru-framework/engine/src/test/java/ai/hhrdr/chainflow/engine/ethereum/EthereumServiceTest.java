@@ -0,0 +1,212 @@
+package ai.hhrdr.chainflow.engine.ethereum;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.web3j.abi.FunctionEncoder;
+import org.web3j.abi.TypeEncoder;
+import org.web3j.abi.datatypes.Address;
+import org.web3j.abi.datatypes.DynamicArray;
+import org.web3j.abi.datatypes.Function;
+import org.web3j.abi.datatypes.Utf8String;
+import org.web3j.protocol.Web3j;
+import org.web3j.protocol.Web3jService;
+import org.web3j.protocol.core.BatchRequest;
+import org.web3j.protocol.core.BatchResponse;
+import org.web3j.protocol.core.Request;
+import org.web3j.protocol.core.Response;
+import org.web3j.protocol.core.methods.request.Transaction;
+import org.web3j.protocol.core.methods.response.EthCall;
+import org.web3j.protocol.core.methods.response.EthGetTransactionCount;
+import org.web3j.protocol.core.methods.response.EthGetTransactionReceipt;
+import org.web3j.protocol.core.methods.response.EthSendTransaction;
+import org.web3j.protocol.core.methods.response.TransactionReceipt;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class EthereumServiceTest {
+
+    private static final String PRIVATE_KEY = "0x4c0883a69102937d6231471b5dbb6204fe5129617082792ae468d01a3f362318";
+    private static final String FACTORY = "0x00000000000000000000000000000000000000fa";
+    private static final String CONTRACT = "0x00000000000000000000000000000000000000aa";
+    private static final String ZERO_ADDRESS = "0x0000000000000000000000000000000000000000";
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final Web3jService transport = mock(Web3jService.class);
+
+    // What the fake factory reports and what the fake node saw
+    private final List<String> registered = new ArrayList<>();
+    private final Map<String, String> addresses = new HashMap<>();
+    private final Map<String, String> receiptStatus = new HashMap<>();
+    private final List<String> sentTransactions = new ArrayList<>();
+    private int definitionListings;
+    private int addressLookups;
+    private long pendingCount = 3;
+
+    private EthereumService service;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        Web3j web3j = Web3j.build(transport);
+        when(transport.send(any(), eq(EthGetTransactionCount.class))).thenAnswer(invocation -> {
+            EthGetTransactionCount count = new EthGetTransactionCount();
+            count.setResult("0x" + Long.toHexString(pendingCount));
+            return count;
+        });
+        when(transport.send(any(), eq(EthCall.class))).thenAnswer(invocation -> ethCall(invocation.getArgument(0)));
+        when(transport.sendBatch(any())).thenAnswer(invocation -> {
+            BatchRequest batch = invocation.getArgument(0);
+            List<Response<?>> responses = new ArrayList<>();
+            for (Request<?, ? extends Response<?>> request : batch.getRequests()) {
+                switch (request.getMethod()) {
+                    case "eth_call":
+                        responses.add(ethCall(request));
+                        break;
+                    case "eth_sendRawTransaction":
+                        responses.add(sendResult((String) request.getParams().get(0)));
+                        break;
+                    default:
+                        responses.add(receipt((String) request.getParams().get(0)));
+                        break;
+                }
+            }
+            return new BatchResponse(batch.getRequests(), responses);
+        });
+
+        GasPriceOracle gasPriceOracle = mock(GasPriceOracle.class);
+        when(gasPriceOracle.gasPrice(any(), anyLong())).thenReturn(BigInteger.TEN);
+        Web3jRegistry web3jRegistry = mock(Web3jRegistry.class);
+        when(web3jRegistry.client(anyLong(), any())).thenReturn(web3j);
+        service = new EthereumService(PRIVATE_KEY, 1, "http://localhost:8545", FACTORY, new NonceManager(meterRegistry),
+                gasPriceOracle, web3jRegistry, mock(BalanceService.class), meterRegistry, 16, 60000, 1000, 0);
+        ReflectionTestUtils.setField(service, "warmup", true);
+        ReflectionTestUtils.setField(service, "reconcile", true);
+    }
+
+    @Test
+    void testWarmupIndexesDefinitionsAndTheirAddresses() {
+        registered.add("deployed");
+        registered.add("undeployed");
+        addresses.put("deployed", CONTRACT);
+
+        service.init();
+
+        assertEquals(1, definitionListings);
+        assertEquals(2, addressLookups);
+        assertEquals(CONTRACT, service.getContractAddressOfDefinition("deployed"));
+        assertEquals("deployed", service.createDefinition("deployed"));
+        assertEquals(2, addressLookups);
+        assertEquals(1, definitionListings);
+
+        // Without a contract the address is asked for again every time
+        assertEquals(ZERO_ADDRESS, service.getContractAddressOfDefinition("undeployed"));
+        assertEquals(ZERO_ADDRESS, service.getContractAddressOfDefinition("undeployed"));
+        assertEquals(4, addressLookups);
+    }
+
+    @Test
+    void testAddressLookupThatMissesTheIndexIsCached() {
+        service.init();
+        addresses.put("late", CONTRACT);
+
+        assertEquals(CONTRACT, service.getContractAddressOfDefinition("late"));
+        assertEquals(CONTRACT, service.getContractAddressOfDefinition("late"));
+
+        assertEquals(1, addressLookups);
+    }
+
+    @Test
+    void testReconcileDropsWhatTheFactoryLacksButKeepsUnminedDefinitions() {
+        registered.add("removed");
+        addresses.put("removed", CONTRACT);
+        service.init();
+        String hash = service.createDefinition("created");
+        assertEquals(1, sentTransactions.size());
+
+        registered.clear();
+        service.reconcileDefinitionIndex();
+
+        // Not mined yet, so not sent again
+        assertEquals("created", service.createDefinition("created"));
+        assertEquals(1, sentTransactions.size());
+        // Dropped from the index, so the factory is asked again
+        int lookups = addressLookups;
+        service.getContractAddressOfDefinition("removed");
+        assertEquals(lookups + 1, addressLookups);
+
+        // Once its receipt arrived, the factory decides
+        receiptStatus.put(hash, "0x1");
+        service.trackTransactions();
+        service.reconcileDefinitionIndex();
+        service.createDefinition("created");
+        assertEquals(2, sentTransactions.size());
+    }
+
+    @Test
+    void testRevertedDefinitionIsNotTakenAsRegistered() {
+        service.init();
+        String hash = service.createDefinition("created");
+
+        receiptStatus.put(hash, "0x0");
+        service.trackTransactions();
+        service.createDefinition("created");
+
+        assertEquals(2, sentTransactions.size());
+    }
+
+    private EthCall ethCall(Request<?, ?> request) {
+        String data = ((Transaction) request.getParams().get(0)).getData();
+        EthCall call = new EthCall();
+        if (data.equals(FunctionEncoder.encode(new Function("getAllDefinitions", List.of(), List.of())))) {
+            definitionListings++;
+            List<Utf8String> hashes = new ArrayList<>();
+            for (String hash : registered) {
+                hashes.add(new Utf8String(hash));
+            }
+            call.setResult("0x" + FunctionEncoder.encodeConstructor(List.of(new DynamicArray<>(Utf8String.class, hashes))));
+            return call;
+        }
+        addressLookups++;
+        String address = ZERO_ADDRESS;
+        for (Map.Entry<String, String> entry : addresses.entrySet()) {
+            Function lookup = new Function("getContractAddressOfDefinition", List.of(new Utf8String(entry.getKey())), List.of());
+            if (data.equals(FunctionEncoder.encode(lookup))) {
+                address = entry.getValue();
+            }
+        }
+        call.setResult("0x" + TypeEncoder.encode(new Address(address)));
+        return call;
+    }
+
+    private EthSendTransaction sendResult(String rawTransaction) {
+        sentTransactions.add(rawTransaction);
+        EthSendTransaction result = new EthSendTransaction();
+        result.setResult("0x" + Long.toHexString(pendingCount++));
+        return result;
+    }
+
+    private EthGetTransactionReceipt receipt(String hash) {
+        EthGetTransactionReceipt result = new EthGetTransactionReceipt();
+        String status = receiptStatus.get(hash);
+        if (status != null) {
+            TransactionReceipt receipt = new TransactionReceipt();
+            receipt.setTransactionHash(hash);
+            receipt.setBlockNumber("0x1");
+            receipt.setStatus(status);
+            result.setResult(receipt);
+        }
+        return result;
+    }
+}
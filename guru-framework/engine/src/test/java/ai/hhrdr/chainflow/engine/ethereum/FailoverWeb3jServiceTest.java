@@ -0,0 +1,132 @@
+package ai.hhrdr.chainflow.engine.ethereum;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.web3j.protocol.Web3jService;
+import org.web3j.protocol.core.BatchRequest;
+import org.web3j.protocol.core.Request;
+import org.web3j.protocol.core.methods.response.EthBlockNumber;
+import org.web3j.protocol.core.methods.response.EthSendTransaction;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class FailoverWeb3jServiceTest {
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final Web3jService primary = mock(Web3jService.class);
+    private final Web3jService secondary = mock(Web3jService.class);
+
+    @AfterEach
+    void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    void testFailsOverAndSkipsUnhealthyEndpoint() throws Exception {
+        EthBlockNumber answer = new EthBlockNumber();
+        when(primary.send(any(), any())).thenThrow(new IOException("connection refused"));
+        when(secondary.send(any(), any())).thenReturn(answer);
+        FailoverWeb3jService service = service(2, 0);
+
+        assertSame(answer, service.send(blockNumber(), EthBlockNumber.class));
+        assertSame(answer, service.send(blockNumber(), EthBlockNumber.class));
+        // Two failures in a row put the primary into its cooldown
+        assertSame(answer, service.send(blockNumber(), EthBlockNumber.class));
+
+        verify(primary, times(2)).send(any(), any());
+        verify(secondary, times(3)).send(any(), any());
+        assertEquals(2, meterRegistry.counter("ethereum.rpc.errors", "chain", "261", "endpoint", "primary").count());
+    }
+
+    @Test
+    void testThrowsWhenEveryEndpointFails() throws Exception {
+        when(primary.send(any(), any())).thenThrow(new IOException("primary down"));
+        when(secondary.send(any(), any())).thenThrow(new IOException("secondary down"));
+
+        IOException e = assertThrows(IOException.class, () -> service(3, 0).send(blockNumber(), EthBlockNumber.class));
+
+        assertEquals("secondary down", e.getMessage());
+    }
+
+    @Test
+    void testHedgesSlowReads() throws Exception {
+        EthBlockNumber slow = new EthBlockNumber();
+        EthBlockNumber fast = new EthBlockNumber();
+        when(primary.send(any(), any())).thenAnswer(invocation -> {
+            Thread.sleep(2000);
+            return slow;
+        });
+        when(secondary.send(any(), any())).thenReturn(fast);
+
+        assertSame(fast, service(3, 50).send(blockNumber(), EthBlockNumber.class));
+    }
+
+    @Test
+    void testNeverHedgesTransactions() throws Exception {
+        EthSendTransaction sent = new EthSendTransaction();
+        when(primary.send(any(), any())).thenAnswer(invocation -> {
+            Thread.sleep(200);
+            return sent;
+        });
+        assertSame(sent, service(3, 10).send(sendRawTransaction(), EthSendTransaction.class));
+        verify(secondary, never()).send(any(), any());
+    }
+
+    @Test
+    void testFailsOverTransactionsOnlyIfTheyCannotHaveReachedTheNode() throws Exception {
+        EthSendTransaction sent = new EthSendTransaction();
+        when(secondary.send(any(), any())).thenReturn(sent);
+        FailoverWeb3jService service = service(3, 0);
+
+        when(primary.send(any(), any())).thenThrow(new SocketTimeoutException("timeout"));
+        assertThrows(SocketTimeoutException.class, () -> service.send(sendRawTransaction(), EthSendTransaction.class));
+        verify(secondary, never()).send(any(), any());
+
+        doThrow(new ConnectException("connection refused")).when(primary).send(any(), any());
+        assertSame(sent, service.send(sendRawTransaction(), EthSendTransaction.class));
+    }
+
+    @Test
+    void testFailsOverBatchesWithTransactionsOnlyIfTheyCannotHaveReachedTheNode() throws Exception {
+        BatchRequest batch = new BatchRequest(primary);
+        batch.add(blockNumber()).add(sendRawTransaction());
+        when(primary.sendBatch(any())).thenThrow(new SocketTimeoutException("timeout"));
+
+        assertThrows(SocketTimeoutException.class, () -> service(3, 0).sendBatch(batch));
+        verify(secondary, never()).sendBatch(any());
+    }
+
+    private FailoverWeb3jService service(int failureThreshold, long hedgeDelay) {
+        return new FailoverWeb3jService(261, List.of(
+                new FailoverWeb3jService.Endpoint("primary", primary),
+                new FailoverWeb3jService.Endpoint("secondary", secondary)),
+                failureThreshold, 60_000, hedgeDelay, executor, meterRegistry);
+    }
+
+    private static Request<?, EthBlockNumber> blockNumber() {
+        return new Request<>("eth_blockNumber", Collections.emptyList(), null, EthBlockNumber.class);
+    }
+
+    private static Request<?, EthSendTransaction> sendRawTransaction() {
+        return new Request<>("eth_sendRawTransaction", Collections.singletonList("0x00"), null, EthSendTransaction.class);
+    }
+}
@@ -0,0 +1,62 @@
+package ai.hhrdr.chainflow.engine.ethereum;
+
+import ai.hhrdr.chainflow.engine.fixtures.HistoryEventSamples;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.camunda.bpm.engine.impl.history.event.HistoryEvent;
+import org.junit.jupiter.api.Test;
+import org.web3j.crypto.Credentials;
+import org.web3j.crypto.RawTransaction;
+import org.web3j.crypto.TransactionEncoder;
+import org.web3j.utils.Numeric;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class InscriptionEncoderTest {
+
+    private static final Credentials CREDENTIALS =
+            Credentials.create("4c0883a69102937d6231471b5dbb6204fe5129617082792ae468d01a3f362318");
+
+    @Test
+    void testJsonMatchesObjectMapper() throws Exception {
+        ObjectMapper objectMapper = new ObjectMapper();
+        HistoryEvent event = HistoryEventSamples.variableUpdate();
+
+        byte[] json = new InscriptionEncoder(objectMapper).json(event);
+
+        assertEquals(objectMapper.writeValueAsString(event), new String(json, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void testSignedTransactionMatchesTransactionEncoder() {
+        byte[] payload = InscriptionEncoder.prefixed(InscriptionPackCodec.JSON_PREFIX_BYTES,
+                "{\"id\":\"7a2d4c1b\"}".getBytes(StandardCharsets.UTF_8));
+        for (long nonce : new long[]{0, 1, 300}) {
+            BigInteger gasPrice = BigInteger.valueOf(1_200_000_000L);
+            BigInteger gasLimit = BigInteger.valueOf(60000);
+            RawTransaction rawTransaction = RawTransaction.createTransaction(BigInteger.valueOf(nonce), gasPrice, gasLimit,
+                    CREDENTIALS.getAddress(), BigInteger.ZERO, Numeric.toHexString(payload));
+
+            byte[] expected = TransactionEncoder.signMessage(rawTransaction, 261L, CREDENTIALS);
+            byte[] actual = InscriptionEncoder.signTransaction(BigInteger.valueOf(nonce), gasPrice, gasLimit,
+                    Numeric.hexStringToByteArray(CREDENTIALS.getAddress()), payload, 261, CREDENTIALS.getEcKeyPair());
+
+            assertArrayEquals(expected, actual);
+        }
+    }
+
+    @Test
+    void testHexMatchesNumeric() {
+        byte[] bytes = new byte[5000];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) (i * 31);
+        }
+
+        assertEquals(Numeric.toHexString(bytes), InscriptionEncoder.toHexString(bytes));
+        assertEquals("0x", InscriptionEncoder.toHexString(new byte[0]));
+        assertEquals("0x00ff", InscriptionEncoder.toHexString(new byte[]{0, -1}));
+    }
+}
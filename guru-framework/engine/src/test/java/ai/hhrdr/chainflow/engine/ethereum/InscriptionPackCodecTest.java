@@ -0,0 +1,123 @@
+package ai.hhrdr.chainflow.engine.ethereum;
+
+import ai.hhrdr.chainflow.engine.ethereum.InscriptionPackCodec.Compression;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class InscriptionPackCodecTest {
+
+    @Test
+    void testRoundTripDeflated() throws IOException {
+        List<String> events = events(20);
+        InscriptionPackCodec codec = new InscriptionPackCodec(50, 65536, 2_000_000, Compression.DEFLATE);
+
+        List<byte[]> packs = codec.pack(bytes(events));
+
+        assertEquals(1, packs.size());
+        assertEquals(events, InscriptionPackCodec.unpack(packs.get(0)));
+        int raw = events.stream().mapToInt(event -> InscriptionPackCodec.JSON_PREFIX.length() + event.length()).sum();
+        assertTrue(packs.get(0).length * 5 < raw, "pack of " + packs.get(0).length + " bytes for " + raw + " raw");
+    }
+
+    @Test
+    void testRoundTripUncompressed() throws IOException {
+        List<String> events = events(3);
+        InscriptionPackCodec codec = new InscriptionPackCodec(50, 65536, 2_000_000, Compression.NONE);
+
+        assertEquals(events, InscriptionPackCodec.unpack(codec.pack(bytes(events)).get(0)));
+    }
+
+    @Test
+    void testSplitsAtEventCountSizeAndGas() throws IOException {
+        List<String> events = events(40);
+
+        assertPacksWithin(new InscriptionPackCodec(15, 65536, 2_000_000, Compression.DEFLATE), events, 3, 65536, 2_000_000);
+        assertPacksWithin(new InscriptionPackCodec(50, 1024, 2_000_000, Compression.NONE), events, 8, 1024, 2_000_000);
+        assertPacksWithin(new InscriptionPackCodec(50, 65536, 28_000, Compression.DEFLATE), events, 2, 65536, 28_000);
+    }
+
+    @Test
+    void testUnpacksSingleJsonInscription() throws IOException {
+        byte[] calldata = (InscriptionPackCodec.JSON_PREFIX + "{\"id\":\"1\"}").getBytes(StandardCharsets.UTF_8);
+
+        assertEquals(List.of("{\"id\":\"1\"}"), InscriptionPackCodec.unpackHex("0x" + hex(calldata)));
+    }
+
+    @Test
+    void testRejectsTruncatedPack() {
+        InscriptionPackCodec codec = new InscriptionPackCodec(50, 65536, 2_000_000, Compression.NONE);
+        byte[] pack = codec.pack(bytes(events(2))).get(0);
+        byte[] truncated = Arrays.copyOf(pack, pack.length - 10);
+
+        assertThrows(IOException.class, () -> InscriptionPackCodec.unpack(truncated));
+    }
+
+    @Test
+    void testRejectsCountsAndLengthsBeyondTheInput() {
+        // 2^28 - 1 events in one byte
+        assertThrows(IOException.class, () -> InscriptionPackCodec.unpack(rawPack(0xff, 0xff, 0xff, 0x7f, 0x01)));
+        // One event of 2^28 - 1 bytes
+        assertThrows(IOException.class, () -> InscriptionPackCodec.unpack(rawPack(0x01, 0xff, 0xff, 0xff, 0x7f, 0x00)));
+    }
+
+    /**
+     * An uncompressed pack around the given frame bytes.
+     */
+    private static byte[] rawPack(int... frames) {
+        byte[] prefix = InscriptionPackCodec.PACK_PREFIX.getBytes(StandardCharsets.US_ASCII);
+        byte[] pack = Arrays.copyOf(prefix, prefix.length + 2 + frames.length);
+        pack[prefix.length] = InscriptionPackCodec.VERSION;
+        for (int i = 0; i < frames.length; i++) {
+            pack[prefix.length + 2 + i] = (byte) frames[i];
+        }
+        return pack;
+    }
+
+    private static void assertPacksWithin(InscriptionPackCodec codec, List<String> events, int minPacks,
+                                          int maxBytes, long maxGas) throws IOException {
+        List<byte[]> packs = codec.pack(bytes(events));
+        List<String> unpacked = new ArrayList<>();
+        for (byte[] pack : packs) {
+            assertTrue(pack.length <= maxBytes, "pack of " + pack.length + " bytes");
+            assertTrue(InscriptionPackCodec.intrinsicGas(pack) <= maxGas, "pack needing " + InscriptionPackCodec.intrinsicGas(pack) + " gas");
+            unpacked.addAll(InscriptionPackCodec.unpack(pack));
+        }
+        assertTrue(packs.size() >= minPacks, packs.size() + " packs");
+        assertEquals(events, unpacked);
+    }
+
+    private static List<String> events(int count) {
+        List<String> events = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            events.add("{\"id\":\"" + (1000 + i) + "\",\"eventType\":\"end\",\"processDefinitionKey\":\"invoice\","
+                    + "\"processInstanceId\":\"7a2d4c1b-6e1f-11ef-9a43-0242ac12" + (1000 + i) + "\","
+                    + "\"activityId\":\"ServiceTask_1\",\"activityType\":\"serviceTask\",\"durationInMillis\":" + (i * 37) + "}");
+        }
+        return events;
+    }
+
+    private static List<byte[]> bytes(List<String> events) {
+        List<byte[]> bytes = new ArrayList<>();
+        for (String event : events) {
+            bytes.add(event.getBytes(StandardCharsets.UTF_8));
+        }
+        return bytes;
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+}
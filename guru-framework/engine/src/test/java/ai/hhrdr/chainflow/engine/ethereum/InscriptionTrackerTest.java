@@ -0,0 +1,177 @@
+package ai.hhrdr.chainflow.engine.ethereum;
+
+import ai.hhrdr.chainflow.engine.ethereum.InscriptionTracker.TrackedInscription;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.web3j.protocol.Web3j;
+import org.web3j.protocol.Web3jService;
+import org.web3j.protocol.core.BatchRequest;
+import org.web3j.protocol.core.BatchResponse;
+import org.web3j.protocol.core.Request;
+import org.web3j.protocol.core.Response;
+import org.web3j.protocol.core.methods.response.EthGetTransactionReceipt;
+import org.web3j.protocol.core.methods.response.TransactionReceipt;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class InscriptionTrackerTest {
+
+    @TempDir
+    Path stateDir;
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    @Test
+    void testRetriesWithBackoffUntilMaxRetry() {
+        InscriptionTracker tracker = tracker(2, 0);
+        TrackedInscription inscription = new TrackedInscription(payload("a"));
+
+        tracker.rejected(inscription, "underpriced");
+        assertEquals(1, tracker.retryCount());
+        List<TrackedInscription> due = tracker.dueRetries();
+        assertEquals(1, due.size());
+        assertEquals(0, tracker.retryCount());
+
+        tracker.rejected(due.get(0), "underpriced");
+        tracker.rejected(tracker.dueRetries().get(0), "underpriced");
+        assertEquals(0, tracker.retryCount());
+        assertEquals(3, meterRegistry.counter("inscription.transactions", "outcome", "rejected").count());
+        assertEquals(1, meterRegistry.counter("inscription.transactions", "outcome", "failed").count());
+    }
+
+    @Test
+    void testRetryWaitsForBackoff() {
+        InscriptionTracker tracker = tracker(3, 60_000);
+
+        tracker.rejected(new TrackedInscription(payload("a")), "underpriced");
+
+        assertTrue(tracker.dueRetries().isEmpty());
+        assertEquals(1, tracker.retryCount());
+    }
+
+    @Test
+    void testRestoresStateFromSnapshot() {
+        InscriptionTracker tracker = tracker(3, 60_000);
+        tracker.sent(new TrackedInscription(payload("a")), "0x01");
+        tracker.rejected(new TrackedInscription(payload("b")), "underpriced");
+        tracker.persist();
+
+        InscriptionTracker restored = tracker(3, 0);
+        restored.load();
+
+        assertEquals(1, restored.pendingCount());
+        List<TrackedInscription> due = restored.dueRetries();
+        assertEquals(1, due.size());
+        assertArrayEquals(payload("b"), due.get(0).payload);
+        assertEquals(1, due.get(0).attempts);
+    }
+
+    @Test
+    void testPollSettlesConfirmedRevertedAndDroppedTransactions() throws Exception {
+        // 0x03 and 0x04 have no receipt, the node answers 0x04 with an error
+        Web3jService transport = mock(Web3jService.class);
+        when(transport.sendBatch(any())).thenAnswer(invocation -> {
+            BatchRequest batch = invocation.getArgument(0);
+            List<Response<?>> responses = new ArrayList<>();
+            for (Request<?, ? extends Response<?>> request : batch.getRequests()) {
+                responses.add(receipt((String) request.getParams().get(0)));
+            }
+            return new BatchResponse(batch.getRequests(), responses);
+        });
+        InscriptionTracker tracker = new InscriptionTracker(Web3j.build(transport), stateDir.toString(), 3, 60_000, 500,
+                meterRegistry);
+        TrackedInscription dropped = new TrackedInscription(payload("c"));
+        TrackedInscription erroring = new TrackedInscription(payload("d"));
+        tracker.sent(new TrackedInscription(payload("a")), "0x01");
+        tracker.sent(new TrackedInscription(payload("b")), "0x02");
+        tracker.sent(dropped, "0x03");
+        tracker.sent(erroring, "0x04");
+        dropped.sentAt = System.currentTimeMillis() - 1000;
+        erroring.sentAt = System.currentTimeMillis() - 1000;
+
+        assertTrue(tracker.pollReceipts());
+
+        assertEquals(1, tracker.pendingCount());
+        assertEquals(2, tracker.retryCount());
+        assertEquals(1, meterRegistry.counter("inscription.transactions", "outcome", "confirmed").count());
+        assertEquals(1, meterRegistry.counter("inscription.transactions", "outcome", "reverted").count());
+        assertEquals(1, meterRegistry.counter("inscription.transactions", "outcome", "dropped").count());
+    }
+
+    @Test
+    void testPollWithoutSettledTransactionsLeavesNoGap() throws Exception {
+        Web3jService transport = mock(Web3jService.class);
+        when(transport.sendBatch(any())).thenAnswer(invocation -> {
+            BatchRequest batch = invocation.getArgument(0);
+            return new BatchResponse(batch.getRequests(), List.of(receipt("0x03")));
+        });
+        InscriptionTracker tracker = new InscriptionTracker(Web3j.build(transport), stateDir.toString(), 3, 60_000, 120_000,
+                meterRegistry);
+        tracker.sent(new TrackedInscription(payload("a")), "0x03");
+
+        assertFalse(tracker.pollReceipts());
+        assertEquals(1, tracker.pendingCount());
+        assertEquals(0, tracker.retryCount());
+    }
+
+    @Test
+    void testReportsStepsOfTaggedInscriptions() throws Exception {
+        Web3jService transport = mock(Web3jService.class);
+        when(transport.sendBatch(any())).thenAnswer(invocation -> {
+            BatchRequest batch = invocation.getArgument(0);
+            return new BatchResponse(batch.getRequests(), List.of(receipt("0x02")));
+        });
+        InscriptionTracker tracker = new InscriptionTracker(Web3j.build(transport), stateDir.toString(), 0, 0, 120_000,
+                meterRegistry);
+        List<String> outcomes = new ArrayList<>();
+        tracker.setListener((tag, hash, outcome) -> outcomes.add(tag + " " + hash + " " + outcome));
+        TrackedInscription tagged = new TrackedInscription(payload("root"));
+        tagged.tag = "window-1";
+        tracker.sent(tagged, "0x02");
+        tracker.rejected(new TrackedInscription(payload("plain")), "underpriced");
+
+        tracker.pollReceipts();
+
+        assertEquals(List.of("window-1 0x02 sent", "window-1 0x02 failed"), outcomes);
+    }
+
+    private static EthGetTransactionReceipt receipt(String hash) {
+        EthGetTransactionReceipt result = new EthGetTransactionReceipt();
+        switch (hash) {
+            case "0x01":
+            case "0x02":
+                TransactionReceipt receipt = new TransactionReceipt();
+                receipt.setTransactionHash(hash);
+                receipt.setBlockNumber("0x1");
+                receipt.setStatus(hash.equals("0x01") ? "0x1" : "0x0");
+                result.setResult(receipt);
+                break;
+            case "0x04":
+                result.setError(new Response.Error(-32000, "header not found"));
+                break;
+            default:
+                break;
+        }
+        return result;
+    }
+
+    private InscriptionTracker tracker(int maxRetry, long backoff) {
+        return new InscriptionTracker(mock(Web3j.class), stateDir.toString(), maxRetry, backoff, 120_000, meterRegistry);
+    }
+
+    private static byte[] payload(String text) {
+        return ("data:application/json," + text).getBytes(StandardCharsets.UTF_8);
+    }
+}
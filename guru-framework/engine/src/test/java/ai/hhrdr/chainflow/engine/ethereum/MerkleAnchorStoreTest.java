@@ -0,0 +1,135 @@
+package ai.hhrdr.chainflow.engine.ethereum;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.web3j.utils.Numeric;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MerkleAnchorStoreTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void testEveryLeafProvesAgainstRoot() {
+        for (int size = 1; size <= 17; size++) {
+            List<byte[]> leaves = new ArrayList<>();
+            for (int i = 0; i < size; i++) {
+                leaves.add(MerkleTree.leaf(json("event-" + i)));
+            }
+            byte[] root = MerkleTree.root(leaves);
+            for (int i = 0; i < size; i++) {
+                assertTrue(MerkleTree.verify(leaves.get(i), MerkleTree.proof(leaves, i), root), size + "/" + i);
+            }
+            if (size > 1) {
+                assertFalse(MerkleTree.verify(MerkleTree.leaf(json("other")), MerkleTree.proof(leaves, 0), root));
+            }
+        }
+    }
+
+    @Test
+    void testProofOfSealedEvent() throws Exception {
+        MerkleAnchorStore store = new MerkleAnchorStore(directory.toString());
+        store.open();
+        for (int i = 0; i < 5; i++) {
+            store.add("event-" + i, json("event-" + i));
+        }
+        assertTrue(store.proofs("event-3").isEmpty());
+
+        MerkleAnchorStore.Window window = store.seal();
+        assertEquals(5, window.leaves);
+        assertNull(store.seal());
+
+        List<MerkleAnchorStore.Proof> proofs = store.proofs("event-3");
+        assertEquals(1, proofs.size());
+        MerkleAnchorStore.Proof proof = proofs.get(0);
+        assertEquals(window.root, proof.root);
+        assertEquals("{\"id\":\"event-3\"}", proof.event);
+        assertTrue(verify(proof));
+    }
+
+    @Test
+    void testRecoversWindowsAfterRestart() throws Exception {
+        MerkleAnchorStore store = new MerkleAnchorStore(directory.toString());
+        store.open();
+        store.add("event-1", json("event-1"));
+        MerkleAnchorStore.Window first = store.seal();
+        store.add("event-1", json("event-1 again"));
+        store.add("event-2", json("event-2"));
+        store.close();
+
+        MerkleAnchorStore restarted = new MerkleAnchorStore(directory.toString());
+        restarted.open();
+        assertEquals(2, restarted.openCount());
+        assertEquals(1, restarted.unanchored().size());
+        MerkleAnchorStore.Window second = restarted.seal();
+        assertEquals(first.sequence + 1, second.sequence);
+
+        List<MerkleAnchorStore.Proof> proofs = restarted.proofs("event-1");
+        assertEquals(2, proofs.size());
+        assertEquals(second.sequence, proofs.get(0).window);
+        assertEquals(first.sequence, proofs.get(1).window);
+        for (MerkleAnchorStore.Proof proof : proofs) {
+            assertTrue(verify(proof));
+        }
+    }
+
+    @Test
+    void testPrunesOnlyAnchoredWindows() throws Exception {
+        MerkleAnchorStore store = new MerkleAnchorStore(directory.toString());
+        store.open();
+        store.add("event-1", json("event-1"));
+        MerkleAnchorStore.Window window = store.seal();
+
+        store.prune(Long.MAX_VALUE);
+        assertEquals(1, store.proofs("event-1").size());
+
+        store.recordTransaction(window.sequence, "0x01", "sent", false);
+        store.prune(Long.MAX_VALUE);
+        MerkleAnchorStore.Proof proof = store.proofs("event-1").get(0);
+        assertFalse(proof.anchored);
+        assertEquals("0x01", proof.txHash);
+        assertEquals("sent", proof.txStatus);
+
+        store.recordTransaction(window.sequence, "0x01", "confirmed", true);
+        store.prune(Long.MAX_VALUE);
+        assertTrue(store.proofs("event-1").isEmpty());
+        assertTrue(store.unanchored().isEmpty());
+    }
+
+    @Test
+    void testRepeatedProofsMatchTheRoot() throws Exception {
+        MerkleAnchorStore store = new MerkleAnchorStore(directory.toString());
+        store.open();
+        for (int i = 0; i < 9; i++) {
+            store.add("event-" + i, json("event-" + i));
+        }
+        store.seal();
+
+        for (int i = 0; i < 9; i++) {
+            assertTrue(verify(store.proofs("event-" + i).get(0)), "event-" + i);
+        }
+    }
+
+    private static boolean verify(MerkleAnchorStore.Proof proof) {
+        List<MerkleTree.Step> steps = new ArrayList<>();
+        for (MerkleAnchorStore.Sibling sibling : proof.siblings) {
+            steps.add(new MerkleTree.Step(Numeric.hexStringToByteArray(sibling.hash), "left".equals(sibling.position)));
+        }
+        byte[] leaf = MerkleTree.leaf(proof.event.getBytes(StandardCharsets.UTF_8));
+        return MerkleTree.verify(leaf, steps, Numeric.hexStringToByteArray(proof.root));
+    }
+
+    private static byte[] json(String id) {
+        return ("{\"id\":\"" + id + "\"}").getBytes(StandardCharsets.UTF_8);
+    }
+}
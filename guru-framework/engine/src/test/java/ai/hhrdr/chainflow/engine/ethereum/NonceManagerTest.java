@@ -0,0 +1,110 @@
+package ai.hhrdr.chainflow.engine.ethereum;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.web3j.protocol.Web3j;
+import org.web3j.protocol.core.Request;
+import org.web3j.protocol.core.methods.response.EthGetTransactionCount;
+
+import java.math.BigInteger;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class NonceManagerTest {
+
+    private static final String SIGNER = "0x00000000000000000000000000000000000000aa";
+
+    private final NonceManager nonceManager = new NonceManager(new SimpleMeterRegistry());
+
+    @Test
+    void testHandsOutNoncesLocally() throws Exception {
+        Web3j web3j = web3jWithPendingCount(5, 9);
+        NonceManager.SignerNonces nonces = nonceManager.forSigner(web3j, 261, SIGNER);
+
+        assertEquals(BigInteger.valueOf(5), nonces.next());
+        assertEquals(BigInteger.valueOf(6), nonces.reserve(3));
+        assertEquals(BigInteger.valueOf(9), nonces.next());
+        verify(web3j, times(1)).ethGetTransactionCount(any(), any());
+    }
+
+    @Test
+    void testResyncReloadsFromNode() throws Exception {
+        Web3j web3j = web3jWithPendingCount(5, 42);
+        NonceManager.SignerNonces nonces = nonceManager.forSigner(web3j, 261, SIGNER);
+        nonces.next();
+
+        nonces.resync();
+
+        assertEquals(BigInteger.valueOf(42), nonces.next());
+    }
+
+    @Test
+    void testSequencePerChainAndSigner() throws Exception {
+        Web3j web3j = web3jWithPendingCount(0, 0);
+
+        assertSame(nonceManager.forSigner(web3j, 261, SIGNER), nonceManager.forSigner(web3j, 261, "0x00000000000000000000000000000000000000AA"));
+        assertNotSame(nonceManager.forSigner(web3j, 261, SIGNER), nonceManager.forSigner(web3j, 1, SIGNER));
+    }
+
+    @Test
+    void testConcurrentSendersGetDistinctNonces() throws Exception {
+        NonceManager.SignerNonces nonces = nonceManager.forSigner(web3jWithPendingCount(0, 0), 261, SIGNER);
+        Set<BigInteger> seen = ConcurrentHashMap.newKeySet();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        for (int i = 0; i < 8; i++) {
+            executor.execute(() -> {
+                for (int n = 0; n < 1000; n++) {
+                    try {
+                        seen.add(nonces.next());
+                    } catch (Exception e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+
+        assertEquals(8000, seen.size());
+    }
+
+    @Test
+    void testRecognizesNonceErrors() {
+        assertTrue(NonceManager.isNonceError("nonce too low"));
+        assertTrue(NonceManager.isNonceError("Replacement transaction underpriced"));
+        assertFalse(NonceManager.isNonceError("insufficient funds for gas * price + value"));
+        // The node has the transaction itself, resending it with another nonce would duplicate it
+        assertFalse(NonceManager.isNonceError("already known"));
+        assertFalse(NonceManager.isNonceError(null));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Web3j web3jWithPendingCount(long first, long afterResync) throws Exception {
+        Web3j web3j = mock(Web3j.class);
+        Request<?, EthGetTransactionCount> request = mock(Request.class);
+        when(request.send()).thenReturn(count(first), count(afterResync));
+        doReturn(request).when(web3j).ethGetTransactionCount(any(), any());
+        return web3j;
+    }
+
+    private static EthGetTransactionCount count(long value) {
+        EthGetTransactionCount count = new EthGetTransactionCount();
+        count.setResult("0x" + Long.toHexString(value));
+        return count;
+    }
+}
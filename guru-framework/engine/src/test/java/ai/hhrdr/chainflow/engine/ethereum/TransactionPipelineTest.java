@@ -0,0 +1,217 @@
+package ai.hhrdr.chainflow.engine.ethereum;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.web3j.crypto.Credentials;
+import org.web3j.crypto.Hash;
+import org.web3j.crypto.TransactionDecoder;
+import org.web3j.protocol.Web3j;
+import org.web3j.protocol.Web3jService;
+import org.web3j.protocol.core.BatchRequest;
+import org.web3j.protocol.core.BatchResponse;
+import org.web3j.protocol.core.Request;
+import org.web3j.protocol.core.Response;
+import org.web3j.protocol.core.methods.response.EthGetTransactionCount;
+import org.web3j.protocol.core.methods.response.EthGetTransactionReceipt;
+import org.web3j.protocol.core.methods.response.EthSendTransaction;
+import org.web3j.protocol.core.methods.response.TransactionReceipt;
+import org.web3j.protocol.exceptions.TransactionException;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class TransactionPipelineTest {
+
+    private static final String CONTRACT = "0x00000000000000000000000000000000000000aa";
+    private static final Credentials SIGNER = Credentials.create("0x4c0883a69102937d6231471b5dbb6204fe5129617082792ae468d01a3f362318");
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final Web3jService transport = mock(Web3jService.class);
+    private final GasPriceOracle gasPriceOracle = mock(GasPriceOracle.class);
+
+    // What the fake node saw and answers
+    private final List<BigInteger> sentNonces = new ArrayList<>();
+    private final Set<BigInteger> rejectedNonces = new HashSet<>();
+    private final Set<BigInteger> knownNonces = new HashSet<>();
+    private final List<String> knownHashes = new ArrayList<>();
+    private final Map<String, String> receiptStatus = new HashMap<>();
+    private long pendingCount = 7;
+    // Raw transactions of the next send batch are lost along with the node's answer
+    private List<String> lostTransactions;
+
+    private Web3j web3j;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        web3j = Web3j.build(transport);
+        when(gasPriceOracle.gasPrice(any(), anyLong())).thenReturn(BigInteger.TEN);
+        when(transport.send(any(), eq(EthGetTransactionCount.class))).thenAnswer(invocation -> {
+            EthGetTransactionCount count = new EthGetTransactionCount();
+            count.setResult("0x" + Long.toHexString(pendingCount));
+            return count;
+        });
+        when(transport.sendBatch(any())).thenAnswer(invocation -> {
+            BatchRequest batch = invocation.getArgument(0);
+            if (lostTransactions != null && batch.getRequests().get(0).getMethod().equals("eth_sendRawTransaction")) {
+                for (Request<?, ? extends Response<?>> request : batch.getRequests()) {
+                    lostTransactions.add((String) request.getParams().get(0));
+                }
+                throw new IOException("Read timed out");
+            }
+            List<Response<?>> responses = new ArrayList<>();
+            for (Request<?, ? extends Response<?>> request : batch.getRequests()) {
+                String param = (String) request.getParams().get(0);
+                if (request.getMethod().equals("eth_sendRawTransaction")) {
+                    responses.add(sendResult(TransactionDecoder.decode(param).getNonce(), param));
+                } else {
+                    responses.add(receipt(param));
+                }
+            }
+            return new BatchResponse(batch.getRequests(), responses);
+        });
+    }
+
+    @Test
+    void testSendsQueuedCallsWithConsecutiveNoncesAndSettlesByReceipt() throws Exception {
+        TransactionPipeline pipeline = pipeline(16);
+
+        TransactionPipeline.Call first = pipeline.submit(CONTRACT, "0x01");
+        TransactionPipeline.Call second = pipeline.submit(CONTRACT, "0x02");
+
+        assertEquals(List.of(BigInteger.valueOf(7), BigInteger.valueOf(8)), sentNonces);
+        assertEquals("0x7", first.hash.get());
+        assertEquals(2, pipeline.inFlight());
+
+        receiptStatus.put("0x7", "0x1");
+        receiptStatus.put("0x8", "0x0");
+        pipeline.pollReceipts();
+
+        assertTrue(first.receipt.get().isStatusOK());
+        ExecutionException reverted = assertThrows(ExecutionException.class, () -> second.receipt.get());
+        assertInstanceOf(TransactionException.class, reverted.getCause());
+        assertEquals(0, pipeline.inFlight());
+        assertEquals(1, meterRegistry.counter("ethereum.transactions", "outcome", "reverted").count());
+    }
+
+    @Test
+    void testQueuedCallWaitsForAnInFlightSlot() throws Exception {
+        TransactionPipeline pipeline = pipeline(1);
+
+        pipeline.submit(CONTRACT, "0x01");
+        TransactionPipeline.Call waiting = pipeline.submit(CONTRACT, "0x02");
+        assertFalse(waiting.hash.isDone());
+
+        // Still pending, the slot stays taken
+        pipeline.pollReceipts();
+        assertFalse(waiting.hash.isDone());
+
+        receiptStatus.put("0x7", "0x1");
+        pipeline.pollReceipts();
+        assertEquals("0x8", waiting.hash.get());
+    }
+
+    @Test
+    void testNonceErrorResyncsAndSendsOnceMore() throws Exception {
+        TransactionPipeline pipeline = pipeline(16);
+        // Another sender takes nonce 7 first
+        rejectedNonces.add(BigInteger.valueOf(7));
+
+        TransactionPipeline.Call call = pipeline.submit(CONTRACT, "0x01");
+
+        assertEquals("0x8", call.hash.get());
+        assertEquals(List.of(BigInteger.valueOf(7), BigInteger.valueOf(8)), sentNonces);
+        verify(transport, times(2)).send(any(), eq(EthGetTransactionCount.class));
+    }
+
+    @Test
+    void testAlreadyKnownCountsAsSentUnderTheLocalHash() throws Exception {
+        TransactionPipeline pipeline = pipeline(16);
+        // The node got the transaction before, but the response was lost
+        knownNonces.add(BigInteger.valueOf(7));
+
+        TransactionPipeline.Call call = pipeline.submit(CONTRACT, "0x01");
+
+        String localHash = call.hash.get();
+        assertEquals(knownHashes, List.of(localHash));
+        assertEquals(List.of(BigInteger.valueOf(7)), sentNonces);
+        assertEquals(1, pipeline.inFlight());
+        // Neither resent nor resynced
+        verify(transport, times(1)).send(any(), eq(EthGetTransactionCount.class));
+
+        receiptStatus.put(localHash, "0x1");
+        pipeline.pollReceipts();
+        assertTrue(call.receipt.get().isStatusOK());
+    }
+
+    @Test
+    void testUnansweredBatchIsFollowedByReceipt() throws Exception {
+        TransactionPipeline pipeline = pipeline(16);
+        lostTransactions = new ArrayList<>();
+
+        TransactionPipeline.Call call = pipeline.submit(CONTRACT, "0x01");
+
+        // Tracked under the locally computed hash, not failed and resent
+        assertEquals(Hash.sha3(lostTransactions.get(0)), call.hash.get());
+        assertEquals(1, pipeline.inFlight());
+        assertEquals(0, meterRegistry.counter("ethereum.transactions", "outcome", "rejected").count());
+    }
+
+    private TransactionPipeline pipeline(int maxInFlight) {
+        NonceManager.SignerNonces nonces = new NonceManager(meterRegistry).forSigner(web3j, 261, SIGNER.getAddress());
+        return new TransactionPipeline(web3j, 261, SIGNER, nonces, gasPriceOracle, BigInteger.valueOf(100000),
+                maxInFlight, 60000, meterRegistry);
+    }
+
+    /**
+     * Accepts the transaction with its nonce as hash, unless the nonce is rejected, which uses it up, or the
+     * transaction is known already, which the node reports as an error.
+     */
+    private EthSendTransaction sendResult(BigInteger nonce, String rawTransaction) {
+        sentNonces.add(nonce);
+        EthSendTransaction result = new EthSendTransaction();
+        if (knownNonces.remove(nonce)) {
+            knownHashes.add(Hash.sha3(rawTransaction));
+            result.setError(new Response.Error(-32000, "already known"));
+        } else if (rejectedNonces.remove(nonce)) {
+            result.setError(new Response.Error(-32000, "nonce too low"));
+            pendingCount = nonce.longValue() + 1;
+        } else {
+            result.setResult("0x" + nonce.toString(16));
+        }
+        return result;
+    }
+
+    private EthGetTransactionReceipt receipt(String hash) {
+        EthGetTransactionReceipt result = new EthGetTransactionReceipt();
+        String status = receiptStatus.get(hash);
+        if (status != null) {
+            TransactionReceipt receipt = new TransactionReceipt();
+            receipt.setTransactionHash(hash);
+            receipt.setBlockNumber("0x1");
+            receipt.setStatus(status);
+            result.setResult(receipt);
+        }
+        return result;
+    }
+}
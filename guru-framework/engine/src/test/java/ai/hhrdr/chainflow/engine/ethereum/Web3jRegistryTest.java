@@ -0,0 +1,45 @@
+package ai.hhrdr.chainflow.engine.ethereum;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class Web3jRegistryTest {
+
+    private final Web3jRegistry registry = new Web3jRegistry("261=http://a:8545,http://b:8545", 5, 60_000, 1000, 1000,
+            3, 30_000, 0, new SimpleMeterRegistry());
+
+    @AfterEach
+    void tearDown() {
+        registry.destroy();
+    }
+
+    @Test
+    void testParsesChainUrls() {
+        Map<Long, List<String>> chains = Web3jRegistry.parseChains("261=http://a:8545, http://b:8545;137=https://c");
+
+        assertEquals(List.of("http://a:8545", "http://b:8545"), chains.get(261L));
+        assertEquals(List.of("https://c"), chains.get(137L));
+        assertEquals("c:443", Web3jRegistry.endpointName("https://c/v2/secret-key"));
+    }
+
+    @Test
+    void testConfiguredChainSharesOneClient() {
+        assertSame(registry.client(261), registry.client(261, "http://other:8545"));
+    }
+
+    @Test
+    void testUnconfiguredChainGetsOneClientPerUrl() {
+        assertSame(registry.client(137, "http://c:8545"), registry.client(137, "http://c:8545"));
+        assertNotSame(registry.client(137, "http://c:8545"), registry.client(137, "http://d:8545"));
+        assertThrows(IllegalArgumentException.class, () -> registry.client(137));
+    }
+}
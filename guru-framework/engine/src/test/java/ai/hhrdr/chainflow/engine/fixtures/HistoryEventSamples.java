@@ -0,0 +1,60 @@
+package ai.hhrdr.chainflow.engine.fixtures;
+
+import org.camunda.bpm.engine.impl.history.event.HistoricActivityInstanceEventEntity;
+import org.camunda.bpm.engine.impl.history.event.HistoricVariableUpdateEventEntity;
+import org.camunda.bpm.engine.impl.history.event.HistoryEventTypes;
+
+import java.util.Date;
+
+/**
+ * History events shaped like the ones the chatbot_thread and swap_tokens processes produce.
+ */
+public final class HistoryEventSamples {
+
+    private HistoryEventSamples() {
+    }
+
+    public static HistoricActivityInstanceEventEntity activityInstanceEnd() {
+        HistoricActivityInstanceEventEntity event = new HistoricActivityInstanceEventEntity();
+        event.setId("Activity_1x0jq3h:9d8c2a51-6e1f-11ef-9a43-0242ac120005");
+        event.setEventType(HistoryEventTypes.ACTIVITY_INSTANCE_END.getEventName());
+        event.setProcessInstanceId("9b6e1f0e-6e1f-11ef-9a43-0242ac120005");
+        event.setRootProcessInstanceId("7a2d4c1b-6e1f-11ef-9a43-0242ac120005");
+        event.setExecutionId("9b6e1f10-6e1f-11ef-9a43-0242ac120005");
+        event.setProcessDefinitionId("chatbot_thread:42:5c1f0a7e-6a02-11ef-8f4d-0242ac120005");
+        event.setProcessDefinitionKey("chatbot_thread");
+        event.setProcessDefinitionName("Chatbot Thread");
+        event.setProcessDefinitionVersion(42);
+        event.setSequenceCounter(17L);
+        event.setActivityId("Activity_1x0jq3h");
+        event.setActivityName("Call LLM");
+        event.setActivityType("serviceTask");
+        event.setActivityInstanceId("Activity_1x0jq3h:9d8c2a51-6e1f-11ef-9a43-0242ac120005");
+        event.setParentActivityInstanceId("9b6e1f0e-6e1f-11ef-9a43-0242ac120005");
+        event.setStartTime(new Date(1725960000000L));
+        event.setEndTime(new Date(1725960001250L));
+        event.setDurationInMillis(1250L);
+        return event;
+    }
+
+    public static HistoricVariableUpdateEventEntity variableUpdate() {
+        HistoricVariableUpdateEventEntity event = new HistoricVariableUpdateEventEntity();
+        event.setId("a1f3c9e2-6e1f-11ef-9a43-0242ac120005");
+        event.setEventType(HistoryEventTypes.VARIABLE_INSTANCE_UPDATE.getEventName());
+        event.setProcessInstanceId("9b6e1f0e-6e1f-11ef-9a43-0242ac120005");
+        event.setRootProcessInstanceId("7a2d4c1b-6e1f-11ef-9a43-0242ac120005");
+        event.setExecutionId("9b6e1f10-6e1f-11ef-9a43-0242ac120005");
+        event.setProcessDefinitionId("chatbot_thread:42:5c1f0a7e-6a02-11ef-8f4d-0242ac120005");
+        event.setProcessDefinitionKey("chatbot_thread");
+        event.setSequenceCounter(18L);
+        event.setActivityInstanceId("Activity_1x0jq3h:9d8c2a51-6e1f-11ef-9a43-0242ac120005");
+        event.setScopeActivityInstanceId("9b6e1f0e-6e1f-11ef-9a43-0242ac120005");
+        event.setVariableInstanceId("9b6e1f14-6e1f-11ef-9a43-0242ac120005");
+        event.setVariableName("agent_output");
+        event.setSerializerName("string");
+        event.setTextValue("Swap of 0.5 ETH to USDC is ready. Please confirm the transaction in your wallet to continue.");
+        event.setRevision(3);
+        event.setTimestamp(new Date(1725960001250L));
+        return event;
+    }
+}
@@ -0,0 +1,100 @@
+package ai.hhrdr.chainflow.engine.plugins;
+
+import ai.hhrdr.chainflow.engine.plugins.HistoryEventRules.Action;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.camunda.bpm.engine.impl.history.event.HistoricActivityInstanceEventEntity;
+import org.camunda.bpm.engine.impl.history.event.HistoricProcessInstanceEventEntity;
+import org.camunda.bpm.engine.impl.history.event.HistoricVariableUpdateEventEntity;
+import org.camunda.bpm.engine.impl.history.event.HistoryEvent;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HistoryEventRulesTest {
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    @Test
+    void testDefaultActionWithoutRules() {
+        HistoryEventRules rules = HistoryEventRules.compile("test", "", Action.ACCEPT, meterRegistry);
+
+        assertTrue(rules.accepts(processEvent("start", "invoice")));
+    }
+
+    @Test
+    void testEventTypeRule() {
+        HistoryEventRules rules = HistoryEventRules.compile("test", "drop:update", Action.ACCEPT, meterRegistry);
+
+        assertFalse(rules.accepts(processEvent("update", "invoice")));
+        assertTrue(rules.accepts(processEvent("end", "invoice")));
+    }
+
+    @Test
+    void testMostSpecificRuleWins() {
+        HistoryEventRules rules = HistoryEventRules.compile("test",
+                "drop:end, accept:end/invoice/serviceTask", Action.ACCEPT, meterRegistry);
+
+        assertTrue(rules.accepts(activityEvent("end", "invoice", "serviceTask")));
+        assertFalse(rules.accepts(activityEvent("end", "invoice", "userTask")));
+        assertFalse(rules.accepts(activityEvent("end", "order", "serviceTask")));
+    }
+
+    @Test
+    void testVariableNameRule() {
+        HistoryEventRules rules = HistoryEventRules.compile("test",
+                "accept:update/*/*/amount", Action.DROP, meterRegistry);
+
+        assertTrue(rules.accepts(variableEvent("update", "invoice", "amount")));
+        assertFalse(rules.accepts(variableEvent("update", "invoice", "comment")));
+        assertFalse(rules.accepts(processEvent("update", "invoice")));
+    }
+
+    @Test
+    void testCountsMatchesPerRule() {
+        HistoryEventRules rules = HistoryEventRules.compile("test", "drop:update", Action.ACCEPT, meterRegistry);
+
+        rules.accepts(processEvent("update", "invoice"));
+        rules.accepts(processEvent("update", "order"));
+        rules.accepts(processEvent("end", "order"));
+
+        assertEquals(2.0, meterRegistry.get("history.filter.matches").tag("rule", "drop:update/*/*/*").counter().count());
+        assertEquals(1.0, meterRegistry.get("history.filter.matches").tag("rule", "default").counter().count());
+    }
+
+    @Test
+    void testRejectsDuplicateRule() {
+        assertThrows(IllegalArgumentException.class,
+                () -> HistoryEventRules.compile("test", "drop:update, accept:update/*", Action.ACCEPT, meterRegistry));
+    }
+
+    @Test
+    void testInscriptionEventTypesBecomeAcceptRules() {
+        assertEquals("accept:start,accept:end", HistoryEventFilter.inscriptionEventTypeRules("start, end"));
+    }
+
+    private static HistoryEvent processEvent(String eventType, String definitionKey) {
+        HistoricProcessInstanceEventEntity event = new HistoricProcessInstanceEventEntity();
+        event.setEventType(eventType);
+        event.setProcessDefinitionKey(definitionKey);
+        return event;
+    }
+
+    private static HistoryEvent activityEvent(String eventType, String definitionKey, String activityType) {
+        HistoricActivityInstanceEventEntity event = new HistoricActivityInstanceEventEntity();
+        event.setEventType(eventType);
+        event.setProcessDefinitionKey(definitionKey);
+        event.setActivityType(activityType);
+        return event;
+    }
+
+    private static HistoryEvent variableEvent(String eventType, String definitionKey, String variableName) {
+        HistoricVariableUpdateEventEntity event = new HistoricVariableUpdateEventEntity();
+        event.setEventType(eventType);
+        event.setProcessDefinitionKey(definitionKey);
+        event.setVariableName(variableName);
+        return event;
+    }
+}
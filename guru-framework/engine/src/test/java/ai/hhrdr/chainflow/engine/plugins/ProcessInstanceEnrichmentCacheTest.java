@@ -0,0 +1,96 @@
+package ai.hhrdr.chainflow.engine.plugins;
+
+import ai.hhrdr.chainflow.engine.plugins.ProcessInstanceEnrichmentCache.Enrichment;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.camunda.bpm.engine.impl.cfg.TransactionContext;
+import org.camunda.bpm.engine.impl.cfg.TransactionListener;
+import org.camunda.bpm.engine.impl.cfg.TransactionState;
+import org.camunda.bpm.engine.impl.context.Context;
+import org.camunda.bpm.engine.impl.interceptor.CommandContext;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class ProcessInstanceEnrichmentCacheTest {
+
+    private SimpleMeterRegistry registry;
+    private ProcessInstanceEnrichmentCache cache;
+
+    @BeforeEach
+    void setUp() {
+        registry = new SimpleMeterRegistry();
+        cache = new ProcessInstanceEnrichmentCache(2, registry);
+    }
+
+    @Test
+    void testStartEventMakesLookupHit() {
+        cache.recordStart("pi-1", "user-1");
+        cache.recordCallingProcessInstanceId("pi-1", "parent-1");
+
+        Enrichment enrichment = cache.lookup("pi-1");
+
+        assertNotNull(enrichment);
+        assertEquals("user-1", enrichment.getStartUserId());
+        assertEquals("parent-1", enrichment.getCallingProcessInstanceId());
+        assertEquals(1.0, registry.get("rabbitmq.enrichment.cache.requests").tag("result", "hit").counter().count());
+    }
+
+    @Test
+    void testVariableOnlyEntryIsMissButKeepsCallingId() {
+        cache.recordCallingProcessInstanceId("pi-1", "parent-1");
+
+        assertNull(cache.lookup("pi-1"));
+        assertEquals(1.0, registry.get("rabbitmq.enrichment.cache.requests").tag("result", "miss").counter().count());
+
+        Enrichment loaded = cache.recordLoaded("pi-1", "user-1", null);
+        assertEquals("user-1", loaded.getStartUserId());
+        assertEquals("parent-1", loaded.getCallingProcessInstanceId());
+    }
+
+    @Test
+    void testEvictOnEndAndOnSize() {
+        cache.recordStart("pi-1", "user-1");
+        cache.recordStart("pi-2", "user-2");
+        cache.recordStart("pi-3", "user-3");
+
+        assertEquals(2, cache.size());
+        assertNull(cache.lookup("pi-1"));
+        assertEquals(1.0, registry.get("rabbitmq.enrichment.cache.evictions").tag("cause", "size").counter().count());
+
+        cache.evict("pi-2");
+        assertNull(cache.lookup("pi-2"));
+        assertEquals(1.0, registry.get("rabbitmq.enrichment.cache.evictions").tag("cause", "end").counter().count());
+    }
+
+    @Test
+    void testEndEvictsOnlyAfterTheCommandCommitted() {
+        CommandContext commandContext = mock(CommandContext.class);
+        TransactionContext transactionContext = mock(TransactionContext.class);
+        when(commandContext.getTransactionContext()).thenReturn(transactionContext);
+        cache.recordStart("pi-1", "user-1");
+
+        Context.setCommandContext(commandContext);
+        try {
+            cache.evictAfterCommand("pi-1");
+            // A later event of the same command still finds the instance
+            assertNotNull(cache.lookup("pi-1"));
+        } finally {
+            Context.removeCommandContext();
+        }
+
+        ArgumentCaptor<TransactionListener> committed = ArgumentCaptor.forClass(TransactionListener.class);
+        verify(transactionContext).addTransactionListener(eq(TransactionState.COMMITTED), committed.capture());
+        verify(transactionContext).addTransactionListener(eq(TransactionState.ROLLED_BACK), any());
+        committed.getValue().execute(commandContext);
+
+        assertEquals(0, cache.size());
+        assertEquals(1.0, registry.get("rabbitmq.enrichment.cache.evictions").tag("cause", "end").counter().count());
+    }
+}
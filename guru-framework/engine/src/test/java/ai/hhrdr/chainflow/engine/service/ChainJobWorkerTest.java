@@ -0,0 +1,235 @@
+package ai.hhrdr.chainflow.engine.service;
+
+import ai.hhrdr.chainflow.engine.ethereum.EthereumService;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.web3j.protocol.core.methods.response.TransactionReceipt;
+import org.web3j.protocol.exceptions.TransactionException;
+
+import java.sql.Timestamp;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+class ChainJobWorkerTest {
+
+    private static final String CONTRACT = "0x00000000000000000000000000000000000000aa";
+
+    private EthereumService ethereumService;
+    private ChainJobCompensation compensation;
+    private ChainJobOutbox outbox;
+    private ChainJobWorker worker;
+
+    @BeforeEach
+    void setUp() {
+        DriverManagerDataSource dataSource = new DriverManagerDataSource(
+                "jdbc:h2:mem:chain-jobs-" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1", "sa", "");
+        ethereumService = mock(EthereumService.class);
+        compensation = mock(ChainJobCompensation.class);
+        when(ethereumService.getContractAddressOfDefinition("definition")).thenReturn(CONTRACT);
+        when(ethereumService.startProcessInstanceAsync(any(), any(), any()))
+                .thenAnswer(invocation -> mined(invocation.getArgument(2), "0xstart", "0x1"));
+        when(ethereumService.completeProcessInstanceAsync(any(), any(), any()))
+                .thenAnswer(invocation -> mined(invocation.getArgument(2), "0xcomplete", "0x1"));
+
+        outbox = new ChainJobOutbox(dataSource, true);
+        outbox.init();
+        // No backoff, so retried jobs are due again right away
+        worker = new ChainJobWorker(outbox, ethereumService, compensation, new DataSourceTransactionManager(dataSource),
+                new SimpleMeterRegistry(), 100, 3, 0, 60000, 60000, 0);
+    }
+
+    @Test
+    void testRunsEachPhaseOnceAndCompletesAfterStart() {
+        when(ethereumService.isFinanced(CONTRACT, "instance")).thenReturn(true);
+        outbox.schedule("instance", "definition", ChainJobOutbox.Phase.START);
+        outbox.schedule("instance", "definition", ChainJobOutbox.Phase.START);
+        outbox.schedule("instance", "definition", ChainJobOutbox.Phase.COMPLETE);
+
+        worker.run();
+        worker.run();
+
+        var inOrder = inOrder(ethereumService);
+        inOrder.verify(ethereumService).startProcessInstanceAsync(eq(CONTRACT), eq("instance"), any());
+        inOrder.verify(ethereumService).completeProcessInstanceAsync(eq(CONTRACT), eq("instance"), any());
+        verify(ethereumService, times(1)).startProcessInstanceAsync(any(), any(), any());
+        assertEquals("0xstart", column("TX_HASH_", ChainJobOutbox.Phase.START));
+        assertEquals(ChainJobOutbox.DONE, column("STATE_", ChainJobOutbox.Phase.COMPLETE));
+    }
+
+    @Test
+    void testUnfundedInstanceIsCompensatedAndCanBeStartedAgain() {
+        when(ethereumService.isFinanced(CONTRACT, "instance")).thenReturn(false);
+        outbox.schedule("instance", "definition", ChainJobOutbox.Phase.START);
+        outbox.schedule("instance", "definition", ChainJobOutbox.Phase.COMPLETE);
+
+        worker.run();
+
+        verify(compensation).fundingFailed(eq("instance"), any());
+        verify(ethereumService, never()).startProcessInstanceAsync(any(), any(), any());
+        verify(ethereumService, never()).completeProcessInstanceAsync(any(), any(), any());
+        assertEquals(ChainJobOutbox.FAILED, column("STATE_", ChainJobOutbox.Phase.START));
+
+        // Activated again once funded
+        when(ethereumService.isFinanced(CONTRACT, "instance")).thenReturn(true);
+        outbox.schedule("instance", "definition", ChainJobOutbox.Phase.START);
+        worker.run();
+        worker.run();
+
+        verify(ethereumService).startProcessInstanceAsync(eq(CONTRACT), eq("instance"), any());
+        verify(ethereumService).completeProcessInstanceAsync(eq(CONTRACT), eq("instance"), any());
+    }
+
+    @Test
+    void testFailedCallIsRetriedUntilMaxAttempts() {
+        when(ethereumService.isFinanced(CONTRACT, "instance")).thenReturn(true);
+        when(ethereumService.startProcessInstanceAsync(any(), any(), any()))
+                .thenReturn(CompletableFuture.failedFuture(new TransactionException("node down")));
+        outbox.schedule("instance", "definition", ChainJobOutbox.Phase.START);
+
+        worker.run();
+        assertEquals(ChainJobOutbox.PENDING, column("STATE_", ChainJobOutbox.Phase.START));
+        worker.run();
+        worker.run();
+        worker.run();
+
+        verify(ethereumService, times(3)).startProcessInstanceAsync(any(), any(), any());
+        assertEquals(ChainJobOutbox.FAILED, column("STATE_", ChainJobOutbox.Phase.START));
+        assertEquals("node down", column("LAST_ERROR_", ChainJobOutbox.Phase.START));
+        verifyNoInteractions(compensation);
+    }
+
+    @Test
+    void testCallsTheChainOutsideOfTheClaimingTransaction() {
+        when(ethereumService.isFinanced(CONTRACT, "instance")).thenReturn(true);
+        when(ethereumService.startProcessInstanceAsync(any(), any(), any())).thenAnswer(invocation -> {
+            assertFalse(TransactionSynchronizationManager.isActualTransactionActive());
+            assertEquals(ChainJobOutbox.RUNNING, column("STATE_", ChainJobOutbox.Phase.START));
+            return mined(invocation.getArgument(2), "0xstart", "0x1");
+        });
+        outbox.schedule("instance", "definition", ChainJobOutbox.Phase.START);
+
+        worker.run();
+
+        assertEquals(ChainJobOutbox.DONE, column("STATE_", ChainJobOutbox.Phase.START));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void testJobStaysRunningWithItsHashUntilTheReceiptArrives() {
+        when(ethereumService.isFinanced(CONTRACT, "instance")).thenReturn(true);
+        CompletableFuture<TransactionReceipt> receipt = new CompletableFuture<>();
+        when(ethereumService.startProcessInstanceAsync(any(), any(), any())).thenAnswer(invocation -> {
+            ((Consumer<String>) invocation.getArgument(2)).accept("0xstart");
+            return receipt;
+        });
+        outbox.schedule("instance", "definition", ChainJobOutbox.Phase.START);
+        outbox.schedule("instance", "definition", ChainJobOutbox.Phase.COMPLETE);
+
+        worker.run();
+        worker.run();
+
+        assertEquals(ChainJobOutbox.RUNNING, column("STATE_", ChainJobOutbox.Phase.START));
+        assertEquals("0xstart", column("TX_HASH_", ChainJobOutbox.Phase.START));
+        verify(ethereumService, never()).completeProcessInstanceAsync(any(), any(), any());
+
+        receipt.complete(receipt("0xstart", "0x1"));
+        worker.run();
+
+        assertEquals(ChainJobOutbox.DONE, column("STATE_", ChainJobOutbox.Phase.START));
+        verify(ethereumService).completeProcessInstanceAsync(eq(CONTRACT), eq("instance"), any());
+    }
+
+    @Test
+    void testRevertedStartIsRetriedAndKeepsCompleteWaiting() {
+        when(ethereumService.isFinanced(CONTRACT, "instance")).thenReturn(true);
+        when(ethereumService.startProcessInstanceAsync(any(), any(), any()))
+                .thenAnswer(invocation -> mined(invocation.getArgument(2), "0xreverted", "0x0"))
+                .thenAnswer(invocation -> mined(invocation.getArgument(2), "0xstart", "0x1"));
+        outbox.schedule("instance", "definition", ChainJobOutbox.Phase.START);
+        outbox.schedule("instance", "definition", ChainJobOutbox.Phase.COMPLETE);
+
+        worker.run();
+
+        assertEquals(ChainJobOutbox.PENDING, column("STATE_", ChainJobOutbox.Phase.START));
+        assertEquals(ChainJobOutbox.PENDING, column("STATE_", ChainJobOutbox.Phase.COMPLETE));
+        verify(ethereumService, never()).completeProcessInstanceAsync(any(), any(), any());
+
+        worker.run();
+        worker.run();
+
+        verify(ethereumService, times(2)).startProcessInstanceAsync(any(), any(), any());
+        assertEquals("0xstart", column("TX_HASH_", ChainJobOutbox.Phase.START));
+        assertEquals(ChainJobOutbox.DONE, column("STATE_", ChainJobOutbox.Phase.COMPLETE));
+    }
+
+    @Test
+    void testFailedStartFailsCompleteUntilStartIsScheduledAgain() {
+        when(ethereumService.isFinanced(CONTRACT, "instance")).thenReturn(true);
+        when(ethereumService.startProcessInstanceAsync(any(), any(), any()))
+                .thenReturn(CompletableFuture.failedFuture(new TransactionException("node down")));
+        outbox.schedule("instance", "definition", ChainJobOutbox.Phase.START);
+        outbox.schedule("instance", "definition", ChainJobOutbox.Phase.COMPLETE);
+
+        for (int i = 0; i < 4; i++) {
+            worker.run();
+        }
+
+        assertEquals(ChainJobOutbox.FAILED, column("STATE_", ChainJobOutbox.Phase.START));
+        assertEquals(ChainJobOutbox.FAILED, column("STATE_", ChainJobOutbox.Phase.COMPLETE));
+        assertEquals(ChainJobOutbox.START_FAILED, column("LAST_ERROR_", ChainJobOutbox.Phase.COMPLETE));
+
+        when(ethereumService.startProcessInstanceAsync(any(), any(), any()))
+                .thenAnswer(invocation -> mined(invocation.getArgument(2), "0xstart", "0x1"));
+        outbox.schedule("instance", "definition", ChainJobOutbox.Phase.START);
+        worker.run();
+        worker.run();
+
+        assertEquals(ChainJobOutbox.DONE, column("STATE_", ChainJobOutbox.Phase.START));
+        assertEquals(ChainJobOutbox.DONE, column("STATE_", ChainJobOutbox.Phase.COMPLETE));
+    }
+
+    @Test
+    void testAbandonedJobFailsInsteadOfBeingSentAgain() {
+        when(ethereumService.isFinanced(CONTRACT, "instance")).thenReturn(true);
+        outbox.schedule("instance", "definition", ChainJobOutbox.Phase.START);
+        // A worker claimed the job and stopped before recording the outcome
+        outbox.getJdbcTemplate().update("UPDATE " + ChainJobOutbox.TABLE + " SET STATE_ = ?, UPDATED_ = ?",
+                ChainJobOutbox.RUNNING, new Timestamp(System.currentTimeMillis() - 120000));
+
+        worker.run();
+
+        verify(ethereumService, never()).startProcessInstanceAsync(any(), any(), any());
+        assertEquals(ChainJobOutbox.FAILED, column("STATE_", ChainJobOutbox.Phase.START));
+    }
+
+    /**
+     * Reports the hash as sent and returns the receipt as mined already.
+     */
+    @SuppressWarnings("unchecked")
+    private static CompletableFuture<TransactionReceipt> mined(Object onSent, String hash, String status) {
+        ((Consumer<String>) onSent).accept(hash);
+        return CompletableFuture.completedFuture(receipt(hash, status));
+    }
+
+    private static TransactionReceipt receipt(String hash, String status) {
+        TransactionReceipt receipt = new TransactionReceipt();
+        receipt.setTransactionHash(hash);
+        receipt.setStatus(status);
+        return receipt;
+    }
+
+    private String column(String column, ChainJobOutbox.Phase phase) {
+        return outbox.getJdbcTemplate().queryForObject("SELECT " + column + " FROM " + ChainJobOutbox.TABLE
+                + " WHERE PROC_INST_ID_ = ? AND PHASE_ = ?", String.class, "instance", phase.name());
+    }
+}
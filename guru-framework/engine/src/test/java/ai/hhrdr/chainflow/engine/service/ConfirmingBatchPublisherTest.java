@@ -0,0 +1,145 @@
+package ai.hhrdr.chainflow.engine.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.rabbit.connection.CorrelationData;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ConfirmingBatchPublisherTest {
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private ConfirmingBatchPublisher publisher;
+
+    @AfterEach
+    void tearDown() throws Exception {
+        if (publisher != null) {
+            publisher.destroy();
+        }
+    }
+
+    @Test
+    void testResendsNackedMessagesUntilAcked() throws Exception {
+        // Every message is nacked on its first send
+        StubBroker broker = new StubBroker((body, sends) -> sends == 1 ? Boolean.FALSE : Boolean.TRUE);
+        publisher = new ConfirmingBatchPublisher(broker, meterRegistry, false, 10, 5, 100, 1000, 3, 1);
+        AtomicInteger failures = new AtomicInteger();
+
+        publisher.publishBatch(List.of(pending("a", failures), pending("b", failures)));
+
+        assertEquals(4, broker.sends.get());
+        assertEquals(2, count("confirmed"));
+        assertEquals(2, count("retried"));
+        assertEquals(0, failures.get());
+    }
+
+    @Test
+    void testResendsFromTheFirstNackedMessageInOrder() throws Exception {
+        StubBroker broker = new StubBroker((body, sends) -> !(body.equals("b") && sends == 1));
+        publisher = new ConfirmingBatchPublisher(broker, meterRegistry, false, 10, 5, 100, 1000, 3, 1);
+        AtomicInteger failures = new AtomicInteger();
+
+        publisher.publishBatch(List.of(pending("a", failures), pending("b", failures), pending("c", failures)));
+
+        // c was acked already, but must not overtake b
+        assertEquals(List.of("a", "b", "c", "b", "c"), broker.bodies);
+        assertEquals(3, count("confirmed"));
+        assertEquals(2, count("retried"));
+        assertEquals(0, failures.get());
+        assertEquals(0, meterRegistry.get("rabbitmq.publish.inflight").gauge().value());
+    }
+
+    @Test
+    void testGivesUpAfterRetriesWithBackoffAndReportsFailure() throws Exception {
+        // Never confirmed, so every attempt runs into the confirm timeout
+        StubBroker broker = new StubBroker((body, sends) -> null);
+        publisher = new ConfirmingBatchPublisher(broker, meterRegistry, false, 10, 5, 100, 20, 2, 50);
+        AtomicInteger failures = new AtomicInteger();
+
+        long start = System.nanoTime();
+        publisher.publishBatch(List.of(pending("a", failures)));
+        long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+
+        assertEquals(3, broker.sends.get());
+        assertEquals(1, failures.get());
+        assertEquals(1, count("failed"));
+        // Two backoffs of 50 and 100 ms, plus three confirm timeouts
+        assertTrue(elapsedMillis >= 150 + 3 * 20, "took " + elapsedMillis + " ms");
+    }
+
+    @Test
+    void testLingerFlushesPartialBatch() throws Exception {
+        StubBroker broker = new StubBroker((body, sends) -> Boolean.TRUE);
+        publisher = new ConfirmingBatchPublisher(broker, meterRegistry, true, 100, 50, 100, 1000, 3, 1);
+        publisher.init();
+
+        publisher.submit("exchange", "key", message("a"));
+        publisher.submit("exchange", "key", message("b"));
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (count("confirmed") < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(2, count("confirmed"));
+        // Sent together once the linger time passed, although the batch was not full
+        assertEquals(1, meterRegistry.get("rabbitmq.publish.batch.size").summary().count());
+        assertEquals(2, meterRegistry.get("rabbitmq.publish.batch.size").summary().max());
+    }
+
+    private double count(String outcome) {
+        return meterRegistry.counter("rabbitmq.publish.messages", "outcome", outcome).count();
+    }
+
+    private static ConfirmingBatchPublisher.PendingPublish pending(String body, AtomicInteger failures) {
+        return new ConfirmingBatchPublisher.PendingPublish("exchange", "key", message(body), failures::incrementAndGet);
+    }
+
+    private static Message message(String body) {
+        return new Message(body.getBytes(StandardCharsets.UTF_8), new MessageProperties());
+    }
+
+    /**
+     * RabbitTemplate that never opens a connection and confirms each send right away as the answer function
+     * says: true acks, false nacks, null leaves it unconfirmed.
+     */
+    private static final class StubBroker extends RabbitTemplate {
+
+        private final BiFunction<String, Integer, Boolean> answer;
+        private final Map<String, Integer> sendsPerBody = new ConcurrentHashMap<>();
+        private final AtomicInteger sends = new AtomicInteger();
+        private final List<String> bodies = new CopyOnWriteArrayList<>();
+
+        StubBroker(BiFunction<String, Integer, Boolean> answer) {
+            this.answer = answer;
+        }
+
+        @Override
+        public <T> T invoke(OperationsCallback<T> action) {
+            return action.doInRabbit(this);
+        }
+
+        @Override
+        public void send(String exchange, String routingKey, Message message, CorrelationData correlationData) {
+            sends.incrementAndGet();
+            String body = new String(message.getBody(), StandardCharsets.UTF_8);
+            bodies.add(body);
+            Boolean ack = answer.apply(body, sendsPerBody.merge(body, 1, Integer::sum));
+            if (ack != null) {
+                correlationData.getFuture().set(new CorrelationData.Confirm(ack, ack ? null : "stub nack"));
+            }
+        }
+    }
+}
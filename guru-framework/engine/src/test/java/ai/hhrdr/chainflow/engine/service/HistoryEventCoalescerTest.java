@@ -0,0 +1,76 @@
+package ai.hhrdr.chainflow.engine.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.camunda.bpm.engine.impl.history.event.HistoricActivityInstanceEventEntity;
+import org.camunda.bpm.engine.impl.history.event.HistoricVariableUpdateEventEntity;
+import org.camunda.bpm.engine.impl.history.event.HistoryEvent;
+import org.camunda.bpm.engine.impl.history.event.HistoryEventTypes;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class HistoryEventCoalescerTest {
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final HistoryEventCoalescer coalescer = new HistoryEventCoalescer(meterRegistry, HistoryEventCoalescer.Mode.COMMAND);
+
+    @Test
+    void testKeepsLastUpdateOfVariable() {
+        HistoryEvent create = variableEvent(HistoryEventTypes.VARIABLE_INSTANCE_CREATE, "var-1");
+        HistoryEvent toNull = variableEvent(HistoryEventTypes.VARIABLE_INSTANCE_UPDATE, "var-1");
+        HistoryEvent activityEnd = activityEvent(HistoryEventTypes.ACTIVITY_INSTANCE_END, "act-1");
+        HistoryEvent toFinal = variableEvent(HistoryEventTypes.VARIABLE_INSTANCE_UPDATE, "var-1");
+
+        List<HistoryEvent> result = coalescer.coalesce("test", List.of(create, toNull, activityEnd, toFinal), Function.identity());
+
+        assertEquals(List.of(create, activityEnd, toFinal), result);
+        assertEquals(1.0, meterRegistry.get("history.coalesce.merged").tag("sink", "test").counter().count());
+    }
+
+    @Test
+    void testKeepsUpdatesOfDifferentEntitiesAndTypes() {
+        HistoryEvent first = variableEvent(HistoryEventTypes.VARIABLE_INSTANCE_UPDATE, "var-1");
+        HistoryEvent other = variableEvent(HistoryEventTypes.VARIABLE_INSTANCE_UPDATE, "var-2");
+        HistoryEvent detail = variableEvent(HistoryEventTypes.VARIABLE_INSTANCE_UPDATE_DETAIL, "var-1");
+        List<HistoryEvent> events = List.of(first, other, detail);
+
+        assertSame(events, coalescer.coalesce("test", events, Function.identity()));
+    }
+
+    @Test
+    void testCollapsesActivityUpdates() {
+        HistoryEvent start = activityEvent(HistoryEventTypes.ACTIVITY_INSTANCE_START, "act-1");
+        HistoryEvent update1 = activityEvent(HistoryEventTypes.ACTIVITY_INSTANCE_UPDATE, "act-1");
+        HistoryEvent update2 = activityEvent(HistoryEventTypes.ACTIVITY_INSTANCE_UPDATE, "act-1");
+
+        assertEquals(List.of(start, update2), coalescer.coalesce("test", List.of(start, update1, update2), Function.identity()));
+    }
+
+    @Test
+    void testOffModePassesThrough() {
+        HistoryEventCoalescer off = new HistoryEventCoalescer(meterRegistry, HistoryEventCoalescer.Mode.OFF);
+        List<HistoryEvent> events = List.of(
+                variableEvent(HistoryEventTypes.VARIABLE_INSTANCE_UPDATE, "var-1"),
+                variableEvent(HistoryEventTypes.VARIABLE_INSTANCE_UPDATE, "var-1"));
+
+        assertSame(events, off.coalesce("test", events, Function.identity()));
+    }
+
+    private static HistoryEvent variableEvent(HistoryEventTypes type, String variableInstanceId) {
+        HistoricVariableUpdateEventEntity event = new HistoricVariableUpdateEventEntity();
+        event.setEventType(type.getEventName());
+        event.setVariableInstanceId(variableInstanceId);
+        return event;
+    }
+
+    private static HistoryEvent activityEvent(HistoryEventTypes type, String activityInstanceId) {
+        HistoricActivityInstanceEventEntity event = new HistoricActivityInstanceEventEntity();
+        event.setEventType(type.getEventName());
+        event.setActivityInstanceId(activityInstanceId);
+        return event;
+    }
+}
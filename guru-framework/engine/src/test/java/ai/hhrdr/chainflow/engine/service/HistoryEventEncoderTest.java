@@ -0,0 +1,98 @@
+package ai.hhrdr.chainflow.engine.service;
+
+import ai.hhrdr.chainflow.engine.fixtures.HistoryEventSamples;
+import ai.hhrdr.chainflow.engine.service.HistoryEventEncoder.EncodedBody;
+import ai.hhrdr.chainflow.engine.service.HistoryEventEncoder.WireFormat;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.camunda.bpm.engine.impl.history.event.HistoryEvent;
+import org.junit.jupiter.api.Test;
+import org.springframework.amqp.core.MessageProperties;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HistoryEventEncoderTest {
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final HistoryEventSerializer serializer = new HistoryEventSerializer(objectMapper);
+
+    @Test
+    void testJsonFormatKeepsPlainBody() throws Exception {
+        HistoryEvent event = HistoryEventSamples.activityInstanceEnd();
+        EncodedBody body = new HistoryEventEncoder(serializer, WireFormat.JSON, 0)
+                .encode("HistoricActivityInstanceEventEntity", event, "user-1", "calling-1");
+
+        assertTrue(body.isPlainJson());
+        assertArrayEquals(serializer.serialize(event, "user-1", "calling-1"), body.getBody());
+    }
+
+    @Test
+    void testSmileDecodesToJsonWithoutNulls() throws Exception {
+        HistoryEvent event = HistoryEventSamples.variableUpdate();
+        EncodedBody body = new HistoryEventEncoder(serializer, WireFormat.SMILE, 0)
+                .encode("HistoricVariableUpdateEventEntity", event, "user-1", null);
+        byte[] json = serializer.serialize(event, "user-1", null);
+
+        assertFalse(body.isCompressed());
+        assertTrue(body.getBody().length < json.length);
+        assertEquals(withoutNulls(objectMapper.readTree(json)), decode(body));
+    }
+
+    @Test
+    void testCompressesAboveThreshold() throws Exception {
+        HistoryEvent event = HistoryEventSamples.activityInstanceEnd();
+        HistoryEventEncoder encoder = new HistoryEventEncoder(serializer, WireFormat.JSON, 64);
+        EncodedBody body = encoder.encode("HistoricActivityInstanceEventEntity", event, "user-1", "calling-1");
+
+        assertTrue(body.isCompressed());
+        assertEquals(objectMapper.readTree(serializer.serialize(event, "user-1", "calling-1")), decode(body));
+    }
+
+    @Test
+    void testStoredJsonEncodesLikeEvent() throws Exception {
+        HistoryEvent event = HistoryEventSamples.activityInstanceEnd();
+        HistoryEventEncoder encoder = new HistoryEventEncoder(serializer, WireFormat.SMILE, 0);
+        EncodedBody fromEvent = encoder.encode("HistoricActivityInstanceEventEntity", event, "user-1", "calling-1");
+        EncodedBody fromStored = encoder.encodeStored("HistoricActivityInstanceEventEntity",
+                serializer.serialize(event, "user-1", "calling-1"));
+
+        assertEquals(decode(fromEvent), decode(fromStored));
+    }
+
+    @Test
+    void testHeadersDescribeBody() throws Exception {
+        EncodedBody body = new HistoryEventEncoder(serializer, WireFormat.SMILE, 0)
+                .encode("HistoricActivityInstanceEventEntity", HistoryEventSamples.activityInstanceEnd(), "user-1", null);
+        MessageProperties props = new MessageProperties();
+        body.applyTo(props);
+
+        assertEquals(HistoryEventEncoder.CONTENT_TYPE_SMILE, props.getContentType());
+        assertEquals("smile/1", props.getHeader(HistoryEventEncoder.WIRE_FORMAT_HEADER));
+        assertEquals("HistoricActivityInstanceEventEntity/1", props.getHeader(HistoryEventEncoder.SCHEMA_HEADER));
+    }
+
+    private JsonNode decode(EncodedBody body) throws Exception {
+        MessageProperties props = new MessageProperties();
+        body.applyTo(props);
+        return objectMapper.readTree(HistoryEventEncoder.decodeToJson(body.getBody(), props.getContentType(), props.getContentEncoding()));
+    }
+
+    private static JsonNode withoutNulls(JsonNode node) {
+        ObjectNode copy = ((ObjectNode) node).deepCopy();
+        List<String> nullFields = new ArrayList<>();
+        copy.fields().forEachRemaining(field -> {
+            if (field.getValue().isNull()) {
+                nullFields.add(field.getKey());
+            }
+        });
+        copy.remove(nullFields);
+        return copy;
+    }
+}
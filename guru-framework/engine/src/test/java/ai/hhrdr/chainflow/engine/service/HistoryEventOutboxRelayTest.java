@@ -0,0 +1,80 @@
+package ai.hhrdr.chainflow.engine.service;
+
+import ai.hhrdr.chainflow.engine.fixtures.HistoryEventSamples;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.amqp.rabbit.connection.CorrelationData;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+
+import java.util.Collections;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+class HistoryEventOutboxRelayTest {
+
+    private RabbitMQSender rabbitMQSender;
+    private HistoryEventOutbox outbox;
+    private HistoryEventOutboxRelay relay;
+
+    @BeforeEach
+    void setUp() {
+        DriverManagerDataSource dataSource = new DriverManagerDataSource(
+                "jdbc:h2:mem:outbox-" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1", "sa", "");
+        rabbitMQSender = mock(RabbitMQSender.class);
+        when(rabbitMQSender.isEnabled()).thenReturn(true);
+        when(rabbitMQSender.serialize(any(), any(), any())).thenReturn("{\"id\":\"1\"}".getBytes());
+
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        outbox = new HistoryEventOutbox(dataSource, rabbitMQSender,
+                new HistoryEventCoalescer(meterRegistry, HistoryEventCoalescer.Mode.OFF), true);
+        outbox.init();
+        relay = new HistoryEventOutboxRelay(outbox, rabbitMQSender, new DataSourceTransactionManager(dataSource),
+                meterRegistry, 2, 1000);
+    }
+
+    @Test
+    void testAckedRowsArePublishedInOrderAndDeleted() {
+        when(rabbitMQSender.publishConfirmed(any(), any(), any(), any())).thenAnswer(invocation -> confirmed(true));
+        for (int i = 0; i < 3; i++) {
+            outbox.add(message("user-" + i));
+        }
+
+        relay.relay();
+
+        var inOrder = inOrder(rabbitMQSender);
+        inOrder.verify(rabbitMQSender).publishConfirmed(any(), eq("user-0"), any(), any());
+        inOrder.verify(rabbitMQSender).publishConfirmed(any(), eq("user-1"), any(), any());
+        inOrder.verify(rabbitMQSender).publishConfirmed(any(), eq("user-2"), any(), any());
+        assertEquals(0, pendingRows());
+    }
+
+    @Test
+    void testNackedBatchStaysInOutbox() {
+        when(rabbitMQSender.publishConfirmed(any(), any(), any(), any())).thenAnswer(invocation -> confirmed(false));
+        outbox.add(message("user-0"));
+
+        relay.relay();
+
+        assertEquals(1, pendingRows());
+    }
+
+    private int pendingRows() {
+        return outbox.getJdbcTemplate().queryForObject("SELECT COUNT(*) FROM " + HistoryEventOutbox.TABLE, Integer.class);
+    }
+
+    private static HistoryEventMessage message(String startUserId) {
+        return new HistoryEventMessage(HistoryEventSamples.variableUpdate(), "HistoricVariableUpdateEventEntity", startUserId, null);
+    }
+
+    private static Object confirmed(boolean ack) {
+        CorrelationData correlationData = new CorrelationData();
+        correlationData.getFuture().set(new CorrelationData.Confirm(ack, ack ? null : "nack"));
+        return Collections.singletonList(correlationData);
+    }
+}
@@ -0,0 +1,116 @@
+package ai.hhrdr.chainflow.engine.service;
+
+import ai.hhrdr.chainflow.engine.service.HistoryEventPartitioner.Assignment;
+import ai.hhrdr.chainflow.engine.service.HistoryEventPartitioner.PartitionKey;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.camunda.bpm.engine.impl.history.event.HistoricActivityInstanceEventEntity;
+import org.camunda.bpm.engine.impl.history.event.HistoricProcessInstanceEventEntity;
+import org.camunda.bpm.engine.impl.history.event.HistoryEvent;
+import org.camunda.bpm.engine.impl.history.event.HistoryEventTypes;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HistoryEventPartitionerTest {
+
+    private final HistoryEventPartitioner partitioner =
+            new HistoryEventPartitioner("engine.routingkey", 8, PartitionKey.ROOT_PROCESS_INSTANCE, 1000);
+
+    @Test
+    void testProcessTreeSharesPartitionAndSequence() {
+        Assignment root = partitioner.assign(activityEvent("root-1", "root-1"));
+        Assignment child = partitioner.assign(activityEvent("child-1", "root-1"));
+
+        assertEquals(root.getPartition(), child.getPartition());
+        assertEquals("engine.routingkey." + root.getPartition(), child.getRoutingKey());
+        assertEquals(1, root.getSequence());
+        assertEquals(2, child.getSequence());
+    }
+
+    @Test
+    void testProcessInstanceKeySeparatesSubprocesses() {
+        HistoryEventPartitioner byInstance =
+                new HistoryEventPartitioner("engine.routingkey", 8, PartitionKey.PROCESS_INSTANCE, 1000);
+
+        assertEquals(1, byInstance.assign(activityEvent("root-1", "root-1")).getSequence());
+        Assignment child = byInstance.assign(activityEvent("child-1", "root-1"));
+        assertEquals("child-1", child.getKey());
+        assertEquals(1, child.getSequence());
+    }
+
+    @Test
+    void testEndOfKeyedInstanceResetsSequence() {
+        partitioner.assign(activityEvent("root-1", "root-1"));
+        assertEquals(2, partitioner.assign(processEnd("root-1")).getSequence());
+        assertEquals(1, partitioner.assign(activityEvent("root-1", "root-1")).getSequence());
+    }
+
+    @Test
+    void testStoredEventGetsSameAssignment() throws IOException {
+        HistoryEventSerializer serializer = new HistoryEventSerializer(new ObjectMapper());
+        HistoryEventPartitioner stored =
+                new HistoryEventPartitioner("engine.routingkey", 8, PartitionKey.ROOT_PROCESS_INSTANCE, 1000);
+        HistoryEvent event = activityEvent("child-1", "root-1");
+
+        Assignment fromEvent = partitioner.assign(event);
+        // The enrichment writes the calling instance under rootProcessInstanceId too; the event's own field wins
+        Assignment fromJson = stored.assign("HistoricActivityInstanceEventEntity", serializer.serialize(event, "user-1", "caller-1"));
+
+        assertEquals("root-1", fromJson.getKey());
+        assertEquals(fromEvent.getPartition(), fromJson.getPartition());
+        assertEquals(fromEvent.getSequence(), fromJson.getSequence());
+    }
+
+    @Test
+    void testEventWithoutInstanceGoesToFirstPartition() {
+        Assignment assignment = partitioner.assign(new HistoricActivityInstanceEventEntity());
+
+        assertEquals(0, assignment.getPartition());
+        assertNull(assignment.getKey());
+        assertEquals(0, assignment.getSequence());
+    }
+
+    @Test
+    void testAddingPartitionMovesFewKeys() {
+        int keys = 10_000;
+        int moved = 0;
+        int[] perPartition = new int[8];
+        for (int i = 0; i < keys; i++) {
+            String key = UUID.nameUUIDFromBytes(("instance-" + i).getBytes()).toString();
+            int before = HistoryEventPartitioner.partitionOf(key, 8);
+            perPartition[before]++;
+            int after = HistoryEventPartitioner.partitionOf(key, 9);
+            if (before != after) {
+                assertEquals(8, after);
+                moved++;
+            }
+        }
+
+        // Ideal is keys / 9
+        assertTrue(moved > keys / 12 && moved < keys / 7, "moved " + moved);
+        for (int count : perPartition) {
+            assertTrue(count > keys / 8 * 0.85 && count < keys / 8 * 1.15, "partition size " + count);
+        }
+    }
+
+    private static HistoryEvent activityEvent(String processInstanceId, String rootProcessInstanceId) {
+        HistoricActivityInstanceEventEntity event = new HistoricActivityInstanceEventEntity();
+        event.setEventType(HistoryEventTypes.ACTIVITY_INSTANCE_END.getEventName());
+        event.setProcessInstanceId(processInstanceId);
+        event.setRootProcessInstanceId(rootProcessInstanceId);
+        return event;
+    }
+
+    private static HistoryEvent processEnd(String processInstanceId) {
+        HistoricProcessInstanceEventEntity event = new HistoricProcessInstanceEventEntity();
+        event.setEventType(HistoryEventTypes.PROCESS_INSTANCE_END.getEventName());
+        event.setProcessInstanceId(processInstanceId);
+        event.setRootProcessInstanceId(processInstanceId);
+        return event;
+    }
+}
@@ -0,0 +1,64 @@
+package ai.hhrdr.chainflow.engine.service;
+
+import ai.hhrdr.chainflow.engine.fixtures.HistoryEventSamples;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.camunda.bpm.engine.impl.history.event.HistoryEvent;
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class HistoryEventSerializerTest {
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final HistoryEventSerializer serializer = new HistoryEventSerializer(objectMapper);
+
+    @Test
+    void testActivityEventMatchesReflectiveConversion() throws Exception {
+        assertSameJson(HistoryEventSamples.activityInstanceEnd());
+    }
+
+    @Test
+    void testVariableEventMatchesReflectiveConversion() throws Exception {
+        assertSameJson(HistoryEventSamples.variableUpdate());
+    }
+
+    @Test
+    void testEnrichmentOverridesRootProcessInstanceId() throws Exception {
+        byte[] json = serializer.serialize(HistoryEventSamples.variableUpdate(), "user-1", "calling-1");
+
+        Map<?, ?> parsed = objectMapper.readValue(json, Map.class);
+        assertEquals("user-1", parsed.get("camundaUserId"));
+        assertEquals("calling-1", parsed.get("rootProcessInstanceId"));
+    }
+
+    private void assertSameJson(HistoryEvent event) throws Exception {
+        byte[] expected = objectMapper.writeValueAsBytes(reflectiveConvert(event, "user-1", "calling-1"));
+        byte[] actual = serializer.serialize(event, "user-1", "calling-1");
+
+        assertEquals(objectMapper.readTree(expected), objectMapper.readTree(actual));
+    }
+
+    private static Map<String, Object> reflectiveConvert(HistoryEvent event, String startUserId, String callingProcessInstanceId)
+            throws IllegalAccessException {
+        Map<String, Object> result = new HashMap<>();
+        Class<?> currentClass = event.getClass();
+        while (currentClass != null && currentClass != Object.class) {
+            for (Field field : currentClass.getDeclaredFields()) {
+                if (Modifier.isStatic(field.getModifiers())) {
+                    continue;
+                }
+                field.setAccessible(true);
+                result.put(field.getName(), field.get(event));
+            }
+            currentClass = currentClass.getSuperclass();
+        }
+        result.put("camundaUserId", startUserId);
+        result.put("rootProcessInstanceId", callingProcessInstanceId);
+        return result;
+    }
+}
@@ -0,0 +1,147 @@
+package ai.hhrdr.chainflow.engine.service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HistoryEventSpillStoreTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void testReplaysInOrderAndDeletesSegments() throws IOException {
+        HistoryEventSpillStore store = store(64);
+        for (int i = 0; i < 5; i++) {
+            store.append("HistoricActivityInstanceEventEntity", "user-" + i, null, body(i));
+        }
+
+        List<String> replayed = new ArrayList<>();
+        int count = store.replay((type, user, calling, body) -> {
+            assertEquals("HistoricActivityInstanceEventEntity", type);
+            assertNull(calling);
+            replayed.add(user + "=" + new String(body, StandardCharsets.UTF_8));
+        });
+
+        assertEquals(5, count);
+        assertEquals(List.of("user-0={\"n\":0}", "user-1={\"n\":1}", "user-2={\"n\":2}", "user-3={\"n\":3}", "user-4={\"n\":4}"), replayed);
+        assertFalse(store.hasPending());
+        assertTrue(segments().isEmpty());
+    }
+
+    @Test
+    void testRecoversRecordsBeforeTruncatedTail() throws IOException {
+        HistoryEventSpillStore store = store(4096);
+        for (int i = 0; i < 3; i++) {
+            store.append("HistoricVariableUpdateEventEntity", "user-1", "calling-1", body(i));
+        }
+        store.close();
+        Path segment = segments().get(0);
+        // Crash in the middle of writing the last record
+        try (RandomAccessFile file = new RandomAccessFile(segment.toFile(), "rw")) {
+            file.setLength(file.length() - 3);
+        }
+
+        HistoryEventSpillStore recovered = store(4096);
+        assertEquals(2, recovered.pendingRecords());
+
+        List<byte[]> bodies = new ArrayList<>();
+        assertEquals(2, recovered.replay((type, user, calling, body) -> bodies.add(body)));
+        assertArrayEquals(body(0), bodies.get(0));
+        assertArrayEquals(body(1), bodies.get(1));
+    }
+
+    @Test
+    void testRecoversUnsealedSegment() throws IOException {
+        HistoryEventSpillStore crashed = store(4096);
+        crashed.append("HistoricVariableUpdateEventEntity", "user-1", null, body(0));
+        crashed.append("HistoricVariableUpdateEventEntity", "user-1", null, body(1));
+
+        // The preallocated tail of a segment that was never sealed reads as end of data
+        HistoryEventSpillStore recovered = store(4096);
+        assertEquals(2, recovered.pendingRecords());
+        recovered.append("HistoricVariableUpdateEventEntity", "user-1", null, body(2));
+        assertEquals(3, recovered.replay((type, user, calling, body) -> { }));
+    }
+
+    @Test
+    void testStopsAtCorruptRecord() throws IOException {
+        HistoryEventSpillStore store = store(4096);
+        store.append("HistoricVariableUpdateEventEntity", "user-1", null, body(0));
+        store.append("HistoricVariableUpdateEventEntity", "user-1", null, body(1));
+        store.close();
+        Path segment = segments().get(0);
+        try (RandomAccessFile file = new RandomAccessFile(segment.toFile(), "rw")) {
+            file.seek(file.length() - 2);
+            file.write('x');
+        }
+
+        assertEquals(1, store(4096).pendingRecords());
+    }
+
+    @Test
+    void testFailedReplayKeepsRecords() throws IOException {
+        HistoryEventSpillStore store = store(4096);
+        for (int i = 0; i < 3; i++) {
+            store.append("HistoricVariableUpdateEventEntity", "user-1", null, body(i));
+        }
+
+        int[] attempts = {0};
+        assertEquals(0, store.replay((type, user, calling, body) -> {
+            if (++attempts[0] == 2) {
+                throw new IllegalStateException("broker down");
+            }
+        }));
+        assertEquals(3, store.pendingRecords());
+
+        assertEquals(3, store.replay((type, user, calling, body) -> { }));
+        assertFalse(store.hasPending());
+    }
+
+    @Test
+    void testImportsLegacySpillFiles() throws IOException {
+        Files.writeString(directory.resolve("spill-0001700000000000-000000.jsonl"),
+                "{\"camundaEventType\":\"HistoricProcessInstanceEventEntity\",\"startUserId\":\"user-1\","
+                        + "\"callingProcessInstanceId\":null,\"body\":{\"n\":7}}\n");
+
+        HistoryEventSpillStore store = store(4096);
+        assertEquals(1, store.pendingRecords());
+
+        List<byte[]> bodies = new ArrayList<>();
+        store.replay((type, user, calling, body) -> bodies.add(body));
+        assertArrayEquals(body(7), bodies.get(0));
+    }
+
+    private HistoryEventSpillStore store(int segmentSize) throws IOException {
+        HistoryEventSpillStore store = new HistoryEventSpillStore(directory.toString(), segmentSize, false);
+        store.open();
+        return store;
+    }
+
+    private List<Path> segments() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(path -> path.getFileName().toString().endsWith(HistoryEventSpillStore.SEGMENT_SUFFIX))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private static byte[] body(int n) {
+        return ("{\"n\":" + n + "}").getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,88 @@
+package ai.hhrdr.chainflow.engine.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class InscriptionRecordBufferTest {
+
+    @Test
+    void testKeepsOrderAcrossWrapArounds() throws Exception {
+        InscriptionRecordBuffer buffer = new InscriptionRecordBuffer(1000, Integer.MAX_VALUE);
+        int written = 0;
+        int read = 0;
+        for (int round = 0; round < 200; round++) {
+            while (buffer.offer("key-" + written, "event-" + written, json(written))) {
+                written++;
+            }
+            // Leave a varying number of records behind so the wrap point moves around the array
+            int take = 1 + round % 7;
+            for (int i = 0; i < take && read < written; i++) {
+                InscriptionRecordBuffer.Record record = buffer.poll(0, TimeUnit.MILLISECONDS);
+                assertEquals("event-" + read, record.eventId);
+                assertEquals("key-" + read, record.coalescingKey);
+                assertEquals(new String(json(read), StandardCharsets.UTF_8), new String(record.json, StandardCharsets.UTF_8));
+                read++;
+            }
+            assertTrue(buffer.usedBytes() <= buffer.capacityBytes());
+        }
+        List<InscriptionRecordBuffer.Record> rest = new ArrayList<>();
+        buffer.drainTo(rest, Integer.MAX_VALUE);
+        for (InscriptionRecordBuffer.Record record : rest) {
+            assertEquals("event-" + read++, record.eventId);
+        }
+        assertEquals(written, read);
+        assertEquals(0, buffer.usedBytes());
+    }
+
+    @Test
+    void testRejectsWhenBudgetOrCountExceeded() throws Exception {
+        InscriptionRecordBuffer buffer = new InscriptionRecordBuffer(64, 2);
+
+        assertFalse(buffer.offer(null, "too-big", new byte[100]));
+        assertTrue(buffer.offer(null, "a", json(1)));
+        assertTrue(buffer.offer(null, null, json(2)));
+        assertFalse(buffer.offer(null, "c", json(3)));
+
+        InscriptionRecordBuffer.Record record = buffer.poll(0, TimeUnit.MILLISECONDS);
+        assertNull(record.coalescingKey);
+        assertEquals("a", record.eventId);
+        assertNull(buffer.poll(0, TimeUnit.MILLISECONDS).eventId);
+        assertNull(buffer.poll(10, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    void testWakesWaitingConsumer() throws Exception {
+        InscriptionRecordBuffer buffer = new InscriptionRecordBuffer(4096, 100);
+        Thread producer = new Thread(() -> {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            buffer.offer(null, "late", json(0));
+        });
+        producer.start();
+
+        InscriptionRecordBuffer.Record record = buffer.poll(5, TimeUnit.SECONDS);
+
+        assertEquals("late", record.eventId);
+        producer.join();
+    }
+
+    private static byte[] json(int i) {
+        StringBuilder json = new StringBuilder("{\"id\":\"event-").append(i).append("\",\"pad\":\"");
+        for (int j = 0; j < i % 40; j++) {
+            json.append('x');
+        }
+        return json.append("\"}").getBytes(StandardCharsets.UTF_8);
+    }
+}
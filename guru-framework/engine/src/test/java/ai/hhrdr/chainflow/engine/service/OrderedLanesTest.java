@@ -0,0 +1,87 @@
+package ai.hhrdr.chainflow.engine.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OrderedLanesTest {
+
+    @Test
+    void testRunsTasksOfAKeyInOrder() throws Exception {
+        OrderedLanes lanes = new OrderedLanes("test", 4, 1000, true);
+        List<Integer> seen = Collections.synchronizedList(new ArrayList<>());
+        for (int i = 0; i < 200; i++) {
+            int n = i;
+            assertTrue(lanes.execute("pi-1", () -> seen.add(n)));
+        }
+        lanes.shutdown();
+        lanes.awaitTermination(5, TimeUnit.SECONDS);
+
+        assertEquals(200, seen.size());
+        for (int i = 0; i < 200; i++) {
+            assertEquals(i, seen.get(i));
+        }
+    }
+
+    @Test
+    void testFullLaneRejectsOrBlocks() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        Runnable stuck = () -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        };
+
+        OrderedLanes rejecting = new OrderedLanes("rejecting", 1, 1, false);
+        assertTrue(rejecting.execute("pi-1", stuck));
+        waitUntilEmpty(rejecting);
+        assertTrue(rejecting.execute("pi-1", () -> { }));
+        assertFalse(rejecting.execute("pi-1", () -> { }));
+
+        OrderedLanes blocking = new OrderedLanes("blocking", 1, 1, true);
+        assertTrue(blocking.execute("pi-1", stuck));
+        waitUntilEmpty(blocking);
+        assertTrue(blocking.execute("pi-1", () -> { }));
+        AtomicBoolean ran = new AtomicBoolean();
+        Thread submitter = new Thread(() -> blocking.execute("pi-1", () -> ran.set(true)));
+        submitter.start();
+        submitter.join(200);
+        assertTrue(submitter.isAlive());
+
+        release.countDown();
+        submitter.join(5000);
+        blocking.shutdown();
+        blocking.awaitTermination(5, TimeUnit.SECONDS);
+        assertTrue(ran.get());
+        rejecting.shutdown();
+    }
+
+    @Test
+    void testRejectsAfterShutdownAndWithoutThreads() {
+        OrderedLanes lanes = new OrderedLanes("test", 2, 10, true);
+        lanes.shutdown();
+
+        assertTrue(lanes.isShutdown());
+        assertFalse(lanes.execute("pi-1", () -> { }));
+        assertThrows(IllegalArgumentException.class, () -> new OrderedLanes("test", 0, 10, true));
+    }
+
+    private static void waitUntilEmpty(OrderedLanes lanes) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (lanes.queueDepth() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+    }
+}